@@ -57,6 +57,9 @@ public class AndroidApkBuilder {
   @NonNls private static final String UNALIGNED_SUFFIX = ".unaligned";
   @NonNls private static final String EXT_NATIVE_LIB = "so";
 
+  /** Whether unchanged entries of the previous APK are reused instead of being compressed and digested again */
+  private static final boolean INCREMENTAL = !Boolean.getBoolean("android.apk.incremental.disabled");
+
   private AndroidApkBuilder() {
   }
 
@@ -283,8 +286,13 @@ public class AndroidApkBuilder {
         return result;
       }
 
-      fos = new FileOutputStream(outputApk);
-      builder = new SafeSignedJarBuilder(fos, key, certificate, outputApk);
+      if (INCREMENTAL) {
+        builder = new IncrementalSignedJarBuilder(new File(outputApk), key, certificate);
+      }
+      else {
+        fos = new FileOutputStream(outputApk);
+        builder = new SafeSignedJarBuilder(fos, key, certificate, outputApk);
+      }
 
       FileInputStream fis = new FileInputStream(apkPath);
       try {
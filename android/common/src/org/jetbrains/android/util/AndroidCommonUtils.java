@@ -165,47 +165,81 @@ public class AndroidCommonUtils {
                                                 @NotNull String outputFilePath,
                                                 @NotNull final Map<AndroidCompilerMessageKind, List<String>> messages) {
     final BaseOSProcessHandler handler = new BaseOSProcessHandler(process, null, null);
+    final DexOutputParser parser = new DexOutputParser(messages);
     handler.addProcessListener(new ProcessAdapter() {
-      private AndroidCompilerMessageKind myCategory = null;
-
       @Override
       public void onTextAvailable(ProcessEvent event, Key outputType) {
-        String[] msgs = event.getText().split("\\n");
-        for (String msg : msgs) {
-          msg = msg.trim();
-          String msglc = msg.toLowerCase();
-          if (outputType == ProcessOutputTypes.STDERR) {
-            if (WARNING_PATTERN.matcher(msglc).matches()) {
-              myCategory = AndroidCompilerMessageKind.WARNING;
-            }
-            if (ERROR_PATTERN.matcher(msglc).matches() || EXCEPTION_PATTERN.matcher(msglc).matches() || myCategory == null) {
-              myCategory = AndroidCompilerMessageKind.ERROR;
-            }
-            messages.get(myCategory).add(msg);
-          }
-          else if (outputType == ProcessOutputTypes.STDOUT) {
-            if (!msglc.startsWith("processing")) {
-              messages.get(AndroidCompilerMessageKind.INFORMATION).add(msg);
-            }
-          }
-
-          LOG.debug(msg);
+        if (outputType == ProcessOutputTypes.STDERR || outputType == ProcessOutputTypes.STDOUT) {
+          parser.process(event.getText(), outputType == ProcessOutputTypes.STDERR);
         }
       }
     });
 
     handler.startNotify();
     handler.waitFor();
+    parser.finish(outputFilePath);
+  }
+
+  /**
+   * Same as {@link #handleDexCompilationResult(Process, String, Map)}, for dx runs whose output has been captured already,
+   * such as the ones of a dx daemon
+   */
+  public static void handleDexCompilationResult(@NotNull String stdout,
+                                                @NotNull String stderr,
+                                                @NotNull String outputFilePath,
+                                                @NotNull Map<AndroidCompilerMessageKind, List<String>> messages) {
+    final DexOutputParser parser = new DexOutputParser(messages);
+    parser.process(stdout, false);
+    parser.process(stderr, true);
+    parser.finish(outputFilePath);
+  }
 
-    final List<String> errors = messages.get(AndroidCompilerMessageKind.ERROR);
+  private static class DexOutputParser {
+    private final Map<AndroidCompilerMessageKind, List<String>> myMessages;
+    private AndroidCompilerMessageKind myCategory = null;
 
-    if (new File(outputFilePath).isFile()) {
-      // if compilation finished correctly, show all errors as warnings
-      messages.get(AndroidCompilerMessageKind.WARNING).addAll(errors);
-      errors.clear();
+    private DexOutputParser(@NotNull Map<AndroidCompilerMessageKind, List<String>> messages) {
+      myMessages = messages;
     }
-    else if (errors.size() == 0) {
-      errors.add("Cannot create classes.dex file");
+
+    void process(@NotNull String text, boolean stderr) {
+      if (text.isEmpty()) {
+        return;
+      }
+      String[] msgs = text.split("\\n");
+      for (String msg : msgs) {
+        msg = msg.trim();
+        String msglc = msg.toLowerCase();
+        if (stderr) {
+          if (WARNING_PATTERN.matcher(msglc).matches()) {
+            myCategory = AndroidCompilerMessageKind.WARNING;
+          }
+          if (ERROR_PATTERN.matcher(msglc).matches() || EXCEPTION_PATTERN.matcher(msglc).matches() || myCategory == null) {
+            myCategory = AndroidCompilerMessageKind.ERROR;
+          }
+          myMessages.get(myCategory).add(msg);
+        }
+        else {
+          if (!msglc.startsWith("processing")) {
+            myMessages.get(AndroidCompilerMessageKind.INFORMATION).add(msg);
+          }
+        }
+
+        LOG.debug(msg);
+      }
+    }
+
+    void finish(@NotNull String outputFilePath) {
+      final List<String> errors = myMessages.get(AndroidCompilerMessageKind.ERROR);
+
+      if (new File(outputFilePath).isFile()) {
+        // if compilation finished correctly, show all errors as warnings
+        myMessages.get(AndroidCompilerMessageKind.WARNING).addAll(errors);
+        errors.clear();
+      }
+      else if (errors.size() == 0) {
+        errors.add("Cannot create classes.dex file");
+      }
     }
   }
 
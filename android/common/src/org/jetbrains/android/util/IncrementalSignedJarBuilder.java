@@ -0,0 +1,567 @@
+package org.jetbrains.android.util;
+
+import com.android.jarutils.SignedJarBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.Base64Converter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.*;
+
+/**
+ * A {@link SignedJarBuilder} which reuses the previous contents of its output file. Entries whose data didn't change since the
+ * file was written are copied from it as they are, still compressed, and keep the digests recorded for them in its manifest,
+ * such that only the changed entries are compressed and digested again, and only the signature files are signed anew.
+ * <p/>
+ * Entries are matched by name, compression method and the SHA1 digest which the new manifest needs anyway, compared to the one
+ * in the previous manifest. An unsigned output has no manifest to compare with, so all of its entries are written. The new
+ * file is written next to the output file, and replaces it on {@link #close()}. If the output file cannot be read, all
+ * entries are written.
+ */
+public class IncrementalSignedJarBuilder extends SignedJarBuilder {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.util.IncrementalSignedJarBuilder");
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIZE = 22;
+  /** General purpose flag telling that the name of an entry is UTF-8 */
+  private static final int UTF8_FLAG = 0x800;
+
+  private static final String META_INF = "META-INF/";
+  private static final String MANIFEST_NAME = META_INF + "MANIFEST.MF";
+  private static final String DIGEST_ALGORITHM = "SHA1";
+  private static final String DIGEST_ATTR = "SHA1-Digest";
+  private static final String CREATED_BY = "1.0 (Android)";
+
+  // DER encodings of the object identifiers of the PKCS#7 signature block
+  private static final byte[] SHA1_OID = {0x06, 0x05, 0x2B, 0x0E, 0x03, 0x02, 0x1A};
+  private static final byte[] RSA_OID = {0x06, 0x09, 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x01, 0x01};
+  private static final byte[] DSA_OID = {0x06, 0x07, 0x2A, (byte)0x86, 0x48, (byte)0xCE, 0x38, 0x04, 0x01};
+  private static final byte[] DATA_OID = {0x06, 0x09, 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x07, 0x01};
+  private static final byte[] SIGNED_DATA_OID = {0x06, 0x09, 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x07, 0x02};
+  private static final byte[] DER_NULL = {0x05, 0x00};
+  private static final int DER_INTEGER = 0x02;
+  private static final int DER_OCTET_STRING = 0x04;
+  private static final int DER_SEQUENCE = 0x30;
+  private static final int DER_SET = 0x31;
+  private static final int DER_CONTEXT_0 = 0xA0;
+
+  private final File myOutFile;
+  private final File myTempFile;
+  private final OutputStream myOut;
+  private long myOffset;
+
+  private final PrivateKey myKey;
+  private final X509Certificate myCertificate;
+  /** Null if the output is not signed */
+  @Nullable private final MessageDigest myMessageDigest;
+  private final Deflater myDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+  private final byte[] myBuffer = new byte[64 * 1024];
+
+  @Nullable private RandomAccessFile myPreviousFile;
+  /** The entries of the previous output file, by name */
+  private final Map<String, Entry> myPreviousEntries = new HashMap<String, Entry>();
+  /** The digests in the manifest of the previous output file, by entry name */
+  private final Map<String, String> myPreviousDigests = new HashMap<String, String>();
+
+  /** The entries written so far, in order */
+  private final Map<String, Entry> myEntries = new LinkedHashMap<String, Entry>();
+  private int myCopiedCount;
+
+  public IncrementalSignedJarBuilder(@NotNull File outFile, @Nullable PrivateKey key, @Nullable X509Certificate certificate)
+    throws IOException, NoSuchAlgorithmException {
+    // the entries are written by this class itself, so the stream of the base class stays unused
+    super(new ByteArrayOutputStream(), null, null);
+    myOutFile = outFile;
+    myKey = key;
+    myCertificate = certificate;
+    myMessageDigest = key != null && certificate != null ? MessageDigest.getInstance(DIGEST_ALGORITHM) : null;
+
+    if (outFile.isFile()) {
+      try {
+        myPreviousFile = new RandomAccessFile(outFile, "r");
+        readPreviousEntries(myPreviousFile);
+      }
+      catch (IOException e) {
+        LOG.info("Cannot reuse the entries of " + outFile.getPath(), e);
+        closePreviousFile();
+        myPreviousEntries.clear();
+        myPreviousDigests.clear();
+      }
+    }
+    myTempFile = File.createTempFile(outFile.getName(), ".tmp", outFile.getParentFile());
+    myOut = new BufferedOutputStream(new FileOutputStream(myTempFile), myBuffer.length);
+  }
+
+  private void readPreviousEntries(@NotNull RandomAccessFile file) throws IOException {
+    final long length = file.length();
+    final byte[] tail = new byte[(int)Math.min(length, END_SIZE + 0xFFFF)];
+    file.seek(length - tail.length);
+    file.readFully(tail);
+    int end = tail.length - END_SIZE;
+
+    while (end >= 0 && getInt(tail, end) != END_SIGNATURE) {
+      end--;
+    }
+    if (end < 0) {
+      throw new ZipException("End of central directory not found");
+    }
+    final int count = getShort(tail, end + 10);
+    final byte[] directory = new byte[getInt(tail, end + 12)];
+    file.seek(getInt(tail, end + 16) & 0xFFFFFFFFL);
+    file.readFully(directory);
+
+    for (int i = 0, p = 0; i < count; i++) {
+      if (getInt(directory, p) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid central directory");
+      }
+      final int nameLength = getShort(directory, p + 28);
+      final Entry entry = new Entry(new String(directory, p + CENTRAL_HEADER_SIZE, nameLength, "UTF-8"));
+      entry.myMethod = getShort(directory, p + 10);
+      entry.myDosTime = getInt(directory, p + 12);
+      entry.myCrc = getInt(directory, p + 16) & 0xFFFFFFFFL;
+      entry.myCompressedSize = getInt(directory, p + 20) & 0xFFFFFFFFL;
+      entry.mySize = getInt(directory, p + 24) & 0xFFFFFFFFL;
+      entry.myOffset = getInt(directory, p + 42) & 0xFFFFFFFFL;
+      myPreviousEntries.put(entry.myName, entry);
+      p += CENTRAL_HEADER_SIZE + nameLength + getShort(directory, p + 30) + getShort(directory, p + 32);
+    }
+    final Entry manifestEntry = myPreviousEntries.get(MANIFEST_NAME);
+
+    if (myMessageDigest != null && manifestEntry != null) {
+      final Manifest manifest = new Manifest(new ByteArrayInputStream(readData(manifestEntry)));
+
+      for (Map.Entry<String, Attributes> e : manifest.getEntries().entrySet()) {
+        final String digest = e.getValue().getValue(DIGEST_ATTR);
+
+        if (digest != null) {
+          myPreviousDigests.put(e.getKey(), digest);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void writeFile(File inputFile, String jarPath) throws IOException {
+    if (FileUtil.filesEqual(inputFile, myOutFile)) {
+      throw new IOException("Cannot pack file " + FileUtil.toSystemDependentName(myOutFile.getPath()) + " into itself");
+    }
+    writeEntry(jarPath, FileUtil.loadFileBytes(inputFile), ZipEntry.DEFLATED, inputFile.lastModified(), true);
+  }
+
+  @Override
+  public void writeZip(InputStream input, IZipEntryFilter filter) throws IOException {
+    final ZipInputStream zis = new ZipInputStream(input);
+    try {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        final String name = entry.getName();
+
+        if (entry.isDirectory() || name.startsWith(META_INF) || (filter != null && !filter.checkEntry(name))) {
+          continue;
+        }
+        // stored entries, such as resources.arsc, are kept uncompressed
+        final int method = entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED;
+        writeEntry(name, FileUtil.loadBytes(zis), method, entry.getTime(), true);
+        zis.closeEntry();
+      }
+    }
+    finally {
+      zis.close();
+    }
+  }
+
+  private void writeEntry(@NotNull String name, @NotNull byte[] data, int method, long time, boolean inManifest) throws IOException {
+    if (myEntries.containsKey(name)) {
+      throw new ZipException("duplicate entry: " + name);
+    }
+    final Entry previous = myPreviousEntries.get(name);
+    final String digest = myMessageDigest != null && inManifest ? Base64Converter.encode(myMessageDigest.digest(data)) : null;
+    final Entry entry;
+
+    if (digest != null && previous != null && previous.myMethod == method && previous.mySize == data.length &&
+        digest.equals(myPreviousDigests.get(name))) {
+      entry = copyEntry(previous);
+      myCopiedCount++;
+    }
+    else {
+      final CRC32 crc = new CRC32();
+      crc.update(data);
+      entry = new Entry(name);
+      entry.myMethod = method;
+      entry.myDosTime = toDosTime(time);
+      entry.myCrc = crc.getValue();
+      entry.mySize = data.length;
+      entry.myOffset = myOffset;
+      final byte[] compressed = method == ZipEntry.DEFLATED ? deflate(data) : data;
+      entry.myCompressedSize = compressed.length;
+      writeLocalHeader(entry);
+      write(compressed, 0, compressed.length);
+    }
+    entry.myDigest = digest;
+    myEntries.put(name, entry);
+  }
+
+  @NotNull
+  private Entry copyEntry(@NotNull Entry previous) throws IOException {
+    assert myPreviousFile != null;
+    final Entry entry = new Entry(previous.myName);
+    entry.myMethod = previous.myMethod;
+    entry.myDosTime = previous.myDosTime;
+    entry.myCrc = previous.myCrc;
+    entry.myCompressedSize = previous.myCompressedSize;
+    entry.mySize = previous.mySize;
+    entry.myOffset = myOffset;
+    writeLocalHeader(entry);
+
+    myPreviousFile.seek(getDataOffset(previous));
+    for (long remaining = previous.myCompressedSize; remaining > 0; ) {
+      final int n = (int)Math.min(remaining, myBuffer.length);
+      myPreviousFile.readFully(myBuffer, 0, n);
+      write(myBuffer, 0, n);
+      remaining -= n;
+    }
+    return entry;
+  }
+
+  private long getDataOffset(@NotNull Entry previous) throws IOException {
+    assert myPreviousFile != null;
+    final byte[] header = new byte[LOCAL_HEADER_SIZE];
+    myPreviousFile.seek(previous.myOffset);
+    myPreviousFile.readFully(header);
+
+    if (getInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid local header of " + previous.myName);
+    }
+    // the extra field of the local header may differ from the central one, e.g. after zipalign
+    return previous.myOffset + LOCAL_HEADER_SIZE + getShort(header, 26) + getShort(header, 28);
+  }
+
+  @NotNull
+  private byte[] readData(@NotNull Entry previous) throws IOException {
+    assert myPreviousFile != null;
+    final byte[] compressed = new byte[(int)previous.myCompressedSize];
+    myPreviousFile.seek(getDataOffset(previous));
+    myPreviousFile.readFully(compressed);
+
+    if (previous.myMethod == ZipEntry.STORED) {
+      return compressed;
+    }
+    final Inflater inflater = new Inflater(true);
+    try {
+      return FileUtil.loadBytes(new InflaterInputStream(new ByteArrayInputStream(compressed), inflater));
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+  @NotNull
+  private byte[] deflate(@NotNull byte[] data) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+    myDeflater.reset();
+    myDeflater.setInput(data);
+    myDeflater.finish();
+
+    while (!myDeflater.finished()) {
+      out.write(myBuffer, 0, myDeflater.deflate(myBuffer));
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public void close() throws IOException, GeneralSecurityException {
+    boolean success = false;
+    try {
+      if (myMessageDigest != null) {
+        writeSignatureFiles();
+      }
+      final long directoryOffset = myOffset;
+
+      for (Entry entry : myEntries.values()) {
+        writeCentralHeader(entry);
+      }
+      final long directorySize = myOffset - directoryOffset;
+
+      if (myEntries.size() > 0xFFFF || myOffset > 0xFFFFFFFFL) {
+        throw new ZipException("Too many entries or too large output for " + myOutFile.getPath());
+      }
+      writeInt(END_SIGNATURE);
+      writeShort(0);
+      writeShort(0);
+      writeShort(myEntries.size());
+      writeShort(myEntries.size());
+      writeInt((int)directorySize);
+      writeInt((int)directoryOffset);
+      writeShort(0);
+      success = true;
+    }
+    finally {
+      myOut.close();
+      myDeflater.end();
+      closePreviousFile();
+
+      if (!success) {
+        FileUtil.delete(myTempFile);
+      }
+    }
+    FileUtil.rename(myTempFile, myOutFile);
+    LOG.info("Copied " + myCopiedCount + " of " + myEntries.size() + " entries of " + myOutFile.getPath() + " from its previous version");
+  }
+
+  /** Returns the number of entries copied from the previous output file so far */
+  int getCopiedCount() {
+    return myCopiedCount;
+  }
+
+  private void writeSignatureFiles() throws IOException, GeneralSecurityException {
+    assert myMessageDigest != null;
+    final ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeManifestLine(manifest, "Manifest-Version: 1.0");
+    writeManifestLine(manifest, "Created-By: " + CREATED_BY);
+    writeManifestLine(manifest, "");
+
+    final ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+    final List<String> names = new ArrayList<String>();
+    final List<byte[]> sections = new ArrayList<byte[]>();
+
+    for (Entry entry : myEntries.values()) {
+      if (entry.myDigest != null) {
+        final ByteArrayOutputStream section = new ByteArrayOutputStream();
+        writeManifestLine(section, "Name: " + entry.myName);
+        writeManifestLine(section, DIGEST_ATTR + ": " + entry.myDigest);
+        writeManifestLine(section, "");
+        section.writeTo(manifest);
+        names.add(entry.myName);
+        sections.add(section.toByteArray());
+      }
+    }
+    final byte[] manifestBytes = manifest.toByteArray();
+    writeManifestLine(signatureFile, "Signature-Version: 1.0");
+    writeManifestLine(signatureFile, "Created-By: " + CREATED_BY);
+    writeManifestLine(signatureFile, "SHA1-Digest-Manifest: " + Base64Converter.encode(myMessageDigest.digest(manifestBytes)));
+    writeManifestLine(signatureFile, "");
+
+    // the digest of each section is taken over its bytes in the manifest, as they are wrapped there
+    for (int i = 0; i < names.size(); i++) {
+      writeManifestLine(signatureFile, "Name: " + names.get(i));
+      writeManifestLine(signatureFile, DIGEST_ATTR + ": " + Base64Converter.encode(myMessageDigest.digest(sections.get(i))));
+      writeManifestLine(signatureFile, "");
+    }
+    final byte[] signatureFileBytes = signatureFile.toByteArray();
+    final Signature signature = Signature.getInstance(DIGEST_ALGORITHM + "with" + myKey.getAlgorithm());
+    signature.initSign(myKey);
+    signature.update(signatureFileBytes);
+
+    final long now = System.currentTimeMillis();
+    writeEntry(MANIFEST_NAME, manifestBytes, ZipEntry.DEFLATED, now, false);
+    writeEntry(META_INF + "CERT.SF", signatureFileBytes, ZipEntry.DEFLATED, now, false);
+    writeEntry(META_INF + "CERT." + myKey.getAlgorithm(), encodeSignatureBlock(signature.sign()), ZipEntry.DEFLATED, now, false);
+  }
+
+  /** Builds the PKCS#7 signature block, with the same contents as the one of {@link SignedJarBuilder} */
+  @NotNull
+  private byte[] encodeSignatureBlock(@NotNull byte[] signature) throws IOException, GeneralSecurityException {
+    final byte[] keyOid;
+    if ("RSA".equals(myKey.getAlgorithm())) {
+      keyOid = RSA_OID;
+    }
+    else if ("DSA".equals(myKey.getAlgorithm())) {
+      keyOid = DSA_OID;
+    }
+    else {
+      throw new NoSuchAlgorithmException("Unsupported key algorithm " + myKey.getAlgorithm());
+    }
+    final byte[] digestAlgorithm = der(DER_SEQUENCE, SHA1_OID, DER_NULL);
+    final byte[] signerInfo = der(
+      DER_SEQUENCE,
+      der(DER_INTEGER, BigInteger.ONE.toByteArray()),
+      der(DER_SEQUENCE, myCertificate.getIssuerX500Principal().getEncoded(),
+          der(DER_INTEGER, myCertificate.getSerialNumber().toByteArray())),
+      digestAlgorithm,
+      der(DER_SEQUENCE, keyOid, DER_NULL),
+      der(DER_OCTET_STRING, signature));
+    final byte[] signedData = der(
+      DER_SEQUENCE,
+      der(DER_INTEGER, BigInteger.ONE.toByteArray()),
+      der(DER_SET, digestAlgorithm),
+      der(DER_SEQUENCE, DATA_OID),
+      der(DER_CONTEXT_0, getEncodedCertificate()),
+      der(DER_SET, signerInfo));
+    return der(DER_SEQUENCE, SIGNED_DATA_OID, der(DER_CONTEXT_0, signedData));
+  }
+
+  @NotNull
+  private byte[] getEncodedCertificate() throws IOException {
+    try {
+      return myCertificate.getEncoded();
+    }
+    catch (CertificateEncodingException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** Encodes a DER value of the given tag, whose contents are the concatenation of the given encoded values */
+  @NotNull
+  private static byte[] der(int tag, @NotNull byte[]... contents) {
+    int length = 0;
+    for (byte[] content : contents) {
+      length += content.length;
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+    out.write(tag);
+
+    if (length < 0x80) {
+      out.write(length);
+    }
+    else {
+      final int lengthBytes = length > 0xFFFFFF ? 4 : length > 0xFFFF ? 3 : length > 0xFF ? 2 : 1;
+      out.write(0x80 | lengthBytes);
+
+      for (int i = lengthBytes - 1; i >= 0; i--) {
+        out.write(length >>> (i * 8));
+      }
+    }
+    for (byte[] content : contents) {
+      out.write(content, 0, content.length);
+    }
+    return out.toByteArray();
+  }
+
+  /** Writes a line of a manifest, wrapped such that no line is longer than 72 bytes */
+  private static void writeManifestLine(@NotNull ByteArrayOutputStream out, @NotNull String line) throws IOException {
+    final byte[] bytes = line.getBytes("UTF-8");
+    int start = 0;
+
+    while (bytes.length - start > 70) {
+      int end = start + 70;
+
+      // don't split a multi-byte character
+      while ((bytes[end] & 0xC0) == 0x80) {
+        end--;
+      }
+      out.write(bytes, start, end - start);
+      out.write(new byte[]{'\r', '\n', ' '});
+      start = end;
+    }
+    out.write(bytes, start, bytes.length - start);
+    out.write(new byte[]{'\r', '\n'});
+  }
+
+  private void writeLocalHeader(@NotNull Entry entry) throws IOException {
+    final byte[] name = entry.myName.getBytes("UTF-8");
+    writeInt(LOCAL_HEADER_SIGNATURE);
+    writeShort(entry.myMethod == ZipEntry.STORED ? 10 : 20);
+    writeShort(UTF8_FLAG);
+    writeShort(entry.myMethod);
+    writeInt(entry.myDosTime);
+    writeInt((int)entry.myCrc);
+    writeInt((int)entry.myCompressedSize);
+    writeInt((int)entry.mySize);
+    writeShort(name.length);
+    writeShort(0);
+    write(name, 0, name.length);
+  }
+
+  private void writeCentralHeader(@NotNull Entry entry) throws IOException {
+    final byte[] name = entry.myName.getBytes("UTF-8");
+    writeInt(CENTRAL_HEADER_SIGNATURE);
+    writeShort(20);
+    writeShort(entry.myMethod == ZipEntry.STORED ? 10 : 20);
+    writeShort(UTF8_FLAG);
+    writeShort(entry.myMethod);
+    writeInt(entry.myDosTime);
+    writeInt((int)entry.myCrc);
+    writeInt((int)entry.myCompressedSize);
+    writeInt((int)entry.mySize);
+    writeShort(name.length);
+    writeShort(0);
+    writeShort(0);
+    writeShort(0);
+    writeShort(0);
+    writeInt(0);
+    writeInt((int)entry.myOffset);
+    write(name, 0, name.length);
+  }
+
+  private void write(@NotNull byte[] bytes, int offset, int length) throws IOException {
+    myOut.write(bytes, offset, length);
+    myOffset += length;
+  }
+
+  private void writeShort(int value) throws IOException {
+    write(new byte[]{(byte)value, (byte)(value >>> 8)}, 0, 2);
+  }
+
+  private void writeInt(int value) throws IOException {
+    write(new byte[]{(byte)value, (byte)(value >>> 8), (byte)(value >>> 16), (byte)(value >>> 24)}, 0, 4);
+  }
+
+  private static int getShort(@NotNull byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int getInt(@NotNull byte[] bytes, int offset) {
+    return getShort(bytes, offset) | getShort(bytes, offset + 2) << 16;
+  }
+
+  private static int toDosTime(long time) {
+    final Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(time > 0 ? time : System.currentTimeMillis());
+    final int year = calendar.get(Calendar.YEAR);
+
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (year - 1980) << 25 |
+           (calendar.get(Calendar.MONTH) + 1) << 21 |
+           calendar.get(Calendar.DAY_OF_MONTH) << 16 |
+           calendar.get(Calendar.HOUR_OF_DAY) << 11 |
+           calendar.get(Calendar.MINUTE) << 5 |
+           calendar.get(Calendar.SECOND) >> 1;
+  }
+
+  private void closePreviousFile() {
+    if (myPreviousFile != null) {
+      try {
+        myPreviousFile.close();
+      }
+      catch (IOException ignored) {
+      }
+      myPreviousFile = null;
+    }
+  }
+
+  private static class Entry {
+    final String myName;
+    int myMethod;
+    int myDosTime;
+    long myCrc;
+    long myCompressedSize;
+    long mySize;
+    /** Offset of the local header */
+    long myOffset;
+    /** Base64 SHA1 digest of the data, if the entry is listed in the manifest */
+    @Nullable String myDigest;
+
+    Entry(@NotNull String name) {
+      myName = name;
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package org.jetbrains.android.util;
+
+import com.android.jarutils.DebugKeyProvider;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class IncrementalSignedJarBuilderTest extends TestCase {
+  /** Maps every char up to 0xFF to a single byte, such that the contents can be arbitrary bytes */
+  private static final String CHARSET = "ISO-8859-1";
+
+  private File myDir;
+  private File myOutFile;
+  private PrivateKey myKey;
+  private X509Certificate myCertificate;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("incremental", "apk");
+    myOutFile = new File(myDir, "out.apk");
+
+    // the same kind of key as the one used for debug builds
+    final String keyStorePath = new File(myDir, "debug.keystore").getPath();
+    final DebugKeyProvider provider = new DebugKeyProvider(keyStorePath, null, new DebugKeyProvider.IKeyGenOutput() {
+      @Override
+      public void out(String message) {
+      }
+
+      @Override
+      public void err(String message) {
+        fail(message);
+      }
+    });
+    myKey = provider.getDebugKey();
+    myCertificate = (X509Certificate)provider.getCertificate();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testRebuildWithChangedEntry() throws Exception {
+    final Map<String, String> files = new LinkedHashMap<String, String>();
+    files.put("classes.dex", "classes_dex_content");
+    files.put("a.properties", "a=1");
+    files.put("b.properties", "b=1");
+    final Map<String, String> zipEntries = new LinkedHashMap<String, String>();
+    zipEntries.put("res/layout/main.xml", "<layout/>");
+    zipEntries.put("resources.arsc", "arsc");
+
+    assertEquals(0, build(files, zipEntries, true));
+    assertContents(files, zipEntries, true);
+
+    // same size and a different digest
+    files.put("a.properties", "a=2");
+    assertEquals(4, build(files, zipEntries, true));
+    assertContents(files, zipEntries, true);
+
+    assertEquals(5, build(files, zipEntries, true));
+    assertContents(files, zipEntries, true);
+  }
+
+  public void testRebuildWithSameCrc() throws Exception {
+    final Map<String, String> files = new LinkedHashMap<String, String>();
+    files.put("classes.dex", "classes_dex_content");
+    final Map<String, String> zipEntries = Collections.emptyMap();
+    build(files, zipEntries, true);
+
+    // data of the same size and CRC must still be packaged again
+    files.put("classes.dex", withSameCrc("classes_dex_content"));
+    assertEquals(crc("classes_dex_content"), crc(files.get("classes.dex")));
+    assertEquals(0, build(files, zipEntries, true));
+    assertContents(files, zipEntries, true);
+  }
+
+  public void testRebuildWithRemovedAndAddedEntries() throws Exception {
+    final Map<String, String> files = new LinkedHashMap<String, String>();
+    files.put("classes.dex", "classes_dex_content");
+    files.put("a.properties", "a=1");
+    final Map<String, String> zipEntries = new LinkedHashMap<String, String>();
+    zipEntries.put("res/layout/main.xml", "<layout/>");
+    build(files, zipEntries, true);
+
+    files.remove("a.properties");
+    zipEntries.put("res/layout/other.xml", "<other/>");
+    assertEquals(2, build(files, zipEntries, true));
+    assertContents(files, zipEntries, true);
+  }
+
+  public void testUnsigned() throws Exception {
+    final Map<String, String> files = new LinkedHashMap<String, String>();
+    files.put("classes.dex", "classes_dex_content");
+    final Map<String, String> zipEntries = new LinkedHashMap<String, String>();
+    zipEntries.put("resources.arsc", "arsc");
+    build(files, zipEntries, false);
+
+    // there are no digests to compare with, so everything is written again
+    files.put("classes.dex", "classes_dex_content_1");
+    assertEquals(0, build(files, zipEntries, false));
+    assertContents(files, zipEntries, false);
+  }
+
+  /** Builds the output from the given files and zip entries, and returns the number of entries copied from the previous output */
+  private int build(@NotNull Map<String, String> files, @NotNull Map<String, String> zipEntries, boolean signed) throws Exception {
+    final IncrementalSignedJarBuilder builder =
+      new IncrementalSignedJarBuilder(myOutFile, signed ? myKey : null, signed ? myCertificate : null);
+    builder.writeZip(new ByteArrayInputStream(createZip(zipEntries)), null);
+
+    for (Map.Entry<String, String> e : files.entrySet()) {
+      final File file = new File(myDir, "in/" + e.getKey());
+      FileUtil.writeToFile(file, e.getValue().getBytes(CHARSET));
+      builder.writeFile(file, e.getKey());
+    }
+    final int copied = builder.getCopiedCount();
+    builder.close();
+    return copied;
+  }
+
+  @NotNull
+  private static byte[] createZip(@NotNull Map<String, String> entries) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ZipOutputStream zos = new ZipOutputStream(out);
+
+    for (Map.Entry<String, String> e : entries.entrySet()) {
+      final ZipEntry entry = new ZipEntry(e.getKey());
+      final byte[] data = e.getValue().getBytes(CHARSET);
+
+      // like aapt, keep resources.arsc uncompressed
+      if (e.getKey().equals("resources.arsc")) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCrc(crc.getValue());
+      }
+      zos.putNextEntry(entry);
+      zos.write(data);
+      zos.closeEntry();
+    }
+    zos.close();
+    return out.toByteArray();
+  }
+
+  private void assertContents(@NotNull Map<String, String> files, @NotNull Map<String, String> zipEntries, boolean signed)
+    throws Exception {
+    final Map<String, String> expected = new HashMap<String, String>(files);
+    expected.putAll(zipEntries);
+    final Set<String> names = new HashSet<String>();
+    final JarFile jarFile = new JarFile(myOutFile, true);
+    try {
+      for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+        final JarEntry entry = entries.nextElement();
+        // the entry must be read to the end before its signers are known, and a wrong digest fails the read
+        final String content = new String(FileUtil.loadBytes(jarFile.getInputStream(entry)), CHARSET);
+
+        if (entry.getName().startsWith("META-INF/")) {
+          continue;
+        }
+        names.add(entry.getName());
+        assertEquals(entry.getName(), expected.get(entry.getName()), content);
+        assertEquals(entry.getName() + " stored", entry.getName().equals("resources.arsc"), entry.getMethod() == ZipEntry.STORED);
+
+        if (signed) {
+          assertSignedBy(entry, myCertificate);
+        }
+        else {
+          assertNull(entry.getCodeSigners());
+        }
+      }
+      assertEquals(expected.keySet(), names);
+      assertEquals(signed, jarFile.getManifest() != null);
+    }
+    finally {
+      jarFile.close();
+    }
+  }
+
+  private static void assertSignedBy(@NotNull JarEntry entry, @Nullable X509Certificate certificate) {
+    assertNotNull(entry.getName() + " is not signed", entry.getCodeSigners());
+    assertEquals(1, entry.getCodeSigners().length);
+    assertEquals(certificate, entry.getCodeSigners()[0].getSignerCertPath().getCertificates().get(0));
+  }
+
+  /**
+   * Returns a string of the same length and CRC as the given one. The CRC is linear for data of a given length, so flipping a
+   * set of bits whose own CRC differences cancel out keeps it; 33 bits always contain such a set.
+   */
+  @NotNull
+  private static String withSameCrc(@NotNull String s) throws Exception {
+    final int bits = 33;
+    assertTrue(s.length() * 8 >= bits);
+    final long zeroCrc = crc(new String(new char[s.length()]));
+    // the CRC difference of each combination of bits, and the bits of the combination
+    final long[] differences = new long[bits];
+    final long[] combinations = new long[bits];
+
+    for (int i = 0; i < bits; i++) {
+      final char[] chars = new char[s.length()];
+      chars[i / 8] = (char)(1 << (i % 8));
+      differences[i] = crc(new String(chars)) ^ zeroCrc;
+      combinations[i] = 1L << i;
+    }
+    for (int bit = 0, row = 0; bit < 32 && row < bits; bit++) {
+      int pivot = row;
+      while (pivot < bits && (differences[pivot] & (1L << bit)) == 0) {
+        pivot++;
+      }
+      if (pivot == bits) {
+        continue;
+      }
+      swap(differences, row, pivot);
+      swap(combinations, row, pivot);
+
+      for (int i = 0; i < bits; i++) {
+        if (i != row && (differences[i] & (1L << bit)) != 0) {
+          differences[i] ^= differences[row];
+          combinations[i] ^= combinations[row];
+        }
+      }
+      row++;
+    }
+    for (int i = 0; i < bits; i++) {
+      if (differences[i] == 0) {
+        final char[] chars = s.toCharArray();
+        for (int j = 0; j < bits; j++) {
+          if ((combinations[i] & (1L << j)) != 0) {
+            chars[j / 8] ^= 1 << (j % 8);
+          }
+        }
+        return new String(chars);
+      }
+    }
+    fail("No string with the CRC of " + s);
+    return null;
+  }
+
+  private static void swap(@NotNull long[] array, int i, int j) {
+    final long t = array[i];
+    array[i] = array[j];
+    array[j] = t;
+  }
+
+  private static long crc(@NotNull String s) throws Exception {
+    final CRC32 crc = new CRC32();
+    crc.update(s.getBytes(CHARSET));
+    return crc.getValue();
+  }
+}
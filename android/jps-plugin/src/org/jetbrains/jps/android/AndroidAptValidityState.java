@@ -1,6 +1,7 @@
 package org.jetbrains.jps.android;
 
 import com.intellij.openapi.util.Pair;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.containers.HashMap;
 import com.intellij.util.containers.HashSet;
 import gnu.trove.TObjectLongHashMap;
@@ -20,7 +21,7 @@ import java.util.*;
  */
 public class AndroidAptValidityState implements ValidityState {
   private static final int SIGNATURE = 0xDEADBEEF;
-  private static final byte VERSION = 1;
+  private static final byte VERSION = 2;
 
   private final Map<String, ResourceFileData> myResources;
   private final TObjectLongHashMap<String> myValueResourceFilesTimestamps;
@@ -64,9 +65,11 @@ public class AndroidAptValidityState implements ValidityState {
 
     final int filesCount = in.readInt();
     myResources = new HashMap<String, ResourceFileData>(filesCount);
+    String previousPath = "";
 
     for (int i = 0; i < filesCount; i++) {
-      final String filePath = in.readUTF();
+      final String filePath = AndroidFileSetState.readPath(in, previousPath);
+      previousPath = filePath;
 
       final int entriesCount = in.readInt();
       final List<ResourceEntry> entries = new ArrayList<ResourceEntry>(entriesCount);
@@ -106,9 +109,11 @@ public class AndroidAptValidityState implements ValidityState {
 
     final int valueResourceFilesCount = in.readInt();
     myValueResourceFilesTimestamps = new TObjectLongHashMap<String>(valueResourceFilesCount);
+    previousPath = "";
 
     for (int i = 0; i < valueResourceFilesCount; i++) {
-      final String filePath = in.readUTF();
+      final String filePath = AndroidFileSetState.readPath(in, previousPath);
+      previousPath = filePath;
       final long timestamp = in.readLong();
       myValueResourceFilesTimestamps.put(filePath, timestamp);
     }
@@ -137,11 +142,16 @@ public class AndroidAptValidityState implements ValidityState {
     out.writeByte(VERSION);
     out.writeUTF(myPackageName);
     out.writeInt(myResources.size());
+    // the paths are written in order and prefix-compressed, like the ones of AndroidFileSetState
+    final String[] resourcePaths = ArrayUtil.toStringArray(myResources.keySet());
+    Arrays.sort(resourcePaths);
+    String previousPath = "";
 
-    for (Map.Entry<String, ResourceFileData> entry : myResources.entrySet()) {
-      out.writeUTF(entry.getKey());
+    for (String path : resourcePaths) {
+      AndroidFileSetState.writePath(out, previousPath, path);
+      previousPath = path;
 
-      final ResourceFileData fileData = entry.getValue();
+      final ResourceFileData fileData = myResources.get(path);
       final List<ResourceEntry> resources = fileData.getValueResources();
       out.writeInt(resources.size());
 
@@ -170,11 +180,15 @@ public class AndroidAptValidityState implements ValidityState {
     out.writeBoolean(myLibrary);
 
     out.writeInt(myValueResourceFilesTimestamps.size());
-
-    for (Object key : myValueResourceFilesTimestamps.keys()) {
-      final String strKey = (String)key;
-      out.writeUTF(strKey);
-      out.writeLong(myValueResourceFilesTimestamps.get(strKey));
+    final Object[] valueResourcePaths = myValueResourceFilesTimestamps.keys();
+    Arrays.sort(valueResourcePaths);
+    previousPath = "";
+
+    for (Object key : valueResourcePaths) {
+      final String path = (String)key;
+      AndroidFileSetState.writePath(out, previousPath, path);
+      out.writeLong(myValueResourceFilesTimestamps.get(path));
+      previousPath = path;
     }
   }
 
@@ -0,0 +1,231 @@
+package org.jetbrains.jps.android;
+
+import com.android.prefs.AndroidLocation;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Machine-wide cache of build outputs, such as pre-dexed jars and crunched images, shared by all modules and projects.
+ * <p/>
+ * Entries are keyed by the content of their input and the options of the tool which produced them, so the same input is
+ * processed only once, whatever its path. Entries are written to a temporary file first and renamed, so concurrent builds
+ * never see a partially written entry. When a cache grows over its budget, the least recently used entries are deleted.
+ */
+class AndroidBuildCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.android.AndroidBuildCache");
+
+  @NonNls static final String PRE_DEX = "predex";
+  @NonNls static final String CRUNCH = "crunch";
+
+  /** Extension of the files holding the messages the tool reported while producing an entry */
+  @NonNls private static final String MESSAGES_SUFFIX = ".messages";
+
+  @NotNull private final File myDir;
+  /** Extension of the entries, such that they keep the one of the outputs they are copies of */
+  @NotNull private final String myEntrySuffix;
+  private final long myMaxSize;
+
+  private AndroidBuildCache(@NotNull File dir, @NotNull String entrySuffix, long maxSize) {
+    myDir = dir;
+    myEntrySuffix = entrySuffix;
+    myMaxSize = maxSize;
+  }
+
+  /**
+   * Returns the cache of the given name, or null if it is disabled or its directory can't be created. The cache is
+   * configured by the system properties {@code android.<name>.cache.disabled}, {@code android.<name>.cache.dir} and
+   * {@code android.<name>.cache.size.mb}.
+   */
+  @Nullable
+  static AndroidBuildCache getInstance(@NotNull String name) {
+    if (Boolean.getBoolean("android." + name + ".cache.disabled")) {
+      return null;
+    }
+    File dir;
+    String path = System.getProperty("android." + name + ".cache.dir");
+    if (path != null) {
+      dir = new File(path);
+    }
+    else {
+      try {
+        dir = new File(AndroidLocation.getFolder(), "build-cache" + File.separator + name);
+      }
+      catch (AndroidLocation.AndroidLocationException e) {
+        LOG.info(e);
+        return null;
+      }
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      LOG.info("Cannot create build cache directory " + dir);
+      return null;
+    }
+    String entrySuffix = PRE_DEX.equals(name) ? ".jar" : CRUNCH.equals(name) ? ".png" : "";
+    return new AndroidBuildCache(dir, entrySuffix, Integer.getInteger("android." + name + ".cache.size.mb", 1024) * 1024L * 1024L);
+  }
+
+  /**
+   * Returns the key of the output of the given input processed with the given options.
+   *
+   * @param options identifies the tool and the options it is run with, e.g. {@link AndroidDexBuilder#getDexOptionsKey}
+   */
+  @NotNull
+  static String getKey(@NotNull File input, @NotNull String options) throws IOException {
+    String contentHash = Files.hash(input, Hashing.sha1()).toString();
+    return contentHash + "-" + Hashing.sha1().hashString(options, Charsets.UTF_8).toString().substring(0, 16);
+  }
+
+  /** Copies the cached output for the given key to the given file, and returns false if there is none */
+  boolean fetch(@NotNull String key, @NotNull File outputFile) {
+    File entry = getEntry(key);
+    if (!entry.isFile()) {
+      return false;
+    }
+    try {
+      FileUtil.copy(entry, outputFile);
+      // Marks the entry as recently used
+      //noinspection ResultOfMethodCallIgnored
+      entry.setLastModified(System.currentTimeMillis());
+      return true;
+    }
+    catch (IOException e) {
+      // Possibly deleted by another build in the meantime
+      LOG.info(e);
+      FileUtil.delete(outputFile);
+      return false;
+    }
+  }
+
+  /** Stores the given output under the given key */
+  void store(@NotNull String key, @NotNull File outputFile) {
+    File entry = getEntry(key);
+    if (entry.isFile()) {
+      return;
+    }
+    try {
+      File temp = File.createTempFile(key, ".tmp", myDir);
+      FileUtil.copy(outputFile, temp);
+      if (!temp.renameTo(entry)) {
+        // Another build stored the same entry in the meantime
+        FileUtil.delete(temp);
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  /**
+   * Returns the messages stored with the entry of the given key, or null if there are none, in which case the entry must not be
+   * used since the messages would be lost
+   */
+  @Nullable
+  List<String> fetchMessages(@NotNull String key) {
+    File file = getMessagesFile(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        int count = in.readInt();
+        List<String> messages = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+          messages.add(in.readUTF());
+        }
+        // Marks the messages as recently used, like their entry
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return messages;
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return null;
+    }
+  }
+
+  /** Stores the given output under the given key, along with the messages the tool reported while producing it */
+  void store(@NotNull String key, @NotNull File outputFile, @NotNull List<String> messages) {
+    File file = getMessagesFile(key);
+    if (!file.isFile()) {
+      try {
+        File temp = File.createTempFile(key, ".tmp", myDir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+          out.writeInt(messages.size());
+          for (String message : messages) {
+            out.writeUTF(message);
+          }
+        }
+        finally {
+          out.close();
+        }
+        if (!temp.renameTo(file)) {
+          FileUtil.delete(temp);
+        }
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        return;
+      }
+    }
+    store(key, outputFile);
+  }
+
+  /** Deletes the least recently used entries until the cache fits its budget */
+  void trim() {
+    File[] files = myDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long size = 0;
+    for (File file : files) {
+      size += file.length();
+    }
+    if (size <= myMaxSize) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        long m1 = f1.lastModified();
+        long m2 = f2.lastModified();
+        return m1 < m2 ? -1 : m1 == m2 ? 0 : 1;
+      }
+    });
+    for (File file : files) {
+      if (size <= myMaxSize) {
+        break;
+      }
+      long length = file.length();
+      if (FileUtil.delete(file)) {
+        size -= length;
+      }
+    }
+  }
+
+  @NotNull
+  private File getEntry(@NotNull String key) {
+    return new File(myDir, key + myEntrySuffix);
+  }
+
+  @NotNull
+  private File getMessagesFile(@NotNull String key) {
+    return new File(myDir, key + MESSAGES_SUFFIX);
+  }
+}
@@ -240,16 +240,23 @@ public class AndroidDexBuilder extends AndroidTargetBuilder<BuildRootDescriptor,
                                @NotNull BuildOutputConsumer outputConsumer) throws IOException {
     final String outFilePath = outputDir + File.separatorChar + AndroidCommonUtils.CLASSES_FILE_NAME;
     return runDex(platform, outFilePath, compileTargets, context, module.getProject(), outputConsumer,
-                  DEX_BUILDER_NAME, module.getName());
+                  DEX_BUILDER_NAME, module.getName(), null);
   }
 
+  /**
+   * Runs dx on the given targets, and reports its messages to the context
+   *
+   * @param warnings if not null, receives the warnings reported by dx, for instance to report them again when the output is
+   *                 later taken from a cache
+   */
   public static boolean runDex(@NotNull AndroidPlatform platform,
                                @NotNull String outFilePath,
                                @NotNull String[] compileTargets,
                                @NotNull CompileContext context,
                                @NotNull JpsProject project, @NotNull BuildOutputConsumer outputConsumer,
                                @NotNull String builderName,
-                               @NotNull String srcTargetName) throws IOException {
+                               @NotNull String srcTargetName,
+                               @Nullable List<String> warnings) throws IOException {
     BuildToolInfo buildToolInfo = platform.getTarget().getBuildToolInfo();
     if (buildToolInfo == null) {
       return false;
@@ -310,30 +317,43 @@ public class AndroidDexBuilder extends AndroidTargetBuilder<BuildRootDescriptor,
     if (javaExecutable == null) {
       return false;
     }
-    final List<String> commandLine = ExternalProcessUtil
-      .buildJavaCommandLine(javaExecutable, AndroidDxRunner.class.getName(),
-                            Collections.<String>emptyList(), classPath, vmOptions, programParamList);
-
-    LOG.info(AndroidCommonUtils.command2string(commandLine));
-
-    final String[] commands = ArrayUtil.toStringArray(commandLine);
-    final Process process;
-
-    if (testingManager != null) {
-      process = testingManager.getCommandExecutor().createProcess(
-        commands, Collections.<String, String>emptyMap());
-    }
-    else {
-      process = Runtime.getRuntime().exec(commands);
-    }
     final HashMap<AndroidCompilerMessageKind, List<String>> messages = new HashMap<AndroidCompilerMessageKind, List<String>>(3);
     messages.put(AndroidCompilerMessageKind.ERROR, new ArrayList<String>());
     messages.put(AndroidCompilerMessageKind.WARNING, new ArrayList<String>());
     messages.put(AndroidCompilerMessageKind.INFORMATION, new ArrayList<String>());
 
-    AndroidCommonUtils.handleDexCompilationResult(process, outFilePath, messages);
+    // The tests check the command lines of the processes dx is run in; AndroidDxDaemonTest covers the daemon
+    final boolean ranInDaemon = testingManager == null && AndroidDxDaemon.isEnabled() &&
+                                AndroidDxDaemon.runDex(javaExecutable, classPath, vmOptions, programParamList, outFilePath, messages,
+                                                       context.getCancelStatus());
+    if (!ranInDaemon) {
+      if (context.getCancelStatus().isCanceled()) {
+        return false;
+      }
+      final List<String> commandLine = ExternalProcessUtil
+        .buildJavaCommandLine(javaExecutable, AndroidDxRunner.class.getName(),
+                              Collections.<String>emptyList(), classPath, vmOptions, programParamList);
+
+      LOG.info(AndroidCommonUtils.command2string(commandLine));
+
+      final String[] commands = ArrayUtil.toStringArray(commandLine);
+      final Process process;
+
+      if (testingManager != null) {
+        process = testingManager.getCommandExecutor().createProcess(
+          commands, Collections.<String, String>emptyMap());
+      }
+      else {
+        process = Runtime.getRuntime().exec(commands);
+      }
+      AndroidCommonUtils.handleDexCompilationResult(process, outFilePath, messages);
+    }
 
     AndroidJpsUtil.addMessages(context, messages, builderName, srcTargetName);
+
+    if (warnings != null) {
+      warnings.addAll(messages.get(AndroidCompilerMessageKind.WARNING));
+    }
     final boolean success = messages.get(AndroidCompilerMessageKind.ERROR).size() == 0;
 
     if (success) {
@@ -357,11 +377,38 @@ public class AndroidDexBuilder extends AndroidTargetBuilder<BuildRootDescriptor,
           });
         }
       }
-      outputConsumer.registerOutputFile(outFile, srcFiles);
+      // Jars may be pre-dexed in parallel, see AndroidPreDexBuilder
+      synchronized (outputConsumer) {
+        outputConsumer.registerOutputFile(outFile, srcFiles);
+      }
     }
     return success;
   }
 
+  /**
+   * Returns a string identifying the dx, the {@link AndroidDxRunner} and the options {@link #runDex} runs it with, which determine
+   * its output for a given input, or null if the build tools are missing.
+   */
+  @Nullable
+  static String getDexOptionsKey(@NotNull AndroidPlatform platform, @NotNull JpsProject project) {
+    final BuildToolInfo buildToolInfo = platform.getTarget().getBuildToolInfo();
+    if (buildToolInfo == null) {
+      return null;
+    }
+    final StringBuilder builder = new StringBuilder();
+    builder.append(AndroidDxRunner.VERSION).append(' ').append(buildToolInfo.getRevision());
+    builder.append(' ').append(buildToolInfo.getPath(BuildToolInfo.PathId.DX_JAR));
+
+    final JpsAndroidDexCompilerConfiguration configuration =
+      JpsAndroidExtensionService.getInstance().getDexCompilerConfiguration(project);
+    if (configuration != null) {
+      builder.append(" --optimize ").append(configuration.isOptimize());
+      builder.append(" --forceJumbo ").append(configuration.isForceJumbo());
+      builder.append(" --coreLibrary ").append(configuration.isCoreLibrary());
+    }
+    return builder.toString();
+  }
+
   @Nullable
   private static String getJavaExecutable(@NotNull AndroidPlatform platform, @NotNull CompileContext context, @NotNull String builderName) {
     final JpsSdk<JpsSimpleElement<JpsAndroidSdkProperties>> sdk = platform.getSdk();
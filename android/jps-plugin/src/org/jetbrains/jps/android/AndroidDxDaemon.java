@@ -0,0 +1,264 @@
+package org.jetbrains.jps.android;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
+import org.jetbrains.android.compiler.tools.AndroidDxRunner;
+import org.jetbrains.android.util.AndroidCommonUtils;
+import org.jetbrains.android.util.AndroidCompilerMessageKind;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.CanceledStatus;
+import org.jetbrains.jps.incremental.ExternalProcessUtil;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A long-lived {@link AndroidDxRunner} process, which runs dx for the dex and pre-dex builders of the build process, such that
+ * they don't pay for the startup and warm-up of a new JVM on every run.
+ * <p/>
+ * Daemons are started on demand, one per concurrent run, and kept for later builds in the same build process. A daemon is
+ * recycled when its heap fills up or after a number of runs, and any failure to talk to it makes the caller fall back to
+ * running dx in a new process. A daemon which doesn't reply in time, or whose build is canceled, is destroyed.
+ */
+class AndroidDxDaemon {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.android.AndroidDxDaemon");
+
+  private static final boolean DISABLED = Boolean.getBoolean("android.dx.daemon.disabled");
+  /** Number of runs after which a daemon is replaced, in case dx leaks memory between runs */
+  private static final int MAX_RUNS = Integer.getInteger("android.dx.daemon.max.runs", 100);
+  /** Number of idle daemons kept for each command line */
+  private static final int MAX_IDLE =
+    Integer.getInteger("android.dx.daemon.max.idle", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  /** A daemon whose live objects take more than this fraction of its heap after a run is replaced */
+  private static final double MAX_HEAP_USAGE = 0.75;
+  /** Number of seconds after which a daemon which hasn't replied is considered hung */
+  private static final int TIMEOUT = Integer.getInteger("android.dx.daemon.timeout", 600);
+  /** Interval at which the reply of a daemon is polled for, in milliseconds */
+  private static final int POLL_INTERVAL = 10;
+
+  /** The idle daemons, by their command line */
+  private static final Map<List<String>, Deque<AndroidDxDaemon>> ourIdleDaemons = new HashMap<List<String>, Deque<AndroidDxDaemon>>();
+  private static boolean ourShutdownHookInstalled;
+
+  private final Process myProcess;
+  private final DataOutputStream myOut;
+  private final DataInputStream myIn;
+  private int myRuns;
+
+  private AndroidDxDaemon(@NotNull Process process) {
+    myProcess = process;
+    myOut = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+    myIn = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+
+    // Anything the daemon prints outside of a run is only interesting for debugging the daemon itself
+    final Thread stderrReader = new Thread("dx daemon stderr") {
+      @Override
+      public void run() {
+        try {
+          final BufferedReader reader = new BufferedReader(new InputStreamReader(myProcess.getErrorStream()));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            LOG.debug(line);
+          }
+        }
+        catch (IOException ignored) {
+        }
+      }
+    };
+    stderrReader.setDaemon(true);
+    stderrReader.start();
+  }
+
+  static boolean isEnabled() {
+    return !DISABLED;
+  }
+
+  /**
+   * Runs dx with the given arguments of {@link AndroidDxRunner} in a daemon started with the given java command line, and adds
+   * the messages of dx to the given map.
+   *
+   * @return false if the daemon failed or the build was canceled, in which case dx should be run in a new process instead, unless
+   * canceled
+   */
+  static boolean runDex(@NotNull String javaExecutable,
+                        @NotNull List<String> classPath,
+                        @NotNull List<String> vmOptions,
+                        @NotNull List<String> programParams,
+                        @NotNull String outFilePath,
+                        @NotNull Map<AndroidCompilerMessageKind, List<String>> messages,
+                        @NotNull CanceledStatus cancelStatus) {
+    final List<String> commandLine = ExternalProcessUtil.buildJavaCommandLine(
+      javaExecutable, AndroidDxRunner.class.getName(), Collections.<String>emptyList(), classPath, vmOptions,
+      Collections.singletonList(AndroidDxRunner.DAEMON_OPTION));
+    return runDex(commandLine, programParams, outFilePath, messages, cancelStatus, TIMEOUT * 1000L);
+  }
+
+  /** Same as the above, with the command line of the daemon and the time after which it is considered hung, in milliseconds */
+  static boolean runDex(@NotNull List<String> commandLine,
+                        @NotNull List<String> programParams,
+                        @NotNull String outFilePath,
+                        @NotNull Map<AndroidCompilerMessageKind, List<String>> messages,
+                        @NotNull CanceledStatus cancelStatus,
+                        long timeout) {
+    final AndroidDxDaemon daemon = acquire(commandLine);
+    if (daemon == null) {
+      return false;
+    }
+    final long start = System.currentTimeMillis();
+    final boolean heapFull;
+    try {
+      daemon.myRuns++;
+      heapFull = daemon.run(programParams, outFilePath, messages, cancelStatus, start + timeout);
+    }
+    catch (IOException e) {
+      LOG.info("dx daemon run failed", e);
+      daemon.destroy();
+      // The output of a run which failed halfway is not trusted
+      FileUtil.delete(new File(outFilePath));
+      return false;
+    }
+    LOG.info("dx daemon run took " + (System.currentTimeMillis() - start) + " ms: " + outFilePath);
+
+    if (heapFull || daemon.myRuns >= MAX_RUNS) {
+      daemon.destroy();
+    }
+    else {
+      release(commandLine, daemon);
+    }
+    return true;
+  }
+
+  @Nullable
+  private static AndroidDxDaemon acquire(@NotNull List<String> commandLine) {
+    synchronized (ourIdleDaemons) {
+      final Deque<AndroidDxDaemon> idle = ourIdleDaemons.get(commandLine);
+      while (idle != null && !idle.isEmpty()) {
+        final AndroidDxDaemon daemon = idle.pop();
+        if (daemon.isAlive()) {
+          return daemon;
+        }
+      }
+      if (!ourShutdownHookInstalled) {
+        ourShutdownHookInstalled = true;
+        Runtime.getRuntime().addShutdownHook(new Thread("dx daemon shutdown") {
+          @Override
+          public void run() {
+            shutdown();
+          }
+        });
+      }
+    }
+    LOG.info("Starting dx daemon: " + AndroidCommonUtils.command2string(commandLine));
+    try {
+      return new AndroidDxDaemon(Runtime.getRuntime().exec(ArrayUtil.toStringArray(commandLine)));
+    }
+    catch (IOException e) {
+      LOG.info("Cannot start dx daemon", e);
+      return null;
+    }
+  }
+
+  private static void release(@NotNull List<String> commandLine, @NotNull AndroidDxDaemon daemon) {
+    synchronized (ourIdleDaemons) {
+      Deque<AndroidDxDaemon> idle = ourIdleDaemons.get(commandLine);
+      if (idle == null) {
+        idle = new ArrayDeque<AndroidDxDaemon>();
+        ourIdleDaemons.put(commandLine, idle);
+      }
+      if (idle.size() < MAX_IDLE) {
+        idle.push(daemon);
+        return;
+      }
+    }
+    daemon.destroy();
+  }
+
+  /** Stops all idle daemons */
+  static void shutdown() {
+    final List<AndroidDxDaemon> daemons = new ArrayList<AndroidDxDaemon>();
+    synchronized (ourIdleDaemons) {
+      for (Deque<AndroidDxDaemon> idle : ourIdleDaemons.values()) {
+        daemons.addAll(idle);
+      }
+      ourIdleDaemons.clear();
+    }
+    for (AndroidDxDaemon daemon : daemons) {
+      daemon.destroy();
+    }
+  }
+
+  /** @return whether the heap of the daemon is nearly full after the run */
+  private boolean run(@NotNull List<String> args,
+                      @NotNull String outFilePath,
+                      @NotNull Map<AndroidCompilerMessageKind, List<String>> messages,
+                      @NotNull CanceledStatus cancelStatus,
+                      long deadline) throws IOException {
+    myOut.writeInt(args.size());
+    for (String arg : args) {
+      myOut.writeUTF(arg);
+    }
+    myOut.flush();
+    waitForReply(cancelStatus, deadline);
+
+    // The exit code is not used; like for a dx process, the messages and the output file tell whether the run succeeded
+    myIn.readInt();
+    final String stdout = readString();
+    final String stderr = readString();
+    final long usedHeap = myIn.readLong();
+    final long maxHeap = myIn.readLong();
+
+    AndroidCommonUtils.handleDexCompilationResult(stdout, stderr, outFilePath, messages);
+    return usedHeap > maxHeap * MAX_HEAP_USAGE;
+  }
+
+  /**
+   * Waits until the daemon starts to reply, which it does all at once at the end of the run. Reads from a process can't time
+   * out, so this polls.
+   */
+  private void waitForReply(@NotNull CanceledStatus cancelStatus, long deadline) throws IOException {
+    // When the daemon dies, the read fails right away
+    while (myIn.available() == 0 && isAlive()) {
+      if (cancelStatus.isCanceled()) {
+        throw new IOException("Build canceled");
+      }
+      if (System.currentTimeMillis() > deadline) {
+        throw new IOException("dx daemon didn't reply in time");
+      }
+      try {
+        Thread.sleep(POLL_INTERVAL);
+      }
+      catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  @NotNull
+  private String readString() throws IOException {
+    final byte[] bytes = new byte[myIn.readInt()];
+    myIn.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private boolean isAlive() {
+    try {
+      myProcess.exitValue();
+      return false;
+    }
+    catch (IllegalThreadStateException e) {
+      return true;
+    }
+  }
+
+  private void destroy() {
+    try {
+      // Ends the loop of the daemon, in case destroying it doesn't get through
+      myOut.close();
+    }
+    catch (IOException ignored) {
+    }
+    myProcess.destroy();
+  }
+}
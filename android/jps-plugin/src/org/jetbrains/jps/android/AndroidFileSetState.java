@@ -2,72 +2,383 @@ package org.jetbrains.jps.android;
 
 import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.io.FileUtil;
-import com.intellij.util.Processor;
-import com.intellij.util.containers.HashMap;
+import com.intellij.util.ArrayUtil;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TObjectLongHashMap;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.incremental.storage.ValidityState;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Map;
+import java.util.*;
 
 /**
+ * The time stamps of a set of files.
+ * <p/>
+ * The paths are kept sorted, such that the files of a directory are adjacent, and are stored prefix-compressed. Each
+ * directory below the roots has a digest of the paths and time stamps of all files under it, such that
+ * {@link #getChangedFiles} can skip unchanged directories, and {@link #equalsTo} can tell most changes by the digest of
+ * the roots alone.
+ *
  * @author Eugene.Kudelevsky
  */
 public class AndroidFileSetState implements ValidityState {
-  private final Map<String, Long> myTimestamps;
+  private static final int SIGNATURE = 0xF11E5E75;
+  private static final byte VERSION = 1;
 
-  public AndroidFileSetState(@NotNull Collection<String> roots, @NotNull final Condition<File> filter, boolean recursively) {
-    myTimestamps = new HashMap<String, Long>();
+  /** Orders the roots by the paths below them */
+  private static final Comparator<String> PATH_ORDER = new Comparator<String>() {
+    @Override
+    public int compare(String root1, String root2) {
+      return (root1 + '/').compareTo(root2 + '/');
+    }
+  };
+
+  /** System independent paths of the roots, sorted */
+  private final String[] myRoots;
+  /** System independent paths of the files, sorted */
+  private final String[] myPaths;
+  private final long[] myTimestamps;
+  /** Digests of the roots and all directories below them which contain files, by path */
+  private final TObjectLongHashMap<String> myDigests = new TObjectLongHashMap<String>();
+  private long myDigest;
+
+  public AndroidFileSetState(@NotNull Collection<String> roots, @NotNull Condition<File> filter, boolean recursively) {
+    final Set<String> rootSet = new HashSet<String>();
+
+    for (String root : roots) {
+      rootSet.add(FileUtil.toSystemIndependentName(root));
+    }
+    myRoots = ArrayUtil.toStringArray(rootSet);
+    Arrays.sort(myRoots);
+    final List<String> paths = new ArrayList<String>();
+    final TLongArrayList timestamps = new TLongArrayList();
+
+    // a root inside another one is walked as part of the outer one
+    final List<String> walkedRoots = new ArrayList<String>();
+
+    for (String root : myRoots) {
+      if (!recursively || findRoot(root) == null) {
+        walkedRoots.add(root);
+      }
+    }
+    Collections.sort(walkedRoots, PATH_ORDER);
+
+    for (String root : walkedRoots) {
+      final File file = new File(root);
+
+      if (recursively && file.isDirectory()) {
+        walk(file, root, filter, paths, timestamps);
+      }
+      else if (filter.value(file)) {
+        paths.add(root);
+        timestamps.add(file.lastModified());
+      }
+    }
+    if (!isSorted(paths)) {
+      // only if a root which isn't a directory comes up between the others
+      final Map<String, Long> sorted = new TreeMap<String, Long>();
 
-    for (String rootPath : roots) {
-      final File root = new File(rootPath);
+      for (int i = 0; i < paths.size(); i++) {
+        sorted.put(paths.get(i), timestamps.get(i));
+      }
+      paths.clear();
+      paths.addAll(sorted.keySet());
+      timestamps.clear();
 
-      if (recursively) {
-        FileUtil.processFilesRecursively(root, new Processor<File>() {
-          @Override
-          public boolean process(File file) {
-            if (filter.value(file)) {
-              myTimestamps.put(FileUtil.toSystemIndependentName(file.getPath()), file.lastModified());
-            }
-            return true;
-          }
-        });
+      for (Long timestamp : sorted.values()) {
+        timestamps.add(timestamp);
       }
-      else if (filter.value(root)) {
-        myTimestamps.put(FileUtil.toSystemIndependentName(root.getPath()), root.lastModified());
+    }
+    myPaths = ArrayUtil.toStringArray(paths);
+    myTimestamps = timestamps.toNativeArray();
+    computeDigests();
+  }
+
+  private static boolean isSorted(@NotNull List<String> paths) {
+    for (int i = 1; i < paths.size(); i++) {
+      if (paths.get(i - 1).compareTo(paths.get(i)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the files under the given directory which are accepted by the filter, in the order of their paths. Each directory
+   * is listed once, and its entries are sorted by the paths below them, so that the walk needs no sorting afterwards.
+   */
+  private static void walk(@NotNull File dir,
+                           @NotNull String dirPath,
+                           @NotNull Condition<File> filter,
+                           @NotNull List<String> paths,
+                           @NotNull TLongArrayList timestamps) {
+    final File[] children = dir.listFiles();
+
+    if (children == null) {
+      return;
+    }
+    final String[] keys = new String[children.length];
+    final Map<String, File> byKey = new HashMap<String, File>();
+
+    for (int i = 0; i < children.length; i++) {
+      // the paths below a directory sort as if its name ended with the separator
+      keys[i] = children[i].isDirectory() ? children[i].getName() + '/' : children[i].getName();
+      byKey.put(keys[i], children[i]);
+    }
+    Arrays.sort(keys);
+
+    for (String key : keys) {
+      final File child = byKey.get(key);
+
+      if (key.endsWith("/")) {
+        walk(child, dirPath + '/' + child.getName(), filter, paths, timestamps);
+      }
+      else if (filter.value(child)) {
+        paths.add(dirPath + '/' + key);
+        timestamps.add(child.lastModified());
       }
     }
   }
 
   public AndroidFileSetState(DataInput in) throws IOException {
-    final int resourcesCount = in.readInt();
-    myTimestamps = new HashMap<String, Long>(resourcesCount);
+    if (in.readInt() != SIGNATURE) {
+      throw new IOException("incorrect signature");
+    }
+    if (in.readByte() != VERSION) {
+      throw new IOException("old version");
+    }
+    myRoots = new String[in.readInt()];
+
+    for (int i = 0; i < myRoots.length; i++) {
+      myRoots[i] = in.readUTF();
+    }
+    final int filesCount = in.readInt();
+    myPaths = new String[filesCount];
+    myTimestamps = new long[filesCount];
+    String previous = "";
+
+    for (int i = 0; i < filesCount; i++) {
+      final String path = readPath(in, previous);
+      myPaths[i] = path;
+      myTimestamps[i] = in.readLong();
+      previous = path;
+    }
+    computeDigests();
+  }
+
+  private void computeDigests() {
+    // the paths are sorted, so the files of a directory are adjacent: the directories containing the current path are
+    // kept on a stack, and a directory's digest is complete once a path outside of it comes up
+    final List<String> dirs = new ArrayList<String>();
+    final TLongArrayList dirDigests = new TLongArrayList();
+
+    for (int i = 0; i < myPaths.length; i++) {
+      final String path = myPaths[i];
+      final long hash = hash(path, myTimestamps[i]);
+      myDigest += hash;
+
+      while (!dirs.isEmpty() && !isUnder(path, dirs.get(dirs.size() - 1))) {
+        popDir(dirs, dirDigests);
+      }
+      final String root = dirs.isEmpty() ? findRoot(path) : dirs.get(0);
+
+      if (root == null) {
+        continue;
+      }
+      // push the directories between the innermost one on the stack and the file
+      int slash = dirs.isEmpty() ? root.length() : dirs.get(dirs.size() - 1).length();
+
+      while (slash >= 0 && slash < path.length()) {
+        if (dirs.isEmpty() || slash > dirs.get(dirs.size() - 1).length()) {
+          dirs.add(path.substring(0, slash));
+          dirDigests.add(0);
+        }
+        slash = path.indexOf('/', slash + 1);
+      }
+      // the digest of a directory is the sum of the hashes of the files under it, so it doesn't depend on the order
+      for (int j = 0; j < dirDigests.size(); j++) {
+        dirDigests.set(j, dirDigests.get(j) + hash);
+      }
+    }
+    while (!dirs.isEmpty()) {
+      popDir(dirs, dirDigests);
+    }
+  }
+
+  private void popDir(@NotNull List<String> dirs, @NotNull TLongArrayList dirDigests) {
+    final int last = dirs.size() - 1;
+    myDigests.put(dirs.remove(last), dirDigests.remove(last));
+  }
+
+  private static boolean isUnder(@NotNull String path, @NotNull String dir) {
+    return path.length() > dir.length() && path.startsWith(dir) && path.charAt(dir.length()) == '/';
+  }
+
+  @Nullable
+  private String findRoot(@NotNull String path) {
+    for (String root : myRoots) {
+      if (isUnder(path, root)) {
+        return root;
+      }
+    }
+    return null;
+  }
 
-    for (int i = 0; i < resourcesCount; i++) {
-      final String filePath = in.readUTF();
-      final long timestamp = in.readLong();
+  private static long hash(@NotNull String path, long timestamp) {
+    // FNV-1a, which spreads the bits well enough for sums of many hashes to be distinct
+    long hash = 0xcbf29ce484222325L;
 
-      myTimestamps.put(filePath, timestamp);
+    for (int i = 0; i < path.length(); i++) {
+      hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
     }
+    for (int i = 0; i < 8; i++) {
+      hash = (hash ^ ((timestamp >>> (i * 8)) & 0xFF)) * 0x100000001b3L;
+    }
+    return hash;
   }
 
   @Override
   public boolean equalsTo(ValidityState otherState) {
-    return otherState instanceof AndroidFileSetState &&
-           ((AndroidFileSetState)otherState).myTimestamps.equals(myTimestamps);
+    if (!(otherState instanceof AndroidFileSetState)) {
+      return false;
+    }
+    final AndroidFileSetState other = (AndroidFileSetState)otherState;
+    // the digests tell nearly all changes apart; the arrays are compared for the rest
+    return other.myDigest == myDigest &&
+           Arrays.equals(other.myTimestamps, myTimestamps) &&
+           Arrays.equals(other.myPaths, myPaths);
+  }
+
+  /**
+   * Returns the paths of the files which were added, removed or modified since the given state, skipping the directories
+   * whose digests are the same in both states.
+   */
+  @NotNull
+  public List<String> getChangedFiles(@Nullable AndroidFileSetState oldState) {
+    if (oldState == null) {
+      return Arrays.asList(myPaths);
+    }
+    final List<String> result = new ArrayList<String>();
+    int i = 0;
+    int j = 0;
+
+    while (i < myPaths.length || j < oldState.myPaths.length) {
+      final int c = i == myPaths.length ? 1 : j == oldState.myPaths.length ? -1 : myPaths[i].compareTo(oldState.myPaths[j]);
+
+      if (c < 0) {
+        result.add(myPaths[i++]);
+      }
+      else if (c > 0) {
+        result.add(oldState.myPaths[j++]);
+      }
+      else {
+        final String unchangedDir = findUnchangedDir(myPaths[i], oldState);
+
+        if (unchangedDir != null) {
+          // both states have the same files under the directory, so skip them
+          i = endOfDir(myPaths, i, unchangedDir);
+          j = endOfDir(oldState.myPaths, j, unchangedDir);
+          continue;
+        }
+        if (myTimestamps[i] != oldState.myTimestamps[j]) {
+          result.add(myPaths[i]);
+        }
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /** Returns the outermost directory containing the given path which is unchanged in the given state, if any */
+  @Nullable
+  private String findUnchangedDir(@NotNull String path, @NotNull AndroidFileSetState oldState) {
+    final String root = findRoot(path);
+
+    if (root == null) {
+      return null;
+    }
+    for (int slash = root.length(); slash >= 0 && slash < path.length(); slash = path.indexOf('/', slash + 1)) {
+      final String dir = path.substring(0, slash);
+
+      if (myDigests.containsKey(dir) && oldState.myDigests.containsKey(dir) && myDigests.get(dir) == oldState.myDigests.get(dir)) {
+        return dir;
+      }
+    }
+    return null;
+  }
+
+  /** Returns the index after the last path under the given directory, which contains the path at the given index */
+  private static int endOfDir(@NotNull String[] paths, int index, @NotNull String dir) {
+    final String prefix = dir + '/';
+    int low = index;
+    int high = paths.length;
+
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+
+      if (paths[mid].startsWith(prefix)) {
+        low = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return low;
   }
 
   @Override
   public void save(DataOutput out) throws IOException {
-    out.writeInt(myTimestamps.size());
+    out.writeInt(SIGNATURE);
+    out.writeByte(VERSION);
+    out.writeInt(myRoots.length);
+
+    for (String root : myRoots) {
+      out.writeUTF(root);
+    }
+    out.writeInt(myPaths.length);
+    String previous = "";
+
+    for (int i = 0; i < myPaths.length; i++) {
+      final String path = myPaths[i];
+      writePath(out, previous, path);
+      out.writeLong(myTimestamps[i]);
+      previous = path;
+    }
+  }
+
+  /**
+   * Writes the given path as the length of the prefix it shares with the previously written one, and the rest of it. Sorted
+   * paths share most of their prefixes, so the paths of a whole tree take little more space than their names.
+   */
+  static void writePath(@NotNull DataOutput out, @NotNull String previous, @NotNull String path) throws IOException {
+    final int prefixLength = Math.min(commonPrefixLength(previous, path), 0xFFFF);
+    out.writeShort(prefixLength);
+    out.writeUTF(path.substring(prefixLength));
+  }
+
+  /** Reads a path written by {@link #writePath} after the given one */
+  @NotNull
+  static String readPath(@NotNull DataInput in, @NotNull String previous) throws IOException {
+    final int prefixLength = in.readUnsignedShort();
+
+    if (prefixLength > previous.length()) {
+      throw new IOException("invalid path prefix");
+    }
+    return previous.substring(0, prefixLength) + in.readUTF();
+  }
+
+  private static int commonPrefixLength(@NotNull String s1, @NotNull String s2) {
+    final int length = Math.min(s1.length(), s2.length());
+    int i = 0;
 
-    for (Map.Entry<String, Long> entry : myTimestamps.entrySet()) {
-      out.writeUTF(entry.getKey());
-      out.writeLong(entry.getValue());
+    while (i < length && s1.charAt(i) == s2.charAt(i)) {
+      i++;
     }
+    return i;
   }
 }
@@ -10,22 +10,33 @@ import org.jetbrains.jps.incremental.storage.StorageOwner;
 import java.io.*;
 
 /**
+ * Stores the {@link AndroidFileSetState} of the inputs of a target, as of its last successful build.
+ *
  * @author Eugene.Kudelevsky
  */
-public class AndroidGenSourcesCopyingStorage implements StorageOwner {
-  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.android.AndroidGenSourcesCopyingStorage");
+public class AndroidFileSetStorage implements StorageOwner {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.android.AndroidFileSetStorage");
 
-  public static final StorageProvider<AndroidGenSourcesCopyingStorage> PROVIDER = new StorageProvider<AndroidGenSourcesCopyingStorage>() {
-    @NotNull
-    @Override
-    public AndroidGenSourcesCopyingStorage createStorage(File targetDataDir) throws IOException {
-      return new AndroidGenSourcesCopyingStorage(new File(targetDataDir, "gen_sources_copying" + File.separator + "data"));
-    }
-  };
+  /** The custom generated sources copied by {@link AndroidSourceGeneratingBuilder} */
+  public static final StorageProvider<AndroidFileSetStorage> GEN_SOURCES_COPYING_PROVIDER = createProvider("gen_sources_copying");
+
+  /** The images crunched by {@link AndroidResourceCachingBuilder} */
+  public static final StorageProvider<AndroidFileSetStorage> PNG_CRUNCHING_PROVIDER = createProvider("png_crunching");
+
+  @NotNull
+  private static StorageProvider<AndroidFileSetStorage> createProvider(@NotNull final String dirName) {
+    return new StorageProvider<AndroidFileSetStorage>() {
+      @NotNull
+      @Override
+      public AndroidFileSetStorage createStorage(File targetDataDir) throws IOException {
+        return new AndroidFileSetStorage(new File(targetDataDir, dirName + File.separator + "data"));
+      }
+    };
+  }
 
   private final File myFile;
 
-  private AndroidGenSourcesCopyingStorage(@NotNull File file) {
+  private AndroidFileSetStorage(@NotNull File file) {
     myFile = file;
   }
 
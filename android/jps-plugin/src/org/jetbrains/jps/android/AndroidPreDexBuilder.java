@@ -2,9 +2,11 @@ package org.jetbrains.jps.android;
 
 import com.android.tools.idea.jps.AndroidTargetBuilder;
 import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.Trinity;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.io.FileUtilRt;
 import org.jetbrains.android.util.AndroidBuildTestingManager;
+import org.jetbrains.android.util.AndroidCompilerMessageKind;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -26,6 +28,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author Eugene.Kudelevsky
@@ -34,6 +38,9 @@ public class AndroidPreDexBuilder extends AndroidTargetBuilder<AndroidPreDexBuil
 
   @NonNls private static final String BUILDER_NAME = "Android Pre Dex";
 
+  /** Property for the maximum number of jars pre-dexed at the same time; each of them runs dx in a separate process */
+  @NonNls private static final String THREADS_PROPERTY = "android.predex.threads";
+
   protected AndroidPreDexBuilder() {
     super(Collections.singletonList(AndroidPreDexBuildTarget.MyTargetType.INSTANCE));
   }
@@ -65,8 +72,8 @@ public class AndroidPreDexBuilder extends AndroidTargetBuilder<AndroidPreDexBuil
 
   private static boolean doBuild(@NotNull AndroidPreDexBuildTarget target,
                                  @NotNull DirtyFilesHolder<AndroidPreDexBuildTarget.MyRootDescriptor, AndroidPreDexBuildTarget> holder,
-                                 @NotNull BuildOutputConsumer outputConsumer,
-                                 @NotNull CompileContext context) throws IOException, ProjectBuildException {
+                                 @NotNull final BuildOutputConsumer outputConsumer,
+                                 @NotNull final CompileContext context) throws IOException, ProjectBuildException {
     final List<Pair<File, String>> filesToPreDex = new ArrayList<Pair<File, String>>();
 
     holder.processDirtyFiles(new FileProcessor<AndroidPreDexBuildTarget.MyRootDescriptor, AndroidPreDexBuildTarget>() {
@@ -91,42 +98,146 @@ public class AndroidPreDexBuilder extends AndroidTargetBuilder<AndroidPreDexBuil
     if (platform == null) {
       return false;
     }
-    if (!filesToPreDex.isEmpty()) {
-      final File outputDir = target.getOutputFile(context);
+    if (filesToPreDex.isEmpty()) {
+      return true;
+    }
+    final File outputDir = target.getOutputFile(context);
+    final List<Trinity<File, File, String>> jobs = new ArrayList<Trinity<File, File, String>>();
+
+    for (Pair<File, String> pair : filesToPreDex) {
+      final File srcFile = pair.getFirst();
+      final String moduleName = pair.getSecond();
+      final String srcFilePath = srcFile.getAbsolutePath();
+      final File outputFile;
+      final String progressText;
+
+      if (moduleName != null) {
+        outputFile = new File(new File(outputDir, moduleName), srcFile.getName());
+        progressText = "Pre-dex [" + moduleName + "]";
+      }
+      else {
+        final String outputFileName = getOutputFileNameForExternalJar(srcFile);
 
-      for (Pair<File, String> pair : filesToPreDex) {
-        context.checkCanceled();
+        if (outputFileName == null) {
+          context.processMessage(new CompilerMessage(BUILDER_NAME, BuildMessage.Kind.ERROR,
+                                                     "Cannot pre-dex file " + srcFilePath + ": incorrect path", srcFilePath));
+          return false;
+        }
+        outputFile = new File(outputDir, outputFileName);
+        progressText = "Pre-dex: " + srcFile.getName();
+      }
 
-        final File srcFile = pair.getFirst();
-        final String moduleName = pair.getSecond();
-        final String srcFilePath = srcFile.getAbsolutePath();
-        final File outputFile;
+      if (AndroidJpsUtil.createDirIfNotExist(outputFile.getParentFile(), context, BUILDER_NAME) == null) {
+        return false;
+      }
+      jobs.add(Trinity.create(srcFile, outputFile, progressText));
+    }
 
-        if (moduleName != null) {
-          context.processMessage(new ProgressMessage("Pre-dex [" + moduleName + "]"));
-          outputFile = new File(new File(outputDir, moduleName), srcFile.getName());
+    final AndroidBuildCache cache = AndroidBuildCache.getInstance(AndroidBuildCache.PRE_DEX);
+    final String dexOptionsKey = AndroidDexBuilder.getDexOptionsKey(platform, project);
+    final int maxThreads = Integer.getInteger(THREADS_PROPERTY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    final int threads = Math.max(1, Math.min(jobs.size(), maxThreads));
+
+    if (threads == 1) {
+      for (Trinity<File, File, String> job : jobs) {
+        context.checkCanceled();
+
+        if (!preDex(job, platform, cache, dexOptionsKey, context, project, outputConsumer)) {
+          return false;
         }
-        else {
-          context.processMessage(new ProgressMessage("Pre-dex: " + srcFile.getName()));
-          final String outputFileName = getOutputFileNameForExternalJar(srcFile);
-
-          if (outputFileName == null) {
-            context.processMessage(new CompilerMessage(BUILDER_NAME, BuildMessage.Kind.ERROR,
-                                                       "Cannot pre-dex file " + srcFilePath + ": incorrect path", srcFilePath));
-            return false;
-          }
-          outputFile = new File(outputDir, outputFileName);
+      }
+    }
+    else {
+      final ExecutorService executor = Executors.newFixedThreadPool(threads);
+      final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+      final AtomicBoolean failed = new AtomicBoolean();
+      final AndroidPlatform finalPlatform = platform;
+      try {
+        for (final Trinity<File, File, String> job : jobs) {
+          futures.add(executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+              // Don't start dexing the remaining jars once one has failed
+              if (failed.get() || context.getCancelStatus().isCanceled()) {
+                return false;
+              }
+              final boolean success = preDex(job, finalPlatform, cache, dexOptionsKey, context, project, outputConsumer);
+              if (!success) {
+                failed.set(true);
+              }
+              return success;
+            }
+          }));
         }
+        boolean success = true;
 
-        if (AndroidJpsUtil.createDirIfNotExist(outputFile.getParentFile(), context, BUILDER_NAME) == null) {
-          return false;
+        for (Future<Boolean> future : futures) {
+          success &= future.get();
         }
+        context.checkCanceled();
 
-        if (!AndroidDexBuilder.runDex(platform, outputFile.getPath(), new String[]{srcFilePath}, context,
-          project, outputConsumer, BUILDER_NAME, srcFile.getName())) {
+        if (!success) {
           return false;
         }
       }
+      catch (InterruptedException e) {
+        throw new ProjectBuildException(e);
+      }
+      catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        }
+        throw new ProjectBuildException(cause);
+      }
+      finally {
+        executor.shutdownNow();
+      }
+    }
+
+    if (cache != null) {
+      cache.trim();
+    }
+    return true;
+  }
+
+  /**
+   * Pre-dexes the source jar of the given job into its output file, or copies the output from the cache if it has been dexed before.
+   * The warnings of dx are stored with the cached output, and reported again when it is reused.
+   */
+  private static boolean preDex(@NotNull Trinity<File, File, String> job,
+                                @NotNull AndroidPlatform platform,
+                                @Nullable AndroidBuildCache cache,
+                                @Nullable String dexOptionsKey,
+                                @NotNull CompileContext context,
+                                @NotNull JpsProject project,
+                                @NotNull BuildOutputConsumer outputConsumer) throws IOException {
+    final File srcFile = job.getFirst();
+    final File outputFile = job.getSecond();
+    final String srcFilePath = srcFile.getAbsolutePath();
+    final String cacheKey = cache != null && dexOptionsKey != null ? AndroidBuildCache.getKey(srcFile, dexOptionsKey) : null;
+
+    if (cacheKey != null) {
+      final List<String> cachedWarnings = cache.fetchMessages(cacheKey);
+
+      if (cachedWarnings != null && cache.fetch(cacheKey, outputFile)) {
+        AndroidJpsUtil.addMessages(context, Collections.singletonMap(AndroidCompilerMessageKind.WARNING, cachedWarnings),
+                                   BUILDER_NAME, srcFile.getName());
+        synchronized (outputConsumer) {
+          outputConsumer.registerOutputFile(outputFile, Collections.singletonList(srcFilePath));
+        }
+        return true;
+      }
+    }
+    context.processMessage(new ProgressMessage(job.getThird()));
+    final List<String> warnings = new ArrayList<String>();
+
+    if (!AndroidDexBuilder.runDex(platform, outputFile.getPath(), new String[]{srcFilePath}, context,
+                                  project, outputConsumer, BUILDER_NAME, srcFile.getName(), warnings)) {
+      return false;
+    }
+    if (cacheKey != null) {
+      cache.store(cacheKey, outputFile, warnings);
     }
     return true;
   }
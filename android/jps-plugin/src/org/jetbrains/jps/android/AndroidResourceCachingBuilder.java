@@ -1,11 +1,15 @@
 package org.jetbrains.jps.android;
 
+import com.android.sdklib.BuildToolInfo;
 import com.android.sdklib.IAndroidTarget;
 import com.android.tools.idea.jps.AndroidTargetBuilder;
+import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.io.FileUtilRt;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.HashMap;
 import org.jetbrains.android.compiler.tools.AndroidApt;
+import org.jetbrains.android.util.AndroidCommonUtils;
 import org.jetbrains.android.util.AndroidCompilerMessageKind;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -23,10 +27,8 @@ import org.jetbrains.jps.model.module.JpsModule;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Eugene.Kudelevsky
@@ -34,6 +36,19 @@ import java.util.Map;
 public class AndroidResourceCachingBuilder extends AndroidTargetBuilder<BuildRootDescriptor, AndroidResourceCachingBuildTarget> {
   @NonNls private static final String BUILDER_NAME = "Android Resource Caching";
 
+  /** Maximum number of aapt processes crunching images at the same time */
+  private static final int MAX_THREADS =
+    Integer.getInteger("android.crunch.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  /** Minimum number of images per aapt process, which doesn't pay off for fewer */
+  private static final int MIN_BATCH_SIZE = 16;
+
+  private static final Condition<File> PNG_FILTER = new Condition<File>() {
+    @Override
+    public boolean value(File file) {
+      return file.isFile() && FileUtilRt.extensionEquals(file.getName(), AndroidCommonUtils.PNG_EXTENSION);
+    }
+  };
+
   protected AndroidResourceCachingBuilder() {
     super(Collections.singletonList(AndroidResourceCachingBuildTarget.MyTargetType.INSTANCE));
   }
@@ -67,9 +82,12 @@ public class AndroidResourceCachingBuilder extends AndroidTargetBuilder<BuildRoo
       return false;
     }
     final File resCacheDir = target.getOutputDir(context);
+    final AndroidFileSetStorage storage = context.getProjectDescriptor().dataManager.getStorage(
+      target, AndroidFileSetStorage.PNG_CRUNCHING_PROVIDER);
+    final AndroidFileSetState oldState = !context.getScope().isBuildForced(target) ? storage.read() : null;
 
     // todo: probably it may be done automatically
-    if (context.getScope().isBuildForced(target) && resCacheDir.exists()) {
+    if (oldState == null && resCacheDir.exists()) {
       if (!FileUtil.delete(resCacheDir)) {
         context.processMessage(new CompilerMessage(BUILDER_NAME, BuildMessage.Kind.ERROR,
                                                    AndroidJpsBundle.message("android.jps.cannot.create.directory", resCacheDir.getPath())));
@@ -101,12 +119,16 @@ public class AndroidResourceCachingBuilder extends AndroidTargetBuilder<BuildRoo
         inputDirs.add(f.getPath());
       }
     }
-    final Map<AndroidCompilerMessageKind, List<String>> messages =
-      AndroidApt.crunch(androidTarget, inputDirs,resCacheDir.getPath());
-    AndroidJpsUtil.addMessages(context, messages, BUILDER_NAME, module.getName());
-    final boolean success = messages.get(AndroidCompilerMessageKind.ERROR).isEmpty();
+    final AndroidFileSetState newState = new AndroidFileSetState(inputDirs, PNG_FILTER, true);
+
+    if (newState.equalsTo(oldState)) {
+      return true;
+    }
+    final boolean success =
+      crunchChangedFiles(context, module, androidTarget, inputDirs, newState.getChangedFiles(oldState), resCacheDir);
 
     if (success) {
+      storage.saveState(newState);
       final Map<String, File> outputFiles = new HashMap<String, File>();
 
       FileUtil.processFilesRecursively(resCacheDir, new Processor<File>() {
@@ -136,6 +158,163 @@ public class AndroidResourceCachingBuilder extends AndroidTargetBuilder<BuildRoo
     return success;
   }
 
+  /**
+   * Crunches the images whose relative paths are the ones of the given changed files into the cache directory, and deletes
+   * the crunched images whose source no longer exists. Images are taken from the shared crunch cache if possible, and
+   * crunched by several aapt processes in parallel otherwise.
+   */
+  private static boolean crunchChangedFiles(@NotNull CompileContext context,
+                                            @NotNull JpsModule module,
+                                            @NotNull final IAndroidTarget androidTarget,
+                                            @NotNull List<String> inputDirs,
+                                            @NotNull List<String> changedFiles,
+                                            @NotNull final File resCacheDir) throws IOException {
+    final Set<String> changedRelativePaths = new HashSet<String>();
+
+    for (String path : changedFiles) {
+      for (String inputDir : inputDirs) {
+        final String relativePath = FileUtil.getRelativePath(FileUtil.toSystemIndependentName(inputDir), path, '/');
+
+        if (relativePath != null && !relativePath.startsWith("..")) {
+          changedRelativePaths.add(relativePath);
+          break;
+        }
+      }
+    }
+    final BuildToolInfo buildToolInfo = androidTarget.getBuildToolInfo();
+    final AndroidBuildCache cache = buildToolInfo != null ? AndroidBuildCache.getInstance(AndroidBuildCache.CRUNCH) : null;
+    final String aaptKey = buildToolInfo != null
+                           ? buildToolInfo.getRevision() + " " + buildToolInfo.getPath(BuildToolInfo.PathId.AAPT) : null;
+    final Map<String, File> filesToCrunch = new HashMap<String, File>();
+    final Map<String, String> cacheKeys = new HashMap<String, String>();
+
+    for (String relativePath : changedRelativePaths) {
+      final File outputFile = new File(resCacheDir, relativePath);
+      FileUtil.delete(outputFile);
+      File srcFile = null;
+
+      // like AndroidApt.crunch, the image of the first root which has it wins
+      for (String inputDir : inputDirs) {
+        final File file = new File(inputDir, relativePath);
+
+        if (file.isFile()) {
+          srcFile = file;
+          break;
+        }
+      }
+
+      if (srcFile == null) {
+        continue;
+      }
+      if (cache != null) {
+        final String cacheKey = AndroidBuildCache.getKey(srcFile, aaptKey + (relativePath.endsWith(".9.png") ? " 9-patch" : ""));
+
+        if (FileUtil.createParentDirs(outputFile) && cache.fetch(cacheKey, outputFile)) {
+          continue;
+        }
+        cacheKeys.put(relativePath, cacheKey);
+      }
+      filesToCrunch.put(relativePath, srcFile);
+    }
+
+    if (filesToCrunch.isEmpty()) {
+      return true;
+    }
+    // every aapt process crunches a batch of files copied to a directory of its own
+    final int batchCount = Math.max(1, Math.min(MAX_THREADS, filesToCrunch.size() / MIN_BATCH_SIZE));
+    final List<Map<String, File>> batches = new ArrayList<Map<String, File>>();
+
+    for (int i = 0; i < batchCount; i++) {
+      batches.add(new HashMap<String, File>());
+    }
+    int i = 0;
+
+    for (Map.Entry<String, File> entry : filesToCrunch.entrySet()) {
+      batches.get(i++ % batchCount).put(entry.getKey(), entry.getValue());
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(batchCount);
+    final List<Future<Map<AndroidCompilerMessageKind, List<String>>>> futures =
+      new ArrayList<Future<Map<AndroidCompilerMessageKind, List<String>>>>();
+    boolean success = true;
+
+    try {
+      for (final Map<String, File> batch : batches) {
+        futures.add(executor.submit(new Callable<Map<AndroidCompilerMessageKind, List<String>>>() {
+          @Override
+          public Map<AndroidCompilerMessageKind, List<String>> call() throws Exception {
+            final File batchDir = FileUtil.createTempDirectory("android_crunch", "tmp");
+            try {
+              for (Map.Entry<String, File> entry : batch.entrySet()) {
+                FileUtil.copy(entry.getValue(), new File(batchDir, entry.getKey()));
+              }
+              final Map<AndroidCompilerMessageKind, List<String>> messages =
+                AndroidApt.crunch(androidTarget, Collections.singletonList(batchDir.getPath()), resCacheDir.getPath());
+              // the batch directory is gone once the messages are shown
+              return toSourcePaths(messages, batchDir, batch);
+            }
+            finally {
+              FileUtil.delete(batchDir);
+            }
+          }
+        }));
+      }
+      for (Future<Map<AndroidCompilerMessageKind, List<String>>> future : futures) {
+        final Map<AndroidCompilerMessageKind, List<String>> messages = future.get();
+        AndroidJpsUtil.addMessages(context, messages, BUILDER_NAME, module.getName());
+        success &= messages.get(AndroidCompilerMessageKind.ERROR).isEmpty();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    if (success && cache != null) {
+      for (Map.Entry<String, String> entry : cacheKeys.entrySet()) {
+        final File outputFile = new File(resCacheDir, entry.getKey());
+
+        if (outputFile.isFile()) {
+          cache.store(entry.getValue(), outputFile);
+        }
+      }
+      cache.trim();
+    }
+    return success;
+  }
+
+  /**
+   * Replaces the paths of the copies of the images in the given batch directory in the given aapt messages by the paths of
+   * their source images
+   */
+  @NotNull
+  private static Map<AndroidCompilerMessageKind, List<String>> toSourcePaths(
+    @NotNull Map<AndroidCompilerMessageKind, List<String>> messages, @NotNull File batchDir, @NotNull Map<String, File> batch) {
+    final Map<AndroidCompilerMessageKind, List<String>> result = new HashMap<AndroidCompilerMessageKind, List<String>>();
+
+    for (Map.Entry<AndroidCompilerMessageKind, List<String>> entry : messages.entrySet()) {
+      final List<String> mapped = new ArrayList<String>(entry.getValue().size());
+
+      for (String message : entry.getValue()) {
+        if (message.contains(batchDir.getName())) {
+          for (Map.Entry<String, File> file : batch.entrySet()) {
+            final String copyPath = new File(batchDir, file.getKey()).getPath();
+            final String srcPath = file.getValue().getPath();
+            message = message.replace(copyPath, srcPath).replace(FileUtil.toSystemIndependentName(copyPath), srcPath);
+          }
+        }
+        mapped.add(message);
+      }
+      result.put(entry.getKey(), mapped);
+    }
+    return result;
+  }
+
   @NotNull
   @Override
   public String getPresentableName() {
@@ -291,8 +291,8 @@ public class AndroidSourceGeneratingBuilder extends ModuleLevelBuilder {
         continue;
       }
       final ModuleBuildTarget moduleTarget = new ModuleBuildTarget(module, JavaModuleBuildTargetType.PRODUCTION);
-      final AndroidGenSourcesCopyingStorage storage = context.getProjectDescriptor().dataManager.getStorage(
-        moduleTarget, AndroidGenSourcesCopyingStorage.PROVIDER);
+      final AndroidFileSetStorage storage = context.getProjectDescriptor().dataManager.getStorage(
+        moduleTarget, AndroidFileSetStorage.GEN_SOURCES_COPYING_PROVIDER);
 
       final Set<String> genDirs = AndroidJpsUtil.getGenDirs(data.getAndroidExtension());
       final List<String> filteredGenDirs = filterExcludedByOtherProviders(module, genDirs);
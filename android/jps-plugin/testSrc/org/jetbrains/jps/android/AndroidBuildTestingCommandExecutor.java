@@ -45,9 +45,10 @@ abstract class AndroidBuildTestingCommandExecutor implements AndroidBuildTesting
   @NotNull
   @Override
   public Process createProcess(@NotNull String[] args, @NotNull Map<? extends String, ? extends String> environment) {
-    startNewEntry();
+    // Commands may be run from several threads, e.g. when pre-dexing, so each entry is logged at once
+    final StringBuilder builder = new StringBuilder();
     final String[] argsToLog = processArgs(args);
-    logString(StringUtil.join(argsToLog, "\n"));
+    builder.append(StringUtil.join(argsToLog, "\n"));
 
     if (environment.size() > 0) {
       final StringBuilder envBuilder = new StringBuilder();
@@ -59,9 +60,9 @@ abstract class AndroidBuildTestingCommandExecutor implements AndroidBuildTesting
         final String value = progessArg(entry.getValue());
         envBuilder.append(entry.getKey()).append("=").append(value);
       }
-      logString("\nenv: " + envBuilder.toString());
+      builder.append("\nenv: ").append(envBuilder);
     }
-    logString("\n\n");
+    logEntry(builder.append("\n\n").toString());
     try {
       return doCreateProcess(args, environment);
     }
@@ -75,10 +76,8 @@ abstract class AndroidBuildTestingCommandExecutor implements AndroidBuildTesting
 
   @Override
   public void log(@NotNull String s) {
-    startNewEntry();
     final String[] args = s.split("\\n");
-    logString(StringUtil.join(processArgs(args), "\n"));
-    logString("\n\n");
+    logEntry(StringUtil.join(processArgs(args), "\n") + "\n\n");
   }
 
   @Override
@@ -90,11 +89,8 @@ abstract class AndroidBuildTestingCommandExecutor implements AndroidBuildTesting
   protected void doCheckJar(@NotNull String jarId, @NotNull String jarPath) {
   }
 
-  private synchronized void startNewEntry() {
-    logString(ENTRY_HEADER + "\n");
-  }
-
-  private synchronized void logString(String s) {
+  private synchronized void logEntry(String s) {
+    myStringWriter.write(ENTRY_HEADER + "\n");
     myStringWriter.write(s);
   }
 
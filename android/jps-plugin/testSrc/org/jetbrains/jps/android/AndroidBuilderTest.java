@@ -44,10 +44,12 @@ import org.jetbrains.jps.util.JpsPathUtil;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -58,12 +60,44 @@ import java.util.zip.ZipOutputStream;
 public class AndroidBuilderTest extends JpsBuildTestCase {
 
   private static final String TEST_DATA_PATH = "/jps-plugin/testData/";
+  private static final String CRUNCH_CACHE_DIR_PROPERTY = "android.crunch.cache.dir";
+  private static final String PRE_DEX_CACHE_DIR_PROPERTY = "android.predex.cache.dir";
+  private static final String PRE_DEX_CACHE_DISABLED_PROPERTY = "android.predex.cache.disabled";
+  private static final String PRE_DEX_THREADS_PROPERTY = "android.predex.threads";
+  private static final String DX_WARNING = "warning: Ignoring InnerClasses attribute for an anonymous inner class";
+
+  private File myCrunchCacheDir;
+  private File myPreDexCacheDir;
 
   @Override
   public void setUp() throws Exception {
     super.setUp();
     JpsJavaExtensionService.getInstance().getOrCreateCompilerConfiguration(myProject).addResourcePattern("*.txt");
     myBuildParams.put(BuildParametersKeys.FORCE_MODEL_LOADING, Boolean.TRUE.toString());
+
+    // builds of other tests or of the machine must not hit or fill the cache
+    myCrunchCacheDir = FileUtil.createTempDirectory("android_crunch_cache", "tmp");
+    System.setProperty(CRUNCH_CACHE_DIR_PROPERTY, myCrunchCacheDir.getPath());
+    myPreDexCacheDir = FileUtil.createTempDirectory("android_pre_dex_cache", "tmp");
+    System.setProperty(PRE_DEX_CACHE_DIR_PROPERTY, myPreDexCacheDir.getPath());
+    // whether the jars packaged again by a rebuild are identical, and so found in the cache, depends on the time stamps of the
+    // classes; the logs of the other tests expect dx to be run for them, so only testPreDexingCache enables the cache
+    System.setProperty(PRE_DEX_CACHE_DISABLED_PROPERTY, Boolean.TRUE.toString());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    try {
+      System.clearProperty(CRUNCH_CACHE_DIR_PROPERTY);
+      FileUtil.delete(myCrunchCacheDir);
+      System.clearProperty(PRE_DEX_CACHE_DIR_PROPERTY);
+      System.clearProperty(PRE_DEX_CACHE_DISABLED_PROPERTY);
+      System.clearProperty(PRE_DEX_THREADS_PROPERTY);
+      FileUtil.delete(myPreDexCacheDir);
+    }
+    finally {
+      super.tearDown();
+    }
   }
 
   public void test1() throws Exception {
@@ -728,6 +762,103 @@ public class AndroidBuilderTest extends JpsBuildTestCase {
     checkBuildLog(executor, "expected_log_1");
   }
 
+  public void testIncrementalCrunching() throws Exception {
+    // aapt may run in several threads
+    final List<String> crunched = Collections.synchronizedList(new ArrayList<String>());
+    final MyExecutor executor = new MyExecutor("com.example.simple") {
+      @NotNull
+      @Override
+      protected Process doCreateProcess(@NotNull String[] args, @NotNull Map<? extends String, ? extends String> environment)
+        throws Exception {
+        if (args[0].endsWith(SdkConstants.FN_AAPT) && "crunch".equals(args[1])) {
+          final File inputDir = new File(args[3]);
+          final File outputDir = new File(args[5]);
+
+          for (File file : FileUtil.findFilesByMask(Pattern.compile(".*\\.png"), inputDir)) {
+            final String relativePath = FileUtil.toSystemIndependentName(FileUtil.getRelativePath(inputDir, file));
+            crunched.add(relativePath);
+
+            if ("broken".equals(FileUtil.loadFile(file))) {
+              // aapt reports the path of the image it was given
+              return new MyProcess(1, "", file.getPath() + ": libpng error: Not a PNG file");
+            }
+            createTextFile(new File(outputDir, relativePath).getPath(), "crunched_" + FileUtil.loadFile(file));
+          }
+          return new MyProcess(0, "", "");
+        }
+        return super.doCreateProcess(args, environment);
+      }
+    };
+    final JpsModule module = setUpSimpleAndroidStructure(ArrayUtil.EMPTY_STRING_ARRAY, executor, null).getFirst();
+    final JpsAndroidModuleProperties props = ((JpsAndroidModuleExtensionImpl)AndroidJpsUtil.getExtension(module)).getProperties();
+    props.RES_OVERLAY_FOLDERS = Arrays.asList("/res-overlay");
+    final File resCacheDir = new File(myDataStorageRoot, "android/res_cache/module/drawable");
+
+    // the image of the overlay shadows the one of the resource directory
+    rebuildAll();
+    assertSameElements(crunched, "drawable/a.png", "drawable/b.png");
+    assertEquals("crunched_a", FileUtil.loadFile(new File(resCacheDir, "a.png")));
+    assertEquals("crunched_b_overlay", FileUtil.loadFile(new File(resCacheDir, "b.png")));
+    checkMakeUpToDate(executor);
+
+    crunched.clear();
+    change(getProjectPath("res/drawable/a.png"), "a_changed");
+    makeAll().assertSuccessful();
+    assertSameElements(crunched, "drawable/a.png");
+    assertEquals("crunched_a_changed", FileUtil.loadFile(new File(resCacheDir, "a.png")));
+    checkMakeUpToDate(executor);
+
+    crunched.clear();
+    createTextFile(getProjectPath("res/drawable/c.png"), "c");
+    makeAll().assertSuccessful();
+    assertSameElements(crunched, "drawable/c.png");
+    assertEquals("crunched_c", FileUtil.loadFile(new File(resCacheDir, "c.png")));
+    checkMakeUpToDate(executor);
+
+    // images are deleted from the cache directory without running aapt
+    crunched.clear();
+    delete(getProjectPath("res/drawable/c.png"));
+    makeAll().assertSuccessful();
+    assertEmpty(crunched);
+    assertFalse(new File(resCacheDir, "c.png").exists());
+    checkMakeUpToDate(executor);
+
+    // the image which was shadowed is crunched once the overlay one is deleted
+    crunched.clear();
+    delete(getProjectPath("res-overlay/drawable/b.png"));
+    makeAll().assertSuccessful();
+    assertSameElements(crunched, "drawable/b.png");
+    assertEquals("crunched_b", FileUtil.loadFile(new File(resCacheDir, "b.png")));
+    checkMakeUpToDate(executor);
+
+    // images crunched before are taken from the crunch cache, also after a rebuild
+    crunched.clear();
+    change(getProjectPath("res/drawable/a.png"), "a");
+    createTextFile(getProjectPath("res/drawable/c.png"), "c");
+    makeAll().assertSuccessful();
+    assertEmpty(crunched);
+    assertEquals("crunched_a", FileUtil.loadFile(new File(resCacheDir, "a.png")));
+    assertEquals("crunched_c", FileUtil.loadFile(new File(resCacheDir, "c.png")));
+
+    rebuildAll();
+    assertEmpty(crunched);
+    assertEquals("crunched_b", FileUtil.loadFile(new File(resCacheDir, "b.png")));
+    // a, b_overlay, a_changed, c and b
+    assertEquals(5, myCrunchCacheDir.listFiles().length);
+
+    // aapt is run on copies of the images in a temporary directory, but its messages point to the images of the project
+    createTextFile(getProjectPath("res/drawable/d.png"), "broken");
+    final BuildResult result = makeAll();
+    result.assertFailed();
+    final List<String> errors = new ArrayList<String>();
+
+    for (BuildMessage message : result.getMessages(BuildMessage.Kind.ERROR)) {
+      errors.add(message.getMessageText());
+    }
+    final String brokenPath = new File(getProjectPath("res/drawable/d.png")).getPath();
+    assertEquals(Collections.singletonList("[module] " + brokenPath + ": libpng error: Not a PNG file"), errors);
+  }
+
   public void testChangeDexSettings() throws Exception {
     final MyExecutor executor = new MyExecutor("com.example.simple");
     setUpSimpleAndroidStructure(new String[]{"src"}, executor, null).getFirst();
@@ -1164,6 +1295,8 @@ public class AndroidBuilderTest extends JpsBuildTestCase {
   }
 
   public void testPreDexing() throws Exception {
+    // the jars are dexed in parallel even on machines with few cores; the expected logs don't order the pre-dexing entries
+    System.setProperty(PRE_DEX_THREADS_PROPERTY, "4");
     final MyExecutor executor = new MyExecutor("com.example.simple");
 
     final JpsSdk<JpsSimpleElement<JpsAndroidSdkProperties>> androidSdk = addJdkAndAndroidSdk();
@@ -1236,6 +1369,87 @@ public class AndroidBuilderTest extends JpsBuildTestCase {
     checkBuildLog(executor, "expected_log_4");
   }
 
+  public void testPreDexingCache() throws Exception {
+    System.clearProperty(PRE_DEX_CACHE_DISABLED_PROPERTY);
+    // the second copy of the jar is only found in the cache if the first one has been dexed before
+    System.setProperty(PRE_DEX_THREADS_PROPERTY, "1");
+    final List<String> preDexed = new ArrayList<String>();
+    final MyExecutor executor = new MyExecutor("com.example.simple") {
+      @NotNull
+      @Override
+      protected Process doCreateProcess(@NotNull String[] args, @NotNull Map<? extends String, ? extends String> environment)
+        throws Exception {
+        final int idx = ArrayUtilRt.find(args, "org.jetbrains.android.compiler.tools.AndroidDxRunner");
+
+        if (idx >= 0 && args[idx + 2].contains("pre_dexed_libs")) {
+          final String outputPath = args[idx + 2];
+          createTextFile(outputPath, "pre_dexed_content");
+          preDexed.add(new File(outputPath).getName());
+          return new MyProcess(0, "", DX_WARNING);
+        }
+        return super.doCreateProcess(args, environment);
+      }
+    };
+    final JpsSdk<JpsSimpleElement<JpsAndroidSdkProperties>> androidSdk = addJdkAndAndroidSdk();
+    addPathPatterns(executor, androidSdk);
+    final JpsModule appModule = addAndroidModule("app", new String[]{"src"}, "app", "app", androidSdk, "preDexing").getFirst();
+
+    // two copies of the same jar, which is dexed once
+    final File jar = new File(getProjectPath("app/libs/external_jar.jar"));
+    final File jarCopy = new File(getProjectPath("external/external_jar_copy.jar"));
+    FileUtil.copy(jar, jarCopy);
+
+    final JpsLibrary lib = appModule.addModuleLibrary("ext_lib", JpsJavaLibraryType.INSTANCE);
+    lib.addRoot(jar, JpsOrderRootType.COMPILED);
+    appModule.getDependenciesList().addLibraryDependency(lib);
+
+    final JpsLibrary libCopy = appModule.addModuleLibrary("ext_lib_copy", JpsJavaLibraryType.INSTANCE);
+    libCopy.addRoot(jarCopy, JpsOrderRootType.COMPILED);
+    appModule.getDependenciesList().addLibraryDependency(libCopy);
+
+    BuildResult result = makeAll();
+    result.assertSuccessful();
+    assertEquals(1, preDexed.size());
+    // the warning of dx is reported for both jars
+    assertEquals(2, countDxWarnings(result));
+    // the pre-dexed jar and the warnings of dx
+    assertEquals(2, myPreDexCacheDir.listFiles().length);
+    checkMakeUpToDate(executor);
+
+    // both jars are taken from the cache by a rebuild, with their warnings
+    preDexed.clear();
+    result = doBuild(CompileScopeTestBuilder.rebuild().all());
+    result.assertSuccessful();
+    assertEmpty(preDexed);
+    assertEquals(2, countDxWarnings(result));
+    final File preDexedDir = new File(myDataStorageRoot, "android/intermediate_artifacts/pre_dexed_libs");
+    assertEquals("pre_dexed_content", FileUtil.loadFile(new File(preDexedDir, "external_jar.jar")));
+    assertEquals("pre_dexed_content", FileUtil.loadFile(new File(preDexedDir, "external_jar_copy.jar")));
+    checkMakeUpToDate(executor);
+
+    // other dx options make other entries
+    preDexed.clear();
+    final JpsAndroidExtensionService service = JpsAndroidExtensionService.getInstance();
+    final JpsAndroidDexCompilerConfiguration c = service.getDexCompilerConfiguration(myProject);
+    assertNotNull(c);
+    service.setDexCompilerConfiguration(myProject, c);
+    c.setOptimize(false);
+    rebuildAll();
+    assertEquals(1, preDexed.size());
+    assertEquals(4, myPreDexCacheDir.listFiles().length);
+  }
+
+  private static int countDxWarnings(@NotNull BuildResult result) {
+    int count = 0;
+
+    for (BuildMessage message : result.getMessages(BuildMessage.Kind.WARNING)) {
+      if (message.getMessageText().endsWith(DX_WARNING)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   private void checkMakeUpToDate(MyExecutor executor) {
     executor.clear();
     makeAll().assertUpToDate();
@@ -1278,6 +1492,7 @@ public class AndroidBuilderTest extends JpsBuildTestCase {
                                                               "/android_combined_assets\\d*tmp");
     executor.addRegexPathPatternPrefix("COMBINED_RESOURCES_TMP", FileUtil.toSystemIndependentName(tempDirectory) +
                                                               "/android_combined_resources\\d*tmp");
+    executor.addRegexPathPatternPrefix("CRUNCH_TMP", FileUtil.toSystemIndependentName(tempDirectory) + "/android_crunch\\d*tmp");
     executor.addRegexPathPatternPrefix("CLASSPATH_TMP", FileUtil.toSystemIndependentName(tempDirectory) + "/classpath\\d*\\.tmp");
     executor.addRegexPathPattern("JAVA_PATH", ".*/java");
     executor.addRegexPathPattern("IDEA_RT_PATH", ".*/idea_rt.jar");
@@ -0,0 +1,166 @@
+package org.jetbrains.jps.android;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.android.util.AndroidCompilerMessageKind;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.api.CanceledStatus;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Runs {@link AndroidDxDaemon} against {@link FakeDaemon}, which speaks the protocol of the daemon mode of
+ * {@link org.jetbrains.android.compiler.tools.AndroidDxRunner} without running dx.
+ */
+public class AndroidDxDaemonTest extends TestCase {
+  private static final long TIMEOUT = 30000;
+
+  private File myDir;
+  private File myOutput;
+  private List<String> myCommandLine;
+  private Map<AndroidCompilerMessageKind, List<String>> myMessages;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("android", "dxDaemon");
+    myOutput = new File(myDir, "classes.dex");
+    final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    // The name of the test keeps the idle daemons of the tests apart
+    myCommandLine = Arrays.asList(java, "-classpath", System.getProperty("java.class.path"), FakeDaemon.class.getName(), getName());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      AndroidDxDaemon.shutdown();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  private boolean runDex(@NotNull String behavior, @NotNull CanceledStatus cancelStatus, long timeout) {
+    myMessages = new HashMap<AndroidCompilerMessageKind, List<String>>();
+    for (AndroidCompilerMessageKind kind : AndroidCompilerMessageKind.values()) {
+      myMessages.put(kind, new ArrayList<String>());
+    }
+    return AndroidDxDaemon.runDex(myCommandLine, Arrays.asList(behavior, myOutput.getPath()), myOutput.getPath(), myMessages,
+                                  cancelStatus, timeout);
+  }
+
+  private boolean runDex(@NotNull String behavior) {
+    return runDex(behavior, CanceledStatus.NULL, TIMEOUT);
+  }
+
+  public void testRun() throws Exception {
+    assertTrue(runDex(FakeDaemon.OK));
+    assertTrue(myOutput.isFile());
+    assertEquals(Collections.singletonList("run 1"), myMessages.get(AndroidCompilerMessageKind.INFORMATION));
+    assertEquals(Collections.singletonList(FakeDaemon.WARNING), myMessages.get(AndroidCompilerMessageKind.WARNING));
+    assertEmpty(myMessages.get(AndroidCompilerMessageKind.ERROR));
+
+    // The daemon is reused
+    assertTrue(runDex(FakeDaemon.OK));
+    assertEquals(Collections.singletonList("run 2"), myMessages.get(AndroidCompilerMessageKind.INFORMATION));
+  }
+
+  public void testHeapFull() throws Exception {
+    assertTrue(runDex(FakeDaemon.HEAP_FULL));
+    assertTrue(runDex(FakeDaemon.OK));
+    assertEquals(Collections.singletonList("run 1"), myMessages.get(AndroidCompilerMessageKind.INFORMATION));
+  }
+
+  public void testDaemonDies() throws Exception {
+    assertTrue(runDex(FakeDaemon.OK));
+    assertFalse(runDex(FakeDaemon.EXIT));
+    // The caller runs dx in a new process, and reports its messages instead
+    assertFalse(myOutput.exists());
+    assertEmpty(myMessages.get(AndroidCompilerMessageKind.WARNING));
+
+    // A new daemon is started for the next run
+    assertTrue(runDex(FakeDaemon.OK));
+    assertEquals(Collections.singletonList("run 1"), myMessages.get(AndroidCompilerMessageKind.INFORMATION));
+  }
+
+  public void testTimeout() throws Exception {
+    final long start = System.currentTimeMillis();
+    assertFalse(runDex(FakeDaemon.HANG, CanceledStatus.NULL, 500));
+    assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+    assertFalse(myOutput.exists());
+
+    assertTrue(runDex(FakeDaemon.OK));
+    assertEquals(Collections.singletonList("run 1"), myMessages.get(AndroidCompilerMessageKind.INFORMATION));
+  }
+
+  public void testCanceled() throws Exception {
+    final long start = System.currentTimeMillis();
+    final CanceledStatus canceled = new CanceledStatus() {
+      @Override
+      public boolean isCanceled() {
+        return System.currentTimeMillis() - start > 200;
+      }
+    };
+    assertFalse(runDex(FakeDaemon.HANG, canceled, TIMEOUT));
+    assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+    assertFalse(myOutput.exists());
+  }
+
+  private static void assertEmpty(@NotNull Collection<?> collection) {
+    assertTrue(collection.toString(), collection.isEmpty());
+  }
+
+  /**
+   * Replies to each run like the daemon mode of the dx runner. The first argument of a run tells how: {@link #OK}, {@link #HEAP_FULL},
+   * {@link #EXIT} without replying, or {@link #HANG}. The second argument is the output file.
+   */
+  public static class FakeDaemon {
+    static final String OK = "ok";
+    static final String HEAP_FULL = "heap_full";
+    static final String EXIT = "exit";
+    static final String HANG = "hang";
+    static final String WARNING = "warning: fake warning";
+
+    public static void main(String[] args) throws Exception {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+      int runs = 0;
+
+      while (true) {
+        final String[] runArgs;
+        try {
+          runArgs = new String[in.readInt()];
+        }
+        catch (EOFException e) {
+          return;
+        }
+        for (int i = 0; i < runArgs.length; i++) {
+          runArgs[i] = in.readUTF();
+        }
+        runs++;
+
+        if (EXIT.equals(runArgs[0])) {
+          System.exit(1);
+        }
+        if (HANG.equals(runArgs[0])) {
+          Thread.sleep(Long.MAX_VALUE);
+        }
+        FileUtil.writeToFile(new File(runArgs[1]), "classes_dex_content");
+        out.writeInt(0);
+        writeString(out, "run " + runs + "\n");
+        writeString(out, WARNING + "\n");
+        out.writeLong(HEAP_FULL.equals(runArgs[0]) ? 100 : 1);
+        out.writeLong(100);
+        out.flush();
+      }
+    }
+
+    private static void writeString(@NotNull DataOutputStream out, @NotNull String s) throws IOException {
+      final byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+}
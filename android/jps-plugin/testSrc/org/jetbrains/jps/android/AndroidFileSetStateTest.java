@@ -0,0 +1,209 @@
+package org.jetbrains.jps.android;
+
+import com.intellij.openapi.util.Condition;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.io.FileUtilRt;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+public class AndroidFileSetStateTest extends TestCase {
+  private static final Condition<File> PNG_FILTER = new Condition<File>() {
+    @Override
+    public boolean value(File file) {
+      return FileUtilRt.extensionEquals(file.getName(), "png");
+    }
+  };
+
+  private File myDir;
+  private String myPath;
+  private long myTimestamp = 1000000000000L;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("android", "fileSetState");
+    myPath = FileUtil.toSystemIndependentName(myDir.getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  private void createFile(@NotNull String relativePath) throws IOException {
+    final File file = new File(myDir, relativePath);
+    FileUtil.writeToFile(file, relativePath);
+    touch(relativePath);
+  }
+
+  private void touch(@NotNull String relativePath) {
+    // distinct time stamps, regardless of the resolution of the file system
+    myTimestamp += 10000;
+    assertTrue(new File(myDir, relativePath).setLastModified(myTimestamp));
+  }
+
+  private void delete(@NotNull String relativePath) {
+    assertTrue(FileUtil.delete(new File(myDir, relativePath)));
+  }
+
+  @NotNull
+  private AndroidFileSetState createState(@NotNull String... relativeRoots) {
+    final Collection<String> roots;
+
+    if (relativeRoots.length == 0) {
+      roots = Collections.singletonList(myDir.getPath());
+    }
+    else {
+      final String[] paths = new String[relativeRoots.length];
+
+      for (int i = 0; i < relativeRoots.length; i++) {
+        paths[i] = new File(myDir, relativeRoots[i]).getPath();
+      }
+      roots = Arrays.asList(paths);
+    }
+    return new AndroidFileSetState(roots, PNG_FILTER, true);
+  }
+
+  @NotNull
+  private static AndroidFileSetState roundTrip(@NotNull AndroidFileSetState state) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    state.save(out);
+    out.close();
+    return new AndroidFileSetState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  @NotNull
+  private List<String> paths(@NotNull String... relativePaths) {
+    final String[] paths = new String[relativePaths.length];
+
+    for (int i = 0; i < relativePaths.length; i++) {
+      paths[i] = myPath + '/' + relativePaths[i];
+    }
+    return Arrays.asList(paths);
+  }
+
+  /** Checks the changes since the given state, both with the state itself and as it is read from disk */
+  private void assertChanged(@NotNull AndroidFileSetState oldState, @NotNull String... expected) throws IOException {
+    final AndroidFileSetState newState = createState();
+    assertEquals(paths(expected), newState.getChangedFiles(oldState));
+    assertEquals(paths(expected), newState.getChangedFiles(roundTrip(oldState)));
+    assertEquals(expected.length == 0, newState.equalsTo(oldState));
+  }
+
+  private void createTree() throws IOException {
+    createFile("drawable/a.png");
+    createFile("drawable/b.png");
+    createFile("drawable-hdpi/a.png");
+    createFile("drawable-hdpi/nested/c.png");
+    createFile("layout/main.xml");
+    createFile("x.png");
+  }
+
+  public void testRoundTrip() throws Exception {
+    createTree();
+    final AndroidFileSetState state = createState();
+    // in the order of the paths, without the filtered out files
+    assertEquals(paths("drawable-hdpi/a.png", "drawable-hdpi/nested/c.png", "drawable/a.png", "drawable/b.png", "x.png"),
+                 state.getChangedFiles(null));
+
+    final AndroidFileSetState read = roundTrip(state);
+    assertTrue(state.equalsTo(read));
+    assertTrue(read.equalsTo(state));
+    assertEquals(state.getChangedFiles(null), read.getChangedFiles(null));
+    assertTrue(state.getChangedFiles(read).isEmpty());
+    assertTrue(read.getChangedFiles(state).isEmpty());
+    assertChanged(state);
+  }
+
+  public void testAdd() throws Exception {
+    createTree();
+    final AndroidFileSetState state = createState();
+    createFile("drawable/c.png");
+    createFile("drawable-xhdpi/a.png");
+    createFile("layout/other.xml");
+    assertChanged(state, "drawable-xhdpi/a.png", "drawable/c.png");
+  }
+
+  public void testModify() throws Exception {
+    createTree();
+    final AndroidFileSetState state = createState();
+    touch("drawable-hdpi/nested/c.png");
+    touch("x.png");
+    touch("layout/main.xml");
+    assertChanged(state, "drawable-hdpi/nested/c.png", "x.png");
+  }
+
+  public void testDelete() throws Exception {
+    createTree();
+    final AndroidFileSetState state = createState();
+    delete("drawable/b.png");
+    delete("drawable-hdpi");
+    assertChanged(state, "drawable-hdpi/a.png", "drawable-hdpi/nested/c.png", "drawable/b.png");
+  }
+
+  public void testSiblingPrefixes() throws Exception {
+    // a/b-c sorts before a/b/, and a/b.png between them
+    createFile("a/b/x.png");
+    createFile("a/b-c/x.png");
+    createFile("a/b.png");
+    AndroidFileSetState state = createState();
+    assertEquals(paths("a/b-c/x.png", "a/b.png", "a/b/x.png"), state.getChangedFiles(null));
+
+    touch("a/b-c/x.png");
+    assertChanged(state, "a/b-c/x.png");
+
+    state = createState();
+    touch("a/b/x.png");
+    createFile("a/b/y.png");
+    assertChanged(state, "a/b/x.png", "a/b/y.png");
+
+    state = createState();
+    delete("a/b");
+    createFile("a/b-c/y.png");
+    assertChanged(state, "a/b-c/y.png", "a/b/x.png", "a/b/y.png");
+  }
+
+  public void testRoots() throws Exception {
+    createTree();
+    createFile("res-overlay/drawable/a.png");
+    createFile("res/drawable/a.png");
+
+    // a root inside another one doesn't add its files twice, and roots with common prefixes keep the files in order
+    final AndroidFileSetState state = createState("res", "res-overlay", "res/drawable", "missing");
+    assertEquals(paths("res-overlay/drawable/a.png", "res/drawable/a.png"), state.getChangedFiles(null));
+    assertTrue(state.equalsTo(roundTrip(state)));
+
+    touch("res/drawable/a.png");
+    assertEquals(paths("res/drawable/a.png"), createState("res", "res-overlay", "res/drawable", "missing").getChangedFiles(state));
+  }
+
+  public void testNonRecursive() throws Exception {
+    createTree();
+    final List<String> files = Arrays.asList(new File(myDir, "x.png").getPath(), new File(myDir, "drawable/a.png").getPath(),
+                                             new File(myDir, "layout/main.xml").getPath());
+    final AndroidFileSetState state = new AndroidFileSetState(files, PNG_FILTER, false);
+    assertEquals(paths("drawable/a.png", "x.png"), state.getChangedFiles(null));
+
+    touch("x.png");
+    final AndroidFileSetState newState = new AndroidFileSetState(files, PNG_FILTER, false);
+    assertFalse(newState.equalsTo(state));
+    assertEquals(paths("x.png"), newState.getChangedFiles(roundTrip(state)));
+  }
+
+  public void testCorruptedData() throws Exception {
+    try {
+      new AndroidFileSetState(new DataInputStream(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5})));
+      fail();
+    }
+    catch (IOException ignored) {
+    }
+  }
+}
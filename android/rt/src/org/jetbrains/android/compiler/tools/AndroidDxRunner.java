@@ -19,8 +19,11 @@ import com.intellij.openapi.util.io.FileUtilRt;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -44,6 +47,25 @@ public class AndroidDxRunner {
 
   @NonNls private final static String MAIN_RUN = "run";
 
+  /**
+   * Makes the runner serve requests from its standard input until it is closed, instead of running dx once. Each request is
+   * the argument count followed by the arguments, as written by {@link DataOutputStream#writeInt} and
+   * {@link DataOutputStream#writeUTF}. Each response is the exit code, the standard output and the standard error of the run,
+   * each as a length followed by UTF-8 bytes, and the live and maximum heap size after the run.
+   */
+  @NonNls public final static String DAEMON_OPTION = "--daemon";
+
+  /**
+   * Version of the way dx is run, which is part of the key of the pre-dexed jars shared between builds. It must be increased
+   * whenever a change to the runner changes the output for the same dx and arguments.
+   */
+  public final static int VERSION = 1;
+
+  /** dx.jar the classes below have been loaded from, its time stamp, and the loader of the classes */
+  private static String myLoadedDxPath;
+  private static long myLoadedDxTimeStamp;
+  private static URLClassLoader myLoader;
+
   private static Method myMethod;
 
   private static Constructor<?> myConstructor;
@@ -68,10 +90,33 @@ public class AndroidDxRunner {
         System.err.println("File not found: " + dxPath);
         return;
       }
+      if (dxPath.equals(myLoadedDxPath) && f.lastModified() == myLoadedDxTimeStamp && myMethod != null) {
+        // A daemon keeps the classes loaded, such that they stay compiled by the JIT
+        return;
+      }
       URL url = f.toURI().toURL();
 
       URLClassLoader loader = new URLClassLoader(new URL[]{url}, AndroidDxRunner.class.getClassLoader());
+      if (!initDex(loader)) {
+        close(loader);
+        return;
+      }
+      // A daemon may be asked to run another dx.jar, e.g. after the build tools were updated; the old one must not stay open
+      if (myLoader != null) {
+        close(myLoader);
+      }
+      myLoader = loader;
+      myLoadedDxPath = dxPath;
+      myLoadedDxTimeStamp = f.lastModified();
+    }
+    catch (MalformedURLException e) {
+      reportError("Failed to load dx.jar", e);
+    }
+  }
 
+  /** Looks up the classes and members of dx used by the runner, and returns whether they were found */
+  private static boolean initDex(URLClassLoader loader) {
+    try {
       Class<?> mainClass = loader.loadClass(DEX_MAIN);
       Class<?> consoleClass = loader.loadClass(DEX_CONSOLE);
       Class<?> argClass = loader.loadClass(DEX_ARGS);
@@ -91,6 +136,7 @@ public class AndroidDxRunner {
 
       myConsoleOut = consoleClass.getField("out");
       myConsoleErr = consoleClass.getField("err");
+      return true;
     }
     catch (SecurityException e) {
       reportError("Unable to find API for dex.jar", e);
@@ -101,12 +147,22 @@ public class AndroidDxRunner {
     catch (NoSuchFieldException e) {
       reportError("Unable to find field for dex.jar", e);
     }
-    catch (MalformedURLException e) {
-      reportError("Failed to load dx.jar", e);
-    }
     catch (ClassNotFoundException e) {
       reportError("Failed to load dx.jar", e);
     }
+    myMethod = null;
+    return false;
+  }
+
+  /** Closes the jar of the given loader, on JDKs whose loaders can be closed (Java 7 and later) */
+  private static void close(URLClassLoader loader) {
+    if (loader instanceof Closeable) {
+      try {
+        ((Closeable)loader).close();
+      }
+      catch (IOException ignored) {
+      }
+    }
   }
 
   @Nullable
@@ -230,6 +286,86 @@ public class AndroidDxRunner {
   }
 
   public static void main(String[] args) {
+    if (args.length == 1 && DAEMON_OPTION.equals(args[0])) {
+      try {
+        runDaemon();
+      }
+      catch (IOException e) {
+        reportError("I/O error", e);
+      }
+      return;
+    }
+    run(args);
+  }
+
+  private static void runDaemon() throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    final PrintStream originalOut = System.out;
+    final PrintStream originalErr = System.err;
+
+    while (true) {
+      final String[] args;
+      try {
+        args = new String[in.readInt()];
+      }
+      catch (EOFException e) {
+        // closed by the build process
+        return;
+      }
+      for (int i = 0; i < args.length; i++) {
+        args[i] = in.readUTF();
+      }
+      final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(stdout, true, "UTF-8"));
+      System.setErr(new PrintStream(stderr, true, "UTF-8"));
+      int exitCode;
+      try {
+        exitCode = run(args);
+      }
+      catch (Throwable t) {
+        reportError("Unable to execute DX", t);
+        exitCode = -1;
+      }
+      finally {
+        System.out.flush();
+        System.err.flush();
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+      }
+      out.writeInt(exitCode);
+      writeBytes(out, stdout);
+      writeBytes(out, stderr);
+      out.writeLong(getLiveHeapSize());
+      out.writeLong(Runtime.getRuntime().maxMemory());
+      out.flush();
+    }
+  }
+
+  /** Returns the size of the heap after the last garbage collection, which unlike the current size doesn't include garbage */
+  private static long getLiveHeapSize() {
+    long size = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      MemoryUsage usage = pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                          ? pool.getCollectionUsage() : null;
+      if (usage != null) {
+        size += usage.getUsed();
+      }
+    }
+    if (size == 0) {
+      Runtime runtime = Runtime.getRuntime();
+      size = runtime.totalMemory() - runtime.freeMemory();
+    }
+    return size;
+  }
+
+  private static void writeBytes(DataOutputStream out, ByteArrayOutputStream bytes) throws IOException {
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+  }
+
+  private static int run(String[] args) {
     if (args.length == 0) {
       System.err.println("Error: dx path must be passed as first argument");
     }
@@ -291,7 +427,7 @@ public class AndroidDxRunner {
     files.removeAll(Arrays.asList(excludedFiles));
     String[] filesArray = files.toArray(new String[files.size()]);
     //System.out.println("file names: " + concat(filesArray));
-    runDex(dxPath, outFilePath, filesArray, optimize, forceJumbo, coreLibrary);
+    return runDex(dxPath, outFilePath, filesArray, optimize, forceJumbo, coreLibrary);
   }
 
   private static String concat(String[] ar) {
@@ -33,7 +33,6 @@ import com.android.tools.idea.rendering.ResourceHelper;
 import com.android.tools.idea.rendering.multi.CompatibilityRenderTarget;
 import com.android.utils.SparseArray;
 import com.google.common.collect.Maps;
-import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.module.Module;
@@ -94,9 +93,26 @@ public class ResourceResolverCache {
   }
 
   @NotNull
-  public ResourceResolver getResourceResolver(@Nullable IAndroidTarget target,
-                                              @NotNull String themeStyle,
+  public ResourceResolver getResourceResolver(@Nullable final IAndroidTarget target,
+                                              @NotNull final String themeStyle,
                                               @NotNull final FolderConfiguration fullConfiguration) {
+    // Renders may run concurrently (see RenderScheduler). Always take the read lock before our own lock, since we may
+    // need the read lock to compute the configured app resources, and otherwise a thread holding our lock could
+    // wait for the read lock while a pending write action waits for us.
+    return ApplicationManager.getApplication().runReadAction(new Computable<ResourceResolver>() {
+      @Override
+      public ResourceResolver compute() {
+        synchronized (ResourceResolverCache.this) {
+          return computeResourceResolver(target, themeStyle, fullConfiguration);
+        }
+      }
+    });
+  }
+
+  @NotNull
+  private ResourceResolver computeResourceResolver(@Nullable IAndroidTarget target,
+                                                   @NotNull String themeStyle,
+                                                   @NotNull final FolderConfiguration fullConfiguration) {
     // Are caches up to date?
     final LocalResourceRepository resources = AppResourceRepository.getAppResources(myManager.getModule(), true);
     assert resources != null;
@@ -155,13 +171,7 @@ public class ResourceResolverCache {
       configuredAppRes = myAppResourceMap.get(configurationKey);
       if (configuredAppRes == null) {
         // get the project resource values based on the current config
-        Application application = ApplicationManager.getApplication();
-        configuredAppRes = application.runReadAction(new Computable<Map<ResourceType, Map<String, ResourceValue>>>() {
-          @Override
-          public Map<ResourceType, Map<String, ResourceValue>> compute() {
-            return resources.getConfiguredResources(fullConfiguration);
-          }
-        });
+        configuredAppRes = resources.getConfiguredResources(fullConfiguration);
         myAppResourceMap.put(configurationKey, configuredAppRes);
       }
 
@@ -196,7 +206,7 @@ public class ResourceResolverCache {
    * @return the framework resources or null if not found.
    */
   @Nullable
-  public ResourceRepository getFrameworkResources(@NotNull FolderConfiguration configuration, @NotNull IAndroidTarget target) {
+  public synchronized ResourceRepository getFrameworkResources(@NotNull FolderConfiguration configuration, @NotNull IAndroidTarget target) {
     int apiLevel = target.getVersion().getFeatureLevel();
     FrameworkResources resources = myFrameworkResources.get(apiLevel);
 
@@ -340,7 +350,7 @@ public class ResourceResolverCache {
     }
   }
 
-  public void reset() {
+  public synchronized void reset() {
     myCachedGeneration = 0;
     myAppResourceMap.clear();
     myResolverMap.clear();
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace;
+
+import com.android.tools.idea.editors.gfxtrace.rpc.*;
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Handle;
+import com.android.tools.rpclib.rpccore.RpcException;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A {@link ListenableClient} which resolves binaries, image infos, hierarchies and schemas through the {@link ResolveCache}, such
+ * that these are only requested from the server the first time they are needed, and passes all the other calls on
+ * to the server.
+ * <p/>
+ * Objects which are held in memory are returned immediately; objects which have to be read from disk are read on
+ * the given executor. Concurrent requests for the same object share a single read or request to the server, which is
+ * only cancelled once all of them are.
+ */
+public class CachingClient implements ListenableClient {
+  private static final ResolveCache.ObjectDecoder<Binary> BINARY_DECODER = new ResolveCache.ObjectDecoder<Binary>() {
+    @NotNull
+    @Override
+    public Binary decode(@NotNull Decoder d) throws IOException {
+      return new Binary(d);
+    }
+  };
+  private static final ResolveCache.ObjectDecoder<ImageInfo> IMAGE_INFO_DECODER = new ResolveCache.ObjectDecoder<ImageInfo>() {
+    @NotNull
+    @Override
+    public ImageInfo decode(@NotNull Decoder d) throws IOException {
+      return new ImageInfo(d);
+    }
+  };
+  private static final ResolveCache.ObjectDecoder<Hierarchy> HIERARCHY_DECODER = new ResolveCache.ObjectDecoder<Hierarchy>() {
+    @NotNull
+    @Override
+    public Hierarchy decode(@NotNull Decoder d) throws IOException {
+      return new Hierarchy(d);
+    }
+  };
+  private static final ResolveCache.ObjectDecoder<Schema> SCHEMA_DECODER = new ResolveCache.ObjectDecoder<Schema>() {
+    @NotNull
+    @Override
+    public Schema decode(@NotNull Decoder d) throws IOException {
+      return new Schema(d);
+    }
+  };
+
+  private interface Fetcher<T> {
+    @NotNull
+    ListenableFuture<T> fetch() throws IOException, RpcException;
+  }
+
+  @NotNull private final ListenableClient myClient;
+  @NotNull private final ListeningExecutorService myExecutorService;
+  @NotNull private final ResolveCache myCache;
+  /** The objects being read or resolved, by their cache keys */
+  private final Map<String, Request<?>> myRequests = new HashMap<String, Request<?>>();
+
+  public CachingClient(@NotNull ListenableClient client, @NotNull ListeningExecutorService executorService) {
+    this(client, executorService, ResolveCache.getInstance());
+  }
+
+  CachingClient(@NotNull ListenableClient client, @NotNull ListeningExecutorService executorService, @NotNull ResolveCache cache) {
+    myClient = client;
+    myExecutorService = executorService;
+    myCache = cache;
+  }
+
+  @NotNull
+  public ResolveCache getCache() {
+    return myCache;
+  }
+
+  @Override
+  public ListenableFuture<CaptureId[]> GetCaptures() throws IOException, RpcException {
+    return myClient.GetCaptures();
+  }
+
+  @Override
+  public ListenableFuture<DeviceId[]> GetDevices() throws IOException, RpcException {
+    return myClient.GetDevices();
+  }
+
+  @Override
+  public ListenableFuture<BinaryId> GetState(CaptureId capture, int contextId, long after) throws IOException, RpcException {
+    return myClient.GetState(capture, contextId, after);
+  }
+
+  @Override
+  public ListenableFuture<HierarchyId> GetHierarchy(CaptureId capture, int contextId) throws IOException, RpcException {
+    return myClient.GetHierarchy(capture, contextId);
+  }
+
+  @Override
+  public ListenableFuture<MemoryInfoId> GetMemoryInfo(CaptureId capture, int contextId, long after, MemoryRange rng)
+    throws IOException, RpcException {
+    return myClient.GetMemoryInfo(capture, contextId, after, rng);
+  }
+
+  @Override
+  public ListenableFuture<ImageInfoId> GetFramebufferColor(DeviceId device,
+                                                           CaptureId capture,
+                                                           int contextId,
+                                                           long after,
+                                                           RenderSettings settings) throws IOException, RpcException {
+    return myClient.GetFramebufferColor(device, capture, contextId, after, settings);
+  }
+
+  @Override
+  public ListenableFuture<ImageInfoId> GetFramebufferDepth(DeviceId device, CaptureId capture, int contextId, long after)
+    throws IOException, RpcException {
+    return myClient.GetFramebufferDepth(device, capture, contextId, after);
+  }
+
+  @Override
+  public ListenableFuture<CaptureId> ReplaceAtom(CaptureId capture, long atomId, short atomType, Binary data)
+    throws IOException, RpcException {
+    return myClient.ReplaceAtom(capture, atomId, atomType, data);
+  }
+
+  @Override
+  public ListenableFuture<TimingInfoId> GetTimingInfo(DeviceId device, CaptureId capture, int contextId, TimingMask mask)
+    throws IOException, RpcException {
+    return myClient.GetTimingInfo(device, capture, contextId, mask);
+  }
+
+  @Override
+  public ListenableFuture<BinaryId> PrerenderFramebuffers(DeviceId device, CaptureId capture, int width, int height, long[] atomIds)
+    throws IOException, RpcException {
+    return myClient.PrerenderFramebuffers(device, capture, width, height, atomIds);
+  }
+
+  @Override
+  public ListenableFuture<AtomStream> ResolveAtomStream(AtomStreamId id) throws IOException, RpcException {
+    return myClient.ResolveAtomStream(id);
+  }
+
+  @Override
+  public ListenableFuture<Binary> ResolveBinary(final BinaryId id) throws IOException, RpcException {
+    return resolve("binary", id, BINARY_DECODER, new Fetcher<Binary>() {
+      @NotNull
+      @Override
+      public ListenableFuture<Binary> fetch() throws IOException, RpcException {
+        return myClient.ResolveBinary(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Capture> ResolveCapture(CaptureId id) throws IOException, RpcException {
+    return myClient.ResolveCapture(id);
+  }
+
+  @Override
+  public ListenableFuture<Device> ResolveDevice(DeviceId id) throws IOException, RpcException {
+    return myClient.ResolveDevice(id);
+  }
+
+  @Override
+  public ListenableFuture<Hierarchy> ResolveHierarchy(final HierarchyId id) throws IOException, RpcException {
+    return resolve("hierarchy", id, HIERARCHY_DECODER, new Fetcher<Hierarchy>() {
+      @NotNull
+      @Override
+      public ListenableFuture<Hierarchy> fetch() throws IOException, RpcException {
+        return myClient.ResolveHierarchy(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<ImageInfo> ResolveImageInfo(final ImageInfoId id) throws IOException, RpcException {
+    return resolve("imageinfo", id, IMAGE_INFO_DECODER, new Fetcher<ImageInfo>() {
+      @NotNull
+      @Override
+      public ListenableFuture<ImageInfo> fetch() throws IOException, RpcException {
+        return myClient.ResolveImageInfo(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<MemoryInfo> ResolveMemoryInfo(MemoryInfoId id) throws IOException, RpcException {
+    return myClient.ResolveMemoryInfo(id);
+  }
+
+  @Override
+  public ListenableFuture<Schema> ResolveSchema(final SchemaId id) throws IOException, RpcException {
+    return resolve("schema", id, SCHEMA_DECODER, new Fetcher<Schema>() {
+      @NotNull
+      @Override
+      public ListenableFuture<Schema> fetch() throws IOException, RpcException {
+        return myClient.ResolveSchema(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<TimingInfo> ResolveTimingInfo(TimingInfoId id) throws IOException, RpcException {
+    return myClient.ResolveTimingInfo(id);
+  }
+
+  @NotNull
+  private <T extends BinaryObject> ListenableFuture<T> resolve(@NotNull String kind,
+                                                               @NotNull Handle id,
+                                                               @NotNull final ResolveCache.ObjectDecoder<T> decoder,
+                                                               @NotNull final Fetcher<T> fetcher) throws IOException {
+    final String key = ResolveCache.getKey(kind, id);
+    T cached = myCache.getIfPresent(key);
+    if (cached != null) {
+      return Futures.immediateFuture(cached);
+    }
+
+    Request<T> request;
+    boolean created = false;
+    synchronized (myRequests) {
+      //noinspection unchecked
+      request = (Request<T>)myRequests.get(key);
+      if (request == null) {
+        request = new Request<T>(key, load(key, decoder, fetcher));
+        myRequests.put(key, request);
+        created = true;
+      }
+      request.myCallers++;
+    }
+    if (created) {
+      request.myFuture.addListener(request, MoreExecutors.sameThreadExecutor());
+    }
+    return request.join();
+  }
+
+  @NotNull
+  private <T extends BinaryObject> ListenableFuture<T> load(@NotNull final String key,
+                                                            @NotNull final ResolveCache.ObjectDecoder<T> decoder,
+                                                            @NotNull final Fetcher<T> fetcher) {
+    ListenableFuture<T> loaded = myExecutorService.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return myCache.load(key, decoder);
+      }
+    });
+    return Futures.transform(loaded, new AsyncFunction<T, T>() {
+      @Override
+      public ListenableFuture<T> apply(T value) throws Exception {
+        if (value != null) {
+          return Futures.immediateFuture(value);
+        }
+        return Futures.transform(fetcher.fetch(), new Function<T, T>() {
+          @Override
+          public T apply(T resolved) {
+            if (resolved != null) {
+              cache(key, resolved);
+            }
+            return resolved;
+          }
+        });
+      }
+    });
+  }
+
+  private void cache(@NotNull final String key, @NotNull BinaryObject value) {
+    final byte[] data;
+    try {
+      data = myCache.put(key, value);
+    }
+    catch (IOException e) {
+      // Not cacheable, but the value itself is fine
+      return;
+    }
+    myExecutorService.execute(new Runnable() {
+      @Override
+      public void run() {
+        myCache.store(key, data);
+      }
+    });
+  }
+
+  /**
+   * A read or request to the server which is shared by all the callers asking for the same object. Runs once the shared
+   * future is done, to stop new callers from joining it.
+   */
+  private class Request<T> implements Runnable {
+    @NotNull private final String myKey;
+    @NotNull private final ListenableFuture<T> myFuture;
+    /** Number of callers whose futures are not cancelled; guarded by {@link #myRequests} */
+    private int myCallers;
+
+    Request(@NotNull String key, @NotNull ListenableFuture<T> future) {
+      myKey = key;
+      myFuture = future;
+    }
+
+    /** Returns a future of the result for one caller, which can be cancelled without affecting the other callers */
+    @NotNull
+    ListenableFuture<T> join() {
+      final SettableFuture<T> result = SettableFuture.create();
+      Futures.addCallback(myFuture, new FutureCallback<T>() {
+        @Override
+        public void onSuccess(T value) {
+          result.set(value);
+        }
+
+        @Override
+        public void onFailure(@NotNull Throwable t) {
+          if (t instanceof CancellationException) {
+            result.cancel(false);
+          }
+          else {
+            result.setException(t);
+          }
+        }
+      });
+      result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (result.isCancelled()) {
+            leave();
+          }
+        }
+      }, MoreExecutors.sameThreadExecutor());
+      return result;
+    }
+
+    private void leave() {
+      synchronized (myRequests) {
+        if (--myCallers > 0) {
+          return;
+        }
+        remove();
+      }
+      myFuture.cancel(false);
+    }
+
+    @Override
+    public void run() {
+      synchronized (myRequests) {
+        remove();
+      }
+    }
+
+    private void remove() {
+      assert Thread.holdsLock(myRequests);
+      if (myRequests.get(myKey) == this) {
+        myRequests.remove(myKey);
+      }
+    }
+  }
+}
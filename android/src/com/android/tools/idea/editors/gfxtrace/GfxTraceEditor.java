@@ -22,7 +22,6 @@ import com.android.tools.idea.editors.gfxtrace.controllers.modeldata.EnumInfoCac
 import com.android.tools.idea.editors.gfxtrace.controllers.modeldata.HierarchyNode;
 import com.android.tools.idea.editors.gfxtrace.renderers.ScrubberCellRenderer;
 import com.android.tools.idea.editors.gfxtrace.rpc.*;
-import com.android.tools.idea.editors.gfxtrace.schema.Atom;
 import com.android.tools.idea.editors.gfxtrace.schema.AtomReader;
 import com.google.common.util.concurrent.*;
 import com.intellij.codeHighlighting.BackgroundEditorHighlighter;
@@ -52,6 +51,7 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -59,12 +59,15 @@ public class GfxTraceEditor extends UserDataHolderBase implements FileEditor, Sc
   @NotNull private static final Logger LOG = Logger.getInstance(GfxTraceEditor.class);
   @NotNull private static final String SERVER_HOST = "localhost";
   private static final int SERVER_PORT = 6700;
+  /** Maximum number of calls waiting for their result from the server, see {@link PooledClient} */
+  private static final int MAX_CONCURRENT_CALLS = 8;
 
   @NotNull private final Project myProject;
   @NotNull private final GfxTraceViewPanel myView;
   @NotNull private final ListeningExecutorService myService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
   private Socket myServerSocket;
-  @NotNull private Client myClient;
+  private ExecutorService myCallService;
+  @NotNull private ListenableClient myClient;
   private Schema mySchema;
   private EnumInfoCache myEnumInfoCache;
   private AtomStream myAtomStream;
@@ -89,7 +92,11 @@ public class GfxTraceEditor extends UserDataHolderBase implements FileEditor, Sc
 
     try {
       myServerSocket = new Socket(SERVER_HOST, SERVER_PORT);
-      myClient = new ClientImpl(Executors.newCachedThreadPool(), myServerSocket.getInputStream(), myServerSocket.getOutputStream(), 1024);
+      ExecutorService executorService = Executors.newCachedThreadPool();
+      myCallService = Executors.newFixedThreadPool(MAX_CONCURRENT_CALLS);
+      Client client = new ClientImpl(executorService, myServerSocket.getInputStream(), myServerSocket.getOutputStream(), 1024);
+      PooledClient pooledClient = new PooledClient(client, MoreExecutors.listeningDecorator(myCallService));
+      myClient = new CachingClient(pooledClient, MoreExecutors.listeningDecorator(executorService));
       myIsConnectedToServer = true;
 
       myContextController = new ContextController(this, myView.getDeviceList(), myView.getCapturesList(), myView.getGfxContextList());
@@ -201,7 +208,7 @@ public class GfxTraceEditor extends UserDataHolderBase implements FileEditor, Sc
   }
 
   @NotNull
-  public Client getClient() {
+  public ListenableClient getClient() {
     return myClient;
   }
 
@@ -254,6 +261,14 @@ public class GfxTraceEditor extends UserDataHolderBase implements FileEditor, Sc
     }
 
     myService.shutdown();
+    if (myCallService != null) {
+      // The calls still queued can't be sent on the closed socket any more
+      myCallService.shutdownNow();
+    }
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(ResolveCache.getInstance().toString());
+    }
   }
 
   public void notifyDeviceChanged(@SuppressWarnings("UnusedParameters") @NotNull final Device device) {
@@ -407,13 +422,7 @@ public class GfxTraceEditor extends UserDataHolderBase implements FileEditor, Sc
         else {
           AtomNode atomNode = (AtomNode)userObject;
           atomId = atomNode.getRepresentativeAtomId();
-          try {
-            myDocumentationController.setDocumentation(myAtomReader.read(atomId).info.getDocumentationUrl());
-          }
-          catch (IOException e) {
-            LOG.error(e);
-            return;
-          }
+          myDocumentationController.setDocumentation(myAtomReader.getInfo(atomId).getDocumentationUrl());
         }
         myFrameBufferController.setImageForId(findPreviousDrawCall(atomId)); // Select draw call at or prior to atomId.
         myStateController.updateTreeModelFromAtomId(atomId);
@@ -438,28 +447,24 @@ public class GfxTraceEditor extends UserDataHolderBase implements FileEditor, Sc
    * Finds the latest atom ID at or prior to the given ID that is a valid draw call/end of frame.
    */
   private long findPreviousDrawCall(long selectedId) {
-    try {
-      Atom atom = myAtomReader.read(selectedId);
-      if (atom.info.getIsDrawCall()) {
-        return selectedId;
-      }
+    // Only the atom types are needed, which the reader has without unpacking the atoms
+    AtomInfo info = myAtomReader.getInfo(selectedId);
+    if (info.getIsDrawCall()) {
+      return selectedId;
+    }
 
-      if (selectedId - 1 > Integer.MAX_VALUE) {
-        throw new RuntimeException("Selected Atom ID exceeds largest Atom ID supported.");
-      }
+    if (selectedId - 1 > Integer.MAX_VALUE) {
+      throw new RuntimeException("Selected Atom ID exceeds largest Atom ID supported.");
+    }
 
-      for (long i = selectedId - 1; i >= 0; --i) {
-        atom = myAtomReader.read(i);
-        if (atom.info.getIsDrawCall()) {
-          return i;
-        }
-        else if (atom.info.getIsEndOfFrame()) {
-          return i + 1;
-        }
+    for (long i = selectedId - 1; i >= 0; --i) {
+      info = myAtomReader.getInfo(i);
+      if (info.getIsDrawCall()) {
+        return i;
+      }
+      else if (info.getIsEndOfFrame()) {
+        return i + 1;
       }
-    }
-    catch (IOException e) {
-      LOG.error(e);
     }
 
     return 0;
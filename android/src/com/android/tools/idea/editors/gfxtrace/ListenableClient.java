@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace;
+
+import com.android.tools.idea.editors.gfxtrace.rpc.*;
+import com.android.tools.rpclib.rpccore.RpcException;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+
+/**
+ * A {@link Client} whose calls return {@link ListenableFuture}s, such that the requests which depend on the result of
+ * another one can be chained to it. Kept apart from the generated {@link Client}, which is overwritten by the code
+ * generator.
+ */
+public interface ListenableClient extends Client {
+  @Override
+  ListenableFuture<CaptureId[]> GetCaptures() throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<DeviceId[]> GetDevices() throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<BinaryId> GetState(CaptureId capture, int contextId, long after) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<HierarchyId> GetHierarchy(CaptureId capture, int contextId) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<MemoryInfoId> GetMemoryInfo(CaptureId capture, int contextId, long after, MemoryRange rng)
+    throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<ImageInfoId> GetFramebufferColor(DeviceId device, CaptureId capture, int contextId, long after, RenderSettings settings)
+    throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<ImageInfoId> GetFramebufferDepth(DeviceId device, CaptureId capture, int contextId, long after)
+    throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<CaptureId> ReplaceAtom(CaptureId capture, long atomId, short atomType, Binary data) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<TimingInfoId> GetTimingInfo(DeviceId device, CaptureId capture, int contextId, TimingMask mask)
+    throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<BinaryId> PrerenderFramebuffers(DeviceId device, CaptureId capture, int width, int height, long[] atomIds)
+    throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<AtomStream> ResolveAtomStream(AtomStreamId id) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<Binary> ResolveBinary(BinaryId id) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<Capture> ResolveCapture(CaptureId id) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<Device> ResolveDevice(DeviceId id) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<Hierarchy> ResolveHierarchy(HierarchyId id) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<ImageInfo> ResolveImageInfo(ImageInfoId id) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<MemoryInfo> ResolveMemoryInfo(MemoryInfoId id) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<Schema> ResolveSchema(SchemaId id) throws IOException, RpcException;
+
+  @Override
+  ListenableFuture<TimingInfo> ResolveTimingInfo(TimingInfoId id) throws IOException, RpcException;
+}
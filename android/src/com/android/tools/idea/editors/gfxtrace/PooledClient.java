@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace;
+
+import com.android.tools.idea.editors.gfxtrace.rpc.*;
+import com.android.tools.rpclib.rpccore.RpcException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link ListenableClient} which runs the calls of the given {@link Client} on the given executor service.
+ * <p/>
+ * The broadcaster of rpclib only offers a blocking send, so each call in flight holds a thread of the executor service
+ * until its result arrives, on top of the thread of the {@link Client} sending it. A bounded executor service thus
+ * bounds the number of calls in flight: further calls queue up, and cancelling them before they start means they are
+ * never sent to the server.
+ */
+public class PooledClient implements ListenableClient {
+  private interface Call<T> {
+    @NotNull
+    Future<T> start() throws IOException, RpcException;
+  }
+
+  @NotNull private final Client myClient;
+  @NotNull private final ListeningExecutorService myExecutorService;
+
+  public PooledClient(@NotNull Client client, @NotNull ListeningExecutorService executorService) {
+    myClient = client;
+    myExecutorService = executorService;
+  }
+
+  @Override
+  public ListenableFuture<CaptureId[]> GetCaptures() {
+    return call(new Call<CaptureId[]>() {
+      @NotNull
+      @Override
+      public Future<CaptureId[]> start() throws IOException, RpcException {
+        return myClient.GetCaptures();
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<DeviceId[]> GetDevices() {
+    return call(new Call<DeviceId[]>() {
+      @NotNull
+      @Override
+      public Future<DeviceId[]> start() throws IOException, RpcException {
+        return myClient.GetDevices();
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<BinaryId> GetState(final CaptureId capture, final int contextId, final long after) {
+    return call(new Call<BinaryId>() {
+      @NotNull
+      @Override
+      public Future<BinaryId> start() throws IOException, RpcException {
+        return myClient.GetState(capture, contextId, after);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<HierarchyId> GetHierarchy(final CaptureId capture, final int contextId) {
+    return call(new Call<HierarchyId>() {
+      @NotNull
+      @Override
+      public Future<HierarchyId> start() throws IOException, RpcException {
+        return myClient.GetHierarchy(capture, contextId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<MemoryInfoId> GetMemoryInfo(final CaptureId capture,
+                                                      final int contextId,
+                                                      final long after,
+                                                      final MemoryRange rng) {
+    return call(new Call<MemoryInfoId>() {
+      @NotNull
+      @Override
+      public Future<MemoryInfoId> start() throws IOException, RpcException {
+        return myClient.GetMemoryInfo(capture, contextId, after, rng);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<ImageInfoId> GetFramebufferColor(final DeviceId device,
+                                                           final CaptureId capture,
+                                                           final int contextId,
+                                                           final long after,
+                                                           final RenderSettings settings) {
+    return call(new Call<ImageInfoId>() {
+      @NotNull
+      @Override
+      public Future<ImageInfoId> start() throws IOException, RpcException {
+        return myClient.GetFramebufferColor(device, capture, contextId, after, settings);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<ImageInfoId> GetFramebufferDepth(final DeviceId device,
+                                                           final CaptureId capture,
+                                                           final int contextId,
+                                                           final long after) {
+    return call(new Call<ImageInfoId>() {
+      @NotNull
+      @Override
+      public Future<ImageInfoId> start() throws IOException, RpcException {
+        return myClient.GetFramebufferDepth(device, capture, contextId, after);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<CaptureId> ReplaceAtom(final CaptureId capture, final long atomId, final short atomType, final Binary data) {
+    return call(new Call<CaptureId>() {
+      @NotNull
+      @Override
+      public Future<CaptureId> start() throws IOException, RpcException {
+        return myClient.ReplaceAtom(capture, atomId, atomType, data);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<TimingInfoId> GetTimingInfo(final DeviceId device,
+                                                      final CaptureId capture,
+                                                      final int contextId,
+                                                      final TimingMask mask) {
+    return call(new Call<TimingInfoId>() {
+      @NotNull
+      @Override
+      public Future<TimingInfoId> start() throws IOException, RpcException {
+        return myClient.GetTimingInfo(device, capture, contextId, mask);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<BinaryId> PrerenderFramebuffers(final DeviceId device,
+                                                          final CaptureId capture,
+                                                          final int width,
+                                                          final int height,
+                                                          final long[] atomIds) {
+    return call(new Call<BinaryId>() {
+      @NotNull
+      @Override
+      public Future<BinaryId> start() throws IOException, RpcException {
+        return myClient.PrerenderFramebuffers(device, capture, width, height, atomIds);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<AtomStream> ResolveAtomStream(final AtomStreamId id) {
+    return call(new Call<AtomStream>() {
+      @NotNull
+      @Override
+      public Future<AtomStream> start() throws IOException, RpcException {
+        return myClient.ResolveAtomStream(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Binary> ResolveBinary(final BinaryId id) {
+    return call(new Call<Binary>() {
+      @NotNull
+      @Override
+      public Future<Binary> start() throws IOException, RpcException {
+        return myClient.ResolveBinary(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Capture> ResolveCapture(final CaptureId id) {
+    return call(new Call<Capture>() {
+      @NotNull
+      @Override
+      public Future<Capture> start() throws IOException, RpcException {
+        return myClient.ResolveCapture(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Device> ResolveDevice(final DeviceId id) {
+    return call(new Call<Device>() {
+      @NotNull
+      @Override
+      public Future<Device> start() throws IOException, RpcException {
+        return myClient.ResolveDevice(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Hierarchy> ResolveHierarchy(final HierarchyId id) {
+    return call(new Call<Hierarchy>() {
+      @NotNull
+      @Override
+      public Future<Hierarchy> start() throws IOException, RpcException {
+        return myClient.ResolveHierarchy(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<ImageInfo> ResolveImageInfo(final ImageInfoId id) {
+    return call(new Call<ImageInfo>() {
+      @NotNull
+      @Override
+      public Future<ImageInfo> start() throws IOException, RpcException {
+        return myClient.ResolveImageInfo(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<MemoryInfo> ResolveMemoryInfo(final MemoryInfoId id) {
+    return call(new Call<MemoryInfo>() {
+      @NotNull
+      @Override
+      public Future<MemoryInfo> start() throws IOException, RpcException {
+        return myClient.ResolveMemoryInfo(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Schema> ResolveSchema(final SchemaId id) {
+    return call(new Call<Schema>() {
+      @NotNull
+      @Override
+      public Future<Schema> start() throws IOException, RpcException {
+        return myClient.ResolveSchema(id);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<TimingInfo> ResolveTimingInfo(final TimingInfoId id) {
+    return call(new Call<TimingInfo>() {
+      @NotNull
+      @Override
+      public Future<TimingInfo> start() throws IOException, RpcException {
+        return myClient.ResolveTimingInfo(id);
+      }
+    });
+  }
+  @NotNull
+  private <T> ListenableFuture<T> call(@NotNull final Call<T> call) {
+    return myExecutorService.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        Future<T> future = call.start();
+        try {
+          return future.get();
+        }
+        catch (InterruptedException e) {
+          // Cancelled while waiting for the result
+          future.cancel(true);
+          throw e;
+        }
+        catch (ExecutionException e) {
+          // Fail with the cause, as if the call had been made on this thread
+          Throwable cause = e.getCause();
+          throw cause instanceof Exception ? (Exception)cause : e;
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace;
+
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import com.android.tools.rpclib.binary.Handle;
+import com.google.common.io.BaseEncoding;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.android.util.AndroidUtils;
+import org.jetbrains.android.util.BoundedDiskCache;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of the objects resolved from the graphics debugger server, shared by all the trace editors.
+ * <p/>
+ * The server identifies binaries, image infos, hierarchies and schemas by a hash of their content, so an id always
+ * resolves to the same object, also after the capture is opened again or the server is restarted. Resolved objects are
+ * kept in memory, in an LRU map bounded by the size of their encoded form, and in a {@link BoundedDiskCache} in the
+ * Android system directory, such that they survive restarts of the IDE.
+ */
+public class ResolveCache {
+  private static final Logger LOG = Logger.getInstance(ResolveCache.class);
+
+  /** Default memory budget, in megabytes, for the resolved objects held in memory */
+  private static final int DEFAULT_MAX_SIZE_MB = Integer.getInteger("gfxtrace.resolve.cache.size.mb", 64);
+
+  /** Default disk budget, in megabytes, for the resolved objects stored on disk */
+  private static final int DEFAULT_MAX_DISK_SIZE_MB = Integer.getInteger("gfxtrace.resolve.cache.disk.size.mb", 256);
+
+  /** Whether resolved objects should also be stored on disk */
+  private static final boolean USE_DISK_CACHE = !Boolean.getBoolean("gfxtrace.resolve.cache.disk.disabled");
+
+  private static final String DOT_BIN = ".bin";
+
+  /** Creates an object from its encoded form */
+  public interface ObjectDecoder<T extends BinaryObject> {
+    @NotNull
+    T decode(@NotNull Decoder d) throws IOException;
+  }
+
+  private static class Entry {
+    @NotNull final BinaryObject value;
+    final int size;
+
+    Entry(@NotNull BinaryObject value, int size) {
+      this.value = value;
+      this.size = size;
+    }
+  }
+
+  private static ResolveCache ourInstance;
+
+  private final long myMaxSize;
+  @Nullable private final BoundedDiskCache myDiskCache;
+  private final LinkedHashMap<String, Entry> myCache = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+  private long mySize;
+  private int myHits;
+  private int myDiskHits;
+  private int myMisses;
+
+  ResolveCache(long maxSize, long maxDiskSize, @Nullable File directory) {
+    myMaxSize = maxSize;
+    myDiskCache = directory != null ? new BoundedDiskCache(directory, DOT_BIN, maxDiskSize, false) : null;
+  }
+
+  @NotNull
+  public static synchronized ResolveCache getInstance() {
+    if (ourInstance == null) {
+      File directory = null;
+      if (USE_DISK_CACHE) {
+        directory = new File(AndroidUtils.getAndroidSystemDirectoryOsPath(), "gfxtrace-cache");
+      }
+      ourInstance = new ResolveCache(DEFAULT_MAX_SIZE_MB * 1024L * 1024L, DEFAULT_MAX_DISK_SIZE_MB * 1024L * 1024L, directory);
+    }
+    return ourInstance;
+  }
+
+  /** Returns the cache key of the object with the given id; the kind separates the ids of different types of objects */
+  @NotNull
+  public static String getKey(@NotNull String kind, @NotNull Handle id) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+    id.encode(new Encoder(out));
+    return kind + '-' + BaseEncoding.base16().lowerCase().encode(out.toByteArray());
+  }
+
+  /** Returns the object with the given key if it is held in memory, without touching the disk */
+  @Nullable
+  public synchronized <T extends BinaryObject> T getIfPresent(@NotNull String key) {
+    Entry entry = myCache.get(key);
+    if (entry == null) {
+      return null;
+    }
+    myHits++;
+    //noinspection unchecked
+    return (T)entry.value;
+  }
+
+  /**
+   * Reads the object with the given key from disk, or returns null (and counts a miss) if it isn't stored on disk.
+   * Since this reads from disk, it should not be called from the event dispatch thread.
+   */
+  @Nullable
+  public <T extends BinaryObject> T load(@NotNull String key, @NotNull ObjectDecoder<T> decoder) {
+    byte[] data = myDiskCache != null ? myDiskCache.read(key) : null;
+    if (data != null) {
+      try {
+        T value = decoder.decode(new Decoder(new ByteArrayInputStream(data)));
+        synchronized (this) {
+          myDiskHits++;
+          putInMemory(key, value, data.length);
+        }
+        return value;
+      }
+      catch (IOException e) {
+        // Truncated or written by an incompatible version; it is overwritten once the object is resolved again
+        LOG.debug(e);
+      }
+      catch (RuntimeException e) {
+        LOG.debug(e);
+      }
+    }
+    synchronized (this) {
+      myMisses++;
+    }
+    return null;
+  }
+
+  /**
+   * Adds the given object, resolved from the server, to the memory cache, and returns its encoded form, which
+   * should subsequently be passed to {@link #store} (off the event dispatch thread).
+   */
+  @NotNull
+  public byte[] put(@NotNull String key, @NotNull BinaryObject value) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    value.encode(new Encoder(out));
+    byte[] data = out.toByteArray();
+    synchronized (this) {
+      putInMemory(key, value, data.length);
+    }
+    return data;
+  }
+
+  private void putInMemory(@NotNull String key, @NotNull BinaryObject value, int size) {
+    assert Thread.holdsLock(this);
+    if (size > myMaxSize) {
+      return;
+    }
+    Entry previous = myCache.put(key, new Entry(value, size));
+    if (previous != null) {
+      mySize -= previous.size;
+    }
+    mySize += size;
+
+    // Evict least recently used
+    Iterator<Entry> iterator = myCache.values().iterator();
+    while (mySize > myMaxSize && iterator.hasNext()) {
+      mySize -= iterator.next().size;
+      iterator.remove();
+    }
+  }
+
+  /** Writes the encoded form of an object, as returned by {@link #put}, to disk */
+  public void store(@NotNull String key, @NotNull byte[] data) {
+    if (myDiskCache != null) {
+      myDiskCache.write(key, data);
+    }
+  }
+
+  /** Clears the in-memory cache; objects stored on disk are kept */
+  public synchronized void clear() {
+    myCache.clear();
+    mySize = 0;
+  }
+
+  /** Returns the number of objects found in memory */
+  public synchronized int getHitCount() {
+    return myHits;
+  }
+
+  /** Returns the number of objects found on disk */
+  public synchronized int getDiskHitCount() {
+    return myDiskHits;
+  }
+
+  /** Returns the number of objects which had to be resolved by the server */
+  public synchronized int getMissCount() {
+    return myMisses;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("Resolved objects: %1$d cached (%2$d bytes), %3$d hits, %4$d disk hits, %5$d misses", myCache.size(), mySize,
+                         myHits, myDiskHits, myMisses);
+  }
+}
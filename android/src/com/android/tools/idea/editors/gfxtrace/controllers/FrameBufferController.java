@@ -17,8 +17,12 @@ package com.android.tools.idea.editors.gfxtrace.controllers;
 
 import com.android.tools.idea.editors.gfxtrace.GfxTraceEditor;
 import com.android.tools.idea.editors.gfxtrace.rpc.RenderSettings;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.intellij.execution.ui.layout.impl.JBRunnerTabs;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.ui.JBColor;
 import com.intellij.ui.components.JBLabel;
 import com.intellij.ui.components.JBLoadingPanel;
@@ -31,15 +35,18 @@ import java.awt.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class FrameBufferController implements GfxController {
+  @NotNull private static final Logger LOG = Logger.getInstance(FrameBufferController.class);
   @NotNull private final GfxTraceEditor myEditor;
   @NotNull private final JBRunnerTabs myBufferTabs;
   @NotNull private final JBScrollPane[] myBufferScrollPanes;
   @NotNull private AtomicLong myCurrentFetchAtomId = new AtomicLong();
   @Nullable private ImageFetcher myImageFetcher;
   @NotNull private JBLoadingPanel[] myLoadingPanels = new JBLoadingPanel[BufferType.length];
+  @NotNull private final List<ListenableFuture<FetchedImage>> myFetches = new ArrayList<ListenableFuture<FetchedImage>>(BufferType.length);
 
   public FrameBufferController(@NotNull GfxTraceEditor editor,
                                @NotNull JBRunnerTabs bufferTabs,
@@ -64,24 +71,18 @@ public class FrameBufferController implements GfxController {
     // TODO: Add a way to pan the viewport with the keyboard.
   }
 
-  @Nullable
-  private static FetchedImage fetchImage(long atomId,
-                                         @NotNull ImageFetcher imageFetcher,
-                                         @NotNull BufferType instance,
-                                         @Nullable RenderSettings renderSettings) {
-    assert (instance == BufferType.DEPTH_BUFFER || renderSettings != null);
-    if (renderSettings != null) {
-      renderSettings.setWireframe(instance == BufferType.WIREFRAME_BUFFER);
+  @NotNull
+  private static ListenableFuture<FetchedImage> fetchImage(long atomId, @NotNull ImageFetcher imageFetcher, @NotNull BufferType instance) {
+    if (instance == BufferType.DEPTH_BUFFER) {
+      return imageFetcher.fetchDepthImage(atomId);
     }
 
-    ImageFetcher.ImageFetchHandle imageFetchHandle =
-      (instance == BufferType.DEPTH_BUFFER) ? imageFetcher.queueDepthImage(atomId) : imageFetcher.queueColorImage(atomId, renderSettings);
-
-    if (imageFetchHandle == null) {
-      return null;
-    }
-
-    return imageFetcher.resolveImage(imageFetchHandle);
+    // Every request needs its own settings, since they are only serialized once the request is sent.
+    RenderSettings renderSettings = new RenderSettings();
+    renderSettings.setMaxWidth(4096);
+    renderSettings.setMaxHeight(4096);
+    renderSettings.setWireframe(instance == BufferType.WIREFRAME_BUFFER);
+    return imageFetcher.fetchColorImage(atomId, renderSettings);
   }
 
   @Override
@@ -125,52 +126,39 @@ public class FrameBufferController implements GfxController {
     }
 
     myCurrentFetchAtomId.set(atomId);
-    final ImageFetcher imageFetcher = myImageFetcher;
 
-    // This needs to run in parallel to the main worker thread since it's slow and it doesn't affect the other controllers.
-    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
-      @Override
-      public void run() {
-        RenderSettings renderSettings = new RenderSettings();
-        renderSettings.setMaxWidth(4096);
-        renderSettings.setMaxHeight(4096);
-
-        // Prioritize the currently selected tab in bufferOrder.
-        if (myBufferTabs.getSelectedInfo() != null) {
-          String tabName = myBufferTabs.getSelectedInfo().getText();
-          for (BufferType buffer : BufferType.values()) {
-            if (buffer.getName().equals(tabName)) {
-              if (bufferOrder.remove(buffer)) {
-                bufferOrder.add(0, buffer);
-              }
-              break;
-            }
+    // Prioritize the currently selected tab in bufferOrder.
+    if (myBufferTabs.getSelectedInfo() != null) {
+      String tabName = myBufferTabs.getSelectedInfo().getText();
+      for (BufferType buffer : BufferType.values()) {
+        if (buffer.getName().equals(tabName)) {
+          if (bufferOrder.remove(buffer)) {
+            bufferOrder.add(0, buffer);
           }
+          break;
         }
+      }
+    }
 
-        for (BufferType buffer : bufferOrder) {
-          if (atomId != myCurrentFetchAtomId.get()) {
-            return;
-          }
-
-          FetchedImage fetchedImage = fetchImage(atomId, imageFetcher, buffer, renderSettings);
-          if (fetchedImage == null) {
-            break;
-          }
-
+    // Request all the buffers at once rather than one after the other; each one is shown as soon as it arrives.
+    for (final BufferType buffer : bufferOrder) {
+      ListenableFuture<FetchedImage> fetch = fetchImage(atomId, myImageFetcher, buffer);
+      myFetches.add(fetch);
+      Futures.addCallback(fetch, new FutureCallback<FetchedImage>() {
+        @Override
+        public void onSuccess(FetchedImage fetchedImage) {
           setIcons(atomId, fetchedImage.createImageIcon(), buffer);
         }
 
-        ApplicationManager.getApplication().invokeLater(new Runnable() {
-          @Override
-          public void run() {
-            if (atomId == myCurrentFetchAtomId.get()) {
-              stopLoading();
-            }
+        @Override
+        public void onFailure(Throwable t) {
+          if (!(t instanceof CancellationException)) {
+            LOG.error(t);
           }
-        });
-      }
-    });
+          setIcons(atomId, null, buffer);
+        }
+      });
+    }
   }
 
   @Override
@@ -186,6 +174,13 @@ public class FrameBufferController implements GfxController {
       panel.getContentPanel().removeAll();
     }
     myCurrentFetchAtomId.set(-1);
+
+    // Don't let the server render buffers which are no longer wanted. Requests which were already sent are not interrupted,
+    // since that would break the connection.
+    for (ListenableFuture<FetchedImage> fetch : myFetches) {
+      fetch.cancel(false);
+    }
+    myFetches.clear();
   }
 
   private void stopLoading() {
@@ -196,13 +191,15 @@ public class FrameBufferController implements GfxController {
     }
   }
 
-  private void setIcons(final long closedAtomId, @NotNull final ImageIcon image, @NotNull final BufferType bufferType) {
+  private void setIcons(final long closedAtomId, @Nullable final ImageIcon image, @NotNull final BufferType bufferType) {
     ApplicationManager.getApplication().invokeLater(new Runnable() {
       @Override
       public void run() {
         if (myCurrentFetchAtomId.get() == closedAtomId) {
           int index = bufferType.ordinal();
-          myLoadingPanels[index].add(new JBLabel(image));
+          if (image != null) {
+            myLoadingPanels[index].add(new JBLabel(image));
+          }
           if (myLoadingPanels[index].isLoading()) {
             myLoadingPanels[index].stopLoading();
           }
@@ -15,24 +15,36 @@
  */
 package com.android.tools.idea.editors.gfxtrace.controllers;
 
+import com.android.tools.idea.editors.gfxtrace.ListenableClient;
 import com.android.tools.idea.editors.gfxtrace.rpc.*;
 import com.android.tools.rpclib.rpccore.RpcException;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.intellij.openapi.application.ApplicationManager;
-import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
 
+/**
+ * Fetches the framebuffer images of a capture from the server.
+ * <p/>
+ * Each image takes three requests: one to render the framebuffer and return the id of its image info, one to resolve
+ * the image info, and one to resolve the pixels. Rather than blocking a thread on each of these in turn, the requests
+ * are chained, and every request is sent on the shared connection as soon as the result it depends on arrives. Any
+ * number of images can therefore be requested at once, and each image is delivered as soon as its own requests
+ * complete, regardless of the order in which they were issued.
+ * <p/>
+ * Cancelling a returned future stops the requests which have not been sent yet.
+ */
 public class ImageFetcher {
-  @NotNull private static final Logger LOG = Logger.getInstance(ImageFetcher.class);
-  @NotNull private Client myClient;
+  @NotNull private ListenableClient myClient;
   private DeviceId myDeviceId;
   private CaptureId myCaptureId;
   private Integer myContextId;
 
-  public ImageFetcher(@NotNull Client client) {
+  public ImageFetcher(@NotNull ListenableClient client) {
     myClient = client;
   }
 
@@ -43,107 +55,55 @@ public class ImageFetcher {
     myContextId = contextId;
   }
 
-  @Nullable
-  public ImageFetchHandle queueColorImage(long atomId, RenderSettings settings) {
+  /**
+   * Fetches the color buffer after the given atom. The settings are only serialized once the request is sent, so they
+   * must not be modified afterwards.
+   */
+  @NotNull
+  public ListenableFuture<FetchedImage> fetchColorImage(long atomId, @NotNull RenderSettings settings) {
     try {
-      return new ImageFetchHandle(myClient.GetFramebufferColor(myDeviceId, myCaptureId, myContextId, atomId, settings).get());
-    }
-    catch (InterruptedException e) {
-      LOG.error(e);
-    }
-    catch (ExecutionException e) {
-      LOG.error(e);
+      return resolveImage(myClient.GetFramebufferColor(myDeviceId, myCaptureId, myContextId, atomId, settings));
     }
     catch (IOException e) {
-      LOG.error(e);
+      return Futures.immediateFailedFuture(e);
     }
     catch (RpcException e) {
-      LOG.error(e);
+      return Futures.immediateFailedFuture(e);
     }
-    return null;
   }
 
-  @Nullable
-  public ImageFetchHandle queueDepthImage(long atomId) {
+  /** Fetches the depth buffer after the given atom */
+  @NotNull
+  public ListenableFuture<FetchedImage> fetchDepthImage(long atomId) {
     try {
-      return new ImageFetchHandle(myClient.GetFramebufferDepth(myDeviceId, myCaptureId, myContextId, atomId).get());
-    }
-    catch (InterruptedException e) {
-      LOG.error(e);
-    }
-    catch (ExecutionException e) {
-      LOG.error(e);
+      return resolveImage(myClient.GetFramebufferDepth(myDeviceId, myCaptureId, myContextId, atomId));
     }
     catch (IOException e) {
-      LOG.error(e);
+      return Futures.immediateFailedFuture(e);
     }
     catch (RpcException e) {
-      LOG.error(e);
+      return Futures.immediateFailedFuture(e);
     }
-    return null;
   }
 
-  @Nullable
-  public FetchedImage resolveImage(@NotNull ImageFetchHandle handle) {
-    try {
-      ImageInfo imageInfo = handle.getImageInfo();
-      if (imageInfo == null) {
-        imageInfo = myClient.ResolveImageInfo(handle.getImageInfoId()).get();
+  @NotNull
+  private ListenableFuture<FetchedImage> resolveImage(@NotNull ListenableFuture<ImageInfoId> imageInfoId) {
+    ListenableFuture<ImageInfo> imageInfo = Futures.transform(imageInfoId, new AsyncFunction<ImageInfoId, ImageInfo>() {
+      @Override
+      public ListenableFuture<ImageInfo> apply(ImageInfoId id) throws Exception {
+        return myClient.ResolveImageInfo(id);
       }
-
-      handle.setImageInfo(imageInfo);
-      Binary binary = handle.getBinary();
-      if (binary == null) {
-        binary = myClient.ResolveBinary(imageInfo.getData()).get();
-        handle.setBinary(binary);
+    });
+    return Futures.transform(imageInfo, new AsyncFunction<ImageInfo, FetchedImage>() {
+      @Override
+      public ListenableFuture<FetchedImage> apply(final ImageInfo info) throws Exception {
+        return Futures.transform(myClient.ResolveBinary(info.getData()), new Function<Binary, FetchedImage>() {
+          @Override
+          public FetchedImage apply(Binary binary) {
+            return new FetchedImage(info, binary);
+          }
+        });
       }
-
-      handle.setBinary(binary);
-      return new FetchedImage(handle.getImageInfo(), binary);
-    }
-    catch (InterruptedException e) {
-      LOG.error(e);
-    }
-    catch (ExecutionException e) {
-      LOG.error(e);
-    }
-    catch (RpcException e) {
-      LOG.error(e);
-    }
-    catch (IOException e) {
-      LOG.error(e);
-    }
-    return null;
-  }
-
-  public static class ImageFetchHandle {
-    @NotNull private ImageInfoId myImageInfoId;
-    private ImageInfo myImageInfo;
-    private Binary myBinary;
-
-    private ImageFetchHandle(@NotNull ImageInfoId imageInfoId) {
-      myImageInfoId = imageInfoId;
-    }
-
-    public ImageInfo getImageInfo() {
-      return myImageInfo;
-    }
-
-    public void setImageInfo(@NotNull ImageInfo imageInfo) {
-      myImageInfo = imageInfo;
-    }
-
-    public Binary getBinary() {
-      return myBinary;
-    }
-
-    public void setBinary(@NotNull Binary binary) {
-      myBinary = binary;
-    }
-
-    @NotNull
-    private ImageInfoId getImageInfoId() {
-      return myImageInfoId;
-    }
+    });
   }
 }
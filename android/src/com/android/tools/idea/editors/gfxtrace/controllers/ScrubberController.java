@@ -16,10 +16,10 @@
 package com.android.tools.idea.editors.gfxtrace.controllers;
 
 import com.android.tools.idea.editors.gfxtrace.GfxTraceEditor;
+import com.android.tools.idea.editors.gfxtrace.ListenableClient;
 import com.android.tools.idea.editors.gfxtrace.controllers.modeldata.ScrubberLabelData;
 import com.android.tools.idea.editors.gfxtrace.renderers.ScrubberCellRenderer;
 import com.android.tools.idea.editors.gfxtrace.rpc.AtomGroup;
-import com.android.tools.idea.editors.gfxtrace.rpc.Client;
 import com.android.tools.idea.editors.gfxtrace.rpc.Hierarchy;
 import com.android.tools.idea.editors.gfxtrace.schema.AtomReader;
 import com.intellij.openapi.application.ApplicationManager;
@@ -32,7 +32,6 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -65,25 +64,19 @@ public class ScrubberController implements ScrubberCellRenderer.DimensionChangeL
 
   @Nullable
   public List<ScrubberLabelData> prepareData(@NotNull Hierarchy hierarchy, @NotNull AtomReader atomReader) {
-    try {
-      AtomGroup root = hierarchy.getRoot();
-      List<ScrubberLabelData> generatedList = new ArrayList<ScrubberLabelData>(root.getSubGroups().length);
-      int frameCount = 0;
-      for (AtomGroup frame : root.getSubGroups()) {
-        assert (frame.getRange().getCount() > 0);
-        long atomId = frame.getRange().getFirst() + frame.getRange().getCount() - 1l;
-        if (atomReader.read(atomId).info.getIsEndOfFrame()) {
-          ScrubberLabelData frameData =
-            new ScrubberLabelData(atomId, frame, Integer.toString(frameCount++), myScrubberCellRenderer.getDefaultIcon());
-          generatedList.add(frameData);
-        }
+    AtomGroup root = hierarchy.getRoot();
+    List<ScrubberLabelData> generatedList = new ArrayList<ScrubberLabelData>(root.getSubGroups().length);
+    int frameCount = 0;
+    for (AtomGroup frame : root.getSubGroups()) {
+      assert (frame.getRange().getCount() > 0);
+      long atomId = frame.getRange().getFirst() + frame.getRange().getCount() - 1l;
+      if (atomReader.getInfo(atomId).getIsEndOfFrame()) {
+        ScrubberLabelData frameData =
+          new ScrubberLabelData(atomId, frame, Integer.toString(frameCount++), myScrubberCellRenderer.getDefaultIcon());
+        generatedList.add(frameData);
       }
-      return generatedList;
-    }
-    catch (IOException e) {
-      LOG.error(e);
-      return null;
     }
+    return generatedList;
   }
 
   @Override
@@ -102,7 +95,7 @@ public class ScrubberController implements ScrubberCellRenderer.DimensionChangeL
     myFrameData = state.myScrubberList;
   }
 
-  public void populateUi(@NotNull Client client) {
+  public void populateUi(@NotNull ListenableClient client) {
     ApplicationManager.getApplication().assertIsDispatchThread();
     assert (myFrameData != null);
     assert (myEditor.getContext() != null);
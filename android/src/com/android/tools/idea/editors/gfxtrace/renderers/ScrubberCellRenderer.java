@@ -20,11 +20,15 @@ import com.android.tools.idea.editors.gfxtrace.controllers.ImageFetcher;
 import com.android.tools.idea.editors.gfxtrace.controllers.modeldata.ScrubberLabelData;
 import com.android.tools.idea.editors.gfxtrace.renderers.styles.RoundedLineBorder;
 import com.android.tools.idea.editors.gfxtrace.rpc.RenderSettings;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.containers.HashSet;
 import com.intellij.util.ui.UIUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import javax.swing.border.Border;
@@ -33,13 +37,16 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ScrubberCellRenderer implements ListCellRenderer {
-  private static final int MAX_CACHE_SIZE = 45;
+  @NotNull private static final Logger LOG = Logger.getInstance(ScrubberCellRenderer.class);
+  /** Number of frames on either side of the visible ones to fetch ahead of scrolling */
+  private static final int PREFETCH_COUNT = 8;
   private static final int BORDER_SIZE = 5;
   private static final int MIN_WIDTH = 64;
   private static final int MIN_HEIGHT = 64;
@@ -54,10 +61,10 @@ public class ScrubberCellRenderer implements ListCellRenderer {
   @NotNull private final ScrubberLabel myScrubberLabel;
   @NotNull private RenderSettings myRenderSettings;
   @NotNull private Set<Integer> myOutstandingIconFetches;
-  @NotNull private HashMap<Integer, ImageIcon> myCachedImages;
+  @NotNull private ThumbnailCache myCachedImages;
   @NotNull private ImageIcon myBlankIcon;
   @NotNull private AtomicBoolean shouldStop = new AtomicBoolean(false);
-  @NotNull private List<Integer> myPostRenderCleanupCacheHits = new ArrayList<Integer>(20);
+  private boolean myPostRenderUpdateQueued;
   private ScheduledFuture<?> myTicker;
   private Dimension myLargestKnownIconDimension = new Dimension(MIN_WIDTH, MIN_HEIGHT);
   private int myRepaintsNeeded;
@@ -69,7 +76,6 @@ public class ScrubberCellRenderer implements ListCellRenderer {
     myScrubberLabel = new ScrubberLabel();
 
     myOutstandingIconFetches = new HashSet<Integer>();
-    myCachedImages = new HashMap<Integer, ImageIcon>();
 
     myRenderSettings = new RenderSettings();
     myRenderSettings.setMaxWidth(MAX_WIDTH);
@@ -77,6 +83,7 @@ public class ScrubberCellRenderer implements ListCellRenderer {
     myRenderSettings.setWireframe(false);
 
     myBlankIcon = new ImageIcon(createBlankImage(DEFAULT_IMAGE_SIZE));
+    myCachedImages = new ThumbnailCache(myBlankIcon);
   }
 
   private static Image createBlankImage(@NotNull Dimension dimension) {
@@ -112,10 +119,10 @@ public class ScrubberCellRenderer implements ListCellRenderer {
    * Therefore, this method (directly or indirectly) satisfies the above requirements by:
    * 1) Farming off the icon generation to a separate thread.
    * 2) Draw the loading indicator via a custom Swing component (ScrubberLabel).
-   * 3) Implementing a simple caching mechanism based on a sliding window view of the film strip.
-   * 4) Periodic cache eviction based on last-rendered time, and the current position in the sliding window. As in, the user is always
-   * seeing a contiguous segment of frames in the UI (a "window"). For most use cases, the user will scroll left or right, which makes cache
-   * locality based on the current viewport position in the view.
+   * 3) Caching the icons in a {@link ThumbnailCache} bounded by the memory used by the images, and prefetching the icons next to the
+   * visible part of the film strip, since for most use cases the user will scroll left or right.
+   * 4) Evicting the least recently painted icons outside of the visible part of the film strip once the cache exceeds its budget.
+   * Evicted icons are kept on disk, from where they are loaded again much faster than the server can regenerate them.
    * <p/>
    * The general flow of this method is as follows:
    * 1) Look into the cache to see if an icon exists for the given parameters.
@@ -141,57 +148,17 @@ public class ScrubberCellRenderer implements ListCellRenderer {
         myRepaintsNeeded++;
       }
       else {
-        myOutstandingIconFetches.add(index);
-        labelData.setLoading(true);
-        final AtomicBoolean shouldStopReference = shouldStop;
-        final ImageFetcher closedImageFetcher = myImageFetcher;
-
-        // The renderer should run in parallel since it doesn't affect the state of the editor.
-        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
-          @Override
-          public void run() {
-            ImageIcon imageIcon = null;
-            try {
-              ImageFetcher.ImageFetchHandle handle = closedImageFetcher.queueColorImage(labelData.getAtomId(), myRenderSettings);
-
-              if (handle != null) {
-                FetchedImage fetchedImage = closedImageFetcher.resolveImage(handle);
-
-                if (fetchedImage != null) {
-                  imageIcon = fetchedImage.createImageIcon();
-                }
-              }
-            }
-            finally {
-              final ImageIcon finalImageIcon = imageIcon;
-              ApplicationManager.getApplication().invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                  myOutstandingIconFetches.remove(index);
-                  if (shouldStopReference.get() || finalImageIcon == null) {
-                    return;
-                  }
-
-                  updateDefaultImageIcon(finalImageIcon);
-
-                  labelData.setLoading(false);
-                  labelData.setSelected(isSelected);
-                  labelData.setIcon(finalImageIcon);
-                  myCachedImages.put(index, finalImageIcon);
-                  jList.repaint();
-                }
-              });
-            }
-          }
-        });
+        fetchIcon(jList, labelData, index, isSelected);
       }
     }
+    else {
+      labelData.setIcon(result);
+    }
 
     labelData.setSelected(isSelected);
     myScrubberLabel.setBorder(isSelected ? SELECTED_BORDER : DEFAULT_BORDER);
 
-    queueInvalidateCache();
-    myPostRenderCleanupCacheHits.add(index);
+    queuePostRenderUpdate(jList);
 
     // If necessary, schedule a repeating repaint so that the loading icon animates.
     if (myRepaintsNeeded > 0 && myTicker == null) {
@@ -217,6 +184,72 @@ public class ScrubberCellRenderer implements ListCellRenderer {
     return myScrubberLabel;
   }
 
+  /**
+   * Fetches the icon for the given frame, from the disk cache or else from the server, and caches it and repaints the list
+   * once it is available.
+   * <p/>
+   * Requests to the server don't block a thread while the frame is rendered, so the visible and prefetched frames are all
+   * requested at once, and each icon is shown as soon as it arrives.
+   */
+  private void fetchIcon(@NotNull final JList jList, @NotNull final ScrubberLabelData labelData, final int index, final boolean isSelected) {
+    myOutstandingIconFetches.add(index);
+    labelData.setLoading(true);
+    final AtomicBoolean shouldStopReference = shouldStop;
+    final ImageFetcher closedImageFetcher = myImageFetcher;
+    final ThumbnailCache cache = myCachedImages;
+
+    // The renderer should run in parallel since it doesn't affect the state of the editor.
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        ImageIcon imageIcon = cache.loadSpilled(index);
+        if (imageIcon != null || closedImageFetcher == null || shouldStopReference.get()) {
+          iconFetched(jList, labelData, index, isSelected, imageIcon, shouldStopReference);
+          return;
+        }
+
+        Futures.addCallback(closedImageFetcher.fetchColorImage(labelData.getAtomId(), myRenderSettings), new FutureCallback<FetchedImage>() {
+          @Override
+          public void onSuccess(FetchedImage fetchedImage) {
+            iconFetched(jList, labelData, index, isSelected, fetchedImage.createImageIcon(), shouldStopReference);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            if (!(t instanceof CancellationException)) {
+              LOG.error(t);
+            }
+            iconFetched(jList, labelData, index, isSelected, null, shouldStopReference);
+          }
+        });
+      }
+    });
+  }
+
+  private void iconFetched(@NotNull final JList jList,
+                           @NotNull final ScrubberLabelData labelData,
+                           final int index,
+                           final boolean isSelected,
+                           @Nullable final ImageIcon imageIcon,
+                           @NotNull final AtomicBoolean shouldStopReference) {
+    ApplicationManager.getApplication().invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        myOutstandingIconFetches.remove(index);
+        if (shouldStopReference.get() || imageIcon == null) {
+          return;
+        }
+
+        updateDefaultImageIcon(imageIcon);
+
+        labelData.setLoading(false);
+        labelData.setSelected(isSelected);
+        myCachedImages.put(index, imageIcon, labelData);
+        jList.repaint();
+      }
+    });
+  }
+
   @NotNull
   public Dimension getCellDimensions() {
     if (myLargestKnownIconDimension.getWidth() > MIN_WIDTH && myLargestKnownIconDimension.getHeight() > MIN_HEIGHT) {
@@ -260,40 +293,47 @@ public class ScrubberCellRenderer implements ListCellRenderer {
   }
 
   /**
-   * This method queues a task to run on the EDT to invalid the caches.
+   * This method queues a task to run on the EDT after the list has been painted.
    * <p/>
-   * This object needs to invalidate the cache to prevent the cache from growing indefinitely. However, since Swing does not have a simple
-   * way to recognize "end of draw", this method inserts a callback to the end of the EDT invokeLater queue which gets processed after all
-   * UI update draw calls have completed. This ensures that cache cleanup happens after all rendering calls to this renderer object have
-   * completed for this frame before cleanup occurs.
+   * Since Swing does not have a simple way to recognize "end of draw", this method inserts a callback to the end of the EDT invokeLater
+   * queue which gets processed after all UI update draw calls have completed. The callback then tells the cache which frames are in view,
+   * such that those are not evicted, and prefetches the icons of the frames on either side of them.
    */
-  private void queueInvalidateCache() {
-    if (myPostRenderCleanupCacheHits.size() == 0) {
-      ApplicationManager.getApplication().invokeLater(new Runnable() {
-        @Override
-        public void run() {
-          if (myPostRenderCleanupCacheHits.size() > 2 && myCachedImages.size() > MAX_CACHE_SIZE) {
-            Integer[] hitIndices = myPostRenderCleanupCacheHits.toArray(new Integer[myPostRenderCleanupCacheHits.size()]);
-            Arrays.sort(hitIndices);
-            int midHitIndex = hitIndices[(hitIndices.length + 1) / 2 - 1]; // If length is even, use the lesser value.
-
-            Integer[] cachedKeys = myCachedImages.keySet().toArray(new Integer[myCachedImages.size()]);
-            Arrays.sort(cachedKeys);
-            int midHitIndexKeyPosition = Arrays.binarySearch(cachedKeys, midHitIndex);
-            if (midHitIndexKeyPosition < 0) {
-              midHitIndexKeyPosition = -(midHitIndexKeyPosition + 1);
-            }
-
-            for (int i = 0; i < midHitIndexKeyPosition - MAX_CACHE_SIZE / 2; ++i) {
-              myCachedImages.remove(cachedKeys[i]);
-            }
-            for (int i = midHitIndexKeyPosition - MAX_CACHE_SIZE / 2 + MAX_CACHE_SIZE; i < cachedKeys.length; ++i) {
-              myCachedImages.remove(cachedKeys[i]);
-            }
-          }
-          myPostRenderCleanupCacheHits.clear();
+  private void queuePostRenderUpdate(@NotNull final JList jList) {
+    if (myPostRenderUpdateQueued) {
+      return;
+    }
+    myPostRenderUpdateQueued = true;
+    ApplicationManager.getApplication().invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        myPostRenderUpdateQueued = false;
+        int first = jList.getFirstVisibleIndex();
+        int last = jList.getLastVisibleIndex();
+        if (first < 0 || last < 0 || myImageFetcher == null) {
+          return;
         }
-      });
+        ListModel model = jList.getModel();
+        int start = Math.max(0, first - PREFETCH_COUNT);
+        int end = Math.min(model.getSize() - 1, last + PREFETCH_COUNT);
+        myCachedImages.setProtectedRange(start, end);
+
+        // Nearest frames first
+        for (int distance = 1; distance <= PREFETCH_COUNT; distance++) {
+          prefetch(jList, last + distance, end);
+          prefetch(jList, first - distance, end);
+        }
+      }
+    });
+  }
+
+  private void prefetch(@NotNull JList jList, int index, int end) {
+    if (index < 0 || index > end || myCachedImages.contains(index) || myOutstandingIconFetches.contains(index)) {
+      return;
+    }
+    Object data = jList.getModel().getElementAt(index);
+    if (data instanceof ScrubberLabelData) {
+      fetchIcon(jList, (ScrubberLabelData)data, index, jList.isSelectedIndex(index));
     }
   }
 
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace.renderers;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.idea.editors.gfxtrace.controllers.modeldata.ScrubberLabelData;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * The frame thumbnails of the scrubber, bounded by the memory used by the images rather than by a number of frames.
+ * <p/>
+ * Thumbnails are evicted in least recently painted order, except for the ones in (or close to) the visible part of the
+ * scrubber. Evicted thumbnails are optionally written to a temporary folder as PNG files, from which they can be read
+ * back much faster than they can be rendered again by the server.
+ * <p/>
+ * Apart from {@link #loadSpilled}, this class must only be used from the event dispatch thread.
+ */
+class ThumbnailCache {
+  private static final Logger LOG = Logger.getInstance(ThumbnailCache.class);
+
+  /** Default memory budget, in megabytes, for the thumbnails held in memory */
+  private static final int DEFAULT_MAX_SIZE_MB = Integer.getInteger("gfxtrace.thumbnail.cache.size.mb", 32);
+
+  /** Whether evicted thumbnails should be written to disk */
+  private static final boolean SPILL_TO_DISK = !Boolean.getBoolean("gfxtrace.thumbnail.disk.cache.disabled");
+
+  private static final Executor POOLED_THREAD_EXECUTOR = new Executor() {
+    @Override
+    public void execute(@NotNull Runnable command) {
+      ApplicationManager.getApplication().executeOnPooledThread(command);
+    }
+  };
+
+  private static class Entry {
+    @NotNull final ImageIcon icon;
+    @NotNull final ScrubberLabelData labelData;
+    final long size;
+
+    Entry(@NotNull ImageIcon icon, @NotNull ScrubberLabelData labelData) {
+      this.icon = icon;
+      this.labelData = labelData;
+      this.size = 4L * icon.getIconWidth() * icon.getIconHeight();
+    }
+  }
+
+  @NotNull private final ImageIcon myPlaceholder;
+  private final long myMaxSize;
+  /** Runs the writes to and deletes from the spill folder */
+  @NotNull private final Executor myExecutor;
+  @NotNull private final LinkedHashMap<Integer, Entry> myEntries = new LinkedHashMap<Integer, Entry>(64, 0.75f, true);
+  private long mySize;
+  private int myFirstProtected = -1;
+  private int myLastProtected = -1;
+
+  @Nullable private volatile File mySpillFolder;
+  @NotNull private volatile Set<Integer> mySpilled = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  /**
+   * @param placeholder the icon to show for frames whose thumbnail has been evicted
+   */
+  ThumbnailCache(@NotNull ImageIcon placeholder) {
+    this(placeholder, DEFAULT_MAX_SIZE_MB * 1024L * 1024L, POOLED_THREAD_EXECUTOR);
+  }
+
+  @VisibleForTesting
+  ThumbnailCache(@NotNull ImageIcon placeholder, long maxSize, @NotNull Executor executor) {
+    myPlaceholder = placeholder;
+    myMaxSize = maxSize;
+    myExecutor = executor;
+  }
+
+  @Nullable
+  ImageIcon get(int index) {
+    Entry entry = myEntries.get(index);
+    return entry != null ? entry.icon : null;
+  }
+
+  boolean contains(int index) {
+    return myEntries.containsKey(index);
+  }
+
+  void put(int index, @NotNull ImageIcon icon, @NotNull ScrubberLabelData labelData) {
+    Entry entry = new Entry(icon, labelData);
+    Entry previous = myEntries.put(index, entry);
+    if (previous != null) {
+      mySize -= previous.size;
+    }
+    mySize += entry.size;
+    labelData.setIcon(icon);
+    trim();
+  }
+
+  /**
+   * Sets the range of frames which should be kept in memory if at all possible, typically the frames
+   * in view and the ones next to them
+   */
+  void setProtectedRange(int first, int last) {
+    myFirstProtected = first;
+    myLastProtected = last;
+    trim();
+  }
+
+  private boolean isProtected(int index) {
+    return index >= myFirstProtected && index <= myLastProtected;
+  }
+
+  /** Evicts the least recently used thumbnails outside of the protected range until the cache fits its budget */
+  private void trim() {
+    Iterator<Map.Entry<Integer, Entry>> iterator = myEntries.entrySet().iterator();
+    while (mySize > myMaxSize && iterator.hasNext()) {
+      Map.Entry<Integer, Entry> next = iterator.next();
+      int index = next.getKey();
+      if (isProtected(index)) {
+        continue;
+      }
+      Entry entry = next.getValue();
+      iterator.remove();
+      mySize -= entry.size;
+      // Release the image, which the label data would otherwise keep alive
+      if (entry.labelData.getIcon() == entry.icon) {
+        entry.labelData.setIcon(myPlaceholder);
+      }
+      spill(index, entry.icon);
+    }
+  }
+
+  private void spill(final int index, @NotNull final ImageIcon icon) {
+    if (!SPILL_TO_DISK || mySpilled.contains(index) || !(icon.getImage() instanceof BufferedImage)) {
+      return;
+    }
+    if (mySpillFolder == null) {
+      try {
+        mySpillFolder = FileUtil.createTempDirectory("gfxtrace-thumbnails", null, true);
+      }
+      catch (IOException e) {
+        LOG.warn(e);
+        return;
+      }
+    }
+
+    final File folder = mySpillFolder;
+    final Set<Integer> spilled = mySpilled;
+    myExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (ImageIO.write((BufferedImage)icon.getImage(), "PNG", getSpillFile(folder, index))) {
+            spilled.add(index);
+          }
+        }
+        catch (IOException e) {
+          // The folder was deleted by clear(), or the disk is full; either way the thumbnail will be fetched again
+          LOG.debug(e);
+        }
+      }
+    });
+  }
+
+  @NotNull
+  private static File getSpillFile(@NotNull File folder, int index) {
+    return new File(folder, index + ".png");
+  }
+
+  /**
+   * Reads a previously evicted thumbnail back from disk, or returns null if it was not written to disk.
+   * May be called from any thread.
+   */
+  @Nullable
+  ImageIcon loadSpilled(int index) {
+    File folder = mySpillFolder;
+    if (folder == null || !mySpilled.contains(index)) {
+      return null;
+    }
+    try {
+      Image image = ImageIO.read(getSpillFile(folder, index));
+      return image != null ? new ImageIcon(image) : null;
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+      return null;
+    }
+  }
+
+  /** Removes all thumbnails, in memory and on disk */
+  void clear() {
+    myEntries.clear();
+    mySize = 0;
+    myFirstProtected = myLastProtected = -1;
+    mySpilled = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    final File folder = mySpillFolder;
+    mySpillFolder = null;
+    if (folder != null) {
+      myExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          FileUtil.delete(folder);
+        }
+      });
+    }
+  }
+
+  /** Returns the approximate number of bytes used by the thumbnails in memory */
+  long getSize() {
+    return mySize;
+  }
+}
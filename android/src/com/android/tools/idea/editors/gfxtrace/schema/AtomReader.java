@@ -20,30 +20,64 @@ import com.android.tools.idea.editors.gfxtrace.rpc.AtomInfo;
 import com.android.tools.idea.editors.gfxtrace.rpc.AtomStream;
 import com.android.tools.idea.editors.gfxtrace.rpc.ParameterInfo;
 import com.android.tools.idea.editors.gfxtrace.rpc.Schema;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
 import gnu.trove.TIntIntHashMap;
+import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A random-access reader of {@link Atom}s.
  * </p>
  * The {@link AtomReader} holds the entire collection of atoms in binary
  * packed form, and to reduce memory overhead, only unpacks these to Java
- * structures on {@link #read}.
+ * structures on {@link #read}. The most recently read atoms are cached.
+ * </p>
+ * Large streams are moved out of the heap into a memory mapped temporary file. The
+ * position and type of each atom are indexed up front in primitive arrays, by skipping
+ * over the parameters without unpacking them.
  */
 public class AtomReader {
+  private static final Logger LOG = Logger.getInstance(AtomReader.class);
+
+  /** Streams larger than this many bytes are kept in a memory mapped file rather than on the heap */
+  private static final long MAP_THRESHOLD = Long.getLong("gfxtrace.atoms.map.threshold", 32L * 1024 * 1024);
+
+  /** Number of unpacked atoms to keep */
+  private static final int CACHE_SIZE = 512;
+
   private final Schema mSchema;
-  private final byte[] mData;
-  private final List<Segment> mAtomSegments;
+  private final ByteBuffer mData;
   private final TIntIntHashMap atomTypeToIndex;
 
+  /** Offset of each atom in the data, followed by the end offset of the last atom */
+  private long[] mOffsets;
+  /** Index into the schema's atoms of the type of each atom */
+  private int[] mTypes;
+  private int mCount;
+
+  private final Map<Integer, Atom> mCache = new LinkedHashMap<Integer, Atom>(CACHE_SIZE, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, Atom> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
   public AtomReader(AtomStream stream, Schema schema) throws IOException {
+    this(toBuffer(stream.getData()), schema);
+  }
+
+  private AtomReader(@NotNull ByteBuffer data, Schema schema) throws IOException {
     mSchema = schema;
-    mData = stream.getData();
-    mAtomSegments = new ArrayList<Segment>();
+    mData = data;
 
     atomTypeToIndex = new TIntIntHashMap(schema.getAtoms().length);
     AtomInfo[] atomInfos = schema.getAtoms();
@@ -55,11 +89,50 @@ public class AtomReader {
     calculateAtomInfos();
   }
 
+  /** Wraps the given data, or copies it to a memory mapped file if it is large, such that the array can be collected */
+  @NotNull
+  private static ByteBuffer toBuffer(@NotNull byte[] data) {
+    if (data.length < MAP_THRESHOLD) {
+      return ByteBuffer.wrap(data);
+    }
+    try {
+      File file = FileUtil.createTempFile("atoms", ".bin", true);
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        FileChannel channel = randomAccessFile.getChannel();
+        ByteBuffer source = ByteBuffer.wrap(data);
+        while (source.hasRemaining()) {
+          channel.write(source);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, data.length);
+      }
+      finally {
+        randomAccessFile.close();
+        // Unix allows deleting mapped files; elsewhere the file is deleted on exit
+        FileUtil.delete(file);
+      }
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot map atom stream; keeping it in memory", e);
+      return ByteBuffer.wrap(data);
+    }
+  }
+
   /**
    * @return the number of atoms in the collection.
    */
   public int count() {
-    return mAtomSegments.size();
+    return mCount;
+  }
+
+  private int unpackType(Decoder decoder) throws IOException {
+    short type = decoder.uint16();
+    int contextId = decoder.int32();
+    assert (contextId >= 0); // Sanity check.
+    if (!atomTypeToIndex.containsKey(type)) {
+      throw new RuntimeException("Atom type " + type + " not found in schema.");
+    }
+    return atomTypeToIndex.get(type);
   }
 
   private Atom unpack(Decoder decoder) throws IOException {
@@ -81,6 +154,20 @@ public class AtomReader {
     return new Atom(contextId, atomInfo, parameters);
   }
 
+  /**
+   * Returns the schema information of the atom with the specified index, without unpacking it.
+   *
+   * @param index the index of the atom.
+   * @return the atom's schema information.
+   */
+  public AtomInfo getInfo(long index) {
+    assert (index <= Integer.MAX_VALUE);
+    if (index < 0 || index >= mCount) {
+      throw new IndexOutOfBoundsException("Atom " + index + " of " + mCount);
+    }
+    return mSchema.getAtoms()[mTypes[(int)index]];
+  }
+
   /**
    * Unpack and return a single atom with the specified index.
    *
@@ -89,33 +176,92 @@ public class AtomReader {
    */
   public Atom read(long index) throws IOException {
     assert (index <= Integer.MAX_VALUE);
-    Segment segment = mAtomSegments.get((int)index);
-    ByteArrayInputStream stream = new ByteArrayInputStream(mData, segment.mOffset, segment.mSize);
-    Decoder decoder = new Decoder(stream);
-    return unpack(decoder);
+    if (index < 0 || index >= mCount) {
+      throw new IndexOutOfBoundsException("Atom " + index + " of " + mCount);
+    }
+    int i = (int)index;
+    synchronized (mCache) {
+      Atom atom = mCache.get(i);
+      if (atom != null) {
+        return atom;
+      }
+    }
+
+    Decoder decoder = new Decoder(new BufferInputStream(mData, mOffsets[i], mOffsets[i + 1]));
+    Atom atom = unpack(decoder);
+    synchronized (mCache) {
+      mCache.put(i, atom);
+    }
+    return atom;
   }
 
   private void calculateAtomInfos() throws IOException {
-    ByteArrayInputStream stream = new ByteArrayInputStream(mData);
+    BufferInputStream stream = new BufferInputStream(mData, 0, mData.limit());
     Decoder decoder = new Decoder(stream);
-    int total = stream.available();
     long count = decoder.uint32();
-    for (int i = 0; i < count; i++) {
-      int remains = stream.available();
-      int offset = total - remains;
-      unpack(decoder);
-      int size = remains - stream.available();
-      mAtomSegments.add(new Segment(offset, size));
+    if (count > Integer.MAX_VALUE - 1) {
+      throw new IOException("Too many atoms: " + count);
     }
+    mCount = (int)count;
+    mOffsets = new long[mCount + 1];
+    mTypes = new int[mCount];
+    AtomInfo[] atomInfos = mSchema.getAtoms();
+    for (int i = 0; i < mCount; i++) {
+      mOffsets[i] = stream.getPosition();
+      int type = unpackType(decoder);
+      mTypes[i] = type;
+      for (ParameterInfo parameterInfo : atomInfos[type].getParameters()) {
+        Unpack.Skip(parameterInfo.getType(), decoder);
+      }
+    }
+    mOffsets[mCount] = stream.getPosition();
   }
 
-  private static class Segment {
-    private final int mOffset;
-    private final int mSize;
+  /** An input stream over a range of a (possibly memory mapped) buffer, which doesn't change the buffer's position */
+  private static class BufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+    private int mPosition;
+    private final int mEnd;
+
+    private BufferInputStream(ByteBuffer buffer, long start, long end) {
+      // Atom streams are received as a single byte array, so offsets always fit in an int
+      mBuffer = buffer;
+      mPosition = (int)start;
+      mEnd = (int)end;
+    }
+
+    long getPosition() {
+      return mPosition;
+    }
+
+    @Override
+    public int read() {
+      return mPosition < mEnd ? mBuffer.get(mPosition++) & 0xFF : -1;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) {
+      if (mPosition >= mEnd) {
+        return -1;
+      }
+      len = Math.min(len, mEnd - mPosition);
+      ByteBuffer slice = mBuffer.duplicate();
+      slice.position(mPosition);
+      slice.get(b, off, len);
+      mPosition += len;
+      return len;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, mEnd - mPosition));
+      mPosition += skipped;
+      return skipped;
+    }
 
-    private Segment(int offset, int size) {
-      mOffset = offset;
-      mSize = size;
+    @Override
+    public int available() {
+      return mEnd - mPosition;
     }
   }
 }
@@ -114,4 +114,86 @@ public class Unpack {
         throw new RuntimeException("Unknown kind " + type.getKind());
     }
   }
+
+  /**
+   * Reads past a value of the given type without unpacking it into Java objects.
+   */
+  public static void Skip(TypeInfo type, Decoder decoder) throws IOException {
+    switch (type.getKind()) {
+      case Bool:
+        decoder.bool();
+        break;
+      case S8:
+        decoder.int8();
+        break;
+      case U8:
+        decoder.uint8();
+        break;
+      case S16:
+        decoder.int16();
+        break;
+      case U16:
+        decoder.uint16();
+        break;
+      case S32:
+        decoder.int32();
+        break;
+      case U32:
+      case Enum:
+        decoder.uint32();
+        break;
+      case F32:
+        decoder.float32();
+        break;
+      case S64:
+        decoder.int64();
+        break;
+      case U64:
+      case Pointer:
+        decoder.uint64();
+        break;
+      case F64:
+        decoder.float64();
+        break;
+      case String:
+        decoder.string();
+        break;
+      case Struct:
+        for (FieldInfo fieldInfo : ((StructInfo)type).getFields()) {
+          Skip(fieldInfo.getType(), decoder);
+        }
+        break;
+      case Class:
+        for (FieldInfo fieldInfo : ((ClassInfo)type).getFields()) {
+          Skip(fieldInfo.getType(), decoder);
+        }
+        break;
+      case Array: {
+        TypeInfo elementType = ((ArrayInfo)type).getElementType();
+        int count = decoder.int32();
+        for (int i = 0; i < count; i++) {
+          Skip(elementType, decoder);
+        }
+        break;
+      }
+      case Map: {
+        MapInfo info = (MapInfo)type;
+        int count = decoder.int32();
+        for (int i = 0; i < count; i++) {
+          Skip(info.getKeyType(), decoder);
+          Skip(info.getValueType(), decoder);
+        }
+        break;
+      }
+      case Memory:
+      case Any:
+        // Not encoded; see Type
+        break;
+      case ID:
+        decoder.read(new byte[20], 20);
+        break;
+      default:
+        throw new RuntimeException("Unknown kind " + type.getKind());
+    }
+  }
 }
@@ -22,6 +22,7 @@ import com.google.common.base.Throwables;
 import com.intellij.codeHighlighting.BackgroundEditorHighlighter;
 import com.intellij.ide.structureView.StructureViewBuilder;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorLocation;
 import com.intellij.openapi.fileEditor.FileEditorState;
@@ -31,6 +32,7 @@ import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -42,7 +44,11 @@ import java.beans.PropertyChangeListener;
 import java.io.File;
 
 public class HprofEditor extends UserDataHolderBase implements FileEditor {
+  private static final Logger LOG = Logger.getInstance(HprofEditor.class);
+
   private final HprofViewPanel myHprofViewPanel;
+  @Nullable private volatile ProgressIndicator myParseIndicator;
+  private volatile boolean myDisposed;
 
   public HprofEditor(@NotNull final Project project, @NotNull final VirtualFile file) {
     myHprofViewPanel = new HprofViewPanel(project);
@@ -50,23 +56,38 @@ public class HprofEditor extends UserDataHolderBase implements FileEditor {
   }
 
   private void parseHprofFileInBackground(@NotNull final Project project, @NotNull final VirtualFile file) {
-    final Task.Modal parseTask = new Task.Modal(project, "Parsing hprof file", false) {
+    final File hprofFile = VfsUtilCore.virtualToIoFile(file);
+    final Task.Backgroundable parseTask = new Task.Backgroundable(project, "Parsing hprof file", true) {
       private String myErrorMessage;
       private Snapshot mySnapshot;
 
       @Override
-      public void run(@NotNull ProgressIndicator indicator) {
-        indicator.setIndeterminate(true);
-
-        final File hprofFile = VfsUtilCore.virtualToIoFile(file);
+      public void run(@NotNull final ProgressIndicator indicator) {
+        myParseIndicator = indicator;
+        indicator.setIndeterminate(false);
+        final long length = Math.max(1, hprofFile.length());
         try {
-          // Currently HprofParser takes too much memory and cripples the IDE.]
-          // new HprofParser(new MemoryMappedFileBuffer(hprofFile)).parse();
-          // TODO: Use HprofParser
-          mySnapshot = new HprofParser(new MemoryMappedFileBuffer(hprofFile)).parse();
+          // The parser reads the whole dump in one go, so progress and cancellation are driven by the reads of the buffer
+          MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(hprofFile) {
+            private int myReads;
+
+            @Override
+            public int readInt() {
+              if ((++myReads & 0xFFFF) == 0) {
+                indicator.checkCanceled();
+                indicator.setFraction((double)position() / length);
+              }
+              return super.readInt();
+            }
+          };
+          mySnapshot = new HprofParser(buffer).parse();
+          indicator.checkCanceled();
+        }
+        catch (ProcessCanceledException e) {
+          throw e;
         }
         catch (Throwable throwable) {
-          throwable.printStackTrace();
+          LOG.info(throwable);
           //noinspection ThrowableResultOfMethodCallIgnored
           myErrorMessage = "Unexpected error while parsing hprof file: " + Throwables.getRootCause(throwable).getMessage();
           throw new ProcessCanceledException();
@@ -75,18 +96,26 @@ public class HprofEditor extends UserDataHolderBase implements FileEditor {
 
       @Override
       public void onSuccess() {
-        myHprofViewPanel.setSnapshot(mySnapshot);
+        myParseIndicator = null;
+        if (!myDisposed) {
+          myHprofViewPanel.setSnapshot(mySnapshot, hprofFile);
+        }
       }
 
       @Override
       public void onCancel() {
-        Messages.showErrorDialog(project, myErrorMessage, getName());
+        myParseIndicator = null;
+        if (myErrorMessage != null) {
+          Messages.showErrorDialog(project, myErrorMessage, getName());
+        }
       }
     };
     ApplicationManager.getApplication().invokeLater(new Runnable() {
       @Override
       public void run() {
-        parseTask.queue();
+        if (!myDisposed) {
+          parseTask.queue();
+        }
       }
     });
   }
@@ -166,5 +195,11 @@ public class HprofEditor extends UserDataHolderBase implements FileEditor {
 
   @Override
   public void dispose() {
+    myDisposed = true;
+    ProgressIndicator indicator = myParseIndicator;
+    if (indicator != null) {
+      indicator.cancel();
+    }
+    Disposer.dispose(myHprofViewPanel);
   }
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.hprof;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.heap.*;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.hash.Hashing;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.android.util.AndroidUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Stores the dominators and retained sizes computed for a heap dump, such that they don't have to be computed again when
+ * the dump is opened again, which takes far longer than parsing the dump for large heaps.
+ * <p/>
+ * The index is kept in the Android system directory rather than next to the dump, keyed by the path of the dump, and is
+ * only used as long as the size and time stamp of the dump match. When the indexes take more than
+ * {@code android.hprof.index.size.mb} megabytes, the least recently used ones are deleted.
+ */
+class HprofIndex {
+  private static final Logger LOG = Logger.getInstance(HprofIndex.class);
+
+  /** Whether computed dominators should be stored on disk */
+  private static final boolean USE_INDEX = !Boolean.getBoolean("android.hprof.index.disabled");
+  /** Maximum size of all indexes, in bytes */
+  private static final long MAX_SIZE = Integer.getInteger("android.hprof.index.size.mb", 1024) * 1024L * 1024L;
+
+  private static final int VERSION = 1;
+  /** Id written for instances immediately dominated by the root of all GC roots */
+  private static final long ROOT_ID = -1;
+  /** Id written for instances which are not reachable, and therefore have no dominator */
+  private static final long NO_ID = 0;
+
+  private HprofIndex() {
+  }
+
+  @Nullable
+  private static File getIndexFile(@NotNull File hprofFile) {
+    if (!USE_INDEX) {
+      return null;
+    }
+    String key = Hashing.md5().hashString(hprofFile.getAbsolutePath(), Charsets.UTF_8).toString();
+    return new File(new File(AndroidUtils.getAndroidSystemDirectoryOsPath(), "hprof-index"), key + ".idx");
+  }
+
+  /**
+   * Restores the dominators and retained sizes of the given snapshot of the given dump from its index.
+   *
+   * @return true if the index was found and up to date, false if the dominators should be computed
+   */
+  static boolean load(@NotNull final Snapshot snapshot, @NotNull File hprofFile, @NotNull ProgressIndicator indicator) {
+    File indexFile = getIndexFile(hprofFile);
+    if (indexFile == null || !indexFile.isFile()) {
+      return false;
+    }
+    Function<Long, Instance> lookup = new Function<Long, Instance>() {
+      @Override
+      public Instance apply(Long id) {
+        return snapshot.findInstance(id);
+      }
+    };
+    if (!load(getInstances(snapshot), lookup, snapshot.getHeaps().size(), indexFile, hprofFile, indicator)) {
+      return false;
+    }
+    // Marks the index as recently used
+    //noinspection ResultOfMethodCallIgnored
+    indexFile.setLastModified(System.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * Restores the dominators and retained sizes of the given instances of the given dump from the given index. The index is
+   * read twice: once to check that it is complete, up to date and only refers to existing instances and heaps, and then
+   * to apply it, such that a stale or truncated index leaves the instances untouched.
+   */
+  @VisibleForTesting
+  static boolean load(@NotNull List<Instance> instances,
+                      @NotNull Function<Long, Instance> lookup,
+                      int heapCount,
+                      @NotNull File indexFile,
+                      @NotNull File hprofFile,
+                      @NotNull ProgressIndicator indicator) {
+    FileInputStream stream = null;
+    try {
+      stream = new FileInputStream(indexFile);
+      if (!read(stream, instances, lookup, heapCount, hprofFile, indicator, false)) {
+        return false;
+      }
+      // Both passes read the same open file, so the second one can only fail on an I/O error
+      stream.getChannel().position(0);
+      try {
+        read(stream, instances, lookup, heapCount, hprofFile, indicator, true);
+      }
+      catch (IOException e) {
+        // The instances are partly restored, and computing the dominators again would add to their retained sizes
+        LOG.warn("Unable to apply hprof index " + indexFile + "; dominators are incomplete", e);
+        //noinspection ResultOfMethodCallIgnored
+        indexFile.delete();
+      }
+      return true;
+    }
+    catch (IOException e) {
+      // Truncated or written by an incompatible version; it is overwritten once the dominators are computed
+      LOG.info("Unable to read hprof index " + indexFile, e);
+      return false;
+    }
+    finally {
+      if (stream != null) {
+        try {
+          stream.close();
+        }
+        catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the index from the given stream, and if {@code apply} is set, restores the instances from it.
+   *
+   * @return false if the index doesn't match the instances; only returned when not applying
+   */
+  private static boolean read(@NotNull InputStream stream,
+                              @NotNull List<Instance> instances,
+                              @NotNull Function<Long, Instance> lookup,
+                              int heapCount,
+                              @NotNull File hprofFile,
+                              @NotNull ProgressIndicator indicator,
+                              boolean apply) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 64 * 1024));
+    int count = instances.size();
+    if (in.readInt() != VERSION || in.readLong() != hprofFile.length() || in.readLong() != hprofFile.lastModified() ||
+        in.readInt() != count) {
+      return mismatch(apply, "header");
+    }
+    for (int i = 0; i < count; i++) {
+      Instance instance = instances.get(i);
+      if (in.readLong() != instance.getId()) {
+        return mismatch(apply, "instance " + Long.toHexString(instance.getId()));
+      }
+      long dominatorId = in.readLong();
+      Instance dominator = null;
+      if (dominatorId == ROOT_ID) {
+        dominator = Snapshot.SENTINEL_ROOT;
+      }
+      else if (dominatorId != NO_ID) {
+        dominator = lookup.apply(dominatorId);
+        if (dominator == null) {
+          return mismatch(apply, "dominator " + Long.toHexString(dominatorId));
+        }
+      }
+      if (apply && dominator != null) {
+        instance.setImmediateDominator(dominator);
+      }
+      int heaps = in.readUnsignedByte();
+      for (int h = 0; h < heaps; h++) {
+        int heap = in.readUnsignedByte();
+        long size = in.readLong();
+        if (heap >= heapCount) {
+          return mismatch(apply, "heap " + heap);
+        }
+        if (apply) {
+          instance.addRetainedSize(heap, size);
+        }
+      }
+      if ((i & 0xFFFF) == 0) {
+        if (!apply) {
+          // Nothing was touched yet, so the load can still be abandoned
+          indicator.checkCanceled();
+        }
+        indicator.setFraction((apply ? 0.5 : 0) + 0.5 * i / count);
+      }
+    }
+    return true;
+  }
+
+  private static boolean mismatch(boolean apply, @NotNull String what) throws IOException {
+    if (apply) {
+      throw new IOException("Hprof index changed while being applied: " + what);
+    }
+    LOG.info("Hprof index doesn't match the dump: " + what);
+    return false;
+  }
+
+  /** Stores the dominators and retained sizes of the given snapshot, which must have been computed already */
+  static void save(@NotNull Snapshot snapshot, @NotNull File hprofFile) {
+    File indexFile = getIndexFile(hprofFile);
+    if (indexFile != null) {
+      save(getInstances(snapshot), snapshot.getHeaps().size(), indexFile, hprofFile);
+      trim(indexFile.getParentFile(), indexFile, MAX_SIZE);
+    }
+  }
+
+  @VisibleForTesting
+  static void save(@NotNull List<Instance> instances, int heapCount, @NotNull File indexFile, @NotNull File hprofFile) {
+    File parent = indexFile.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      return;
+    }
+
+    try {
+      // Write to a temporary file first such that a partially written index is never read
+      File temp = File.createTempFile(indexFile.getName(), null, parent);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+      try {
+        out.writeInt(VERSION);
+        out.writeLong(hprofFile.length());
+        out.writeLong(hprofFile.lastModified());
+        out.writeInt(instances.size());
+        for (Instance instance : instances) {
+          out.writeLong(instance.getId());
+          Instance dominator = instance.getImmediateDominator();
+          out.writeLong(dominator == null ? NO_ID : dominator instanceof RootObj ? ROOT_ID : dominator.getId());
+
+          // Most instances only retain memory in one heap, so only the non-zero sizes are written
+          int heaps = 0;
+          for (int h = 0; h < heapCount; h++) {
+            if (instance.getRetainedSize(h) != 0) {
+              heaps++;
+            }
+          }
+          out.writeByte(heaps);
+          for (int h = 0; h < heapCount; h++) {
+            long size = instance.getRetainedSize(h);
+            if (size != 0) {
+              out.writeByte(h);
+              out.writeLong(size);
+            }
+          }
+        }
+      }
+      finally {
+        out.close();
+      }
+      if (!temp.renameTo(indexFile) && !(indexFile.delete() && temp.renameTo(indexFile))) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    }
+    catch (IOException e) {
+      // The index is only an optimization
+      LOG.info("Unable to write hprof index " + indexFile, e);
+    }
+  }
+
+  /** Deletes the least recently used files of the given directory but the given index until they fit the given size */
+  @VisibleForTesting
+  static void trim(@NotNull File dir, @NotNull File keep, long maxSize) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long size = 0;
+    for (File file : files) {
+      size += file.length();
+    }
+    if (size <= maxSize) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        long m1 = f1.lastModified();
+        long m2 = f2.lastModified();
+        return m1 < m2 ? -1 : m1 == m2 ? 0 : 1;
+      }
+    });
+    for (File file : files) {
+      if (size <= maxSize) {
+        break;
+      }
+      long length = file.length();
+      if (!file.equals(keep) && file.delete()) {
+        size -= length;
+      }
+    }
+  }
+
+  /** Returns the class objects and instances of all heaps, in the order in which they were parsed */
+  @NotNull
+  private static List<Instance> getInstances(@NotNull Snapshot snapshot) {
+    List<Instance> instances = new ArrayList<Instance>();
+    for (Heap heap : snapshot.getHeaps()) {
+      Collection<ClassObj> classes = heap.getClasses();
+      for (ClassObj classObj : classes) {
+        instances.add(classObj);
+        instances.addAll(classObj.getInstances());
+      }
+    }
+    return instances;
+  }
+}
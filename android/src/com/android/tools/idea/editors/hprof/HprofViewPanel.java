@@ -22,7 +22,6 @@ import com.android.tools.perflib.heap.Snapshot;
 import com.intellij.execution.ui.layout.impl.JBRunnerTabs;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.actionSystem.*;
-import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -44,8 +43,7 @@ import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
 
 public class HprofViewPanel implements Disposable {
   private static final int DIVIDER_WIDTH = 4;
@@ -56,6 +54,12 @@ public class HprofViewPanel implements Disposable {
   @NotNull private HeapTableManager myHeapTableManager;
   private GcRootTable myGcRootTable;
   private Snapshot mySnapshot;
+  private File myHprofFile;
+  private volatile boolean myDisposed;
+  /** Whether the dominators are known, or being loaded or computed; only accessed on the EDT */
+  private boolean myDominatorsComputed;
+  private boolean myDominatorsRunning;
+  @Nullable private volatile ProgressIndicator myDominatorsIndicator;
 
   public HprofViewPanel(@NotNull final Project project) {
     myProject = project;
@@ -98,14 +102,80 @@ public class HprofViewPanel implements Disposable {
     myContainer.add(mainSplitter);
   }
 
-  public void setSnapshot(@NotNull Snapshot snapshot) {
+  /**
+   * Shows the given snapshot of the given dump right away. If the dominators of the dump were computed when it was opened
+   * before, they are restored from its index in the background, otherwise they are only computed on request.
+   */
+  public void setSnapshot(@NotNull Snapshot snapshot, @NotNull File hprofFile) {
     mySnapshot = snapshot;
+    myHprofFile = hprofFile;
 
     myGcRootTable = new GcRootTable(mySnapshot);
     myNavigationTabs.addTab(new TabInfo(HeapTableManager.createNavigationSplitter(myGcRootTable, null)).setText("GC Roots")
-                              .setActions(new DefaultActionGroup(new ComputeDominatorAction(myProject)), ActionPlaces.UNKNOWN));
+                              .setActions(new DefaultActionGroup(new ComputeDominatorAction()), ActionPlaces.UNKNOWN));
 
     myHeapTableManager.setSnapshot(snapshot);
+    loadDominatorsInBackground(false);
+  }
+
+  /**
+   * Restores the dominators and retained sizes from the index of the dump, and if there is no index and {@code compute} is
+   * set, computes them and saves them to the index.
+   */
+  private void loadDominatorsInBackground(final boolean compute) {
+    final Snapshot snapshot = mySnapshot;
+    final File hprofFile = myHprofFile;
+    myDominatorsRunning = true;
+
+    ProgressManager.getInstance().run(new Task.Backgroundable(myProject, "Computing dominators...", true) {
+      private boolean myLoaded;
+
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        myDominatorsIndicator = indicator;
+        if (myDisposed) {
+          return;
+        }
+        indicator.setText("Loading dominators from index...");
+        indicator.setIndeterminate(false);
+        if (HprofIndex.load(snapshot, hprofFile, indicator)) {
+          myLoaded = true;
+          return;
+        }
+        if (!compute) {
+          return;
+        }
+        indicator.checkCanceled();
+        indicator.setText("Computing dominators...");
+        indicator.setIndeterminate(true);
+        // Snapshot.computeDominators can't be interrupted, so a cancellation only takes effect once it returns
+        snapshot.computeDominators();
+        myLoaded = true;
+        indicator.checkCanceled();
+        indicator.setText("Saving dominators to index...");
+        HprofIndex.save(snapshot, hprofFile);
+      }
+
+      @Override
+      public void onSuccess() {
+        finished();
+      }
+
+      @Override
+      public void onCancel() {
+        // The dominators may have been computed before saving them was cancelled
+        finished();
+      }
+
+      private void finished() {
+        myDominatorsRunning = false;
+        if (myLoaded && !myDisposed) {
+          myDominatorsComputed = true;
+          myHeapTableManager.notifyDominatorsComputed();
+          myGcRootTable.notifyDominatorsComputed();
+        }
+      }
+    });
   }
 
   @Nullable
@@ -131,70 +201,22 @@ public class HprofViewPanel implements Disposable {
 
   @Override
   public void dispose() {
-
-  }
-
-  private static class ComputeDominatorIndicator extends Task.Backgroundable {
-    @NotNull private final CountDownLatch myLatch;
-
-    public ComputeDominatorIndicator(@NotNull Project project) {
-      super(project, "Computing dominators...", true);
-      myLatch = new CountDownLatch(1);
-    }
-
-    public void exit() {
-      myLatch.countDown();
-    }
-
-    @Override
-    public void run(@NotNull ProgressIndicator indicator) {
-      indicator.setIndeterminate(true);
-
-      while (myLatch.getCount() > 0) {
-        try {
-          myLatch.await(200, TimeUnit.MILLISECONDS);
-        }
-        catch (InterruptedException e) {
-          exit();
-          break;
-        }
-      }
+    myDisposed = true;
+    ProgressIndicator indicator = myDominatorsIndicator;
+    if (indicator != null) {
+      indicator.cancel();
     }
   }
 
   private class ComputeDominatorAction extends ToggleAction {
-    @NotNull Project myProject;
-    private boolean myDominatorsComputed;
-
-    private ComputeDominatorAction(@NotNull Project project) {
+    private ComputeDominatorAction() {
       super(null, "Compute Dominators", AndroidIcons.Ddms.AllocationTracker);
-      myProject = project;
     }
 
     @Override
     public void update(@NotNull AnActionEvent e) {
       super.update(e);
-      if (!myDominatorsComputed && e.getInputEvent() != null) {
-        myDominatorsComputed = true;
-        final ComputeDominatorIndicator indicator = new ComputeDominatorIndicator(myProject);
-        ProgressManager.getInstance().run(indicator);
-
-        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
-          @Override
-          public void run() {
-            mySnapshot.computeDominators();
-
-            ApplicationManager.getApplication().invokeLater(new Runnable() {
-              @Override
-              public void run() {
-                myHeapTableManager.notifyDominatorsComputed();
-                myGcRootTable.notifyDominatorsComputed();
-                indicator.exit();
-              }
-            });
-          }
-        });
-      }
+      e.getPresentation().setEnabled(!myDominatorsComputed && !myDominatorsRunning);
     }
 
     @Override
@@ -204,7 +226,9 @@ public class HprofViewPanel implements Disposable {
 
     @Override
     public void setSelected(AnActionEvent e, boolean state) {
-      myDominatorsComputed |= state;
+      if (state && !myDominatorsComputed && !myDominatorsRunning) {
+        loadDominatorsInBackground(true);
+      }
     }
   }
 }
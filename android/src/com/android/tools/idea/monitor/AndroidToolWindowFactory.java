@@ -24,6 +24,7 @@ import com.android.tools.idea.ddms.actions.*;
 import com.android.tools.idea.ddms.adb.AdbService;
 import com.android.tools.idea.monitor.cpu.CpuMonitorView;
 import com.android.tools.idea.monitor.memory.MemoryMonitorView;
+import com.android.tools.idea.monitor.network.NetworkMonitorView;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -36,6 +37,7 @@ import com.intellij.execution.ui.ConsoleViewContentType;
 import com.intellij.execution.ui.RunnerLayoutUi;
 import com.intellij.execution.ui.layout.PlaceInGrid;
 import com.intellij.facet.ProjectFacetManager;
+import com.intellij.icons.AllIcons;
 import com.intellij.openapi.actionSystem.ActionGroup;
 import com.intellij.openapi.actionSystem.ActionPlaces;
 import com.intellij.openapi.actionSystem.DefaultActionGroup;
@@ -125,6 +127,9 @@ public class AndroidToolWindowFactory implements ToolWindowFactory, DumbAware {
     Content cpuContent = createCpuContent(layoutUi, project, deviceContext);
     layoutUi.addContent(cpuContent, 3, PlaceInGrid.center, false);
 
+    Content networkContent = createNetworkContent(layoutUi, project, deviceContext);
+    layoutUi.addContent(networkContent, 4, PlaceInGrid.center, false);
+
     layoutUi.getOptions().setLeftToolbar(getToolbarActions(project, deviceContext), ActionPlaces.UNKNOWN);
 
     final JBLoadingPanel loadingPanel = new JBLoadingPanel(new BorderLayout(), project);
@@ -212,6 +217,15 @@ public class AndroidToolWindowFactory implements ToolWindowFactory, DumbAware {
     return content;
   }
 
+  private static Content createNetworkContent(@NotNull RunnerLayoutUi layoutUi,
+                                              @NotNull Project project,
+                                              @NotNull DeviceContext deviceContext) {
+    NetworkMonitorView view = new NetworkMonitorView(project, deviceContext);
+    Content content = layoutUi.createContent("Network", view.createComponent(), "Network", AllIcons.General.Web, null);
+    content.setCloseable(false);
+    return content;
+  }
+
   @NotNull
   public ActionGroup getToolbarActions(Project project, DeviceContext deviceContext) {
     DefaultActionGroup group = new DefaultActionGroup();
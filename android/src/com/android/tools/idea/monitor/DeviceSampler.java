@@ -18,17 +18,17 @@ package com.android.tools.idea.monitor;
 import com.android.ddmlib.Client;
 import com.android.tools.chartlib.TimelineData;
 import com.google.common.collect.Lists;
-import com.intellij.openapi.application.ApplicationManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 
-public abstract class DeviceSampler implements Runnable {
+/**
+ * Records the samples of a metric of a client in its {@link TimelineData}. Samplers don't run threads of their own: all the
+ * samplers of a device are driven by the {@link SamplingScheduler} of the device.
+ */
+public abstract class DeviceSampler {
   /**
    * Sample type when the device cannot be seen.
    */
@@ -50,25 +50,24 @@ public abstract class DeviceSampler implements Runnable {
   @NotNull protected final List<TimelineEventListener> myListeners = Lists.newLinkedList();
   protected int mySampleFrequencyMs;
   /**
-   * The future representing the task being executed, which will return null upon successful completion.
-   * If null, no current task is being executed.
+   * The future representing the scheduled sampling, which stops it when cancelled.
+   * If null, the sampler is not scheduled.
    */
   @Nullable protected volatile Future<?> myExecutingTask;
   @Nullable protected volatile Client myClient;
-  @NotNull private final Semaphore myDataSemaphore;
+  @Nullable private volatile TimelineHistory myHistory;
   protected volatile boolean myRunning;
 
   public DeviceSampler(@NotNull TimelineData data, int sampleFrequencyMs) {
     myData = data;
     mySampleFrequencyMs = sampleFrequencyMs;
-    myDataSemaphore = new Semaphore(0, true);
   }
 
   @SuppressWarnings("ConstantConditions")
   public void start() {
-    if (myExecutingTask == null && myClient != null) {
+    if (myExecutingTask == null && myClient != null && myClient.getDevice() != null) {
       myRunning = true;
-      myExecutingTask = ApplicationManager.getApplication().executeOnPooledThread(this);
+      myExecutingTask = SamplingScheduler.schedule(myClient.getDevice(), createMetric(myClient));
       myClient.setHeapInfoUpdateEnabled(true);
 
       for (TimelineEventListener listener : myListeners) {
@@ -80,21 +79,12 @@ public abstract class DeviceSampler implements Runnable {
   @SuppressWarnings("ConstantConditions")
   public void stop() {
     if (myExecutingTask != null) {
-      myRunning = false;
-      myDataSemaphore.release();
-      myData.clear();
-
-      try {
-        // Wait for the task to finish.
-        myExecutingTask.get();
-      }
-      catch (InterruptedException e) {
-        // Ignore
-      }
-      catch (ExecutionException e) {
-        // Rethrow the original cause of the exception on this thread.
-        throw new RuntimeException(e.getCause());
+      synchronized (myData) {
+        myRunning = false;
+        myData.clear();
       }
+      // The scheduler may still pass on a sample which it was passing on while being cancelled, which addSample drops
+      myExecutingTask.cancel(false);
 
       if (myClient != null) {
         myClient.setHeapInfoUpdateEnabled(false);
@@ -111,10 +101,27 @@ public abstract class DeviceSampler implements Runnable {
       stop();
       myClient = client;
       myData.clear();
+      TimelineHistory history = myHistory;
+      if (history != null) {
+        history.clear();
+      }
       start();
     }
   }
 
+  /**
+   * Sets the history to which the samples are added as well, which keeps the complete recording rather than just the
+   * samples which fit in the timeline data
+   */
+  public void setHistory(@Nullable TimelineHistory history) {
+    myHistory = history;
+  }
+
+  @Nullable
+  public TimelineHistory getHistory() {
+    return myHistory;
+  }
+
   public void addListener(TimelineEventListener listener) {
     myListeners.add(listener);
   }
@@ -123,27 +130,59 @@ public abstract class DeviceSampler implements Runnable {
     return myExecutingTask != null && myRunning;
   }
 
-  protected void forceSample() {
-    myDataSemaphore.release();
+  /** Adds a sample to the timeline data and to the history, if any, unless the sampler has been stopped */
+  protected void addSample(long time, int type, float... values) {
+    synchronized (myData) {
+      if (!myRunning) {
+        return;
+      }
+      myData.add(time, type, values);
+      TimelineHistory history = myHistory;
+      if (history != null && type == TYPE_DATA) {
+        history.add(time, values);
+      }
+    }
   }
 
-  @Override
-  public void run() {
-    long timeToWait = mySampleFrequencyMs;
-    while (myRunning) {
-      try {
-        long start = System.currentTimeMillis();
-        boolean acquired = myDataSemaphore.tryAcquire(timeToWait, TimeUnit.MILLISECONDS);
-        if (myRunning) {
-          sample(acquired);
+  /**
+   * Returns the metric through which the {@link SamplingScheduler} of the client's device drives this sampler. By default,
+   * {@link #sample} is called at the sample frequency, without running a command on the device.
+   */
+  @NotNull
+  protected ShellMetric createMetric(@NotNull Client client) {
+    return new ShellMetric() {
+      @Override
+      public int getIntervalMs() {
+        return mySampleFrequencyMs;
+      }
+
+      @Nullable
+      @Override
+      public String getCommand() {
+        return null;
+      }
+
+      @Override
+      public void processSample(long time, @NotNull List<String> output) {
+        synchronized (DeviceSampler.this) {
+          sample(false);
         }
-        timeToWait -= System.currentTimeMillis() - start;
-        if (timeToWait <= 0) {
-          timeToWait = mySampleFrequencyMs;
+      }
+
+      @Override
+      public void processError(long time, @NotNull Exception e) {
+        synchronized (DeviceSampler.this) {
+          sample(false);
         }
       }
-      catch (InterruptedException e) {
-        myRunning = false;
+    };
+  }
+
+  /** Takes a sample right away, on the calling thread, rather than waiting for the next one to be scheduled */
+  protected void forceSample() {
+    synchronized (this) {
+      if (isRunning()) {
+        sample(true);
       }
     }
   }
@@ -154,5 +193,11 @@ public abstract class DeviceSampler implements Runnable {
   @NotNull
   public abstract String getDescription();
 
-  protected abstract void sample(boolean forced) throws InterruptedException;
+  /**
+   * Called by the default metric (see {@link #createMetric}) at every interval, and by {@link #forceSample}
+   *
+   * @param forced whether the sample was requested by {@link #forceSample}
+   */
+  protected void sample(boolean forced) {
+  }
 }
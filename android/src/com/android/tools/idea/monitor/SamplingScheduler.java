@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.MultiLineReceiver;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples all the {@link ShellMetric}s of a device with a single thread and a single shell.
+ * <p/>
+ * The commands of the metrics are combined into one script, which is run in a loop by a long-lived shell on devices whose
+ * shell supports fractional sleep intervals (API level 23 and up), and once per tick on older devices. Either way, the
+ * output of one pass of the script is time stamped with the uptime of the device at which it ran, mapped onto the clock
+ * of the host, such that the samples of all metrics line up and don't suffer from the latency of the connection.
+ */
+public class SamplingScheduler {
+  private static final Logger LOG = Logger.getInstance(SamplingScheduler.class);
+
+  /** Whether the metrics should be sampled by a long-lived shell, on devices which support it */
+  private static final boolean USE_STREAMING = !Boolean.getBoolean("android.monitor.streaming.disabled");
+  private static final int STREAMING_MIN_API_LEVEL = 23;
+
+  @VisibleForTesting static final String TICK = "@tick ";
+  @VisibleForTesting static final String END = "@end";
+  @VisibleForTesting static final String METRIC = "@m";
+
+  private static final Map<IDevice, SamplingScheduler> ourSchedulers = new HashMap<IDevice, SamplingScheduler>();
+
+  @NotNull private final IDevice myDevice;
+  /** The metrics being sampled, by the id which marks their output */
+  private final Map<Integer, ShellMetric> myMetrics = new LinkedHashMap<Integer, ShellMetric>();
+  private int myNextId;
+  /** Incremented whenever the metrics change, which requires the script to be rebuilt */
+  private int myGeneration;
+  private boolean myRunning;
+  private long myTick;
+
+  /** Difference between the host's wall clock and the device's uptime in milliseconds, or null if not known yet */
+  private Long myTimeOffset;
+  private long myLastSampleTime;
+
+  private SamplingScheduler(@NotNull IDevice device) {
+    myDevice = device;
+  }
+
+  /**
+   * Starts sampling the given metric on the given device, until the returned future is cancelled. The metric is called
+   * without holding any lock of the scheduler, so once cancelled it may still receive a sample which was being passed on
+   * at that time, but no later ones.
+   */
+  @NotNull
+  public static Future<?> schedule(@NotNull IDevice device, @NotNull final ShellMetric metric) {
+    final SamplingScheduler scheduler;
+    final int id;
+    synchronized (ourSchedulers) {
+      SamplingScheduler existing = ourSchedulers.get(device);
+      if (existing == null) {
+        existing = new SamplingScheduler(device);
+        ourSchedulers.put(device, existing);
+      }
+      scheduler = existing;
+      id = scheduler.add(metric);
+    }
+
+    SettableFuture<Void> future = SettableFuture.create();
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        scheduler.remove(id);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return future;
+  }
+
+  private synchronized int add(@NotNull ShellMetric metric) {
+    int id = myNextId++;
+    myMetrics.put(id, metric);
+    myGeneration++;
+    if (!myRunning) {
+      myRunning = true;
+      ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          SamplingScheduler.this.run();
+        }
+      });
+    }
+    return id;
+  }
+
+  private synchronized void remove(int id) {
+    myMetrics.remove(id);
+    myGeneration++;
+  }
+
+  private void run() {
+    boolean streaming = USE_STREAMING && supportsStreaming(myDevice);
+    while (true) {
+      Map<Integer, ShellMetric> metrics;
+      int generation;
+      synchronized (ourSchedulers) {
+        synchronized (this) {
+          if (myMetrics.isEmpty()) {
+            myRunning = false;
+            ourSchedulers.remove(myDevice);
+            return;
+          }
+          metrics = new LinkedHashMap<Integer, ShellMetric>(myMetrics);
+          generation = myGeneration;
+        }
+      }
+
+      int interval = getInterval(metrics.values());
+      try {
+        if (streaming) {
+          streaming = stream(metrics, generation, interval);
+        }
+        else {
+          poll(metrics, interval);
+        }
+      }
+      catch (InterruptedException e) {
+        synchronized (ourSchedulers) {
+          synchronized (this) {
+            myRunning = false;
+            ourSchedulers.remove(myDevice);
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  private static boolean supportsStreaming(@NotNull IDevice device) {
+    Integer apiLevel = Ints.tryParse(String.valueOf(device.getProperty(IDevice.PROP_BUILD_API_LEVEL)));
+    return apiLevel != null && apiLevel >= STREAMING_MIN_API_LEVEL;
+  }
+
+  /**
+   * Samples the metrics with a long-lived shell until they change.
+   *
+   * @return false if the shell stopped working, in which case the metrics should be polled instead
+   */
+  private boolean stream(@NotNull Map<Integer, ShellMetric> metrics, int generation, int interval) throws InterruptedException {
+    synchronized (this) {
+      myTimeOffset = null;
+    }
+    MetricsReceiver receiver = new MetricsReceiver(generation);
+    try {
+      myDevice.executeShellCommand(buildStreamingScript(metrics, interval), receiver, 0);
+    }
+    catch (Exception e) {
+      LOG.info("Unable to stream samples, falling back to polling", e);
+      return false;
+    }
+    if (!receiver.isCancelled()) {
+      if (receiver.getPasses() == 0) {
+        LOG.info("Streaming samples ended without output, falling back to polling");
+        return false;
+      }
+      // The shell was closed on the device; don't restart it in a tight loop
+      Thread.sleep(interval);
+    }
+    return true;
+  }
+
+  /** Samples the metrics which are due with one shell command */
+  private void poll(@NotNull Map<Integer, ShellMetric> metrics, int interval) throws InterruptedException {
+    long start = System.currentTimeMillis();
+    List<ShellMetric> due = Lists.newArrayList();
+    String script = buildPollingScript(metrics, interval, myTick++, due);
+
+    try {
+      myDevice.executeShellCommand(script, new MetricsReceiver(-1), 1, TimeUnit.SECONDS);
+    }
+    catch (Exception e) {
+      long time = System.currentTimeMillis();
+      List<ShellMetric> failed = Lists.newArrayList();
+      synchronized (this) {
+        for (ShellMetric metric : due) {
+          if (myMetrics.containsValue(metric)) {
+            failed.add(metric);
+          }
+        }
+      }
+      for (ShellMetric metric : failed) {
+        metric.processError(time, e);
+      }
+    }
+
+    long wait = start + interval - System.currentTimeMillis();
+    if (wait > 0) {
+      Thread.sleep(wait);
+    }
+  }
+
+  /** Returns the interval of the script, which is the one of the metric sampled most often */
+  @VisibleForTesting
+  static int getInterval(@NotNull Collection<ShellMetric> metrics) {
+    int interval = Integer.MAX_VALUE;
+    for (ShellMetric metric : metrics) {
+      interval = Math.min(interval, Math.max(1, metric.getIntervalMs()));
+    }
+    return interval;
+  }
+
+  /** Returns every how many passes of a script with the given interval the given metric is due */
+  private static int getDivisor(@NotNull ShellMetric metric, int interval) {
+    return Math.max(1, Math.round((float)metric.getIntervalMs() / interval));
+  }
+
+  /** Builds the script which samples the given metrics in a loop, every given interval */
+  @VisibleForTesting
+  @NotNull
+  static String buildStreamingScript(@NotNull Map<Integer, ShellMetric> metrics, int interval) {
+    StringBuilder script = new StringBuilder("i=0; while read up idle < /proc/uptime; do echo \"" + TICK + "$up\"; ");
+    for (Map.Entry<Integer, ShellMetric> entry : metrics.entrySet()) {
+      int divisor = getDivisor(entry.getValue(), interval);
+      if (divisor > 1) {
+        script.append("if [ $((i % ").append(divisor).append(")) -eq 0 ]; then ");
+      }
+      appendCommand(script, entry.getKey(), entry.getValue());
+      if (divisor > 1) {
+        script.append("fi; ");
+      }
+    }
+    script.append("echo ").append(END).append("; i=$((i + 1)); ");
+    script.append("sleep ").append(interval / 1000).append('.').append(String.format(Locale.US, "%03d", interval % 1000));
+    script.append("; done");
+    return script.toString();
+  }
+
+  /**
+   * Builds the script which samples the metrics due at the given tick once
+   *
+   * @param due the list to which the metrics sampled by the script are added
+   */
+  @VisibleForTesting
+  @NotNull
+  static String buildPollingScript(@NotNull Map<Integer, ShellMetric> metrics, int interval, long tick, @NotNull List<ShellMetric> due) {
+    StringBuilder script = new StringBuilder("read up idle < /proc/uptime; echo \"" + TICK + "$up\"; ");
+    for (Map.Entry<Integer, ShellMetric> entry : metrics.entrySet()) {
+      if (tick % getDivisor(entry.getValue(), interval) == 0) {
+        appendCommand(script, entry.getKey(), entry.getValue());
+        due.add(entry.getValue());
+      }
+    }
+    script.append("echo ").append(END);
+    return script.toString();
+  }
+
+  private static void appendCommand(@NotNull StringBuilder script, int id, @NotNull ShellMetric metric) {
+    script.append("echo ").append(METRIC).append(id).append("; ");
+    String command = metric.getCommand();
+    if (command != null) {
+      script.append(command).append("; ");
+    }
+  }
+
+  /** Converts an uptime of the device to the host's clock, which is what the samples of the other monitors use */
+  private long toHostTime(long deviceUptimeMs) {
+    assert Thread.holdsLock(this);
+    // The smallest difference is the one of the sample which took the least time to arrive
+    long offset = System.currentTimeMillis() - deviceUptimeMs;
+    if (myTimeOffset == null || offset < myTimeOffset) {
+      myTimeOffset = offset;
+    }
+    myLastSampleTime = Math.max(myLastSampleTime, myTimeOffset + deviceUptimeMs);
+    return myLastSampleTime;
+  }
+
+  /**
+   * Passes the output of a pass of the script on to the metrics which are still sampled. The metrics are called after
+   * releasing the lock, such that a slow metric doesn't hold up the scheduling of the others, and a metric may call back
+   * into the scheduler.
+   */
+  private void dispatch(long uptimeMs, @NotNull Map<Integer, List<String>> output) {
+    long time;
+    List<Pair<ShellMetric, List<String>>> samples = Lists.newArrayListWithCapacity(output.size());
+    synchronized (this) {
+      time = toHostTime(uptimeMs);
+      for (Map.Entry<Integer, List<String>> entry : output.entrySet()) {
+        ShellMetric metric = myMetrics.get(entry.getKey());
+        if (metric != null) {
+          samples.add(Pair.create(metric, entry.getValue()));
+        }
+      }
+    }
+    for (Pair<ShellMetric, List<String>> sample : samples) {
+      sample.first.processSample(time, sample.second);
+    }
+  }
+
+  /** Splits the output of the script into the output of the metrics, and reports it after every complete pass */
+  @VisibleForTesting
+  abstract static class ScriptReceiver extends MultiLineReceiver {
+    @NotNull private Map<Integer, List<String>> myOutput = new LinkedHashMap<Integer, List<String>>();
+    @Nullable private List<String> myCurrent;
+    private long myUptimeMs = -1;
+    private int myPasses;
+
+    /**
+     * Called after every complete pass of the script
+     *
+     * @param uptimeMs the uptime of the device at which the pass started
+     * @param output   the lines printed by the commands of the metrics, by the ids of the metrics
+     */
+    protected abstract void processPass(long uptimeMs, @NotNull Map<Integer, List<String>> output);
+
+    /** Returns the number of complete passes received so far */
+    int getPasses() {
+      return myPasses;
+    }
+
+    @Override
+    public void processNewLines(@NotNull String[] lines) {
+      for (String line : lines) {
+        if (line.startsWith(TICK)) {
+          try {
+            myUptimeMs = Math.round(Double.parseDouble(line.substring(TICK.length()).trim()) * 1000);
+          }
+          catch (NumberFormatException e) {
+            LOG.debug(e);
+            myUptimeMs = -1;
+          }
+          startPass();
+        }
+        else if (line.equals(END)) {
+          if (myUptimeMs >= 0) {
+            myPasses++;
+            processPass(myUptimeMs, myOutput);
+          }
+          startPass();
+          myUptimeMs = -1;
+        }
+        else if (line.startsWith(METRIC)) {
+          Integer id = Ints.tryParse(line.substring(METRIC.length()));
+          myCurrent = id != null ? new ArrayList<String>() : null;
+          if (id != null) {
+            myOutput.put(id, myCurrent);
+          }
+        }
+        else if (myCurrent != null) {
+          myCurrent.add(line);
+        }
+      }
+    }
+
+    private void startPass() {
+      // The output of the previous pass may still be referenced by the metrics
+      myOutput = new LinkedHashMap<Integer, List<String>>();
+      myCurrent = null;
+    }
+  }
+
+  /** Receives the output of the script for the metrics of this scheduler */
+  private class MetricsReceiver extends ScriptReceiver {
+    private final int myGeneration;
+
+    /**
+     * @param generation the generation of the metrics the script was built for, after which the receiver cancels the
+     *                   script, or -1 if the script runs once
+     */
+    MetricsReceiver(int generation) {
+      myGeneration = generation;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      synchronized (SamplingScheduler.this) {
+        return myGeneration >= 0 && myGeneration != SamplingScheduler.this.myGeneration;
+      }
+    }
+
+    @Override
+    protected void processPass(long uptimeMs, @NotNull Map<Integer, List<String>> output) {
+      dispatch(uptimeMs, output);
+    }
+  }
+}
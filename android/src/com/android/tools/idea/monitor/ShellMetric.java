@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * A source of samples which is sampled by the {@link SamplingScheduler} of a device, together with all the other metrics
+ * of the device, over a single shell connection.
+ */
+public interface ShellMetric {
+  /** Returns the interval at which the metric should be sampled, in milliseconds */
+  int getIntervalMs();
+
+  /**
+   * Returns the shell command which prints the current value of the metric, or null if the metric only needs to be called
+   * at its interval. The command runs as part of a larger script, so it should not exit, and preferably uses shell
+   * builtins only, since forking a process on every sample is expensive. The variables {@code i}, {@code up} and
+   * {@code idle} are used by the script itself.
+   */
+  @Nullable
+  String getCommand();
+
+  /**
+   * Called with the output of the command
+   *
+   * @param time   the time at which the sample was taken, as the time of the host (see {@link SamplingScheduler})
+   * @param output the lines printed by the command
+   */
+  void processSample(long time, @NotNull List<String> output);
+
+  /** Called when the device could not be sampled */
+  void processError(long time, @NotNull Exception e);
+}
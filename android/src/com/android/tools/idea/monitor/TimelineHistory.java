@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor;
+
+import com.android.annotations.VisibleForTesting;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The complete recording of a monitor, for sessions which run much longer than the window of samples kept by its
+ * {@link com.android.tools.chartlib.TimelineData}.
+ * <p/>
+ * Recent samples are kept as they are, in a ring buffer. All samples are also rolled up into buckets of one second, ten
+ * seconds, a minute and ten minutes, which keep the minimum, maximum and average of each stream, such that two months
+ * of samples take less than two megabytes. Everything is stored in primitive arrays which are allocated up front.
+ * <p/>
+ * Only samples of type {@link DeviceSampler#TYPE_DATA} are recorded; the other types mark gaps in the data.
+ */
+public class TimelineHistory {
+  /** Number of samples kept as they are */
+  private static final int RAW_CAPACITY = Integer.getInteger("android.monitor.history.raw.samples", 16 * 1024);
+
+  /** Bucket durations of the rollups, finest first */
+  private static final long[] RESOLUTIONS_MS = {1000L, 10 * 1000L, 60 * 1000L, 10 * 60 * 1000L};
+  /** Number of buckets of each rollup: an hour, a day, a week and two months respectively */
+  private static final int[] CAPACITIES = {60 * 60, 24 * 60 * 6, 7 * 24 * 60, 61 * 24 * 6};
+
+  @NotNull private final String[] myStreamNames;
+  /** The raw samples followed by the rollups, finest first */
+  @NotNull private final Tier[] myTiers;
+
+  /**
+   * @param streamNames the names of the streams of the samples, which are used as the column headers of the export
+   */
+  public TimelineHistory(@NotNull String... streamNames) {
+    this(RAW_CAPACITY, RESOLUTIONS_MS, CAPACITIES, streamNames);
+  }
+
+  @VisibleForTesting
+  TimelineHistory(int rawCapacity, @NotNull long[] resolutions, @NotNull int[] capacities, @NotNull String... streamNames) {
+    myStreamNames = streamNames;
+    myTiers = new Tier[resolutions.length + 1];
+    myTiers[0] = new Tier(0, rawCapacity, streamNames.length);
+    for (int i = 0; i < resolutions.length; i++) {
+      myTiers[i + 1] = new Tier(resolutions[i], capacities[i], streamNames.length);
+    }
+  }
+
+  public int getStreamCount() {
+    return myStreamNames.length;
+  }
+
+  public synchronized void add(long time, @NotNull float... values) {
+    assert values.length == myStreamNames.length;
+    for (Tier tier : myTiers) {
+      tier.add(time, values);
+    }
+  }
+
+  public synchronized void clear() {
+    for (Tier tier : myTiers) {
+      tier.clear();
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    return myTiers[0].mySize == 0;
+  }
+
+  /** Returns the time of the oldest sample still covered by the history, or 0 if it is empty */
+  public synchronized long getStartTime() {
+    Tier coarsest = myTiers[myTiers.length - 1];
+    return coarsest.mySize == 0 ? 0 : coarsest.getTime(0);
+  }
+
+  /** Returns the time of the most recent sample, or 0 if the history is empty */
+  public synchronized long getEndTime() {
+    Tier raw = myTiers[0];
+    return raw.mySize == 0 ? 0 : raw.getTime(raw.mySize - 1);
+  }
+
+  /**
+   * Returns the samples between the given times at the finest resolution which still covers the start time and yields
+   * at most {@code maxPoints} points, such that a chart can show any zoom level at a cost bounded by its width. The series
+   * starts with the sample or bucket at or before the start time, such that it can be drawn up to the edge of the chart.
+   */
+  @NotNull
+  public synchronized Series getSeries(long start, long end, int maxPoints) {
+    Tier selected = null;
+    for (Tier tier : myTiers) {
+      if (tier.mySize == 0 || tier.getTime(0) > start && tier != myTiers[myTiers.length - 1]) {
+        // Doesn't go back far enough
+        continue;
+      }
+      selected = tier;
+      if (tier.indexAfter(end) - tier.indexAtOrBefore(start) <= maxPoints) {
+        break;
+      }
+    }
+    if (selected == null) {
+      return new Series(0, 0, myStreamNames.length);
+    }
+    int from = selected.indexAtOrBefore(start);
+    int to = selected.indexAfter(end);
+    Series series = new Series(selected.myResolution, to - from, myStreamNames.length);
+    for (int i = from; i < to; i++) {
+      selected.copy(i, series, i - from);
+    }
+    return series;
+  }
+
+  /**
+   * Writes the complete history as comma separated values, each period at the finest resolution still available: the
+   * oldest part of a long session in ten minute buckets, up to the most recent samples as they were recorded.
+   */
+  public void export(@NotNull Writer writer) throws IOException {
+    StringBuilder sb = new StringBuilder("time,resolution_ms");
+    for (String name : myStreamNames) {
+      sb.append(',').append(name).append(" min,").append(name).append(" max,").append(name).append(" avg");
+    }
+    writer.write(sb.append('\n').toString());
+
+    synchronized (this) {
+      // Each tier covers the time before the oldest sample of the next finer one
+      int[] ends = new int[myTiers.length];
+      long until = Long.MAX_VALUE;
+      for (int t = 0; t < myTiers.length; t++) {
+        Tier tier = myTiers[t];
+        ends[t] = tier.indexAfter(until - 1);
+        if (ends[t] > 0) {
+          until = tier.getTime(0);
+        }
+      }
+      for (int t = myTiers.length - 1; t >= 0; t--) {
+        Tier tier = myTiers[t];
+        for (int i = 0; i < ends[t]; i++) {
+          int slot = tier.getSlot(i);
+          sb.setLength(0);
+          sb.append(tier.myTimes[slot]).append(',').append(tier.myResolution);
+          for (int s = 0; s < myStreamNames.length; s++) {
+            int value = slot * myStreamNames.length + s;
+            sb.append(',').append(tier.myMin[value]).append(',').append(tier.myMax[value]);
+            sb.append(',').append(tier.mySum[value] / tier.myCounts[slot]);
+          }
+          writer.write(sb.append('\n').toString());
+        }
+      }
+    }
+  }
+
+  /** A range of the history at a single resolution */
+  public static class Series {
+    private final long myResolution;
+    @NotNull private final long[] myTimes;
+    @NotNull private final float[][] myMin;
+    @NotNull private final float[][] myMax;
+    @NotNull private final float[][] myAverage;
+
+    private Series(long resolution, int size, int streams) {
+      myResolution = resolution;
+      myTimes = new long[size];
+      myMin = new float[streams][size];
+      myMax = new float[streams][size];
+      myAverage = new float[streams][size];
+    }
+
+    /** Returns the duration of the buckets of this series in milliseconds, or 0 if it consists of the raw samples */
+    public long getResolution() {
+      return myResolution;
+    }
+
+    public int size() {
+      return myTimes.length;
+    }
+
+    /** Returns the time of a sample, or the start time of a bucket */
+    public long getTime(int index) {
+      return myTimes[index];
+    }
+
+    public float getMin(int stream, int index) {
+      return myMin[stream][index];
+    }
+
+    public float getMax(int stream, int index) {
+      return myMax[stream][index];
+    }
+
+    public float getAverage(int stream, int index) {
+      return myAverage[stream][index];
+    }
+  }
+
+  /** A ring buffer of buckets of a fixed duration, or of the raw samples if the duration is 0 */
+  private static class Tier {
+    private final long myResolution;
+    private final int myStreams;
+    @NotNull private final long[] myTimes;
+    @NotNull private final int[] myCounts;
+    @NotNull private final float[] myMin;
+    @NotNull private final float[] myMax;
+    @NotNull private final float[] mySum;
+    private int myHead;
+    private int mySize;
+
+    Tier(long resolution, int capacity, int streams) {
+      myResolution = resolution;
+      myStreams = streams;
+      myTimes = new long[capacity];
+      myCounts = new int[capacity];
+      myMin = new float[capacity * streams];
+      myMax = new float[capacity * streams];
+      mySum = new float[capacity * streams];
+    }
+
+    void add(long time, @NotNull float[] values) {
+      if (myResolution > 0 && mySize > 0) {
+        int last = getSlot(mySize - 1);
+        // Samples which arrive out of order are added to the last bucket
+        if (time < myTimes[last] + myResolution) {
+          merge(last, values);
+          return;
+        }
+      }
+      int slot;
+      if (mySize < myTimes.length) {
+        slot = getSlot(mySize++);
+      }
+      else {
+        slot = myHead;
+        myHead = (myHead + 1) % myTimes.length;
+      }
+      myTimes[slot] = myResolution > 0 ? time - time % myResolution : time;
+      myCounts[slot] = 1;
+      System.arraycopy(values, 0, myMin, slot * myStreams, myStreams);
+      System.arraycopy(values, 0, myMax, slot * myStreams, myStreams);
+      System.arraycopy(values, 0, mySum, slot * myStreams, myStreams);
+    }
+
+    private void merge(int slot, @NotNull float[] values) {
+      myCounts[slot]++;
+      for (int s = 0; s < myStreams; s++) {
+        int i = slot * myStreams + s;
+        myMin[i] = Math.min(myMin[i], values[s]);
+        myMax[i] = Math.max(myMax[i], values[s]);
+        mySum[i] += values[s];
+      }
+    }
+
+    void clear() {
+      myHead = 0;
+      mySize = 0;
+    }
+
+    int getSlot(int index) {
+      return (myHead + index) % myTimes.length;
+    }
+
+    long getTime(int index) {
+      return myTimes[getSlot(index)];
+    }
+
+    /** Returns the index of the first bucket which starts after the given time */
+    int indexAfter(long time) {
+      int low = 0;
+      int high = mySize;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (getTime(mid) <= time) {
+          low = mid + 1;
+        }
+        else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /** Returns the index of the bucket which contains the given time, or of the first bucket if they are all later */
+    int indexAtOrBefore(long time) {
+      return Math.max(0, indexAfter(time) - 1);
+    }
+
+    void copy(int index, @NotNull Series series, int target) {
+      int slot = getSlot(index);
+      series.myTimes[target] = myTimes[slot];
+      for (int s = 0; s < myStreams; s++) {
+        int i = slot * myStreams + s;
+        series.myMin[s][target] = myMin[i];
+        series.myMax[s][target] = myMax[i];
+        series.myAverage[s][target] = mySum[i] / myCounts[slot];
+      }
+    }
+  }
+}
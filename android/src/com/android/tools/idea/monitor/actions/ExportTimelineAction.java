@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor.actions;
+
+import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.TimelineHistory;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Saves the complete recording of a monitor, as kept by its {@link TimelineHistory}, as a CSV file.
+ */
+public class ExportTimelineAction extends AnAction {
+  private static final Logger LOG = Logger.getInstance(ExportTimelineAction.class);
+
+  @NotNull private final Project myProject;
+  @NotNull private final DeviceSampler myDeviceSampler;
+
+  public ExportTimelineAction(@NotNull Project project, @NotNull DeviceSampler deviceSampler) {
+    super("Export", "Exports the recorded " + deviceSampler.getDescription() + " as CSV.", AllIcons.Actions.Menu_saveall);
+    myProject = project;
+    myDeviceSampler = deviceSampler;
+  }
+
+  @Override
+  public void update(AnActionEvent e) {
+    TimelineHistory history = myDeviceSampler.getHistory();
+    e.getPresentation().setEnabled(history != null && !history.isEmpty());
+  }
+
+  @Override
+  public void actionPerformed(AnActionEvent e) {
+    final TimelineHistory history = myDeviceSampler.getHistory();
+    if (history == null) {
+      return;
+    }
+    FileSaverDescriptor descriptor =
+      new FileSaverDescriptor("Export " + myDeviceSampler.getName(), "Select a location for the exported samples", "csv");
+    VirtualFileWrapper fileWrapper = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, myProject).save(null, "samples.csv");
+    if (fileWrapper == null) {
+      return;
+    }
+
+    final File file = fileWrapper.getFile();
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Writer writer = Files.newWriter(file, Charsets.UTF_8);
+          try {
+            history.export(writer);
+          }
+          finally {
+            writer.close();
+          }
+        }
+        catch (final IOException ex) {
+          LOG.info(ex);
+          ApplicationManager.getApplication().invokeLater(new Runnable() {
+            @Override
+            public void run() {
+              Messages.showErrorDialog(myProject, "Unable to export samples: " + ex.getMessage(), "Export");
+            }
+          });
+        }
+      }
+    });
+  }
+}
@@ -21,6 +21,7 @@ import com.android.tools.chartlib.EventData;
 import com.android.tools.idea.ddms.DeviceContext;
 import com.android.tools.idea.ddms.actions.ToggleMethodProfilingAction;
 import com.android.tools.idea.monitor.*;
+import com.android.tools.idea.monitor.actions.ExportTimelineAction;
 import com.android.tools.idea.monitor.actions.RecordingAction;
 import com.android.tools.chartlib.TimelineComponent;
 import com.android.tools.chartlib.TimelineData;
@@ -44,7 +45,8 @@ public class CpuMonitorView extends BaseMonitorView implements TimelineEventList
    */
   public static final int SAMPLES = 2048;
   private static final Color BACKGROUND_COLOR = UIUtil.getTextFieldBackground();
-  private static final int SAMPLE_FREQUENCY_MS = 500;
+  /** Sample interval; devices which are sampled by a long-lived shell (see {@link SamplingScheduler}) allow well below 100ms */
+  private static final int SAMPLE_FREQUENCY_MS = Integer.getInteger("android.monitor.cpu.sample.ms", 500);
   @NotNull private final CpuSampler myCpuSampler;
   private final DeviceContext myDeviceContext;
 
@@ -69,6 +71,7 @@ public class CpuMonitorView extends BaseMonitorView implements TimelineEventList
 
     myCpuSampler = new CpuSampler(data, SAMPLE_FREQUENCY_MS);
     myCpuSampler.addListener(this);
+    myCpuSampler.setHistory(new TimelineHistory("Kernel", "User"));
 
     myDeviceContext = deviceContext;
     myDeviceContext.addListener(this, project);
@@ -80,6 +83,7 @@ public class CpuMonitorView extends BaseMonitorView implements TimelineEventList
     if (Boolean.getBoolean(ENABLE_EXPERIMENTAL_ACTIONS)) {
       group.add(new RecordingAction(myCpuSampler));
     }
+    group.add(new ExportTimelineAction(myProject, myCpuSampler));
 
     group.add(new ToggleMethodProfilingAction(myProject, myDeviceContext));
     //group.add(new MyThreadDumpAction()); // thread dump -> systrace
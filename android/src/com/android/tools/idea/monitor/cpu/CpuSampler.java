@@ -15,15 +15,15 @@
  */
 package com.android.tools.idea.monitor.cpu;
 
-import com.android.ddmlib.*;
-import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.ddmlib.Client;
 import com.android.tools.chartlib.TimelineData;
+import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.ShellMetric;
 import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.IOException;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 public class CpuSampler extends DeviceSampler {
   /**
@@ -55,49 +55,16 @@ public class CpuSampler extends DeviceSampler {
     return "cpu usage information";
   }
 
+  @NotNull
   @Override
-  protected void sample(boolean forced) throws InterruptedException {
-    if (myClient == null) {
-      return;
-    }
-
-    //noinspection ConstantConditions
-    IDevice device = myClient.getDevice();
-    //noinspection ConstantConditions
-    ClientData data = myClient.getClientData();
-
-    Long kernelCpuUsage = null;
-    Long userCpuUsage = null;
-    Long totalUptime = null;
-
-    int type = TYPE_DATA;
-
-    if (device != null) {
-      try {
-        int pid = data.getPid();
-        ProcessStatReceiver dumpsysReceiver = new ProcessStatReceiver(pid);
-        device.executeShellCommand("cat /proc/" + pid + "/stat", dumpsysReceiver, 1, TimeUnit.SECONDS);
-        kernelCpuUsage = dumpsysReceiver.getKernelCpuUsage();
-        userCpuUsage = dumpsysReceiver.getUserCpuUsage();
-
-        SystemStatReceiver systemStatReceiver = new SystemStatReceiver();
-        device.executeShellCommand("cat /proc/stat", systemStatReceiver, 1, TimeUnit.SECONDS);
-        totalUptime = systemStatReceiver.getTotalUptime();
-      }
-      catch (TimeoutException e) {
-        type = TYPE_TIMEOUT;
-      }
-      catch (AdbCommandRejectedException e) {
-        type = TYPE_ERROR;
-      }
-      catch (ShellCommandUnresponsiveException e) {
-        type = TYPE_UNREACHABLE;
-      }
-      catch (IOException e) {
-        type = TYPE_UNREACHABLE;
-      }
-    }
+  protected ShellMetric createMetric(@NotNull Client client) {
+    previousKernelUsage = null;
+    previousUserUsage = null;
+    previousTotalUptime = null;
+    return new CpuMetric(client.getClientData().getPid());
+  }
 
+  private void addUsageSample(long time, int type, @Nullable Long kernelCpuUsage, @Nullable Long userCpuUsage, @Nullable Long totalUptime) {
     if (kernelCpuUsage != null && userCpuUsage != null && totalUptime != null) {
       if (previousKernelUsage != null && previousUserUsage != null && previousTotalUptime != null) {
         long totalTimeDiff = totalUptime - previousTotalUptime;
@@ -106,7 +73,7 @@ public class CpuSampler extends DeviceSampler {
           kernelPercentUsage = Math.max(Math.min(kernelPercentUsage, 100.0f), 0.0f);
           float userPercentUsage = (float)(userCpuUsage - previousUserUsage) * 100.0f / (float)totalTimeDiff;
           userPercentUsage = Math.max(Math.min(userPercentUsage, 100.0f), 0.0f);
-          myData.add(System.currentTimeMillis(), type, kernelPercentUsage, userPercentUsage);
+          addSample(time, type, kernelPercentUsage, userPercentUsage);
         }
       }
       previousKernelUsage = kernelCpuUsage;
@@ -117,95 +84,110 @@ public class CpuSampler extends DeviceSampler {
       synchronized (myData) {
         if (myData.size() > 0) {
           TimelineData.Sample lastSample = myData.get(myData.size() - 1);
-          myData.add(System.currentTimeMillis(), TYPE_NOT_FOUND, lastSample.values[0], lastSample.values[1]);
+          addSample(time, TYPE_NOT_FOUND, lastSample.values[0], lastSample.values[1]);
         }
       }
     }
   }
 
   /**
-   * Output receiver for contents in the "/proc/[pid]/stat" pseudo file.
+   * Parses a line of the "/proc/[pid]/stat" pseudo file.
+   *
+   * @return the user and kernel cpu ticks of the process, or <code>null</code> if they cannot be determined
    */
-  static final class ProcessStatReceiver extends MultiLineReceiver {
-    private final int myPid;
-    private Long myUserCpuTicks;
-    private Long myKernelCpuTicks;
-
-    private ProcessStatReceiver(int pid) {
-      myPid = pid;
+  @Nullable
+  static long[] parseProcessStat(@NotNull String line, int expectedPid) {
+    // The second field is the name of the process in parentheses, which may contain spaces and parentheses itself
+    int nameStart = line.indexOf(" (");
+    int nameEnd = line.lastIndexOf(") ");
+    if (nameStart < 0 || nameEnd < nameStart) {
+      return null;
     }
+    String[] tokens = line.substring(nameEnd + 2).split("\\s+");
+    if (tokens.length >= 13) {
+      // Refer to Linux proc man page for the contents at the specified indices; the tokens start with the third field.
+      int pid = Integer.parseInt(line.substring(0, nameStart).trim());
+      if (pid != expectedPid) {
+        LOG.warn("Invalid pid.");
+        return null;
+      }
 
-    /**
-     * Get the parsed user space CPU usage.
-     *
-     * @return user cpu usage or <code>null</code> if it cannot be determined
-     */
-    @Nullable
-    public Long getUserCpuUsage() {
-      return myUserCpuTicks;
+      return new long[]{Long.parseLong(tokens[11]), Long.parseLong(tokens[12])};
     }
+    return null;
+  }
 
-    /**
-     * Get the parsed kernel space CPU usage.
-     *
-     * @return kernel cpu usage or <code>null</code> if it cannot be determined
-     */
-    @Nullable
-    public Long getKernelCpuUsage() {
-      return myKernelCpuTicks;
-    }
+  /**
+   * Parses the aggregated cpu line of the "/proc/stat" pseudo file.
+   *
+   * @return the total uptime of all cpus, or <code>null</code> if the line is not the aggregated cpu line
+   */
+  @Nullable
+  static Long parseTotalUptime(@NotNull String line) {
+    long totalUptime = 0l;
 
-    @Override
-    public boolean isCancelled() {
-      return false;
+    String[] tokens = line.split("\\s+");
+    if (tokens.length < 11 || !tokens[0].equals("cpu")) {
+      return null;
     }
 
-    @Override
-    public void processNewLines(@NotNull String[] lines) {
-      String[] tokens = lines[0].split("\\s+");
-      if (tokens.length >= 15) {
-        // Refer to Linux proc man page for the contents at the specified indices.
-        Integer pid = Integer.parseInt(tokens[0]);
-        if (pid != myPid) {
-          LOG.warn("Invalid pid.");
-          return;
-        }
-
-        myUserCpuTicks = Long.parseLong(tokens[13]);
-        myKernelCpuTicks = Long.parseLong(tokens[14]);
-      }
+    // Assuming total uptime is the sum of all given numerical values on the aggregated CPU line.
+    for (int i = 1; i < tokens.length; ++i) {
+      totalUptime += Long.parseLong(tokens[i]);
     }
+    return totalUptime;
   }
 
   /**
-   * Output receiver for contents in the "/proc/stat" pseudo file.
+   * Reads the stat line of the process and the aggregated cpu line of the system with shell builtins. If the process is
+   * gone, only the latter is printed.
    */
-  static final class SystemStatReceiver extends MultiLineReceiver {
-    private Long myTotalUptime = null;
+  private class CpuMetric implements ShellMetric {
+    private final int myPid;
 
-    public Long getTotalUptime() {
-      return myTotalUptime;
+    CpuMetric(int pid) {
+      myPid = pid;
     }
 
     @Override
-    public boolean isCancelled() {
-      return false;
+    public int getIntervalMs() {
+      return mySampleFrequencyMs;
     }
 
+    @NotNull
     @Override
-    public void processNewLines(String[] lines) {
-      long totalUptime = 0l;
+    public String getCommand() {
+      return "read st 2>/dev/null < /proc/" + myPid + "/stat && echo \"$st\"; read cpu < /proc/stat && echo \"$cpu\"";
+    }
 
-      String[] tokens = lines[0].split("\\s+");
-      if (tokens.length < 11 || !tokens[0].equals("cpu")) {
-        return;
+    @Override
+    public void processSample(long time, @NotNull List<String> output) {
+      long[] processTicks = null;
+      Long totalUptime = null;
+      try {
+        for (String line : output) {
+          if (line.startsWith("cpu")) {
+            totalUptime = parseTotalUptime(line);
+          }
+          else {
+            processTicks = parseProcessStat(line, myPid);
+          }
+        }
       }
-
-      // Assuming total uptime is the sum of all given numerical values on the aggregated CPU line.
-      for (int i = 1; i < tokens.length; ++i) {
-        totalUptime += Long.parseLong(tokens[i]);
+      catch (NumberFormatException e) {
+        LOG.debug(e);
       }
-      myTotalUptime = totalUptime;
+      if (processTicks != null && totalUptime != null) {
+        addUsageSample(time, TYPE_DATA, processTicks[1], processTicks[0], totalUptime);
+      }
+      else {
+        addUsageSample(time, TYPE_NOT_FOUND, null, null, null);
+      }
+    }
+
+    @Override
+    public void processError(long time, @NotNull Exception e) {
+      addUsageSample(time, TYPE_ERROR, null, null, null);
     }
   }
 }
@@ -27,6 +27,8 @@ import com.android.tools.idea.ddms.hprof.DumpHprofAction;
 import com.android.tools.idea.monitor.BaseMonitorView;
 import com.android.tools.idea.monitor.DeviceSampler;
 import com.android.tools.idea.monitor.TimelineEventListener;
+import com.android.tools.idea.monitor.TimelineHistory;
+import com.android.tools.idea.monitor.actions.ExportTimelineAction;
 import com.android.tools.idea.monitor.actions.RecordingAction;
 import com.android.tools.idea.monitor.memory.actions.ToggleDebugRender;
 import com.intellij.openapi.actionSystem.ActionGroup;
@@ -84,6 +86,7 @@ public class MemoryMonitorView extends BaseMonitorView
 
     myMemorySampler = new MemorySampler(data, SAMPLE_FREQUENCY_MS);
     myMemorySampler.addListener(this);
+    myMemorySampler.setHistory(new TimelineHistory("Allocated", "Free"));
 
     myContentPane.addHierarchyListener(this);
 
@@ -97,6 +100,7 @@ public class MemoryMonitorView extends BaseMonitorView
     if (Boolean.getBoolean(ENABLE_EXPERIMENTAL_ACTIONS)) {
       group.add(new RecordingAction(myMemorySampler));
     }
+    group.add(new ExportTimelineAction(myProject, myMemorySampler));
     group.add(new GcAction(myDeviceContext));
     group.add(new DumpHprofAction(myProject, myDeviceContext, myEvents));
     group.add(new ToggleAllocationTrackingAction(myDeviceContext));
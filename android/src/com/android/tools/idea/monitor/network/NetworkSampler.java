@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor.network;
+
+import com.android.ddmlib.Client;
+import com.android.tools.chartlib.TimelineData;
+import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.ShellMetric;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Samples the network traffic of the app, as accounted per uid by the kernel in "/proc/net/xt_qtaguid/stats".
+ */
+public class NetworkSampler extends DeviceSampler {
+  private static final Logger LOG = Logger.getInstance(NetworkSampler.class);
+
+  private long myPreviousTime = -1;
+  private long myPreviousRxBytes;
+  private long myPreviousTxBytes;
+
+  public NetworkSampler(@NotNull TimelineData data, int sampleFrequencyMs) {
+    super(data, sampleFrequencyMs);
+  }
+
+  @NotNull
+  @Override
+  public String getName() {
+    return "Network Sampler";
+  }
+
+  @NotNull
+  @Override
+  public String getDescription() {
+    return "network traffic information";
+  }
+
+  @NotNull
+  @Override
+  protected ShellMetric createMetric(@NotNull Client client) {
+    myPreviousTime = -1;
+    return new NetworkMetric(client.getClientData().getPid());
+  }
+
+  private void addTrafficSample(long time, long rxBytes, long txBytes) {
+    if (myPreviousTime >= 0 && time > myPreviousTime) {
+      float seconds = (time - myPreviousTime) / 1000.f;
+      // The counters start over when an interface goes down
+      float rxKbPerSecond = Math.max(rxBytes - myPreviousRxBytes, 0) / 1024.f / seconds;
+      float txKbPerSecond = Math.max(txBytes - myPreviousTxBytes, 0) / 1024.f / seconds;
+      addSample(time, TYPE_DATA, rxKbPerSecond, txKbPerSecond);
+    }
+    myPreviousTime = time;
+    myPreviousRxBytes = rxBytes;
+    myPreviousTxBytes = txBytes;
+  }
+
+  /**
+   * Looks up the uid of the process in "/proc/[pid]/status", and prints the received and sent bytes of each untagged
+   * entry of that uid, all with shell builtins.
+   */
+  private class NetworkMetric implements ShellMetric {
+    private final int myPid;
+
+    NetworkMetric(int pid) {
+      myPid = pid;
+    }
+
+    @Override
+    public int getIntervalMs() {
+      return mySampleFrequencyMs;
+    }
+
+    @NotNull
+    @Override
+    public String getCommand() {
+      return "u=; while read k v rest; do [ \"$k\" = Uid: ] && u=$v; done 2>/dev/null < /proc/" + myPid + "/status; " +
+             "while read idx iface tag uid cnt rx rxp tx rest; do " +
+             "[ \"$tag\" = 0x0 ] && [ \"$uid\" = \"$u\" ] && echo \"$rx $tx\"; " +
+             "done 2>/dev/null < /proc/net/xt_qtaguid/stats";
+    }
+
+    @Override
+    public void processSample(long time, @NotNull List<String> output) {
+      if (output.isEmpty()) {
+        // The process is gone, or the device doesn't account traffic per uid
+        return;
+      }
+      long rxBytes = 0;
+      long txBytes = 0;
+      try {
+        for (String line : output) {
+          String[] tokens = line.trim().split("\\s+");
+          if (tokens.length == 2) {
+            rxBytes += Long.parseLong(tokens[0]);
+            txBytes += Long.parseLong(tokens[1]);
+          }
+        }
+      }
+      catch (NumberFormatException e) {
+        LOG.debug(e);
+        return;
+      }
+      addTrafficSample(time, rxBytes, txBytes);
+    }
+
+    @Override
+    public void processError(long time, @NotNull Exception e) {
+      synchronized (myData) {
+        if (myData.size() > 0) {
+          TimelineData.Sample lastSample = myData.get(myData.size() - 1);
+          addSample(time, TYPE_TIMEOUT, lastSample.values[0], lastSample.values[1]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import org.jetbrains.android.util.AndroidUtils;
+import org.jetbrains.android.util.BoundedDiskCache;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import static com.android.SdkConstants.DOT_CLASS;
+
+/**
+ * A content addressed cache of {@link ClassConverter#rewriteClass converted} class files, shared by all the
+ * {@link RenderClassLoader}s.
+ * <p>
+ * Class loaders for rendering are thrown away whenever the project is built (see
+ * {@link org.jetbrains.android.uipreview.ModuleClassLoader#clearCache()}), after which every custom view and library
+ * class is loaded, and converted, again. Since the cache is keyed by a hash of the original class file (and the
+ * target class file version), only the classes which actually changed are converted by the new class loaders.
+ * <p>
+ * Converted classes are kept in memory, in an LRU map bounded by the total size of the class files, and optionally
+ * in a {@link BoundedDiskCache} such that they also survive restarts. Classes which already have a class
+ * file version the current JDK can load are returned as is, without conversion or caching.
+ */
+public class ClassConverterCache {
+  /** Default memory budget, in megabytes, for the converted classes held in memory */
+  private static final int DEFAULT_MAX_SIZE_MB = Integer.getInteger("android.render.class.cache.size.mb", 16);
+
+  /** Default disk budget, in megabytes, for the converted classes stored on disk */
+  private static final int DEFAULT_MAX_DISK_SIZE_MB = Integer.getInteger("android.render.class.cache.disk.size.mb", 64);
+
+  /** Whether converted classes should also be stored on disk, in the Android system directory */
+  private static final boolean USE_DISK_CACHE = !Boolean.getBoolean("android.render.class.cache.disk.disabled");
+
+  private static ClassConverterCache ourInstance;
+
+  private final long myMaxSize;
+  @Nullable private final BoundedDiskCache myDiskCache;
+  private final LinkedHashMap<String, byte[]> myCache = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+  private long mySize;
+  private int myHits;
+  private int myDiskHits;
+  private int myMisses;
+
+  @VisibleForTesting
+  ClassConverterCache(long maxSize, long maxDiskSize, @Nullable File directory) {
+    myMaxSize = maxSize;
+    // Spread the files over 256 folders
+    myDiskCache = directory != null ? new BoundedDiskCache(directory, DOT_CLASS, maxDiskSize, true) : null;
+  }
+
+  @NotNull
+  public static synchronized ClassConverterCache getInstance() {
+    if (ourInstance == null) {
+      File directory = null;
+      if (USE_DISK_CACHE) {
+        directory = new File(AndroidUtils.getAndroidSystemDirectoryOsPath(), "converted-classes");
+      }
+      ourInstance = new ClassConverterCache(DEFAULT_MAX_SIZE_MB * 1024L * 1024L, DEFAULT_MAX_DISK_SIZE_MB * 1024L * 1024L, directory);
+    }
+    return ourInstance;
+  }
+
+  /**
+   * Returns the given class converted to a version runnable on the current JDK, from the cache if the same class
+   * was converted before. The returned array is shared and must not be modified.
+   */
+  @NotNull
+  public byte[] rewriteClass(@NotNull byte[] classData) {
+    int version = ClassConverter.getCurrentClassVersion();
+    if (ClassConverter.getMajorVersion(classData) <= version) {
+      return classData;
+    }
+
+    String key = Hashing.sha1().hashBytes(classData).toString() + '-' + version;
+    synchronized (this) {
+      byte[] converted = myCache.get(key);
+      if (converted != null) {
+        myHits++;
+        return converted;
+      }
+    }
+
+    byte[] converted = myDiskCache != null ? myDiskCache.read(key) : null;
+    if (converted != null && ClassConverter.isValidClassFile(converted)) {
+      synchronized (this) {
+        myDiskHits++;
+      }
+    }
+    else {
+      converted = ClassConverter.rewriteClass(classData, version, 0);
+      synchronized (this) {
+        myMisses++;
+      }
+      if (myDiskCache != null) {
+        myDiskCache.write(key, converted);
+      }
+    }
+
+    put(key, converted);
+    return converted;
+  }
+
+  private synchronized void put(@NotNull String key, @NotNull byte[] converted) {
+    if (converted.length > myMaxSize) {
+      return;
+    }
+    byte[] previous = myCache.put(key, converted);
+    if (previous != null) {
+      mySize -= previous.length;
+    }
+    mySize += converted.length;
+
+    // Evict least recently used
+    Iterator<byte[]> iterator = myCache.values().iterator();
+    while (mySize > myMaxSize && iterator.hasNext()) {
+      mySize -= iterator.next().length;
+      iterator.remove();
+    }
+  }
+
+  /** Clears the in-memory cache; converted classes stored on disk are kept */
+  public synchronized void clear() {
+    myCache.clear();
+    mySize = 0;
+  }
+
+  /** Returns the number of conversions found in memory */
+  public synchronized int getHitCount() {
+    return myHits;
+  }
+
+  /** Returns the number of conversions found on disk */
+  public synchronized int getDiskHitCount() {
+    return myDiskHits;
+  }
+
+  /** Returns the number of classes which had to be converted */
+  public synchronized int getMissCount() {
+    return myMisses;
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return myCache.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("Converted classes: %1$d cached (%2$d bytes), %3$d hits, %4$d disk hits, %5$d misses", myCache.size(), mySize,
+                         myHits, myDiskHits, myMisses);
+  }
+}
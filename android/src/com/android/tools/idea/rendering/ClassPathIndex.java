@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.lint.detector.api.ClassContext;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.android.SdkConstants.DOT_CLASS;
+
+/**
+ * An index of the class files in a class path root (a .jar file or a class output folder), used by the
+ * {@link RenderClassLoader}s to look up classes without probing the file system (or opening every jar
+ * in turn) for each class.
+ * <p>
+ * A jar is indexed by reading its zip central directory once, recording the local header offset, size and
+ * compression method for each class; a class is then read with a single positioned read. A folder is indexed
+ * by listing it once. Indices are shared by all class loaders and are invalidated per root, when a VFS event
+ * touches the root, or when the class loader which uses it finds that the jar or one of the folders was
+ * modified since it was indexed.
+ */
+public abstract class ClassPathIndex {
+  private static final Logger LOG = Logger.getInstance(ClassPathIndex.class);
+
+  /** Indices by system independent root path */
+  private static final Map<String, ClassPathIndex> ourIndices = Maps.newHashMap();
+  private static boolean ourListening;
+
+  @NotNull protected final File myRoot;
+  private volatile boolean myValid = true;
+
+  protected ClassPathIndex(@NotNull File root) {
+    myRoot = root;
+  }
+
+  /**
+   * Returns the index for the given jar file or class folder, or null if the root cannot be indexed (for example
+   * a zip64 jar, or a file which doesn't exist). A previously built index is reused if the root has not been
+   * modified since.
+   */
+  @Nullable
+  public static ClassPathIndex get(@NotNull File root) {
+    String key = FileUtil.toSystemIndependentName(root.getPath());
+    ClassPathIndex index;
+    synchronized (ourIndices) {
+      listenForChanges();
+      index = ourIndices.get(key);
+    }
+    if (index != null && index.isValid() && index.isUpToDate()) {
+      return index;
+    }
+
+    index = create(root);
+    synchronized (ourIndices) {
+      ClassPathIndex previous = index != null ? ourIndices.put(key, index) : ourIndices.remove(key);
+      if (previous != null) {
+        previous.myValid = false;
+      }
+    }
+    return index;
+  }
+
+  @Nullable
+  private static ClassPathIndex create(@NotNull File root) {
+    try {
+      if (root.isDirectory()) {
+        return DirectoryIndex.create(root);
+      }
+      else if (root.isFile()) {
+        return JarIndex.create(root);
+      }
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+    }
+    return null;
+  }
+
+  /** Invalidates the indices of the given root and of any roots below it */
+  public static void invalidate(@NotNull String path) {
+    path = FileUtil.toSystemIndependentName(path);
+    synchronized (ourIndices) {
+      Iterator<Map.Entry<String, ClassPathIndex>> iterator = ourIndices.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, ClassPathIndex> entry = iterator.next();
+        String root = entry.getKey();
+        // Changes inside the root, or to the root or one of its parents
+        if (FileUtil.isAncestor(root, path, false) || FileUtil.isAncestor(path, root, false)) {
+          entry.getValue().myValid = false;
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /** Invalidates all indices */
+  public static void invalidateAll() {
+    synchronized (ourIndices) {
+      for (ClassPathIndex index : ourIndices.values()) {
+        index.myValid = false;
+      }
+      ourIndices.clear();
+    }
+  }
+
+  private static void listenForChanges() {
+    Application application = ApplicationManager.getApplication();
+    if (ourListening || application == null) {
+      return;
+    }
+    ourListening = true;
+    application.getMessageBus().connect().subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener.Adapter() {
+      @Override
+      public void after(@NotNull List<? extends VFileEvent> events) {
+        synchronized (ourIndices) {
+          if (ourIndices.isEmpty()) {
+            return;
+          }
+        }
+        for (VFileEvent event : events) {
+          invalidate(event.getPath());
+        }
+      }
+    });
+  }
+
+  /** Returns the jar file or folder indexed */
+  @NotNull
+  public File getRoot() {
+    return myRoot;
+  }
+
+  /** Returns false if this index has been invalidated since it was obtained, in which case it should be obtained again */
+  public boolean isValid() {
+    return myValid;
+  }
+
+  /** Checks the file system for changes to the root since it was indexed */
+  protected abstract boolean isUpToDate();
+
+  /** Returns true if the root contains the given class file, given as a / separated relative path */
+  public abstract boolean contains(@NotNull String path);
+
+  /** Reads the given class file, or returns null if the root does not contain it */
+  @Nullable
+  public abstract byte[] read(@NotNull String path) throws IOException;
+
+  /**
+   * Finds the class file for the given class in this root, trying all inner class interpretations
+   * of the name like {@link RenderClassLoader} does when probing folders. Returns the relative path
+   * of the class file, or null if not found.
+   */
+  @Nullable
+  public String findClass(@NotNull String fqcn) {
+    String path = ClassContext.getInternalName(fqcn) + DOT_CLASS;
+    if (contains(path)) {
+      return path;
+    }
+    if (fqcn.indexOf('$') != -1) {
+      return null;
+    }
+
+    path = fqcn.replace('.', '/');
+    while (true) {
+      if (contains(path + DOT_CLASS)) {
+        return path + DOT_CLASS;
+      }
+      int last = path.lastIndexOf('/');
+      if (last == -1) {
+        return null;
+      }
+      path = path.substring(0, last) + '$' + path.substring(last + 1);
+    }
+  }
+
+  /** Index of a class output folder */
+  @VisibleForTesting
+  static class DirectoryIndex extends ClassPathIndex {
+    private final Set<String> myClassFiles;
+    private final File[] myDirectories;
+    private final long[] myTimestamps;
+
+    private DirectoryIndex(@NotNull File root, @NotNull Set<String> classFiles, @NotNull List<File> directories) {
+      super(root);
+      myClassFiles = classFiles;
+      myDirectories = directories.toArray(new File[directories.size()]);
+      myTimestamps = new long[myDirectories.length];
+      for (int i = 0; i < myDirectories.length; i++) {
+        myTimestamps[i] = myDirectories[i].lastModified();
+      }
+    }
+
+    @NotNull
+    static DirectoryIndex create(@NotNull File root) {
+      Set<String> classFiles = Sets.newHashSet();
+      List<File> directories = Lists.newArrayList();
+      addClassFiles(root, "", classFiles, directories);
+      return new DirectoryIndex(root, classFiles, directories);
+    }
+
+    private static void addClassFiles(@NotNull File dir, @NotNull String prefix, @NotNull Set<String> classFiles,
+                                      @NotNull List<File> directories) {
+      directories.add(dir);
+      File[] files = dir.listFiles();
+      if (files == null) {
+        return;
+      }
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(DOT_CLASS)) {
+          classFiles.add(prefix + name);
+        }
+        else if (file.isDirectory()) {
+          addClassFiles(file, prefix + name + '/', classFiles, directories);
+        }
+      }
+    }
+
+    @Override
+    protected boolean isUpToDate() {
+      // Adding or removing a class file changes the timestamp of its folder
+      for (int i = 0; i < myDirectories.length; i++) {
+        if (myDirectories[i].lastModified() != myTimestamps[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean contains(@NotNull String path) {
+      return myClassFiles.contains(path);
+    }
+
+    /** Returns the class file for the given relative path */
+    @NotNull
+    public File getFile(@NotNull String path) {
+      return new File(myRoot, FileUtil.toSystemDependentName(path));
+    }
+
+    @Nullable
+    @Override
+    public byte[] read(@NotNull String path) throws IOException {
+      return contains(path) ? Files.toByteArray(getFile(path)) : null;
+    }
+  }
+
+  /** Index of a jar file, built from its zip central directory */
+  @VisibleForTesting
+  static class JarIndex extends ClassPathIndex {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_HEADER_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final long myLength;
+    private final long myTimestamp;
+    /** Entry number by path */
+    private final Map<String, Integer> myEntries;
+    private final long[] myOffsets;
+    private final int[] myCompressedSizes;
+    private final int[] mySizes;
+    private final int[] myMethods;
+
+    private JarIndex(@NotNull File root, long length, long timestamp, @NotNull Map<String, Integer> entries, @NotNull long[] offsets,
+                     @NotNull int[] compressedSizes, @NotNull int[] sizes, @NotNull int[] methods) {
+      super(root);
+      myLength = length;
+      myTimestamp = timestamp;
+      myEntries = entries;
+      myOffsets = offsets;
+      myCompressedSizes = compressedSizes;
+      mySizes = sizes;
+      myMethods = methods;
+    }
+
+    /** Reads the central directory of the given jar, or returns null if it's not a jar we can index (such as a zip64 file) */
+    @Nullable
+    static JarIndex create(@NotNull File jar) throws IOException {
+      long timestamp = jar.lastModified();
+      RandomAccessFile file = new RandomAccessFile(jar, "r");
+      try {
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+
+        // Find the end of central directory record, which is followed by a comment of up to 64K
+        int tailSize = (int)Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, length - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+          if (tail.getInt(i) == END_HEADER_SIGNATURE) {
+            end = i;
+            break;
+          }
+        }
+        if (end == -1) {
+          return null;
+        }
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL ||
+            directoryOffset + directorySize > length) {
+          // Zip64; leave these to the regular class loader
+          return null;
+        }
+
+        ByteBuffer directory = read(channel, directoryOffset, (int)directorySize);
+        Map<String, Integer> entries = Maps.newHashMapWithExpectedSize(count);
+        long[] offsets = new long[count];
+        int[] compressedSizes = new int[count];
+        int[] sizes = new int[count];
+        int[] methods = new int[count];
+        int n = 0;
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+          if (position + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+            return null;
+          }
+          int method = directory.getShort(position + 10) & 0xFFFF;
+          long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+          long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+          int nameLength = directory.getShort(position + 28) & 0xFFFF;
+          int extraLength = directory.getShort(position + 30) & 0xFFFF;
+          int commentLength = directory.getShort(position + 32) & 0xFFFF;
+          long offset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+          if (position + CENTRAL_HEADER_SIZE + nameLength > directorySize) {
+            return null;
+          }
+          String name = new String(directory.array(), position + CENTRAL_HEADER_SIZE, nameLength, Charsets.UTF_8);
+          if (name.endsWith(DOT_CLASS) && (method == STORED || method == DEFLATED) &&
+              compressedSize < Integer.MAX_VALUE && size < Integer.MAX_VALUE && !entries.containsKey(name)) {
+            entries.put(name, n);
+            offsets[n] = offset;
+            compressedSizes[n] = (int)compressedSize;
+            sizes[n] = (int)size;
+            methods[n] = method;
+            n++;
+          }
+          position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return new JarIndex(jar, length, timestamp, entries, offsets, compressedSizes, sizes, methods);
+      }
+      finally {
+        file.close();
+      }
+    }
+
+    @NotNull
+    private static ByteBuffer read(@NotNull FileChannel channel, long position, int size) throws IOException {
+      return read(channel, position, ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @NotNull
+    private static ByteBuffer read(@NotNull FileChannel channel, long position, @NotNull ByteBuffer buffer) throws IOException {
+      int start = buffer.position();
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position() - start) < 0) {
+          throw new IOException("Unexpected end of file");
+        }
+      }
+      return buffer;
+    }
+
+    @Override
+    protected boolean isUpToDate() {
+      return myRoot.length() == myLength && myRoot.lastModified() == myTimestamp;
+    }
+
+    @Override
+    public boolean contains(@NotNull String path) {
+      return myEntries.containsKey(path);
+    }
+
+    @Nullable
+    @Override
+    public byte[] read(@NotNull String path) throws IOException {
+      Integer entry = myEntries.get(path);
+      if (entry == null) {
+        return null;
+      }
+      int index = entry;
+
+      RandomAccessFile file = new RandomAccessFile(myRoot, "r");
+      try {
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = read(channel, myOffsets[index], LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+          throw new IOException("Invalid local header for " + path + " in " + myRoot);
+        }
+        // The local extra field may differ from the one in the central directory
+        long dataOffset = myOffsets[index] + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        if (myMethods[index] == STORED) {
+          return read(channel, dataOffset, mySizes[index]).array();
+        }
+
+        // The inflater needs an extra dummy byte when reading raw deflate data
+        byte[] compressed = new byte[myCompressedSizes[index] + 1];
+        read(channel, dataOffset, ByteBuffer.wrap(compressed, 0, myCompressedSizes[index]));
+        Inflater inflater = new Inflater(true);
+        try {
+          inflater.setInput(compressed);
+          byte[] data = new byte[mySizes[index]];
+          int inflated = 0;
+          while (inflated < data.length) {
+            int bytes = inflater.inflate(data, inflated, data.length - inflated);
+            if (bytes == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+              break;
+            }
+            inflated += bytes;
+          }
+          if (inflated != data.length) {
+            throw new IOException("Truncated entry " + path + " in " + myRoot);
+          }
+          return data;
+        }
+        catch (DataFormatException e) {
+          throw new IOException("Corrupt entry " + path + " in " + myRoot, e);
+        }
+        finally {
+          inflater.end();
+        }
+      }
+      finally {
+        file.close();
+      }
+    }
+  }
+}
@@ -19,25 +19,39 @@ import com.android.annotations.NonNull;
 import com.android.annotations.VisibleForTesting;
 import com.android.ide.common.res2.ResourceItem;
 import com.android.resources.ResourceType;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Maps;
+import com.google.common.collect.*;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicStampedReference;
 
-@SuppressWarnings({
-  "deprecation",  // Deprecated com.android.util.Pair is required by ProjectCallback interface
-  "SynchronizeOnThis"})
+/**
+ * A repository which merges the items of its children. The merged item map of each resource type is computed lazily and
+ * cached as an immutable snapshot which is published atomically, so lookups never block. When a child invalidates one
+ * or more types, the snapshot is only marked dirty for that child; the next lookup then re-merges just the keys that
+ * child contributed before or after the change, and copies all other entries from the previous snapshot.
+ */
+@SuppressWarnings("deprecation")  // Deprecated com.android.util.Pair is required by ProjectCallback interface
 public abstract class MultiResourceRepository extends LocalResourceRepository {
+  /** If more than this fraction of the keys are affected by an invalidation, a full merge is cheaper than an incremental one */
+  private static final int FULL_MERGE_RATIO = 2;
+
+  /** Whether invalidated type maps should be updated incrementally; can be turned off to compare against full merges */
+  @VisibleForTesting
+  static boolean ourIncrementalMerge = true;
+
   protected List<? extends LocalResourceRepository> myChildren;
   private long[] myModificationCounts;
-  private Map<ResourceType, ListMultimap<String, ResourceItem>> myItems = Maps.newEnumMap(ResourceType.class);
-  private final Map<ResourceType, ListMultimap<String, ResourceItem>> myCachedTypeMaps = Maps.newEnumMap(ResourceType.class);
+  /** The merged map of all types, if up to date; the stamp counts the invalidations, such that a map merged meanwhile is not published */
+  private final AtomicStampedReference<Map<ResourceType, ListMultimap<String, ResourceItem>>> myItems =
+    new AtomicStampedReference<Map<ResourceType, ListMultimap<String, ResourceItem>>>(
+      Maps.<ResourceType, ListMultimap<String, ResourceItem>>newEnumMap(ResourceType.class), 0);
+  /** The merged items, indexed by {@link ResourceType#ordinal()} */
+  private final AtomicReferenceArray<MergedItems> myCachedTypeMaps = new AtomicReferenceArray<MergedItems>(ResourceType.values().length);
 
   MultiResourceRepository(@NotNull String displayName, @NotNull List<? extends LocalResourceRepository> children) {
     super(displayName);
@@ -75,9 +89,9 @@ public abstract class MultiResourceRepository extends LocalResourceRepository {
   }
 
   private void clearCache() {
-    myItems = null;
-    synchronized (this) {
-      myCachedTypeMaps.clear();
+    clearItems();
+    for (int i = 0; i < myCachedTypeMaps.length(); i++) {
+      myCachedTypeMaps.set(i, MergedItems.stale());
     }
   }
 
@@ -111,85 +125,194 @@ public abstract class MultiResourceRepository extends LocalResourceRepository {
   @NonNull
   @Override
   protected Map<ResourceType, ListMultimap<String, ResourceItem>> getMap() {
-    if (myItems == null) {
+    int[] stamp = new int[1];
+    Map<ResourceType, ListMultimap<String, ResourceItem>> items = myItems.get(stamp);
+    if (items == null) {
       if (myChildren.size() == 1) {
-        myItems = myChildren.get(0).getItems();
+        items = myChildren.get(0).getItems();
       }
       else {
-        Map<ResourceType, ListMultimap<String, ResourceItem>> map = Maps.newEnumMap(ResourceType.class);
+        items = Maps.newEnumMap(ResourceType.class);
         for (ResourceType type : ResourceType.values()) {
-          map.put(type, getMap(type, false)); // should pass create is true, but as described below we interpret this differently
+          items.put(type, getMap(type, false)); // should pass create is true, but as described below we interpret this differently
         }
-        myItems = map;
       }
+      // If a child was invalidated while we were merging, the map may be out of date: it is returned but not published,
+      // so the next call merges again
+      myItems.compareAndSet(null, items, stamp[0], stamp[0]);
     }
 
-    return myItems;
+    return items;
+  }
+
+  private void clearItems() {
+    int[] stamp = new int[1];
+    while (true) {
+      Map<ResourceType, ListMultimap<String, ResourceItem>> items = myItems.get(stamp);
+      if (myItems.compareAndSet(items, null, stamp[0], stamp[0] + 1)) {
+        return;
+      }
+    }
   }
 
   @Nullable
   @Override
   protected ListMultimap<String, ResourceItem> getMap(ResourceType type, boolean create) {
     // Should I assert !create here? If we try to manipulate the cache it won't work right...
-    synchronized (this) {
-      ListMultimap<String, ResourceItem> map = myCachedTypeMaps.get(type);
-      if (map != null) {
-        return map;
-      }
+    // (The merged maps are immutable, so attempts to do so will fail loudly.)
+    MergedItems cached = myCachedTypeMaps.get(type.ordinal());
+    if (cached != null && cached.isUpToDate()) {
+      return cached.map;
     }
 
-    if (myChildren.size() == 1) {
-      LocalResourceRepository child = myChildren.get(0);
+    List<? extends LocalResourceRepository> children = myChildren;
+    if (children.size() == 1) {
+      LocalResourceRepository child = children.get(0);
       if (child instanceof MultiResourceRepository) {
         return ((MultiResourceRepository)child).getMap(type);
       }
       return child.getItems().get(type);
     }
 
-    ListMultimap<String, ResourceItem> map = ArrayListMultimap.create();
+    MergedItems merged = cached != null && ourIncrementalMerge ? cached.update(children, type) : MergedItems.merge(children, type);
 
-    // Merge all items of the given type
-    for (int i = myChildren.size() - 1; i >= 0; i--) {
-      LocalResourceRepository resources = myChildren.get(i);
-      Map<ResourceType, ListMultimap<String, ResourceItem>> items = resources.getItems();
-      ListMultimap<String, ResourceItem> m = items.get(type);
-      if (m == null) {
-        continue;
+    // If a child was invalidated while we were merging, the slot no longer holds the cached instance, so the
+    // (possibly out of date) result is returned but not published; the next lookup merges again
+    myCachedTypeMaps.compareAndSet(type.ordinal(), cached, merged);
+
+    return merged.map;
+  }
+
+  /**
+   * Adds the given item to the list of merged items for its name, unless an item with the same qualifiers is already
+   * present (from a higher priority child). Ids are exempt; id's are allowed to be defined in multiple places even
+   * with the same qualifiers.
+   */
+  private static void addMergedItem(@NotNull List<ResourceItem> list, @NotNull ResourceItem item) {
+    if (!list.isEmpty() && item.getType() != ResourceType.ID) {
+      String qualifiers = item.getQualifiers();
+      for (ResourceItem existing : list) {
+        if (qualifiers.equals(existing.getQualifiers())) {
+          return;
+        }
       }
+    }
+    list.add(item);
+  }
+
+  /**
+   * An immutable snapshot of the merged items of a single resource type, along with the keys each child
+   * contributed to it and the set of children which have been invalidated since the merge.
+   */
+  private static final class MergedItems {
+    /** The merged map; null for a stale entry which requires a full merge */
+    @Nullable final ImmutableListMultimap<String, ResourceItem> map;
+    /** For each child (by index), the keys it had for this type at the time of the merge */
+    @Nullable final List<Set<String>> childKeys;
+    /** Bit i is set if child i has been invalidated since the merge */
+    final long dirtyChildren;
+
+    private MergedItems(@Nullable ImmutableListMultimap<String, ResourceItem> map, @Nullable List<Set<String>> childKeys,
+                        long dirtyChildren) {
+      this.map = map;
+      this.childKeys = childKeys;
+      this.dirtyChildren = dirtyChildren;
+    }
+
+    /** Returns a new marker entry for a type which has to be fully merged. Each marker is a distinct instance. */
+    @NotNull
+    static MergedItems stale() {
+      return new MergedItems(null, null, 0);
+    }
+
+    boolean isUpToDate() {
+      return map != null && dirtyChildren == 0;
+    }
 
-      // TODO: Start with JUST the first map here (which often contains most of the keys) and then
-      // only merge in 1...n
-      for (ResourceItem item : m.values()) {
-        String name = item.getName();
-        if (map.containsKey(name) && item.getType() != ResourceType.ID) {
-          // The item already exists in this map; only add if there isn't an item with the
-          // same qualifiers (and it's not an id; id's are allowed to be defined in multiple
-          // places even with the same qualifiers)
-          String qualifiers = item.getQualifiers();
-          boolean contains = false;
-          List<ResourceItem> list = map.get(name);
-          assert list != null;
-          for (ResourceItem existing : list) {
-            if (qualifiers.equals(existing.getQualifiers())) {
-              contains = true;
-              break;
+    @NotNull
+    MergedItems withDirtyChild(int index) {
+      if (map == null || index < 0 || index >= Long.SIZE) {
+        return stale();
+      }
+      return new MergedItems(map, childKeys, dirtyChildren | (1L << index));
+    }
+
+    @NotNull
+    static MergedItems merge(@NotNull List<? extends LocalResourceRepository> children, @NotNull ResourceType type) {
+      ListMultimap<String, ResourceItem> map = ArrayListMultimap.create();
+      Set<String>[] childKeys = newKeyArray(children.size());
+
+      // Merge all items of the given type
+      for (int i = children.size() - 1; i >= 0; i--) {
+        ListMultimap<String, ResourceItem> m = children.get(i).getItems().get(type);
+        childKeys[i] = getKeys(m);
+        if (m == null) {
+          continue;
+        }
+        for (ResourceItem item : m.values()) {
+          addMergedItem(map.get(item.getName()), item);
+        }
+      }
+
+      return new MergedItems(ImmutableListMultimap.copyOf(map), Arrays.asList(childKeys), 0);
+    }
+
+    /** Returns an up to date copy of this entry, re-merging only the keys of the invalidated children */
+    @NotNull
+    MergedItems update(@NotNull List<? extends LocalResourceRepository> children, @NotNull ResourceType type) {
+      if (map == null || childKeys == null || childKeys.size() != children.size()) {
+        return merge(children, type);
+      }
+      if (dirtyChildren == 0) {
+        return this;
+      }
+
+      Set<String> affected = Sets.newHashSet();
+      Set<String>[] newChildKeys = childKeys.toArray(newKeyArray(childKeys.size()));
+      for (int i = 0; i < children.size(); i++) {
+        if ((dirtyChildren & (1L << i)) != 0) {
+          affected.addAll(newChildKeys[i]);
+          newChildKeys[i] = getKeys(children.get(i).getItems().get(type));
+          affected.addAll(newChildKeys[i]);
+        }
+      }
+      if (affected.size() * FULL_MERGE_RATIO > map.keySet().size()) {
+        return merge(children, type);
+      }
+
+      ImmutableListMultimap.Builder<String, ResourceItem> builder = ImmutableListMultimap.builder();
+      for (Map.Entry<String, Collection<ResourceItem>> entry : map.asMap().entrySet()) {
+        if (!affected.contains(entry.getKey())) {
+          builder.putAll(entry.getKey(), entry.getValue());
+        }
+      }
+      List<ResourceItem> list = Lists.newArrayList();
+      for (String name : affected) {
+        list.clear();
+        for (int i = children.size() - 1; i >= 0; i--) {
+          ListMultimap<String, ResourceItem> m = children.get(i).getItems().get(type);
+          if (m != null) {
+            for (ResourceItem item : m.get(name)) {
+              addMergedItem(list, item);
             }
           }
-          if (!contains) {
-            map.put(name, item);
-          }
-        }
-        else {
-          map.put(name, item);
         }
+        builder.putAll(name, list);
       }
+
+      return new MergedItems(builder.build(), Arrays.asList(newChildKeys), 0);
     }
 
-    synchronized (this) {
-      myCachedTypeMaps.put(type, map);
+    @NotNull
+    private static Set<String> getKeys(@Nullable ListMultimap<String, ResourceItem> map) {
+      return map != null ? ImmutableSet.copyOf(map.keySet()) : Collections.<String>emptySet();
     }
 
-    return map;
+    @SuppressWarnings("unchecked")
+    @NotNull
+    private static Set<String>[] newKeyArray(int size) {
+      return (Set<String>[])new Set[size];
+    }
   }
 
   @NonNull
@@ -218,24 +341,36 @@ public abstract class MultiResourceRepository extends LocalResourceRepository {
    * resources of the given types (empty means all)
    */
   public void invalidateCache(@NotNull LocalResourceRepository repository, @Nullable ResourceType... types) {
-    assert myChildren.contains(repository) : repository;
+    int index = myChildren.indexOf(repository);
+    assert index != -1 : repository;
 
-    synchronized (this) {
-      if (types == null || types.length == 0) {
-        myCachedTypeMaps.clear();
+    if (types == null || types.length == 0) {
+      for (ResourceType type : ResourceType.values()) {
+        markDirty(type, index);
       }
-      else {
-        for (ResourceType type : types) {
-          myCachedTypeMaps.remove(type);
-        }
+    }
+    else {
+      for (ResourceType type : types) {
+        markDirty(type, index);
       }
     }
-    myItems = null;
+    clearItems();
     myGeneration++;
 
     invalidateItemCaches(types);
   }
 
+  private void markDirty(@NotNull ResourceType type, int childIndex) {
+    int slot = type.ordinal();
+    while (true) {
+      MergedItems cached = myCachedTypeMaps.get(slot);
+      MergedItems dirty = cached != null ? cached.withDirtyChild(childIndex) : MergedItems.stale();
+      if (myCachedTypeMaps.compareAndSet(slot, cached, dirty)) {
+        return;
+      }
+    }
+  }
+
   @Override
   @VisibleForTesting
   public boolean isScanPending(@NonNull PsiFile psiFile) {
@@ -58,6 +58,7 @@ public class RefreshRenderAction extends AnAction {
 
       AndroidFacet facet = AndroidFacet.getInstance(configuration.getModule());
       if (facet != null) {
+        RenderService.get(facet).getResultCache().clear();
         facet.refreshResources();
       }
 
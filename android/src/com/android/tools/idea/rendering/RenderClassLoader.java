@@ -16,6 +16,7 @@
 package com.android.tools.idea.rendering;
 
 import com.android.tools.lint.detector.api.ClassContext;
+import com.android.utils.SdkUtils;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.intellij.openapi.diagnostic.Logger;
@@ -27,7 +28,12 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static com.android.SdkConstants.DOT_CLASS;
 import static com.android.tools.idea.rendering.ClassConverter.isValidClassFile;
@@ -39,8 +45,10 @@ import static com.android.tools.idea.rendering.ClassConverter.isValidClassFile;
 public abstract class RenderClassLoader extends ClassLoader {
   protected static final Logger LOG = Logger.getInstance(RenderClassLoader.class);
 
-  private ClassLoader myJarClassLoader;
   protected boolean myInsideJarClassLoader;
+  /** The external jars, in class path order */
+  private List<Jar> myJars;
+  private Map<File, ClassPathIndex> myDirectoryIndices;
 
   public RenderClassLoader(@Nullable ClassLoader parent) {
     super(parent);
@@ -65,34 +73,19 @@ public abstract class RenderClassLoader extends ClassLoader {
 
   @Nullable
   protected Class<?> loadClassFromJar(@NotNull String name) {
-    if (myJarClassLoader == null) {
-      final URL[] externalJars = getExternalJars();
-      myJarClassLoader = createClassLoader(externalJars);
+    if (myJars == null) {
+      initJars();
     }
 
+    String relative = ClassContext.getInternalName(name) + DOT_CLASS;
     try {
       myInsideJarClassLoader = true;
-      String relative = ClassContext.getInternalName(name) + DOT_CLASS;
-      InputStream is = myJarClassLoader.getResourceAsStream(relative);
-      if (is != null) {
-        byte[] data = ByteStreams.toByteArray(is);
-        is.close();
-        if (!isValidClassFile(data)) {
-          throw new ClassFormatError(name);
-        }
-
-        byte[] rewritten = convertClass(data);
-        try {
-          if (ModuleClassLoader.DEBUG_CLASS_LOADING) {
-            //noinspection UseOfSystemOutOrSystemErr
-            System.out.println("  defining class " + name + " from .jar file");
-          }
-          return defineClassAndPackage(null, rewritten, 0, rewritten.length);
-        }
-        catch (UnsupportedClassVersionError inner) {
-          // Wrap the UnsupportedClassVersionError as a InconvertibleClassError
-          // such that clients can look up the actual bytecode version required.
-          throw InconvertibleClassError.wrap(inner, name, data);
+      // The jars are searched in class path order, such that a class found in several jars is loaded from the same jar as
+      // a regular class loader would; the indices only let us skip the jars which don't contain the class
+      for (Jar jar : myJars) {
+        byte[] data = jar.read(relative);
+        if (data != null) {
+          return defineClassFromJar(name, data);
         }
       }
       return null;
@@ -104,13 +97,95 @@ public abstract class RenderClassLoader extends ClassLoader {
     }
   }
 
+  /** Looks up the class path index of each external jar; jars which can't be indexed are searched with a regular class loader */
+  private void initJars() {
+    myJars = new ArrayList<Jar>();
+    for (URL url : getExternalJars()) {
+      ClassPathIndex index = null;
+      try {
+        index = ClassPathIndex.get(SdkUtils.urlToFile(url));
+      }
+      catch (MalformedURLException e) {
+        // Not a file; leave it to the class loader
+      }
+      myJars.add(new Jar(url, index));
+    }
+  }
+
+  /** An external jar, searched with its class path index if it could be indexed, and with a class loader of its own otherwise */
+  private class Jar {
+    @NotNull private final URL myUrl;
+    @Nullable private ClassPathIndex myIndex;
+    @Nullable private ClassLoader myClassLoader;
+
+    Jar(@NotNull URL url, @Nullable ClassPathIndex index) {
+      myUrl = url;
+      myIndex = index;
+    }
+
+    /** Reads the given class file, or returns null if the jar doesn't contain it */
+    @Nullable
+    byte[] read(@NotNull String relative) throws IOException {
+      if (myIndex != null && !myIndex.isValid()) {
+        // The jar changed since we looked it up
+        myIndex = ClassPathIndex.get(myIndex.getRoot());
+      }
+      if (myIndex != null) {
+        return myIndex.contains(relative) ? myIndex.read(relative) : null;
+      }
+
+      if (myClassLoader == null) {
+        myClassLoader = createClassLoader(new URL[]{myUrl});
+      }
+      InputStream is = myClassLoader.getResourceAsStream(relative);
+      if (is == null) {
+        return null;
+      }
+      try {
+        return ByteStreams.toByteArray(is);
+      }
+      finally {
+        is.close();
+      }
+    }
+  }
+
+  @NotNull
+  private Class<?> defineClassFromJar(@NotNull String name, @NotNull byte[] data) {
+    if (!isValidClassFile(data)) {
+      throw new ClassFormatError(name);
+    }
+
+    byte[] rewritten = convertClass(data);
+    try {
+      if (ModuleClassLoader.DEBUG_CLASS_LOADING) {
+        //noinspection UseOfSystemOutOrSystemErr
+        System.out.println("  defining class " + name + " from .jar file");
+      }
+      return defineClassAndPackage(null, rewritten, 0, rewritten.length);
+    }
+    catch (UnsupportedClassVersionError inner) {
+      // Wrap the UnsupportedClassVersionError as a InconvertibleClassError
+      // such that clients can look up the actual bytecode version required.
+      throw InconvertibleClassError.wrap(inner, name, data);
+    }
+  }
+
   private ClassLoader createClassLoader(URL[] externalJars) {
     return UrlClassLoader.build().parent(this).urls(externalJars).allowUnescaped().noPreload().get();
   }
 
   @Nullable
   protected Class<?> loadClassFromClassPath(String fqcn, File classPathFolder) {
-    File classFile = findClassFile(classPathFolder, fqcn);
+    File classFile;
+    ClassPathIndex index = getDirectoryIndex(classPathFolder);
+    if (index instanceof ClassPathIndex.DirectoryIndex) {
+      String path = index.findClass(fqcn);
+      classFile = path != null ? ((ClassPathIndex.DirectoryIndex)index).getFile(path) : null;
+    }
+    else {
+      classFile = findClassFile(classPathFolder, fqcn);
+    }
     if (classFile == null || !classFile.exists()) {
       return null;
     }
@@ -118,6 +193,25 @@ public abstract class RenderClassLoader extends ClassLoader {
     return loadClassFile(fqcn, classFile);
   }
 
+  /**
+   * Returns the index of the given class folder. The index is checked against the file system the first time
+   * this class loader uses it, and afterwards only refreshed when it is invalidated by a VFS event.
+   */
+  @Nullable
+  private ClassPathIndex getDirectoryIndex(@NotNull File folder) {
+    if (myDirectoryIndices == null) {
+      myDirectoryIndices = new HashMap<File, ClassPathIndex>();
+    }
+    ClassPathIndex index = myDirectoryIndices.get(folder);
+    if (index == null || !index.isValid()) {
+      index = ClassPathIndex.get(folder);
+      if (index != null) {
+        myDirectoryIndices.put(folder, index);
+      }
+    }
+    return index;
+  }
+
   @Nullable
   protected Class<?> loadClassFile(String fqcn, File classFile) {
     try {
@@ -157,7 +251,7 @@ public abstract class RenderClassLoader extends ClassLoader {
 
   @NotNull
   protected byte[] convertClass(@NotNull byte[] data) {
-    return ClassConverter.rewriteClass(data);
+    return ClassConverterCache.getInstance().rewriteClass(data);
   }
 
   @Nullable
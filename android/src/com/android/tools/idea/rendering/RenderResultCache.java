@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ide.common.rendering.api.RenderSession;
+import com.android.ide.common.rendering.api.ViewInfo;
+import com.android.sdklib.IAndroidTarget;
+import com.android.sdklib.devices.Device;
+import com.android.sdklib.devices.State;
+import com.android.tools.idea.configurations.Configuration;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.xml.XmlFile;
+import org.jetbrains.android.uipreview.ModuleClassLoader;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An LRU cache of successful {@link RenderResult}s, bounded by the approximate memory used by the results: the rendered
+ * images, and the {@link RenderSession}s, which hold on to the inflated views and the resources of the render.
+ * <p>
+ * A result is keyed by everything that affects the render: a hash of the layout file contents, the resolved
+ * {@link Configuration} (device and state, target, theme, locale, UI and night mode, activity), the modification count
+ * of the app resources and of the PSI in the project (such that edits to included layouts, drawables or custom views
+ * also invalidate results), the class loader for the custom views (which changes when the project is rebuilt), and the
+ * render options set on the {@link RenderTask}. This makes it cheap to for example switch between editor tabs: the render
+ * result for an unchanged layout is returned without going through layoutlib.
+ * <p>
+ * Only used for render tasks which opt in with {@link RenderTask#setUseResultCache}, since some clients
+ * (such as the layout editor) take ownership of the {@link RenderSession} and dispose it. The results of a task are
+ * dropped when the task is disposed.
+ */
+public class RenderResultCache {
+  /** Default memory budget, in megabytes, for the images held by the cache */
+  private static final int DEFAULT_MAX_SIZE_MB = Integer.getInteger("android.render.cache.size.mb", 48);
+
+  /** Rough estimate for the memory used by a cached result besides its image and session (logger etc) */
+  private static final int RESULT_OVERHEAD = 16 * 1024;
+
+  /** Rough estimate for the memory held by a render session regardless of the layout (context, resources, etc) */
+  private static final int SESSION_OVERHEAD = 256 * 1024;
+
+  /** Rough estimate for the memory held by a render session for every view: the view itself, its view info, drawables */
+  private static final int VIEW_OVERHEAD = 2 * 1024;
+
+  private final long myMaxSize;
+  private final LinkedHashMap<String, Entry> myCache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long mySize;
+  private int myHits;
+  private int myMisses;
+
+  public RenderResultCache() {
+    this(DEFAULT_MAX_SIZE_MB * 1024L * 1024L);
+  }
+
+  @VisibleForTesting
+  RenderResultCache(long maxSize) {
+    myMaxSize = maxSize;
+  }
+
+  private static class Entry {
+    @NotNull final RenderResult result;
+    final long size;
+
+    Entry(@NotNull RenderResult result, long size) {
+      this.result = result;
+      this.size = size;
+    }
+  }
+
+  /** Returns the cached result for the given key, if any */
+  @Nullable
+  public synchronized RenderResult get(@NotNull String key) {
+    Entry entry = myCache.get(key);
+    if (entry != null && isDisposed(entry.result)) {
+      myCache.remove(key);
+      mySize -= entry.size;
+      entry = null;
+    }
+    if (entry != null) {
+      myHits++;
+      return entry.result;
+    }
+    myMisses++;
+    return null;
+  }
+
+  /** Stores the given result. Only successful results are cached; a failed render should be retried next time. */
+  public synchronized void put(@NotNull String key, @NotNull RenderResult result) {
+    RenderSession session = result.getSession();
+    if (session == null || !session.getResult().isSuccess() || result.getImage() == null || isDisposed(result)) {
+      return;
+    }
+
+    long size = getWeight(result);
+    if (size > myMaxSize) {
+      return;
+    }
+
+    Entry previous = myCache.put(key, new Entry(result, size));
+    if (previous != null) {
+      mySize -= previous.size;
+    }
+    mySize += size;
+
+    // Evict least recently used
+    Iterator<Entry> iterator = myCache.values().iterator();
+    while (mySize > myMaxSize && iterator.hasNext()) {
+      Entry eldest = iterator.next();
+      mySize -= eldest.size;
+      iterator.remove();
+    }
+  }
+
+  /** Removes the results rendered by the given task, which is being disposed */
+  public synchronized void remove(@NotNull RenderTask task) {
+    Iterator<Entry> iterator = myCache.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.result.getRenderTask() == task) {
+        mySize -= entry.size;
+        iterator.remove();
+      }
+    }
+  }
+
+  /** Whether the task of the given result has been disposed, such that the result is no longer usable */
+  private static boolean isDisposed(@NotNull RenderResult result) {
+    RenderTask task = result.getRenderTask();
+    return task != null && task.isDisposed();
+  }
+
+  /** Returns the approximate memory used by the given result, which includes its image and session */
+  @VisibleForTesting
+  static long getWeight(@NotNull RenderResult result) {
+    long size = RESULT_OVERHEAD;
+    RenderedImage renderedImage = result.getImage();
+    BufferedImage image = renderedImage != null ? renderedImage.getOriginalImage() : null;
+    if (image != null) {
+      size += 4L * image.getWidth() * image.getHeight();
+    }
+    if (result.getSession() != null) {
+      size += SESSION_OVERHEAD + (long)VIEW_OVERHEAD * countViews(result.getRootViews());
+    }
+    return size;
+  }
+
+  private static int countViews(@Nullable List<ViewInfo> views) {
+    if (views == null) {
+      return 0;
+    }
+    int count = views.size();
+    for (ViewInfo view : views) {
+      count += countViews(view.getChildren());
+    }
+    return count;
+  }
+
+  public synchronized void clear() {
+    myCache.clear();
+    mySize = 0;
+  }
+
+  public synchronized int getHitCount() {
+    return myHits;
+  }
+
+  public synchronized int getMissCount() {
+    return myMisses;
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return myCache.size();
+  }
+
+  /**
+   * Computes the cache key for the given render task, or null if the task cannot be cached
+   * (for example because it renders with expanded nodes, or has no file)
+   */
+  @Nullable
+  public static String createKey(@NotNull final RenderTask task) {
+    final XmlFile file = task.getPsiFile();
+    if (file == null || task.getExpandNodes() != null) {
+      return null;
+    }
+
+    return ApplicationManager.getApplication().runReadAction(new Computable<String>() {
+      @Nullable
+      @Override
+      public String compute() {
+        VirtualFile virtualFile = file.getVirtualFile();
+        if (virtualFile == null || !file.isValid()) {
+          return null;
+        }
+
+        Configuration configuration = task.getConfiguration();
+        Device device = configuration.getDevice();
+        State state = configuration.getDeviceState();
+        IAndroidTarget target = configuration.getTarget();
+        AppResourceRepository appResources = AppResourceRepository.getAppResources(task.getModule(), false);
+        if (device == null || target == null || appResources == null) {
+          return null;
+        }
+        // A new class loader is created when the project classes are rebuilt, or the loaders are flushed
+        ModuleClassLoader classLoader = ModuleClassLoader.get(task.getLayoutLib(), task.getModule());
+
+        StringBuilder sb = new StringBuilder(200);
+        sb.append(virtualFile.getPath()).append('|');
+        sb.append(Hashing.md5().hashBytes(file.getText().getBytes(Charsets.UTF_8))).append('|');
+
+        // Configuration
+        sb.append(device.getId()).append('|');
+        sb.append(state != null ? state.getName() : "").append('|');
+        sb.append(target.hashString()).append('|');
+        sb.append(configuration.getTheme()).append('|');
+        sb.append(configuration.getLocale()).append('|');
+        sb.append(configuration.getUiMode()).append('|');
+        sb.append(configuration.getNightMode()).append('|');
+        sb.append(configuration.getActivity()).append('|');
+        sb.append(configuration.getFullConfig().getUniqueKey()).append('|');
+
+        // Anything else the result could depend on
+        sb.append(System.identityHashCode(appResources)).append(':').append(appResources.getModificationCount()).append('|');
+        sb.append(System.identityHashCode(classLoader)).append('|');
+        sb.append(PsiModificationTracker.SERVICE.getInstance(file.getProject()).getModificationCount()).append('|');
+
+        // Render options
+        sb.append(task.getRenderingMode()).append('|');
+        sb.append(task.getShowDecorations()).append('|');
+        sb.append(task.getRenderOptionsKey());
+
+        return sb.toString();
+      }
+    });
+  }
+}
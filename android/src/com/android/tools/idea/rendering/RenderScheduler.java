@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ide.common.rendering.LayoutLibrary;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for layoutlib renders, replacing the single global rendering lock.
+ * <p>
+ * A layout library instance is not thread safe (it keeps static state in its own class loader), and neither are the
+ * resource resolvers that layoutlib configures during a session, so two renders which share any of those are still
+ * serialized. Renders which don't, such as the previews of the "all API levels" mode (one layout library per target),
+ * or previews rendered with the additional layout library instances from
+ * {@link org.jetbrains.android.sdk.AndroidTargetData#getLayoutLibraries}, run in parallel, up to
+ * {@link #MAX_CONCURRENT_RENDERS} at a time to bound the memory used by concurrent sessions.
+ * <p>
+ * Foreground renders (the layout editor or preview the user is looking at) take priority: while one is waiting,
+ * no new background render (such as a preview thumbnail) is admitted.
+ */
+public final class RenderScheduler {
+  /** Maximum number of renders in progress at any time */
+  public static final int MAX_CONCURRENT_RENDERS =
+    Math.max(1, Integer.getInteger("android.render.threads", Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+  /**
+   * Number of layout library instances to load per target, each in its own class loader, for concurrent rendering.
+   * <p>
+   * This is opt-in: it defaults to 1, so renders of the same target are still serialized unless
+   * {@code android.render.layoutlib.instances} is set. Each instance keeps its own copy of the framework resources and
+   * fonts, and the gain of rendering one target in parallel hasn't been measured against that cost.
+   */
+  public static final int LAYOUTLIB_INSTANCES =
+    Math.max(1, Math.min(MAX_CONCURRENT_RENDERS, Integer.getInteger("android.render.layoutlib.instances", 1)));
+
+  private static final Object ourLock = new Object();
+  private static final Set<Object> ourBusy = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+  private static int ourRunning;
+  private static int ourWaitingForeground;
+
+  /** The ticket held by the current thread, if any, such that nested renders (which the old lock allowed) don't deadlock */
+  private static final ThreadLocal<Ticket> ourCurrentTicket = new ThreadLocal<Ticket>();
+
+  @VisibleForTesting
+  static int ourPeakConcurrency;
+
+  private static final ExecutorService ourExecutor = createExecutor();
+
+  private RenderScheduler() {
+  }
+
+  private static ExecutorService createExecutor() {
+    final AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_RENDERS, MAX_CONCURRENT_RENDERS, 10, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, "Android Render Thread " + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Returns an executor with {@link #MAX_CONCURRENT_RENDERS} threads for clients which want to issue several renders
+   * at once, such as the multi-configuration previews
+   */
+  @NotNull
+  public static Executor getExecutor() {
+    return ourExecutor;
+  }
+
+  /**
+   * A permission to render, obtained from {@link #acquire}. It must be {@link #release released} when the render is done.
+   */
+  public static final class Ticket {
+    @Nullable private final Object[] myResources;
+
+    private Ticket(@Nullable Object[] resources) {
+      myResources = resources;
+    }
+
+    public void release() {
+      if (myResources == null) {
+        // Nested ticket
+        return;
+      }
+      ourCurrentTicket.remove();
+      synchronized (ourLock) {
+        ourRunning--;
+        for (Object resource : myResources) {
+          ourBusy.remove(resource);
+        }
+        ourLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Blocks until a render using the given resources (the layout library, resource resolver etc) may proceed,
+   * that is, until none of them is in use by another render, fewer than {@link #MAX_CONCURRENT_RENDERS} renders
+   * are in progress and, for a background render, no foreground render is waiting.
+   *
+   * @param foreground whether the render is for the editor the user is looking at
+   * @param resources  the (non thread safe) objects used by the render; null entries are ignored
+   * @return a ticket which must be released when the render is complete
+   */
+  @NotNull
+  public static Ticket acquire(boolean foreground, @NotNull Object... resources) {
+    if (ourCurrentTicket.get() != null) {
+      return new Ticket(null);
+    }
+
+    List<Object> exclusive = new ArrayList<Object>(resources.length);
+    for (Object resource : resources) {
+      if (resource != null && !exclusive.contains(resource)) {
+        exclusive.add(resource);
+      }
+    }
+
+    boolean interrupted = false;
+    synchronized (ourLock) {
+      if (foreground) {
+        ourWaitingForeground++;
+      }
+      try {
+        while (ourRunning >= MAX_CONCURRENT_RENDERS || !foreground && ourWaitingForeground > 0 || isBusy(exclusive)) {
+          try {
+            ourLock.wait();
+          }
+          catch (InterruptedException e) {
+            // A render can't be abandoned half way; just remember to restore the interrupted status
+            interrupted = true;
+          }
+        }
+      }
+      finally {
+        if (foreground) {
+          ourWaitingForeground--;
+          // Background renders may have been waiting for us
+          ourLock.notifyAll();
+        }
+      }
+      ourRunning++;
+      ourPeakConcurrency = Math.max(ourPeakConcurrency, ourRunning);
+      ourBusy.addAll(exclusive);
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    Ticket ticket = new Ticket(exclusive.toArray());
+    ourCurrentTicket.set(ticket);
+    return ticket;
+  }
+
+  private static boolean isBusy(@NotNull List<Object> resources) {
+    for (Object resource : resources) {
+      if (ourBusy.contains(resource)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Picks the layout library to use for a new render among the given equivalent instances: the first one which
+   * is not currently rendering, or the first one if all of them are busy
+   */
+  @Nullable
+  public static LayoutLibrary pickLayoutLibrary(@NotNull List<LayoutLibrary> libraries) {
+    if (libraries.isEmpty()) {
+      return null;
+    }
+    synchronized (ourLock) {
+      for (LayoutLibrary library : libraries) {
+        if (!ourBusy.contains(library)) {
+          return library;
+        }
+      }
+    }
+    return libraries.get(0);
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.ide.common.rendering.RenderSecurityManager;
+import com.intellij.openapi.module.Module;
+import org.jetbrains.android.sdk.AndroidPlatform;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Shares the activation of the {@link RenderSecurityManager} between the renders which run concurrently (see
+ * {@link RenderScheduler}). The security manager is installed JVM wide, so each render activating and disposing its own
+ * would replace or tear down the manager of another render in the middle of it.
+ * <p>
+ * The first render to {@link #activate} creates and activates a security manager, later ones only count themselves in,
+ * and the last one to {@link #release} disposes it. A render which needs a manager for another project or SDK waits until
+ * the active one is disposed.
+ */
+final class RenderSecurityManagers {
+  private static final Object ourLock = new Object();
+  @Nullable private static RenderSecurityManager ourManager;
+  @Nullable private static Object ourCredential;
+  @Nullable private static String ourKey;
+  private static int ourCount;
+
+  /** Number of activations held by the current thread, such that nested renders don't wait for themselves */
+  private static final ThreadLocal<int[]> ourThreadCount = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  private RenderSecurityManagers() {
+  }
+
+  /** Makes sure a security manager for the given module is active, until the matching call to {@link #release} */
+  static void activate(@NotNull Module module, @Nullable AndroidPlatform platform, @NotNull Object credential) {
+    String key = module.getProject().getBasePath() + '\n' + (platform != null ? platform.getSdkData().getLocation().getPath() : "");
+    int[] threadCount = ourThreadCount.get();
+    boolean interrupted = false;
+    synchronized (ourLock) {
+      while (ourCount > 0 && !key.equals(ourKey) && threadCount[0] == 0) {
+        try {
+          ourLock.wait();
+        }
+        catch (InterruptedException e) {
+          // Like RenderScheduler, don't abandon the render; just restore the interrupted status
+          interrupted = true;
+        }
+      }
+      if (ourCount == 0) {
+        RenderSecurityManager manager = RenderSecurityManagerFactory.create(module, platform);
+        manager.setActive(true, credential);
+        ourManager = manager;
+        ourCredential = credential;
+        ourKey = key;
+      }
+      ourCount++;
+    }
+    threadCount[0]++;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Releases an activation obtained from {@link #activate}, disposing the security manager if it was the last one */
+  static void release() {
+    ourThreadCount.get()[0]--;
+    synchronized (ourLock) {
+      if (--ourCount == 0) {
+        assert ourManager != null && ourCredential != null;
+        try {
+          ourManager.dispose(ourCredential);
+        }
+        finally {
+          ourManager = null;
+          ourCredential = null;
+          ourKey = null;
+          ourLock.notifyAll();
+        }
+      }
+    }
+  }
+}
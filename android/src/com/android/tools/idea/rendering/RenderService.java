@@ -69,6 +69,9 @@ public class RenderService {
 
   private final Object myCredential = new Object();
 
+  @NotNull
+  private final RenderResultCache myResultCache = new RenderResultCache();
+
   public RenderService(@NotNull AndroidFacet facet) {
     myFacet = facet;
   }
@@ -161,7 +164,9 @@ public class RenderService {
 
     LayoutLibrary layoutLib;
     try {
-      layoutLib = platform.getSdkData().getTargetData(target).getLayoutLibrary(project);
+      List<LayoutLibrary> libraries = platform.getSdkData().getTargetData(target).getLayoutLibraries(project,
+                                                                                                     RenderScheduler.LAYOUTLIB_INSTANCES);
+      layoutLib = RenderScheduler.pickLayoutLibrary(libraries);
       if (layoutLib == null) {
         String message = AndroidBundle.message("android.layout.preview.cannot.load.library.error");
         logger.addMessage(RenderProblem.createPlain(ERROR, message));
@@ -209,6 +214,12 @@ public class RenderService {
     return myFacet;
   }
 
+  /** Returns the cache of render results for the render tasks of this service which opt in to it */
+  @NotNull
+  public RenderResultCache getResultCache() {
+    return myResultCache;
+  }
+
   public Module getModule() {
     return myFacet.getModule();
   }
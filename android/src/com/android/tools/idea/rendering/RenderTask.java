@@ -18,7 +18,6 @@ package com.android.tools.idea.rendering;
 import com.android.ide.common.rendering.HardwareConfigHelper;
 import com.android.ide.common.rendering.LayoutLibrary;
 import com.android.ide.common.rendering.RenderParamsFlags;
-import com.android.ide.common.rendering.RenderSecurityManager;
 import com.android.ide.common.rendering.api.*;
 import com.android.ide.common.rendering.api.SessionParams.RenderingMode;
 import com.android.ide.common.resources.ResourceResolver;
@@ -125,6 +124,17 @@ public class RenderTask implements IImageFactory {
 
   private boolean myProvideCookiesForIncludedViews = false;
 
+  private boolean myUseResultCache;
+
+  private volatile boolean myDisposed;
+
+  private boolean myForeground = true;
+
+  private int myOverrideRenderWidth = -1;
+  private int myOverrideRenderHeight = -1;
+  private int myMaxRenderWidth = -1;
+  private int myMaxRenderHeight = -1;
+
   /**
    * Don't create this task directly; obtain via {@link com.android.tools.idea.rendering.RenderService}
    */
@@ -221,10 +231,16 @@ public class RenderTask implements IImageFactory {
   }
 
   public void dispose() {
+    myDisposed = true;
+    myRenderService.getResultCache().remove(this);
     myLayoutlibCallback.setLogger(null);
     myLayoutlibCallback.setResourceResolver(null);
   }
 
+  public boolean isDisposed() {
+    return myDisposed;
+  }
+
   /**
    * Overrides the width and height to be used during rendering (which might be adjusted if
    * the {@link #setRenderingMode(com.android.ide.common.rendering.api.SessionParams.RenderingMode)} is
@@ -239,6 +255,8 @@ public class RenderTask implements IImageFactory {
    */
   public RenderTask setOverrideRenderSize(int overrideRenderWidth, int overrideRenderHeight) {
     myHardwareConfigHelper.setOverrideRenderSize(overrideRenderWidth, overrideRenderHeight);
+    myOverrideRenderWidth = overrideRenderWidth;
+    myOverrideRenderHeight = overrideRenderHeight;
     return this;
   }
 
@@ -256,6 +274,8 @@ public class RenderTask implements IImageFactory {
    */
   public RenderTask setMaxRenderSize(int maxRenderWidth, int maxRenderHeight) {
     myHardwareConfigHelper.setMaxRenderSize(maxRenderWidth, maxRenderHeight);
+    myMaxRenderWidth = maxRenderWidth;
+    myMaxRenderHeight = maxRenderHeight;
     return this;
   }
 
@@ -379,6 +399,48 @@ public class RenderTask implements IImageFactory {
     myProvideCookiesForIncludedViews = provideCookiesForIncludedViews;
   }
 
+  /**
+   * Sets whether {@link #render()} may return a previously computed result for the same layout contents,
+   * configuration and resources from the {@link RenderResultCache} of the {@link RenderService}, rather than
+   * rendering again. Only set this when the caller does not hold on to or dispose the returned
+   * {@link RenderResult#getSession() session}, since a cached result is shared. The default is false.
+   *
+   * @param useResultCache whether cached render results can be used
+   * @return this (such that chains of setters can be stringed together)
+   */
+  @NotNull
+  public RenderTask setUseResultCache(boolean useResultCache) {
+    myUseResultCache = useResultCache;
+    return this;
+  }
+
+  /**
+   * Sets whether this render is for the editor the user is looking at, as opposed to for example a thumbnail of
+   * an alternate configuration. Foreground renders are admitted ahead of background renders by the
+   * {@link RenderScheduler}. The default is true.
+   *
+   * @param foreground whether this is a foreground render
+   * @return this (such that chains of setters can be stringed together)
+   */
+  @NotNull
+  public RenderTask setForeground(boolean foreground) {
+    myForeground = foreground;
+    return this;
+  }
+
+  /** Returns a string describing the render options (other than the configuration) which affect the rendered image */
+  @NotNull
+  String getRenderOptionsKey() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(myOverrideRenderWidth).append('x').append(myOverrideRenderHeight).append(',');
+    sb.append(myMaxRenderWidth).append('x').append(myMaxRenderHeight).append(',');
+    sb.append(myOverrideBgColor).append(',');
+    sb.append(myFolderType).append(',');
+    sb.append(myProvideCookiesForIncludedViews).append(',');
+    sb.append(myIncludedWithin != null ? myIncludedWithin.getFromPath() : null);
+    return sb.toString();
+  }
+
   /**
    * Renders the model and returns the result as a {@link com.android.ide.common.rendering.api.RenderSession}.
    *
@@ -495,9 +557,8 @@ public class RenderTask implements IImageFactory {
         @NotNull
         @Override
         public RenderResult compute() {
-          Module module = myRenderService.getModule();
-          RenderSecurityManager securityManager = RenderSecurityManagerFactory.create(module, getPlatform());
-          securityManager.setActive(true, myCredential);
+          // The security manager is JVM wide, so its activation is shared with the renders running concurrently
+          RenderSecurityManagers.activate(myRenderService.getModule(), getPlatform(), myCredential);
 
           try {
             int retries = 0;
@@ -519,7 +580,7 @@ public class RenderTask implements IImageFactory {
             return new RenderResult(RenderTask.this, session, myPsiFile, myLogger);
           }
           finally {
-            securityManager.dispose(myCredential);
+            RenderSecurityManagers.release();
           }
         }
       });
@@ -590,8 +651,6 @@ public class RenderTask implements IImageFactory {
     return null;
   }
 
-  private static final Object RENDERING_LOCK = new Object();
-
   @Nullable
   public RenderResult render(@NotNull IImageFactory factory) {
     // During development only:
@@ -601,7 +660,23 @@ public class RenderTask implements IImageFactory {
       throw new IllegalStateException("render shouldn't be called on RenderTask without PsiFile");
     }
 
-    synchronized (RENDERING_LOCK) {
+    // Only results rendered with our own image factory can be shared; a custom factory may hand out its own buffers
+    RenderResultCache cache = null;
+    String cacheKey = null;
+    if (myUseResultCache && factory == this) {
+      cacheKey = RenderResultCache.createKey(this);
+      if (cacheKey != null) {
+        cache = myRenderService.getResultCache();
+        RenderResult cached = cache.get(cacheKey);
+        if (cached != null) {
+          return cached;
+        }
+      }
+    }
+
+    // Renders which share a layout library or resource resolver can't run concurrently
+    RenderScheduler.Ticket ticket = RenderScheduler.acquire(myForeground, myLayoutLib, getResourceResolver());
+    try {
       RenderResult renderResult;
       try {
         renderResult = createRenderSession(factory);
@@ -614,8 +689,15 @@ public class RenderTask implements IImageFactory {
         renderResult = new RenderResult(this, null, myPsiFile, myLogger);
       }
 
+      if (cache != null && renderResult != null) {
+        cache.put(cacheKey, renderResult);
+      }
+
       return renderResult;
     }
+    finally {
+      ticket.release();
+    }
   }
 
   /**
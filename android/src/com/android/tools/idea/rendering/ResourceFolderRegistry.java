@@ -29,39 +29,66 @@ public class ResourceFolderRegistry {
   private final static Map<VirtualFile, ResourceFolderRepository> ourDirMap = new HashMap<VirtualFile, ResourceFolderRepository>();
 
   public static void reset() {
-    for (Map.Entry<VirtualFile, ResourceFolderRepository> entry : ourDirMap.entrySet()) {
-      VirtualFile dir = entry.getKey();
-      ResourceFolderRepository repository = entry.getValue();
-      Project project = repository.getFacet().getModule().getProject();
-      PsiProjectListener.removeRoot(project, dir, repository);
+    synchronized (ourDirMap) {
+      for (Map.Entry<VirtualFile, ResourceFolderRepository> entry : ourDirMap.entrySet()) {
+        VirtualFile dir = entry.getKey();
+        ResourceFolderRepository repository = entry.getValue();
+        Project project = repository.getFacet().getModule().getProject();
+        PsiProjectListener.removeRoot(project, dir, repository);
 
+      }
+      ourDirMap.clear();
     }
-    ourDirMap.clear();
   }
 
   @NotNull
   public static ResourceFolderRepository get(@NotNull final AndroidFacet facet, @NotNull final VirtualFile dir) {
-    ResourceFolderRepository repository = ourDirMap.get(dir);
-    if (repository == null) {
-      Project project = facet.getModule().getProject();
-      repository = ResourceFolderRepository.create(facet, dir);
-      PsiProjectListener.addRoot(project, dir, repository);
-      // Some of the resources in the ResourceFolderRepository might actually contain pointers to the Project instance so we need
-      // to make sure we invalidate those whenever the project is closed.
-      Disposer.register(project, new Disposable() {
-        @Override
-        public void dispose() {
-          ResourceFolderRepository repository = ourDirMap.remove(dir);
+    synchronized (ourDirMap) {
+      ResourceFolderRepository repository = ourDirMap.get(dir);
+      if (repository != null) {
+        return repository;
+      }
+    }
 
-          if (repository != null) {
-            repository.dispose();
-          }
-        }
-      });
+    // Create (and scan) the repository outside of the lock such that repositories for different folders
+    // can be created concurrently; see ProjectResourceRepository
+    ResourceFolderRepository repository = ResourceFolderRepository.create(facet, dir);
+    ResourceFolderRepository existing;
 
-      ourDirMap.put(dir, repository);
+    synchronized (ourDirMap) {
+      existing = ourDirMap.get(dir);
+      if (existing == null) {
+        register(facet, dir, repository);
+        return repository;
+      }
     }
 
-    return repository;
+    // Lost the race against another thread creating the same repository; ours was never registered anywhere.
+    // Disposed outside of the lock, since disposing a repository saves its snapshot.
+    repository.dispose();
+    return existing;
+  }
+
+  /** Registers a newly created repository, with {@link #ourDirMap} locked */
+  private static void register(@NotNull AndroidFacet facet, @NotNull final VirtualFile dir, @NotNull ResourceFolderRepository repository) {
+    Project project = facet.getModule().getProject();
+    PsiProjectListener.addRoot(project, dir, repository);
+    // Some of the resources in the ResourceFolderRepository might actually contain pointers to the Project instance so we need
+    // to make sure we invalidate those whenever the project is closed.
+    Disposer.register(project, new Disposable() {
+      @Override
+      public void dispose() {
+        ResourceFolderRepository repository;
+        synchronized (ourDirMap) {
+          repository = ourDirMap.remove(dir);
+        }
+
+        if (repository != null) {
+          repository.dispose();
+        }
+      }
+    });
+
+    ourDirMap.put(dir, repository);
   }
 }
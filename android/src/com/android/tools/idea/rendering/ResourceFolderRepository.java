@@ -28,11 +28,13 @@ import com.android.tools.lint.detector.api.LintUtils;
 import com.google.common.collect.*;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.fileTypes.FileTypeManager;
 import com.intellij.openapi.fileTypes.StdFileTypes;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.*;
 import com.intellij.psi.util.PsiTreeUtil;
@@ -57,7 +59,8 @@ import static com.android.tools.lint.detector.api.LintUtils.stripIdPrefix;
  *   <li>Find some way to have event updates in this resource folder directly update parent repositories
  *   (typically {@link ModuleResourceRepository}</li>
  *   <li>consider *initializing* this repository initially from IO files to not force full modelling of
- *   XML objects for all these tiny files (translations etc) ? Or find some way to persist the data in the index.</li>
+ *   XML objects for all these tiny files (translations etc) ? File based resources are already restored from a
+ *   {@link ResourceFolderSnapshot} when unchanged since the previous session, but value files are always parsed.</li>
  *   <li>Add defensive checks for non-read permission reads of resource values</li>
  *   <li>Idea: For {@link #rescan}; compare the removed items from the added items, and if they're the same, avoid
  *   creating a new generation.</li>
@@ -72,12 +75,25 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   private final VirtualFile myResourceDir;
   private final Map<ResourceType, ListMultimap<String, ResourceItem>> myItems = Maps.newEnumMap(ResourceType.class);
   private final Map<PsiFile, PsiResourceFile> myResourceFiles = Maps.newHashMap();
+  /** The live items of this repository; the target of incremental updates */
+  private final ScanResult myContents = new ScanResult(myItems, myResourceFiles);
   private final Object SCAN_LOCK = new Object();
   private Set<PsiFile> myPendingScans;
+  /** Snapshot from a previous session; only non-null during the initial {@link #scan} */
+  @Nullable private ResourceFolderSnapshot mySnapshot;
+  private long mySnapshotGeneration = -1;
 
   @VisibleForTesting
   static int ourFullRescans;
 
+  /** Number of resource files restored from a {@link ResourceFolderSnapshot} rather than scanned; for unit tests */
+  @VisibleForTesting
+  static int ourSnapshotHits;
+
+  /** Whether {@link ResourceFolderSnapshot}s should be read and written. Off in unit tests unless explicitly enabled. */
+  @VisibleForTesting
+  static boolean ourSnapshotsEnabled = !ApplicationManager.getApplication().isUnitTestMode();
+
   private ResourceFolderRepository(@NotNull AndroidFacet facet, @NotNull VirtualFile resourceDir) {
     super(resourceDir.getName());
     myFacet = facet;
@@ -103,18 +119,102 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
   }
 
   private void scan() {
+    final boolean useSnapshot = ourSnapshotsEnabled && myResourceDir.isInLocalFileSystem();
+    if (useSnapshot) {
+      mySnapshot = ResourceFolderSnapshot.read(ResourceFolderSnapshot.getSnapshotFile(myResourceDir), myResourceDir.getPath());
+    }
+    try {
+      PsiDirectory[] folders = ApplicationManager.getApplication().runReadAction(new Computable<PsiDirectory[]>() {
+        @Override
+        public PsiDirectory[] compute() {
+          PsiManager manager = PsiManager.getInstance(myFacet.getModule().getProject());
+          if (myResourceDir.isValid()) {
+            PsiDirectory directory = manager.findDirectory(myResourceDir);
+            if (directory != null) {
+              return directory.getSubdirectories();
+            }
+          }
+          return PsiDirectory.EMPTY_ARRAY;
+        }
+      });
+      scanResFolders(folders);
+    }
+    finally {
+      mySnapshot = null;
+    }
+    if (useSnapshot) {
+      saveSnapshot();
+    }
+  }
+
+  /**
+   * Attempts to initialize the items for the given file from the snapshot of the previous session,
+   * without looking at the file contents. Returns false if there is no up to date snapshot data for the file.
+   */
+  private boolean restoreFromSnapshot(@NotNull ScanResult result,
+                                      @NotNull PsiFile file,
+                                      @NotNull ResourceFolderType folderType,
+                                      @NotNull String qualifiers,
+                                      @NotNull FolderConfiguration folderConfiguration) {
+    if (mySnapshot == null) {
+      return false;
+    }
+    VirtualFile virtualFile = file.getVirtualFile();
+    if (virtualFile == null) {
+      return false;
+    }
+    ResourceFolderSnapshot.Entry entry = mySnapshot.get(virtualFile);
+    if (entry == null || entry.names.length == 0) {
+      return false;
+    }
+
+    List<ResourceItem> items = Lists.newArrayListWithExpectedSize(entry.names.length);
+    for (int i = 0; i < entry.names.length; i++) {
+      ResourceType type = entry.types[i];
+      String name = entry.names[i];
+      ResourceItem item = new PsiResourceItem(name, type, null, file);
+      items.add(item);
+      result.getMap(type).put(name, item);
+    }
+    result.files.put(file, new PsiResourceFile(file, items, qualifiers, folderType, folderConfiguration));
+    result.snapshotHits++;
+    return true;
+  }
+
+  /**
+   * Records the file based resources of this repository such that the next session can skip scanning
+   * the files that have not changed in the meantime
+   */
+  private void saveSnapshot() {
+    if (mySnapshotGeneration == myGeneration) {
+      return;
+    }
+    final ResourceFolderSnapshot snapshot = new ResourceFolderSnapshot(myResourceDir.getPath());
     ApplicationManager.getApplication().runReadAction(new Runnable() {
       @Override
       public void run() {
-        PsiManager manager = PsiManager.getInstance(myFacet.getModule().getProject());
-        if (myResourceDir.isValid()) {
-          PsiDirectory directory = manager.findDirectory(myResourceDir);
-          if (directory != null) {
-            scanResFolder(directory);
+        FileDocumentManager documentManager = FileDocumentManager.getInstance();
+        for (PsiResourceFile resourceFile : myResourceFiles.values()) {
+          if (resourceFile.getFolderType() == VALUES || isScanPending(resourceFile.getPsiFile())) {
+            continue;
+          }
+          VirtualFile virtualFile = resourceFile.getPsiFile().getVirtualFile();
+          if (virtualFile != null && virtualFile.isValid() && !documentManager.isFileModified(virtualFile)) {
+            snapshot.add(virtualFile, resourceFile);
           }
         }
       }
     });
+    snapshot.write(ResourceFolderSnapshot.getSnapshotFile(myResourceDir));
+    mySnapshotGeneration = myGeneration;
+  }
+
+  @Override
+  public void dispose() {
+    if (ourSnapshotsEnabled && myResourceDir.isValid() && myResourceDir.isInLocalFileSystem()) {
+      saveSnapshot();
+    }
+    super.dispose();
   }
 
   @Nullable
@@ -134,21 +234,49 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     return null;
   }
 
-  private void scanResFolder(@NotNull PsiDirectory res) {
-    for (PsiDirectory dir : res.getSubdirectories()) {
-      String name = dir.getName();
-      ResourceFolderType folderType = ResourceFolderType.getFolderType(name);
-      if (folderType != null) {
-        String qualifiers = getQualifiers(name);
-        FolderConfiguration folderConfiguration = FolderConfiguration.getConfigForFolder(name);
-        if (folderConfiguration == null) {
-          continue;
-        }
-        if (folderType == VALUES) {
-          scanValueResFolder(dir, qualifiers, folderConfiguration);
-        } else {
-          scanFileResourceFolder(dir, folderType, qualifiers, folderConfiguration);
+  /**
+   * Scans the given resource folders (e.g. res/values-en-rUS, res/layout-land). Each folder is scanned into its own
+   * {@link ScanResult}, possibly concurrently, and the results are merged into this repository in folder order
+   * such that the outcome is the same as for a sequential scan.
+   */
+  private void scanResFolders(@NotNull PsiDirectory[] folders) {
+    List<Computable<ScanResult>> tasks = Lists.newArrayListWithExpectedSize(folders.length);
+    for (final PsiDirectory dir : folders) {
+      tasks.add(new Computable<ScanResult>() {
+        @Override
+        public ScanResult compute() {
+          ScanResult result = new ScanResult();
+          scanResFolder(result, dir);
+          return result;
         }
+      });
+    }
+
+    for (ScanResult result : ResourceScanner.invokeAll(tasks)) {
+      for (Map.Entry<ResourceType, ListMultimap<String, ResourceItem>> entry : result.items.entrySet()) {
+        myContents.getMap(entry.getKey()).putAll(entry.getValue());
+      }
+      myResourceFiles.putAll(result.files);
+
+      // For unit test tracking purposes only
+      //noinspection AssignmentToStaticFieldFromInstanceMethod
+      ourSnapshotHits += result.snapshotHits;
+    }
+  }
+
+  private void scanResFolder(@NotNull ScanResult result, @NotNull PsiDirectory dir) {
+    String name = dir.getName();
+    ResourceFolderType folderType = ResourceFolderType.getFolderType(name);
+    if (folderType != null) {
+      String qualifiers = getQualifiers(name);
+      FolderConfiguration folderConfiguration = FolderConfiguration.getConfigForFolder(name);
+      if (folderConfiguration == null) {
+        return;
+      }
+      if (folderType == VALUES) {
+        scanValueResFolder(result, dir, qualifiers, folderConfiguration);
+      } else {
+        scanFileResourceFolder(result, dir, folderType, qualifiers, folderConfiguration);
       }
     }
   }
@@ -158,8 +286,8 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     return index != -1 ? dirName.substring(index + 1) : "";
   }
 
-  private void scanFileResourceFolder(@NotNull PsiDirectory directory, ResourceFolderType folderType, String qualifiers,
-                                      FolderConfiguration folderConfiguration) {
+  private void scanFileResourceFolder(@NotNull ScanResult result, @NotNull PsiDirectory directory, ResourceFolderType folderType,
+                                      String qualifiers, FolderConfiguration folderConfiguration) {
     List<ResourceType> resourceTypes = FolderTypeRelationship.getRelatedResourceTypes(folderType);
     assert resourceTypes.size() >= 1 : folderType;
     ResourceType type = resourceTypes.get(0);
@@ -167,22 +295,22 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     boolean idGenerating = resourceTypes.size() > 1;
     assert !idGenerating || resourceTypes.size() == 2 && resourceTypes.get(1) == ResourceType.ID;
 
-    ListMultimap<String, ResourceItem> map = myItems.get(type);
-    if (map == null) {
-      map = ArrayListMultimap.create();
-      myItems.put(type, map);
-    }
+    ListMultimap<String, ResourceItem> map = result.getMap(type);
 
     for (PsiFile file : directory.getFiles()) {
       FileType fileType = file.getFileType();
       if (isRelevantFileType(fileType) || folderType == ResourceFolderType.RAW) {
-        scanFileResourceFile(qualifiers, folderType, folderConfiguration, type, idGenerating, map, file);
+        if (restoreFromSnapshot(result, file, folderType, qualifiers, folderConfiguration)) {
+          continue;
+        }
+        scanFileResourceFile(result, qualifiers, folderType, folderConfiguration, type, idGenerating, map, file);
 
       } // TODO: Else warn about files that aren't expected to be found here?
     }
   }
 
-  private void scanFileResourceFile(String qualifiers,
+  private static void scanFileResourceFile(@NotNull ScanResult result,
+                                    String qualifiers,
                                     ResourceFolderType folderType,
                                     FolderConfiguration folderConfiguration,
                                     ResourceType type,
@@ -197,13 +325,13 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
       List<ResourceItem> items = Lists.newArrayList();
       items.add(item);
       map.put(name, item);
-      addIds(items, file);
+      addIds(result, items, file);
 
       PsiResourceFile resourceFile = new PsiResourceFile(file, items, qualifiers, folderType, folderConfiguration);
-      myResourceFiles.put(file, resourceFile);
+      result.files.put(file, resourceFile);
     } else {
       PsiResourceFile resourceFile = new PsiResourceFile(file, item, qualifiers, folderType, folderConfiguration);
-      myResourceFiles.put(file, resourceFile);
+      result.files.put(file, resourceFile);
       map.put(name, item);
     }
   }
@@ -231,49 +359,45 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     myResourceFiles.clear();
   }
 
-  private void addIds(List<ResourceItem> items, PsiFile file) {
-    addIds(items, file, file);
+  private static void addIds(ScanResult result, List<ResourceItem> items, PsiFile file) {
+    addIds(result, items, file, file);
   }
 
-  private void addIds(List<ResourceItem> items, PsiElement element, PsiFile file) {
+  private static void addIds(ScanResult result, List<ResourceItem> items, PsiElement element, PsiFile file) {
     Collection<XmlTag> xmlTags = PsiTreeUtil.findChildrenOfType(element, XmlTag.class);
     if (element instanceof XmlTag) {
-      addId(items, file, (XmlTag)element);
+      addId(result, items, file, (XmlTag)element);
     }
     if (!xmlTags.isEmpty()) {
       for (XmlTag tag : xmlTags) {
-        addId(items, file, tag);
+        addId(result, items, file, tag);
       }
     }
   }
 
-  private void addId(List<ResourceItem> items, PsiFile file, XmlTag tag) {
+  private static void addId(ScanResult result, List<ResourceItem> items, PsiFile file, XmlTag tag) {
     assert tag.isValid();
     String id = tag.getAttributeValue(ATTR_ID, ANDROID_URI);
     if (id != null && id.startsWith(NEW_ID_PREFIX)) {
       String name = id.substring(NEW_ID_PREFIX.length());
       PsiResourceItem item = new PsiResourceItem(name, ResourceType.ID, null, file);
       items.add(item);
-
-      ListMultimap<String, ResourceItem> map = myItems.get(ResourceType.ID);
-      if (map == null) {
-        map = ArrayListMultimap.create();
-        myItems.put(ResourceType.ID, map);
-      }
-      map.put(name, item);
+      result.getMap(ResourceType.ID).put(name, item);
     }
   }
 
-  private void scanValueResFolder(@NotNull PsiDirectory directory, String qualifiers, FolderConfiguration folderConfiguration) {
+  private static void scanValueResFolder(@NotNull ScanResult result, @NotNull PsiDirectory directory, String qualifiers,
+                                         FolderConfiguration folderConfiguration) {
     //noinspection ConstantConditions
     assert directory.getName().startsWith(FD_RES_VALUES);
 
     for (PsiFile file : directory.getFiles()) {
-      scanValueFile(qualifiers, file, folderConfiguration);
+      scanValueFile(result, qualifiers, file, folderConfiguration);
     }
   }
 
-  private boolean scanValueFile(String qualifiers, PsiFile file, FolderConfiguration folderConfiguration) {
+  private static boolean scanValueFile(@NotNull ScanResult result, String qualifiers, PsiFile file,
+                                       FolderConfiguration folderConfiguration) {
     boolean added = false;
     FileType fileType = file.getFileType();
     if (fileType == StdFileTypes.XML) {
@@ -295,11 +419,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
           if (name != null) {
             ResourceType type = getType(tag);
             if (type != null) {
-              ListMultimap<String, ResourceItem> map = myItems.get(type);
-              if (map == null) {
-                map = ArrayListMultimap.create();
-                myItems.put(type, map);
-              }
+              ListMultimap<String, ResourceItem> map = result.getMap(type);
 
               ResourceItem item = new PsiResourceItem(name, type, tag, file);
               map.put(name, item);
@@ -310,11 +430,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
                 // for declare styleables we also need to create attr items for its children
                 XmlTag[] attrs = tag.getSubTags();
                 if (attrs.length > 0) {
-                  map = myItems.get(ResourceType.ATTR);
-                  if (map == null) {
-                    map = ArrayListMultimap.create();
-                    myItems.put(ResourceType.ATTR, map);
-                  }
+                  map = result.getMap(ResourceType.ATTR);
 
                   for (XmlTag child : attrs) {
                     String attrName = child.getAttributeValue(ATTR_NAME);
@@ -335,7 +451,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
 
         if (items != null) {
           PsiResourceFile resourceFile = new PsiResourceFile(file, items, qualifiers, ResourceFolderType.VALUES, folderConfiguration);
-          myResourceFiles.put(file, resourceFile);
+          result.files.put(file, resourceFile);
         }
       }
     }
@@ -496,7 +612,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
         if (fileParent != null) {
           FolderConfiguration folderConfiguration = FolderConfiguration.getConfigForFolder(fileParent.getName());
           if (folderConfiguration != null) {
-            added = scanValueFile(getQualifiers(dirName), file, folderConfiguration);
+            added = scanValueFile(myContents, getQualifiers(dirName), file, folderConfiguration);
           }
         }
       }
@@ -555,7 +671,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
           List<ResourceItem> idItems = Lists.newArrayList();
           file = ensureValid(file);
           if (file != null) {
-            addIds(idItems, file);
+            addIds(myContents, idItems, file);
           }
           if (!idItems.isEmpty()) {
             resourceFile.addItems(idItems);
@@ -598,7 +714,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
           if (fileParent != null) {
             FolderConfiguration folderConfiguration = FolderConfiguration.getConfigForFolder(fileParent.getName());
             if (folderConfiguration != null) {
-              scanFileResourceFile(getQualifiers(dirName), folderType, folderConfiguration, type, idGenerating, map, file);
+              scanFileResourceFile(myContents, getQualifiers(dirName), folderType, folderConfiguration, type, idGenerating, map, file);
             }
           }
           myGeneration++;
@@ -768,7 +884,7 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
             if (parent instanceof XmlElement && child instanceof XmlElement) {
               if (child instanceof XmlTag) {
                 List<ResourceItem> ids = Lists.newArrayList();
-                addIds(ids, child, psiFile);
+                addIds(myContents, ids, child, psiFile);
                 if (!ids.isEmpty()) {
                   PsiResourceFile resourceFile = myResourceFiles.get(psiFile);
                   if (resourceFile != null) {
@@ -1622,6 +1738,32 @@ public final class ResourceFolderRepository extends LocalResourceRepository {
     return null;
   }
 
+  /** Resource items and files found by scanning (part of) a resource directory */
+  private static final class ScanResult {
+    final Map<ResourceType, ListMultimap<String, ResourceItem>> items;
+    final Map<PsiFile, PsiResourceFile> files;
+    int snapshotHits;
+
+    ScanResult() {
+      this(Maps.<ResourceType, ListMultimap<String, ResourceItem>>newEnumMap(ResourceType.class), Maps.<PsiFile, PsiResourceFile>newHashMap());
+    }
+
+    ScanResult(@NotNull Map<ResourceType, ListMultimap<String, ResourceItem>> items, @NotNull Map<PsiFile, PsiResourceFile> files) {
+      this.items = items;
+      this.files = files;
+    }
+
+    @NotNull
+    ListMultimap<String, ResourceItem> getMap(@NotNull ResourceType type) {
+      ListMultimap<String, ResourceItem> map = items.get(type);
+      if (map == null) {
+        map = ArrayListMultimap.create();
+        items.put(type, map);
+      }
+      return map;
+    }
+  }
+
   // For debugging only
   @Override
   public String toString() {
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.ide.common.res2.ResourceItem;
+import com.android.resources.ResourceType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.util.AndroidUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, persistent summary of the file based resources (layouts, menus, drawables etc) found in a single
+ * resource directory. This is used by {@link ResourceFolderRepository} to skip parsing the PSI of files which have
+ * not changed since the previous IDE session: for each file we record its timestamp and length along with the
+ * (type, name) pairs it contributed, such as the layout itself plus any {@code @+id} declarations inside it.
+ * <p>
+ * Value resource files are not recorded, since their items are backed by the actual {@link com.intellij.psi.xml.XmlTag}
+ * instances and have to be parsed anyway.
+ */
+final class ResourceFolderSnapshot {
+  private static final Logger LOG = Logger.getInstance(ResourceFolderSnapshot.class);
+
+  private static final int MAGIC = 0x52534E50; // "RSNP"
+  /** Bump whenever the binary format or the meaning of its contents changes */
+  private static final int VERSION = 1;
+
+  private final String myResourceDirPath;
+  private final Map<String, Entry> myEntries;
+
+  /** The resource items recorded for a single resource file */
+  static final class Entry {
+    final long timeStamp;
+    final long length;
+    final ResourceType[] types;
+    final String[] names;
+
+    Entry(long timeStamp, long length, @NotNull ResourceType[] types, @NotNull String[] names) {
+      assert types.length == names.length;
+      this.timeStamp = timeStamp;
+      this.length = length;
+      this.types = types;
+      this.names = names;
+    }
+  }
+
+  ResourceFolderSnapshot(@NotNull String resourceDirPath) {
+    this(resourceDirPath, Maps.<String, Entry>newHashMap());
+  }
+
+  private ResourceFolderSnapshot(@NotNull String resourceDirPath, @NotNull Map<String, Entry> entries) {
+    myResourceDirPath = resourceDirPath;
+    myEntries = entries;
+  }
+
+  int size() {
+    return myEntries.size();
+  }
+
+  /**
+   * Records the given items for the given resource file. The file's timestamp and length are used to decide
+   * whether the entry is still valid in a later session.
+   */
+  void add(@NotNull VirtualFile file, @NotNull Iterable<ResourceItem> items) {
+    List<ResourceType> types = Lists.newArrayList();
+    List<String> names = Lists.newArrayList();
+    for (ResourceItem item : items) {
+      types.add(item.getType());
+      names.add(item.getName());
+    }
+    myEntries.put(getRelativePath(file), new Entry(file.getTimeStamp(), file.getLength(), types.toArray(new ResourceType[types.size()]),
+                                                   names.toArray(new String[names.size()])));
+  }
+
+  /** Returns the recorded entry for the given file, or null if there is none or it is out of date */
+  @Nullable
+  Entry get(@NotNull VirtualFile file) {
+    Entry entry = myEntries.get(getRelativePath(file));
+    if (entry != null && entry.timeStamp == file.getTimeStamp() && entry.length == file.getLength()) {
+      return entry;
+    }
+    return null;
+  }
+
+  @NotNull
+  private static String getRelativePath(@NotNull VirtualFile file) {
+    VirtualFile parent = file.getParent();
+    return parent != null ? parent.getName() + '/' + file.getName() : file.getName();
+  }
+
+  /** Returns the location of the snapshot for the given resource directory */
+  @NotNull
+  static File getSnapshotFile(@NotNull VirtualFile resourceDir) {
+    String path = resourceDir.getPath();
+    String name = resourceDir.getParent() != null ? resourceDir.getParent().getName() + '_' + resourceDir.getName() : resourceDir.getName();
+    File dir = new File(AndroidUtils.getAndroidSystemDirectoryOsPath(), "resources");
+    return new File(dir, name + '_' + Integer.toHexString(path.hashCode()) + ".snapshot");
+  }
+
+  /**
+   * Reads a snapshot previously written by {@link #write}. Returns null if the file does not exist, was written
+   * by a different version, belongs to a different resource directory or could not be read.
+   */
+  @Nullable
+  static ResourceFolderSnapshot read(@NotNull File file, @NotNull String resourceDirPath) {
+    if (!file.isFile()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION || !resourceDirPath.equals(in.readUTF())) {
+        return null;
+      }
+
+      // Type table; stored by name rather than by ordinal such that enum changes don't silently corrupt the data
+      int typeCount = in.readUnsignedByte();
+      ResourceType[] typeTable = new ResourceType[typeCount];
+      for (int i = 0; i < typeCount; i++) {
+        typeTable[i] = ResourceType.getEnum(in.readUTF());
+        if (typeTable[i] == null) {
+          return null;
+        }
+      }
+
+      int fileCount = in.readInt();
+      Map<String, Entry> entries = Maps.newHashMapWithExpectedSize(fileCount);
+      for (int i = 0; i < fileCount; i++) {
+        String path = in.readUTF();
+        long timeStamp = in.readLong();
+        long length = in.readLong();
+        int itemCount = in.readInt();
+        ResourceType[] types = new ResourceType[itemCount];
+        String[] names = new String[itemCount];
+        for (int j = 0; j < itemCount; j++) {
+          types[j] = typeTable[in.readUnsignedByte()];
+          names[j] = in.readUTF();
+        }
+        entries.put(path, new Entry(timeStamp, length, types, names));
+      }
+
+      return new ResourceFolderSnapshot(resourceDirPath, entries);
+    }
+    catch (IOException e) {
+      LOG.info("Could not read resource snapshot " + file, e);
+      return null;
+    }
+    catch (ArrayIndexOutOfBoundsException e) {
+      // Corrupt type index
+      LOG.info("Could not read resource snapshot " + file, e);
+      return null;
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch (IOException ignore) {
+        }
+      }
+    }
+  }
+
+  /** Writes this snapshot to the given file; failures are logged and otherwise ignored since the snapshot is just a cache */
+  void write(@NotNull File file) {
+    ResourceType[] allTypes = ResourceType.values();
+    File tempFile = null;
+    DataOutputStream out = null;
+    try {
+      FileUtil.createParentDirs(file);
+      // A unique temporary file, since several projects (or IDE instances) may write the snapshot of a shared folder at once
+      tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(myResourceDirPath);
+
+      out.writeByte(allTypes.length);
+      for (ResourceType type : allTypes) {
+        out.writeUTF(type.getName());
+      }
+
+      out.writeInt(myEntries.size());
+      for (Map.Entry<String, Entry> mapEntry : myEntries.entrySet()) {
+        Entry entry = mapEntry.getValue();
+        out.writeUTF(mapEntry.getKey());
+        out.writeLong(entry.timeStamp);
+        out.writeLong(entry.length);
+        out.writeInt(entry.names.length);
+        for (int i = 0; i < entry.names.length; i++) {
+          out.writeByte(entry.types[i].ordinal());
+          out.writeUTF(entry.names[i]);
+        }
+      }
+      out.close();
+      out = null;
+
+      // Write to a temporary file first such that a crash during writing never leaves a truncated snapshot behind. Renaming
+      // replaces the old snapshot atomically, except on platforms which don't rename onto an existing file (Windows)
+      if (!tempFile.renameTo(file) && !(FileUtil.delete(file) && tempFile.renameTo(file))) {
+        FileUtil.delete(tempFile);
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Could not write resource snapshot " + file, e);
+      if (tempFile != null) {
+        FileUtil.delete(tempFile);
+      }
+    }
+    finally {
+      if (out != null) {
+        try {
+          out.close();
+        }
+        catch (IOException ignore) {
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Computable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs resource scanning tasks, such as scanning the folders of a resource directory or creating the resource
+ * repositories of the modules a module depends on, concurrently on a bounded thread pool.
+ * <p>
+ * Each task runs under its own read action. Since a background thread cannot acquire a read action while a
+ * write action is pending, tasks are only run concurrently when it is safe for the calling thread to block on them:
+ * on the event dispatch thread outside of a write action (no write action can start while it is blocked), or on a
+ * background thread which does not itself hold the read lock. Everywhere else, such as from within another scanning
+ * task, the tasks are simply run sequentially.
+ */
+final class ResourceScanner {
+  private static final int POOL_SIZE = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+
+  /** Whether tasks may be run concurrently at all; can be turned off to compare against sequential scanning */
+  @VisibleForTesting
+  static boolean ourConcurrent = !Boolean.getBoolean("android.resources.sequential.scan");
+
+  private static final ExecutorService ourExecutor = createExecutor();
+
+  private ResourceScanner() {
+  }
+
+  private static ExecutorService createExecutor() {
+    final AtomicInteger count = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                         new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, "Android Resource Scanner " + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Computes the given tasks, each under a read action, and returns their results in the same order as the tasks.
+   * The calling thread does not just wait for the pool; it runs any task which has not been picked up by a pool
+   * thread yet itself, so it never blocks on a task which has not started. That keeps nested use (such as module
+   * repositories whose folder repositories scan their folders concurrently) from starving the pool.
+   */
+  @NotNull
+  static <T> List<T> invokeAll(@NotNull List<? extends Computable<T>> tasks) {
+    List<T> results = Lists.newArrayListWithExpectedSize(tasks.size());
+    if (tasks.size() <= 1 || !canRunConcurrently()) {
+      for (Computable<T> task : tasks) {
+        results.add(ApplicationManager.getApplication().runReadAction(task));
+      }
+      return results;
+    }
+
+    List<FutureTask<T>> futures = Lists.newArrayListWithExpectedSize(tasks.size());
+    for (final Computable<T> task : tasks) {
+      FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          return ApplicationManager.getApplication().runReadAction(task);
+        }
+      });
+      futures.add(future);
+      ourExecutor.execute(future);
+    }
+
+    try {
+      // FutureTask#run is a no-op for tasks already started by (or completed on) a pool thread
+      for (FutureTask<T> future : futures) {
+        future.run();
+      }
+      for (FutureTask<T> future : futures) {
+        results.add(future.get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new RuntimeException(cause);
+    }
+    finally {
+      // Don't leave tasks running if we bailed out early (e.g. when canceled)
+      for (FutureTask<T> future : futures) {
+        future.cancel(false);
+      }
+    }
+
+    return results;
+  }
+
+  private static boolean canRunConcurrently() {
+    if (!ourConcurrent || POOL_SIZE == 1) {
+      return false;
+    }
+    Application application = ApplicationManager.getApplication();
+    if (application.isWriteAccessAllowed()) {
+      return false;
+    }
+    return application.isDispatchThread() || !application.isReadAccessAllowed();
+  }
+}
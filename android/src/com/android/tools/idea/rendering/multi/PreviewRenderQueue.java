@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering.multi;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.Alarm;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static com.intellij.util.Alarm.ThreadToUse.POOLED_THREAD;
+
+/**
+ * Queue of pending {@link RenderPreview} renders for a {@link RenderPreviewManager}.
+ * <p>
+ * There is at most one pending request per preview: scheduling a preview which is already pending replaces
+ * (and drops) the earlier request, so a burst of edits only renders each thumbnail once. When a render slot
+ * frees up, the due request with the best {@linkplain RenderPreviewManager#getRenderPriority priority} is started;
+ * priorities are evaluated at that point, so scrolling a thumbnail into view moves it ahead of the ones
+ * which are now offscreen. The main canvas is rendered outside of this queue, and is admitted ahead of any
+ * preview render by the {@link com.android.tools.idea.rendering.RenderScheduler}.
+ */
+class PreviewRenderQueue implements Disposable {
+  private static final Logger LOG = Logger.getInstance(PreviewRenderQueue.class);
+
+  /** Previews shown zoomed, in place of or next to the main canvas */
+  static final int PRIORITY_ZOOMED = 0;
+  /** Thumbnails in the visible part of the canvas */
+  static final int PRIORITY_VISIBLE = 1;
+  /** Thumbnails scrolled out of view */
+  static final int PRIORITY_OFFSCREEN = 2;
+
+  private final RenderPreviewManager myManager;
+  private final Executor myExecutor;
+  private final int myMaxInFlight;
+  private final Alarm myAlarm;
+  private final Runnable myPump = new Runnable() {
+    @Override
+    public void run() {
+      pump();
+    }
+  };
+
+  private final Map<RenderPreview, Request> myPending = Maps.newLinkedHashMap();
+  private final Set<RenderPreview> myInFlight = Sets.newHashSet();
+  private long mySequence;
+  private boolean myDisposed;
+
+  private int myQueuedCount;
+  private int myDroppedCount;
+  private int myCompletedCount;
+
+  private static class Request {
+    final long dueTime;
+    final long sequence;
+
+    Request(long dueTime, long sequence) {
+      this.dueTime = dueTime;
+      this.sequence = sequence;
+    }
+  }
+
+  PreviewRenderQueue(@NotNull RenderPreviewManager manager, @NotNull Executor executor, int maxInFlight) {
+    myManager = manager;
+    myExecutor = executor;
+    myMaxInFlight = maxInFlight;
+    myAlarm = new Alarm(POOLED_THREAD, this);
+  }
+
+  /**
+   * Requests a render of the given preview after the given delay, replacing any pending request for it
+   *
+   * @param preview the preview to render
+   * @param delay   the minimum delay in milliseconds before rendering
+   */
+  void schedule(@NotNull RenderPreview preview, long delay) {
+    synchronized (this) {
+      if (myDisposed) {
+        return;
+      }
+      myQueuedCount++;
+      Request previous = myPending.put(preview, new Request(System.currentTimeMillis() + delay, mySequence++));
+      if (previous != null) {
+        myDroppedCount++;
+      }
+    }
+    if (delay > 0) {
+      myAlarm.addRequest(myPump, (int)delay);
+    }
+    else {
+      pump();
+    }
+  }
+
+  /** Drops the pending request for the given preview, if any. A render already in progress is allowed to finish. */
+  void cancel(@NotNull RenderPreview preview) {
+    synchronized (this) {
+      if (myPending.remove(preview) != null) {
+        myDroppedCount++;
+      }
+    }
+  }
+
+  /** Drops all pending requests */
+  void cancelAll() {
+    synchronized (this) {
+      myDroppedCount += myPending.size();
+      myPending.clear();
+    }
+    myAlarm.cancelAllRequests();
+  }
+
+  /** Starts as many due requests as there are free render slots */
+  private void pump() {
+    while (true) {
+      final RenderPreview preview;
+      long nextDue = Long.MAX_VALUE;
+      synchronized (this) {
+        if (myDisposed || myInFlight.size() >= myMaxInFlight) {
+          return;
+        }
+        long now = System.currentTimeMillis();
+        RenderPreview best = null;
+        int bestPriority = Integer.MAX_VALUE;
+        long bestSequence = Long.MAX_VALUE;
+        for (Map.Entry<RenderPreview, Request> entry : myPending.entrySet()) {
+          RenderPreview candidate = entry.getKey();
+          Request request = entry.getValue();
+          if (myInFlight.contains(candidate)) {
+            // Rendered again once the current render completes
+            continue;
+          }
+          if (request.dueTime > now) {
+            nextDue = Math.min(nextDue, request.dueTime);
+            continue;
+          }
+          int priority = myManager.getRenderPriority(candidate);
+          if (priority < bestPriority || priority == bestPriority && request.sequence < bestSequence) {
+            best = candidate;
+            bestPriority = priority;
+            bestSequence = request.sequence;
+          }
+        }
+        preview = best;
+        if (preview != null) {
+          myPending.remove(preview);
+          myInFlight.add(preview);
+        }
+      }
+
+      if (preview == null) {
+        if (nextDue != Long.MAX_VALUE) {
+          myAlarm.addRequest(myPump, (int)Math.max(0, nextDue - System.currentTimeMillis()));
+        }
+        return;
+      }
+
+      myExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          boolean rendered = false;
+          try {
+            // The preview may have been scrolled away or removed since it was scheduled
+            if (preview.isVisible()) {
+              myManager.renderPreview(preview);
+              rendered = true;
+            }
+          }
+          finally {
+            completed(preview, rendered);
+          }
+        }
+      });
+    }
+  }
+
+  private void completed(@NotNull RenderPreview preview, boolean rendered) {
+    synchronized (this) {
+      myInFlight.remove(preview);
+      if (rendered) {
+        myCompletedCount++;
+      }
+      else {
+        myDroppedCount++;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(getStatistics());
+      }
+    }
+    pump();
+  }
+
+  /** Returns the number of render requests made so far */
+  synchronized int getQueuedCount() {
+    return myQueuedCount;
+  }
+
+  /** Returns the number of render requests which were superseded or canceled before they started */
+  synchronized int getDroppedCount() {
+    return myDroppedCount;
+  }
+
+  /** Returns the number of renders which have completed */
+  synchronized int getCompletedCount() {
+    return myCompletedCount;
+  }
+
+  /** Returns the number of requests waiting to be started */
+  synchronized int getPendingCount() {
+    return myPending.size();
+  }
+
+  @NotNull
+  synchronized String getStatistics() {
+    return String.format("Preview renders: %1$d queued, %2$d dropped, %3$d completed, %4$d pending, %5$d in progress", myQueuedCount,
+                         myDroppedCount, myCompletedCount, myPending.size(), myInFlight.size());
+  }
+
+  @Override
+  public void dispose() {
+    synchronized (this) {
+      myDisposed = true;
+      myPending.clear();
+    }
+    myAlarm.cancelAllRequests();
+  }
+
+  @Override
+  public String toString() {
+    return getStatistics();
+  }
+}
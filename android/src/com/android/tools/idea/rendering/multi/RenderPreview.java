@@ -117,7 +117,6 @@ public class RenderPreview implements Disposable {
   /** Whether current thumbnail actually has a device frame */
   private boolean myThumbnailHasFrame;
   private @Nullable Rectangle myViewBounds;
-  private @Nullable Runnable myPendingRendering;
   private @Nullable String myId;
 
   /**
@@ -465,6 +464,7 @@ public class RenderPreview implements Disposable {
    */
   @Override
   public void dispose() {
+    myManager.cancelRender(this);
     disposeThumbnail();
     if (this != myManager.getStashedPreview()) {
       myConfiguration.dispose();
@@ -565,6 +565,8 @@ public class RenderPreview implements Disposable {
     if (myIncludedWithin != null) {
       renderTask.setIncludedWithin(myIncludedWithin);
     }
+    renderTask.setUseResultCache(true);
+    renderTask.setForeground(false);
 
     RenderResult result = renderTask.render();
     RenderSession session = result != null ? result.getSession() : null;
@@ -1324,17 +1326,6 @@ public class RenderPreview implements Disposable {
     return myMaxHeight;
   }
 
-  /** Returns the current pending rendering request, if any */
-  @Nullable
-  public Runnable getPendingRendering() {
-    return myPendingRendering;
-  }
-
-  /** Sets or clears the current pending rendering request */
-  public void setPendingRendering(@Nullable Runnable pendingRendering) {
-    myPendingRendering = pendingRendering;
-  }
-
   public boolean isShowFrame() {
     return myShowFrame;
   }
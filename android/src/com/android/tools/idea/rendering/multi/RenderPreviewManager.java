@@ -35,6 +35,7 @@ import com.android.tools.idea.ddms.screenshot.DeviceArtPainter;
 import com.android.tools.idea.model.AndroidModuleInfo;
 import com.android.tools.idea.rendering.AppResourceRepository;
 import com.android.tools.idea.rendering.Locale;
+import com.android.tools.idea.rendering.RenderScheduler;
 import com.android.tools.idea.rendering.ResourceHelper;
 import com.google.common.collect.Lists;
 import com.intellij.openapi.Disposable;
@@ -47,26 +48,25 @@ import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.xml.XmlFile;
-import com.intellij.util.Alarm;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.ui.Animator;
 import org.jetbrains.android.facet.AndroidFacet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import javax.swing.JComponent;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import static com.android.tools.idea.configurations.ConfigurationListener.CFG_DEVICE;
 import static com.android.tools.idea.configurations.ConfigurationListener.CFG_DEVICE_STATE;
 import static com.android.tools.idea.rendering.ShadowPainter.SHADOW_SIZE;
 import static com.android.tools.idea.rendering.ShadowPainter.SMALL_SHADOW_SIZE;
 import static com.android.tools.idea.rendering.multi.RenderPreviewMode.*;
-import static com.intellij.util.Alarm.ThreadToUse.POOLED_THREAD;
-import static com.intellij.util.Alarm.ThreadToUse.SWING_THREAD;
 
 /**
  * Manager for the configuration previews, which handles layout computations,
@@ -103,7 +103,6 @@ public class RenderPreviewManager implements Disposable {
   private int myPrevCanvasHeight;
   private int myPrevImageWidth;
   private int myPrevImageHeight;
-  private int myPendingRenderCount;
 
   /**
    * Last seen state revision in this {@link RenderPreviewManager}. If less
@@ -128,8 +127,13 @@ public class RenderPreviewManager implements Disposable {
    */
   private static final boolean RENDER_ASYNC = true;
 
-  @SuppressWarnings("ConstantConditions")
-  private final @NotNull Alarm myAlarm = RENDER_ASYNC ? new Alarm(POOLED_THREAD, this) : new Alarm(SWING_THREAD, this);
+  private final @NotNull PreviewRenderQueue myRenderQueue = createRenderQueue();
+
+  /**
+   * The part of the canvas currently visible, in preview coordinates (see {@link RenderPreview#getX()}),
+   * or null if not known. Updated on each paint, and used to prioritize the rendering of visible previews.
+   */
+  private volatile @Nullable Rectangle myVisibleArea;
 
   /**
    * Creates a {@link RenderPreviewManager} associated with the given canvas
@@ -396,8 +400,6 @@ public class RenderPreviewManager implements Disposable {
     myPrevCanvasWidth = clientArea.width;
     myPrevCanvasHeight = clientArea.height;
 
-    beginRenderScheduling();
-
     myLayoutHeight = 0;
 
     RenderContext.UsageType usageType = myRenderContext.getType();
@@ -535,6 +537,13 @@ public class RenderPreviewManager implements Disposable {
       int rootX = getX();
       int rootY = getY();
 
+      Component component = myRenderContext.getComponent();
+      if (component instanceof JComponent) {
+        Rectangle visible = ((JComponent)component).getVisibleRect();
+        visible.translate(-rootX, -rootY);
+        myVisibleArea = visible;
+      }
+
       Configuration canvasConfiguration = myRenderContext.getConfiguration();
       if (canvasConfiguration == null) {
         return;
@@ -1281,7 +1290,6 @@ public class RenderPreviewManager implements Disposable {
     if (hasPreviews()) {
       assert myPreviews != null;
       // Do zoomed images first
-      beginRenderScheduling();
       for (RenderPreview preview : myPreviews) {
         if (preview.getScale() > 1.2) {
           preview.configurationChanged(flags);
@@ -1314,9 +1322,8 @@ public class RenderPreviewManager implements Disposable {
 
     if (hasPreviews()) {
       assert myPreviews != null;
-      beginRenderScheduling();
-
-      myAlarm.cancelAllRequests();
+      // Everything is rescheduled below; drop the requests this supersedes
+      myRenderQueue.cancelAll();
 
       // Process in visual order
       ArrayList<RenderPreview> visualOrder = new ArrayList<RenderPreview>(myPreviews);
@@ -1344,23 +1351,13 @@ public class RenderPreviewManager implements Disposable {
   }
 
   /**
-   * Reset rendering scheduling. The next render request will be scheduled
-   * after a single delay unit.
-   */
-  public void beginRenderScheduling() {
-    myPendingRenderCount = 0;
-  }
-
-  /**
-   * Schedule rendering the given preview. Each successive call will add an additional
-   * delay unit to the schedule from the previous {@link #scheduleRender(RenderPreview)}
-   * call, until {@link #beginRenderScheduling()} is called again.
+   * Schedule rendering the given preview after the default delay. Repeated requests for the same preview
+   * before it starts rendering are coalesced into one.
    *
    * @param preview the preview to render
    */
   public void scheduleRender(@NotNull RenderPreview preview) {
-    myPendingRenderCount++;
-    scheduleRender(preview, myPendingRenderCount * RENDER_DELAY);
+    scheduleRender(preview, RENDER_DELAY);
   }
 
   /**
@@ -1370,26 +1367,62 @@ public class RenderPreviewManager implements Disposable {
    * @param delay the delay to wait before rendering
    */
   public void scheduleRender(@NotNull final RenderPreview preview, long delay) {
-    Runnable pending = preview.getPendingRendering();
-    if (pending != null) {
-      myAlarm.cancelRequest(pending);
+    myRenderQueue.schedule(preview, delay);
+  }
+
+  /** Drops any pending render request for the given preview */
+  void cancelRender(@NotNull RenderPreview preview) {
+    myRenderQueue.cancel(preview);
+  }
+
+  @NotNull
+  private PreviewRenderQueue createRenderQueue() {
+    // Previews which don't share a layout library render concurrently on the render threads; see RenderScheduler
+    @SuppressWarnings("ConstantConditions")
+    PreviewRenderQueue queue = RENDER_ASYNC
+                               ? new PreviewRenderQueue(this, RenderScheduler.getExecutor(), RenderScheduler.MAX_CONCURRENT_RENDERS)
+                               : new PreviewRenderQueue(this, new Executor() {
+                                 @Override
+                                 public void execute(@NotNull Runnable command) {
+                                   ApplicationManager.getApplication().invokeLater(command);
+                                 }
+                               }, 1);
+    Disposer.register(this, queue);
+    return queue;
+  }
+
+  /**
+   * Returns the render priority of the given preview, one of the {@code PRIORITY_} constants in
+   * {@link PreviewRenderQueue}: zoomed previews first, then the thumbnails in view, then the rest
+   */
+  int getRenderPriority(@NotNull RenderPreview preview) {
+    if (preview.getScale() > 1.2) {
+      return PreviewRenderQueue.PRIORITY_ZOOMED;
+    }
+    Rectangle visible = myVisibleArea;
+    if (visible == null || visible.intersects(preview.getX(), preview.getY(), preview.getLayoutWidth(), preview.getLayoutHeight())) {
+      return PreviewRenderQueue.PRIORITY_VISIBLE;
     }
-    Runnable request = new Runnable() {
+    return PreviewRenderQueue.PRIORITY_OFFSCREEN;
+  }
+
+  /** Renders the given preview on the current thread and repaints; called by the {@link PreviewRenderQueue} */
+  void renderPreview(@NotNull RenderPreview preview) {
+    preview.updateSize();
+    preview.renderSync();
+    ApplicationManager.getApplication().invokeLater(new Runnable() {
       @Override
       public void run() {
-        preview.setPendingRendering(null);
-        preview.updateSize();
-        preview.renderSync();
-        ApplicationManager.getApplication().invokeLater(new Runnable() {
-          @Override
-          public void run() {
-            redraw();
-          }
-        });
+        redraw();
       }
-    };
-    preview.setPendingRendering(request);
-    myAlarm.addRequest(request, delay);
+    });
+  }
+
+  /** Returns the queue of pending preview renders, for diagnostics */
+  @VisibleForTesting
+  @NotNull
+  PreviewRenderQueue getRenderQueue() {
+    return myRenderQueue;
   }
 
   /**
@@ -1781,8 +1814,6 @@ public class RenderPreviewManager implements Disposable {
   public void dispose() {
     Disposer.dispose(this);
     disposePreviews();
-    myAlarm.cancelAllRequests();
-    myAlarm.dispose();
     if (myAnimator != null) {
       myAnimator.dispose();
       myAnimator = null;
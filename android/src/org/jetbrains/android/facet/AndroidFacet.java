@@ -117,7 +117,8 @@ public final class AndroidFacet extends Facet<AndroidFacetConfiguration> {
 
   private static final Object APP_RESOURCES_LOCK = new Object();
   private static final Object PROJECT_RESOURCES_LOCK = new Object();
-  private static final Object MODULE_RESOURCES_LOCK = new Object();
+  /** Per facet such that the module repositories of different modules can be created concurrently */
+  private final Object myModuleResourcesLock = new Object();
   private static boolean ourDynamicTemplateMenuCreated;
 
   private AvdManager myAvdManager = null;
@@ -1097,7 +1098,7 @@ public final class AndroidFacet extends Facet<AndroidFacetConfiguration> {
   @Contract("true -> !null")
   @Nullable
   public LocalResourceRepository getModuleResources(boolean createIfNecessary) {
-    synchronized (MODULE_RESOURCES_LOCK) {
+    synchronized (myModuleResourcesLock) {
       if (myModuleResources == null && createIfNecessary) {
         myModuleResources = ModuleResourceRepository.create(this);
       }
@@ -30,6 +30,7 @@ import org.jetbrains.android.logcat.AndroidLogcatReceiver.LogMessageHeader;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -42,7 +43,7 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
   private Log.LogLevel myPrevMessageLogLevel;
   private String myPrevTag;
   private String myPrevPkg;
-  private String myPrevPid;
+  private int myPrevPid;
   private boolean myFullMessageApplicable = false;
   private boolean myFullMessageApplicableByCustomFilter = false;
   private StringBuilder myMessageBuilder = new StringBuilder();
@@ -78,6 +79,34 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
     return null;
   }
 
+  /** Returns the buffer the messages were parsed into when they were received, if any */
+  @Nullable
+  protected LogcatBuffer getLogcatBuffer() {
+    return null;
+  }
+
+  /**
+   * Returns the fields of the message in the given line, or null if the line doesn't start a message. The fields are
+   * looked up in the {@link LogcatBuffer} if possible, and only parsed from the line otherwise.
+   */
+  @Nullable
+  private LogcatBuffer.Entry findEntry(@NotNull String line) {
+    LogcatBuffer buffer = getLogcatBuffer();
+    if (buffer != null) {
+      LogcatBuffer.Entry entry = buffer.find(line);
+      if (entry != null) {
+        return entry;
+      }
+    }
+
+    Pair<LogMessageHeader, String> result = AndroidLogcatFormatter.parseMessage(line);
+    LogMessageHeader header = result.getFirst();
+    if (header == null) {
+      return null;
+    }
+    return LogcatBuffer.Entry.create(header, line.length() - result.getSecond().length());
+  }
+
   protected abstract void saveLogLevel(String logLevelName);
 
   @Override
@@ -122,12 +151,20 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
 
   @Override
   public boolean isApplicable(String text) {
+    return isApplicable(text, findEntry(text));
+  }
+
+  private boolean isApplicable(@NotNull String text, @Nullable LogcatBuffer.Entry entry) {
     if (!super.isApplicable(text)) return false;
-    final LogFilter selectedLogLevelFilter = getSelectedLogLevelFilter();
-    return selectedLogLevelFilter == null || selectedLogLevelFilter.isAcceptable(text);
+    final AndroidLogFilter selectedLogLevelFilter = getSelectedLogLevelFilter();
+    return selectedLogLevelFilter == null || selectedLogLevelFilter.isAcceptable(entry);
   }
 
   public boolean isApplicableByCustomFilter(String text) {
+    return isApplicableByCustomFilter(text, findEntry(text));
+  }
+
+  private boolean isApplicableByCustomFilter(@NotNull String text, @Nullable LogcatBuffer.Entry entry) {
     final ConfiguredFilter configuredFilterName = getConfiguredFilter();
     if (configuredFilterName == null) {
       return true;
@@ -136,19 +173,25 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
     Log.LogLevel logLevel = null;
     String tag = null;
     String pkg = null;
-    String pid = null;
-    String message = text;
-
-    Pair<LogMessageHeader, String> result = AndroidLogcatFormatter.parseMessage(text);
-    if (result.getFirst() != null) {
-      LogMessageHeader header = result.getFirst();
-      logLevel = header.myLogLevel;
-      tag = header.myTag;
-      pkg = header.myAppPackage;
-      pid = Integer.toString(header.myPid);
-      if (result.getSecond() != null) {
-        message = result.getSecond();
+    int pid = 0;
+    CharSequence message = text;
+
+    if (entry != null) {
+      message = CharBuffer.wrap(text, entry.getMessageOffset(), text.length());
+
+      // Look the result up in the buffer's indices if possible, rather than matching the filter against the line
+      LogcatBuffer buffer = getLogcatBuffer();
+      if (buffer != null) {
+        Boolean selected = buffer.select(configuredFilterName).isSelected(entry, message);
+        if (selected != null) {
+          return selected;
+        }
       }
+
+      logLevel = entry.getLogLevel();
+      tag = entry.getTag();
+      pkg = entry.getPackage();
+      pid = entry.getPid();
     }
 
     if (tag == null) {
@@ -157,7 +200,7 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
     if (pkg == null) {
       pkg = myPrevPkg;
     }
-    if (pid == null) {
+    if (pid == 0) {
       pid = myPrevPid;
     }
     if (logLevel == null) {
@@ -182,12 +225,11 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
 
     @Override
     public boolean isAcceptable(String line) {
-      Log.LogLevel logLevel = null;
+      return isAcceptable(findEntry(line));
+    }
 
-      Pair<LogMessageHeader, String> result = AndroidLogcatFormatter.parseMessage(line);
-      if (result.getFirst() != null) {
-        logLevel = result.getFirst().myLogLevel;
-      }
+    private boolean isAcceptable(@Nullable LogcatBuffer.Entry entry) {
+      Log.LogLevel logLevel = entry != null ? entry.getLogLevel() : null;
       if (logLevel == null) {
         logLevel = myPrevMessageLogLevel;
       }
@@ -198,7 +240,7 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
   public abstract String getSelectedLogLevelName();
 
   @Nullable
-  private LogFilter getSelectedLogLevelFilter() {
+  private AndroidLogFilter getSelectedLogLevelFilter() {
     final String filterName = getSelectedLogLevelName();
     if (filterName != null) {
       for (AndroidLogFilter logFilter : myLogFilters) {
@@ -232,7 +274,7 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
     myPrevMessageLogLevel = null;
     myPrevTag = null;
     myPrevPkg = null;
-    myPrevPid = null;
+    myPrevPid = 0;
     myFullMessageApplicable = false;
     myFullMessageApplicableByCustomFilter = false;
     myMessageBuilder = new StringBuilder();
@@ -241,29 +283,29 @@ public abstract class AndroidLogFilterModel extends LogFilterModel {
   @Override
   @NotNull
   public MyProcessingResult processLine(String line) {
-    Pair<LogMessageHeader, String> result = AndroidLogcatFormatter.parseMessage(line);
-    final boolean messageHeader = result.getFirst() != null;
+    // Look the line up (or parse it) once, rather than in each of the filters
+    final LogcatBuffer.Entry entry = findEntry(line);
+    final boolean messageHeader = entry != null;
 
     if (messageHeader) {
-      LogMessageHeader header = result.getFirst();
-      if (header.myLogLevel != null) {
-        myPrevMessageLogLevel = header.myLogLevel;
+      if (entry.getLogLevel() != null) {
+        myPrevMessageLogLevel = entry.getLogLevel();
       }
 
-      if (!header.myTag.isEmpty()) {
-        myPrevTag = header.myTag;
+      if (!entry.getTag().isEmpty()) {
+        myPrevTag = entry.getTag();
       }
 
-      if (!header.myAppPackage.isEmpty()) {
-        myPrevPkg = header.myAppPackage;
+      if (!entry.getPackage().isEmpty()) {
+        myPrevPkg = entry.getPackage();
       }
 
-      if (header.myPid != 0) {
-        myPrevPid = Integer.toString(header.myPid);
+      if (entry.getPid() != 0) {
+        myPrevPid = entry.getPid();
       }
     }
-    final boolean applicable = isApplicable(line); 
-    final boolean applicableByCustomFilter = isApplicableByCustomFilter(line);
+    final boolean applicable = isApplicable(line, entry);
+    final boolean applicableByCustomFilter = isApplicableByCustomFilter(line, entry);
 
     String messagePrefix;
     
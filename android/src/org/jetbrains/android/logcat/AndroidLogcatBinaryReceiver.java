@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.android.logcat;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log;
+import com.google.common.base.Charsets;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.android.logcat.AndroidLogcatReceiver.LogMessageHeader;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Calendar;
+
+/**
+ * Receives the output of {@code logcat -B}, which is a stream of the {@code logger_entry} structs of the device's log
+ * buffers, and passes the decoded messages on to an {@link AndroidLogcatReceiver}.
+ * <p/>
+ * Compared to the text output, nothing has to be formatted on the device, split into lines or matched against regular
+ * expressions on the host, and the pid, tid and time stamp of each message are exact.
+ * <p/>
+ * On older devices, the shell runs commands in a terminal which translates line feeds, which corrupts binary output. When
+ * an entry header doesn't make sense, the receiver stops, and {@link #isCorrupted()} returns true such that the caller
+ * can fall back to the text output.
+ */
+public class AndroidLogcatBinaryReceiver implements IShellOutputReceiver {
+  private static final Logger LOG = Logger.getInstance(AndroidLogcatBinaryReceiver.class);
+
+  /** Size of the header of version 1 entries, which don't store their header size (the field is padding) */
+  private static final int V1_HEADER_SIZE = 20;
+  /** Largest header size of the known versions */
+  private static final int MAX_HEADER_SIZE = 28;
+  /** Largest payload logd (or the kernel logger) produces */
+  private static final int MAX_PAYLOAD_SIZE = 4 * 1024;
+
+  @NotNull private final AndroidLogcatReceiver myReceiver;
+  @Nullable private final IDevice myDevice;
+  private ByteBuffer myPending = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+  private final Calendar myCalendar = Calendar.getInstance();
+  private final StringBuilder myTime = new StringBuilder(18);
+  private volatile boolean myCorrupted;
+
+  /** Whether an entry was received, and the time stamp, pid and tid of the last one */
+  private boolean myReceivedEntry;
+  private int myLastSeconds;
+  private int myLastNanos;
+  private int myLastPid;
+  private int myLastTid;
+  /** Whether the entries up to the last one received before {@link #reset()} are skipped, as they are received again */
+  private boolean mySkipReceived;
+
+  /**
+   * @param device   the device to look up the package names of the processes on, if any
+   * @param receiver the receiver to pass the messages on to
+   */
+  public AndroidLogcatBinaryReceiver(@Nullable IDevice device, @NotNull AndroidLogcatReceiver receiver) {
+    myDevice = device;
+    myReceiver = receiver;
+  }
+
+  @Override
+  public void addOutput(byte[] data, int offset, int length) {
+    if (myCorrupted) {
+      return;
+    }
+    if (myPending.remaining() < length) {
+      ByteBuffer pending = ByteBuffer.allocate(Math.max(myPending.capacity() * 2, myPending.position() + length));
+      pending.order(ByteOrder.LITTLE_ENDIAN);
+      myPending.flip();
+      pending.put(myPending);
+      myPending = pending;
+    }
+    myPending.put(data, offset, length);
+
+    // Decode the complete entries in place, and keep the incomplete remainder for the next call
+    myPending.flip();
+    //noinspection StatementWithEmptyBody
+    while (decodeEntry(myPending)) {
+    }
+    myPending.compact();
+  }
+
+  /**
+   * Decodes the entry at the position of the buffer, and advances the position past it, unless the buffer doesn't hold
+   * the complete entry yet.
+   *
+   * @return true if an entry was decoded
+   */
+  private boolean decodeEntry(@NotNull ByteBuffer buffer) {
+    int start = buffer.position();
+    if (buffer.remaining() < 4) {
+      return false;
+    }
+    int payloadSize = buffer.getShort(start) & 0xFFFF;
+    int headerSize = buffer.getShort(start + 2) & 0xFFFF;
+    if (headerSize == 0) {
+      headerSize = V1_HEADER_SIZE;
+    }
+    if (headerSize < V1_HEADER_SIZE || headerSize > MAX_HEADER_SIZE || payloadSize > MAX_PAYLOAD_SIZE) {
+      LOG.info("Unexpected logcat entry header: payload size " + payloadSize + ", header size " + headerSize);
+      myCorrupted = true;
+      return false;
+    }
+    if (buffer.remaining() < headerSize + payloadSize) {
+      return false;
+    }
+
+    int pid = buffer.getInt(start + 4);
+    int tid = buffer.getInt(start + 8);
+    int seconds = buffer.getInt(start + 12);
+    int nanos = buffer.getInt(start + 16);
+    if (mySkipReceived && isReceived(pid, tid, seconds, nanos)) {
+      buffer.position(start + headerSize + payloadSize);
+      return true;
+    }
+    myReceivedEntry = true;
+    myLastPid = pid;
+    myLastTid = tid;
+    myLastSeconds = seconds;
+    myLastNanos = nanos;
+
+    LogMessageHeader header = new LogMessageHeader();
+    header.myPid = pid;
+    header.myTid = Integer.toString(tid);
+    header.myTime = formatTime(seconds, nanos);
+    header.myAppPackage = myDevice == null ? "" : myDevice.getClientName(header.myPid);
+    if (header.myAppPackage == null) {
+      header.myAppPackage = "";
+    }
+
+    // The payload is the priority, followed by the tag and the message, each terminated by a zero
+    int payload = start + headerSize;
+    int end = payload + payloadSize;
+    String message = "";
+    if (payloadSize > 0) {
+      header.myLogLevel = getLogLevel(buffer.get(payload));
+      int tagEnd = indexOfZero(buffer, payload + 1, end);
+      header.myTag = decode(buffer, payload + 1, tagEnd).trim();
+      if (tagEnd < end) {
+        message = decode(buffer, tagEnd + 1, indexOfZero(buffer, tagEnd + 1, end));
+      }
+    }
+    else {
+      header.myLogLevel = null;
+      header.myTag = "";
+    }
+    if (header.myLogLevel == null) {
+      header.myLogLevel = Log.LogLevel.VERBOSE;
+    }
+
+    buffer.position(end);
+    myReceiver.processEntry(header, message);
+    return true;
+  }
+
+  /**
+   * Returns whether the given entry was received before the {@link #reset()}: it precedes or is the last entry received.
+   * Stops skipping once past that entry.
+   */
+  private boolean isReceived(int pid, int tid, int seconds, int nanos) {
+    // The entries are in order; those of the same time as the last one are skipped up to the one of the same pid and tid
+    boolean before = seconds < myLastSeconds || seconds == myLastSeconds && nanos < myLastNanos;
+    boolean sameTime = seconds == myLastSeconds && nanos == myLastNanos;
+    if (!before && (!sameTime || pid == myLastPid && tid == myLastTid)) {
+      mySkipReceived = false;
+    }
+    return before || sameTime;
+  }
+
+  private static int indexOfZero(@NotNull ByteBuffer buffer, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buffer.get(i) == 0) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  @NotNull
+  private static String decode(@NotNull ByteBuffer buffer, int start, int end) {
+    // Decodes straight from the backing array, without copying the bytes first
+    return new String(buffer.array(), buffer.arrayOffset() + start, end - start, Charsets.UTF_8);
+  }
+
+  @Nullable
+  private static Log.LogLevel getLogLevel(int priority) {
+    // Android's priorities go up to 7 (ASSERT); 8 (SILENT) is never logged
+    for (Log.LogLevel level : Log.LogLevel.values()) {
+      if (level.getPriority() == priority) {
+        return level;
+      }
+    }
+    return priority > Log.LogLevel.ASSERT.getPriority() ? Log.LogLevel.ASSERT : null;
+  }
+
+  /** Formats a time stamp like {@code logcat -v long} does, in the time zone of the host rather than the device's */
+  @NotNull
+  private String formatTime(int seconds, int nanos) {
+    myCalendar.setTimeInMillis(seconds * 1000L);
+    myTime.setLength(0);
+    appendPadded(myCalendar.get(Calendar.MONTH) + 1, 2);
+    myTime.append('-');
+    appendPadded(myCalendar.get(Calendar.DAY_OF_MONTH), 2);
+    myTime.append(' ');
+    appendPadded(myCalendar.get(Calendar.HOUR_OF_DAY), 2);
+    myTime.append(':');
+    appendPadded(myCalendar.get(Calendar.MINUTE), 2);
+    myTime.append(':');
+    appendPadded(myCalendar.get(Calendar.SECOND), 2);
+    myTime.append('.');
+    appendPadded(nanos / 1000000, 3);
+    return myTime.toString();
+  }
+
+  private void appendPadded(int value, int width) {
+    for (int limit = 10, i = 1; i < width; i++, limit *= 10) {
+      if (value < limit) {
+        myTime.append('0');
+      }
+    }
+    myTime.append(value);
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return myCorrupted || myReceiver.isCancelled();
+  }
+
+  /**
+   * Prepares for the output of another logcat command, after the previous one was interrupted: drops the incomplete entry
+   * it left, and skips the entries up to the last one received, which the new command may output again.
+   */
+  public void reset() {
+    myPending.clear();
+    mySkipReceived = myReceivedEntry;
+    myReceiver.invalidate();
+  }
+
+  /** Returns whether any entry was received, such that a new logcat command should resume from {@link #getLastTime()} */
+  public boolean hasReceivedEntries() {
+    return myReceivedEntry;
+  }
+
+  /**
+   * Returns the time stamp of the last entry received, in the format of {@code logcat -T}, or null if nothing was received.
+   * Like the messages, it is formatted in the time zone of the host, which is assumed to be the device's.
+   */
+  @Nullable
+  public String getLastTime() {
+    return myReceivedEntry ? formatTime(myLastSeconds, myLastNanos) : null;
+  }
+
+  /** Returns whether the output turned out not to be binary logcat output */
+  public boolean isCorrupted() {
+    return myCorrupted;
+  }
+}
@@ -23,7 +23,6 @@ import com.intellij.openapi.util.Pair;
 import org.jetbrains.android.logcat.AndroidLogcatReceiver.LogMessageHeader;
 import org.jetbrains.annotations.NonNls;
 
-import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,6 +38,9 @@ public class AndroidLogcatFormatter {
   @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
   static final String TAG_SEPARATOR = "\ufe55"; // unicode small colon
 
+  /** Minimum width of the pid-tid column, which is right aligned */
+  private static final int IDS_WIDTH = 12;
+
   @NonNls
   private static final Pattern LOGMESSAGE_PATTERN =
     Pattern.compile("(\\d\\d-\\d\\d\\s\\d\\d:\\d\\d:\\d\\d.\\d+)\\s+" +   // time
@@ -50,16 +52,18 @@ public class AndroidLogcatFormatter {
     );
 
   public static String formatMessage(String message, LogMessageHeader header) {
-    String ids = String.format(Locale.US, "%d-%s", header.myPid, header.myTid);
-    return String.format(Locale.US,
-                         "%1$s %2$12s/%3$s %4$c/%5$s%6$s %7$s",
-                         header.myTime,
-                         ids,
-                         header.myAppPackage.isEmpty() ? "?" : header.myAppPackage,
-                         header.myLogLevel.getPriorityLetter(),
-                         header.myTag,
-                         TAG_SEPARATOR,
-                         message);
+    // Called for every message received, so this avoids String.format
+    String ids = header.myPid + "-" + header.myTid;
+    String pkg = header.myAppPackage.isEmpty() ? "?" : header.myAppPackage;
+    StringBuilder sb = new StringBuilder(48 + pkg.length() + header.myTag.length() + message.length());
+    sb.append(header.myTime).append(' ');
+    for (int i = ids.length(); i < IDS_WIDTH; i++) {
+      sb.append(' ');
+    }
+    sb.append(ids).append('/').append(pkg).append(' ');
+    sb.append(header.myLogLevel.getPriorityLetter()).append('/').append(header.myTag);
+    sb.append(TAG_SEPARATOR).append(' ').append(message);
+    return sb.toString();
   }
 
   /** Parse a message that was encoded using {@link #formatMessage(String, LogMessageHeader)}. */
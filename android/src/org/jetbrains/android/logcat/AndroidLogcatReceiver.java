@@ -22,6 +22,7 @@ import com.android.tools.idea.logcat.StackTraceExpander;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.android.util.AndroidOutputReceiver;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
@@ -58,10 +59,17 @@ public class AndroidLogcatReceiver extends AndroidOutputReceiver {
   public static final String STACK_TRACE_CAUSE_LINE_PREFIX = CONTINUATION_LINE_PREFIX + Character.toString(' ');
 
   private LogMessageHeader myLastMessageHeader;
+  /** The header of the last entry received, to resume from after the output was interrupted */
+  @Nullable private LogMessageHeader myLastReceivedHeader;
+  /** If not null, the entries up to this one are skipped, as they were received before */
+  @Nullable private LogMessageHeader mySkipUntilHeader;
+  /** Whether the lines of the current entry are skipped */
+  private boolean mySkipEntry;
   private volatile boolean myCanceled = false;
   private Log.LogLevel myPrevLogLevel;
   private final Writer myWriter;
   private final IDevice myDevice;
+  @Nullable private final LogcatBuffer myBuffer;
 
   private final StackTraceExpander myStackTraceExpander = new StackTraceExpander(CONTINUATION_LINE_PREFIX,
                                                                                  STACK_TRACE_LINE_PREFIX,
@@ -69,17 +77,25 @@ public class AndroidLogcatReceiver extends AndroidOutputReceiver {
                                                                                  STACK_TRACE_CAUSE_LINE_PREFIX);
 
   public AndroidLogcatReceiver(IDevice device, Writer writer) {
+    this(device, writer, null);
+  }
+
+  /**
+   * @param buffer if not null, the buffer to add the parsed messages to, such that the filters don't have to parse them again
+   */
+  public AndroidLogcatReceiver(IDevice device, Writer writer, @Nullable LogcatBuffer buffer) {
     myDevice = device;
     myWriter = new PrintWriter(writer);
+    myBuffer = buffer;
   }
 
   @Override
   public void processNewLine(String line) {
-    Matcher matcher = LOG_PATTERN.matcher(line);
-    if (myLastMessageHeader == null && matcher.matches()) {
-      myLastMessageHeader = new LogMessageHeader();
-      myLastMessageHeader.myTime = matcher.group(1);
-      myLastMessageHeader.myPid = Integer.valueOf(matcher.group(2));
+    Matcher matcher = myLastMessageHeader == null ? LOG_PATTERN.matcher(line) : null;
+    if (matcher != null && matcher.matches()) {
+      LogMessageHeader header = new LogMessageHeader();
+      header.myTime = matcher.group(1);
+      header.myPid = Integer.valueOf(matcher.group(2));
 
       String tid = matcher.group(3).trim();
       long tidValue;
@@ -90,29 +106,72 @@ public class AndroidLogcatReceiver extends AndroidOutputReceiver {
       } catch (NumberFormatException e) {
         tidValue = -1;
       }
-      myLastMessageHeader.myTid = Long.toString(tidValue);
+      header.myTid = Long.toString(tidValue);
 
-      myLastMessageHeader.myAppPackage =
-        myDevice == null ? "" : myDevice.getClientName(myLastMessageHeader.myPid);
-      myLastMessageHeader.myLogLevel = getByLetterString(matcher.group(4));
-      myLastMessageHeader.myTag = matcher.group(5).trim();
-    }
-    else {
-      if (line.length() == 0) return;
-      String text;
-      if (myLastMessageHeader == null) {
-        text = myStackTraceExpander.expand(line);
-      } else {
-        text = getFullMessage(line, myLastMessageHeader);
+      mySkipEntry = mySkipUntilHeader != null && isReceived(header);
+      if (mySkipEntry) {
+        return;
       }
-      try {
-        myWriter.write(text + '\n');
-      }
-      catch (IOException ignored) {
-        LOG.info(ignored);
+
+      header.myAppPackage =
+        myDevice == null ? "" : myDevice.getClientName(header.myPid);
+      header.myLogLevel = getByLetterString(matcher.group(4));
+      header.myTag = matcher.group(5).trim();
+      myLastMessageHeader = header;
+      myLastReceivedHeader = header;
+    }
+    else if (!mySkipEntry) {
+      processMessageLine(line);
+    }
+  }
+
+  /**
+   * Returns whether the entry of the given header was received before: it precedes or is the entry of
+   * {@link #mySkipUntilHeader}. Stops skipping once past that entry.
+   */
+  private boolean isReceived(@NotNull LogMessageHeader header) {
+    LogMessageHeader last = mySkipUntilHeader;
+    assert last != null;
+    // The entries are in order, and the time stamps have a millisecond resolution: the entries of the same time as the
+    // last one are skipped up to the one of the same pid and tid
+    int order = header.myTime.compareTo(last.myTime);
+    if (order > 0 || order == 0 && header.myPid == last.myPid && header.myTid.equals(last.myTid)) {
+      mySkipUntilHeader = null;
+    }
+    return order <= 0;
+  }
+
+  /**
+   * Processes a message received from {@link AndroidLogcatBinaryReceiver}, whose header is already known and therefore
+   * doesn't have to be parsed
+   */
+  void processEntry(@NotNull LogMessageHeader header, @NotNull String message) {
+    myLastMessageHeader = header;
+    myLastReceivedHeader = header;
+    for (String line : StringUtil.splitByLines(message)) {
+      processMessageLine(line);
+    }
+    myLastMessageHeader = null;
+  }
+
+  private void processMessageLine(@NotNull String line) {
+    if (line.length() == 0) return;
+    String text;
+    if (myLastMessageHeader == null) {
+      text = myStackTraceExpander.expand(line);
+    } else {
+      text = getFullMessage(line, myLastMessageHeader);
+      if (myBuffer != null) {
+        myBuffer.add(text, myLastMessageHeader, text.length() - line.length());
       }
-      myLastMessageHeader = null;
     }
+    try {
+      myWriter.write(text + '\n');
+    }
+    catch (IOException ignored) {
+      LOG.info(ignored);
+    }
+    myLastMessageHeader = null;
   }
 
   @Nullable
@@ -135,6 +194,31 @@ public class AndroidLogcatReceiver extends AndroidOutputReceiver {
     return myCanceled;
   }
 
+  @Override
+  public void invalidate() {
+    super.invalidate();
+    // a header whose message lines didn't arrive before the output was interrupted
+    myLastMessageHeader = null;
+    mySkipEntry = false;
+  }
+
+  /**
+   * Returns the time stamp of the last entry received, in the format of {@code logcat -T}, such that a new logcat command can
+   * resume from there after the output was interrupted; or null if nothing was received yet
+   */
+  @Nullable
+  String getLastTime() {
+    return myLastReceivedHeader == null ? null : myLastReceivedHeader.myTime;
+  }
+
+  /**
+   * Skips the text entries up to and including the last entry received, which a logcat command resuming from
+   * {@link #getLastTime()} outputs again
+   */
+  void skipReceived() {
+    mySkipUntilHeader = myLastReceivedHeader;
+  }
+
   static class LogMessageHeader {
     String myTime;
     Log.LogLevel myLogLevel;
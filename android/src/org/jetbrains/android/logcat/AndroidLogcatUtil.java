@@ -27,7 +27,6 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.util.ui.UIUtil;
 import org.jetbrains.android.run.LoggingReceiver;
 import org.jetbrains.android.util.AndroidBundle;
-import org.jetbrains.android.util.AndroidOutputReceiver;
 import org.jetbrains.android.util.AndroidUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -47,6 +46,9 @@ public class AndroidLogcatUtil {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.android.run.AndroidDebugRunner");
   private static Map<String, Log.LogLevel> ourLogLevels;
 
+  /** Whether logcat should be read in its binary format, which doesn't have to be parsed, rather than as text */
+  private static final boolean USE_BINARY_LOGCAT = Boolean.getBoolean("android.logcat.binary");
+
   private AndroidLogcatUtil() {
   }
 
@@ -62,8 +64,42 @@ public class AndroidLogcatUtil {
     return ourLogLevels.get(s);
   }
 
-  private static void startLogging(IDevice device, AndroidOutputReceiver receiver)
+  private static void startLogging(IDevice device, AndroidLogcatReceiver receiver)
     throws IOException, ShellCommandUnresponsiveException, AdbCommandRejectedException, TimeoutException {
+    if (USE_BINARY_LOGCAT) {
+      AndroidLogcatBinaryReceiver binaryReceiver = new AndroidLogcatBinaryReceiver(device, receiver);
+      int attempt = 0;
+      while (true) {
+        // After a reconnect, resume from the time of the last entry rather than print the whole buffer again. Logcat prints
+        // the entries of that millisecond again, which the receiver skips.
+        String lastTime = binaryReceiver.getLastTime();
+        String command = lastTime != null ? "logcat -B -T '" + lastTime + "'" : "logcat -B";
+        try {
+          device.executeShellCommand(command, binaryReceiver, 0);
+          // Logcat doesn't end by itself while following the log, so the receiver was cancelled or the device went away
+          break;
+        }
+        catch (IOException e) {
+          if (binaryReceiver.isCancelled() || ++attempt >= 5) {
+            throw e;
+          }
+          LOG.info("Logcat connection lost, reconnecting", e);
+        }
+        binaryReceiver.reset();
+      }
+      if (!binaryReceiver.isCorrupted()) {
+        return;
+      }
+      // Most likely run in a terminal which translates line feeds; fall back to the text output
+      LOG.info("Binary logcat output is corrupted, falling back to text output");
+      receiver.invalidate();
+      String lastTime = receiver.getLastTime();
+      if (lastTime != null) {
+        receiver.skipReceived();
+        AndroidUtils.executeCommandOnDevice(device, "logcat -v long -T '" + lastTime + "'", receiver, true);
+        return;
+      }
+    }
     AndroidUtils.executeCommandOnDevice(device, "logcat -v long", receiver, true);
   }
 
@@ -87,6 +123,19 @@ public class AndroidLogcatUtil {
                                           final IDevice device,
                                           final boolean clearLogcat,
                                           @NotNull final LogConsoleBase console) {
+    return startLoggingThread(project, device, clearLogcat, console, null);
+  }
+
+  /**
+   * Same as {@link #startLoggingThread(Project, IDevice, boolean, LogConsoleBase)}, and also adds the parsed messages to the
+   * given buffer
+   */
+  @Nullable
+  public static Pair<Reader, Writer> startLoggingThread(final Project project,
+                                                        final IDevice device,
+                                                        final boolean clearLogcat,
+                                                        @NotNull final LogConsoleBase console,
+                                                        @Nullable LogcatBuffer buffer) {
     UIUtil.invokeAndWaitIfNeeded(new Runnable() {
       @Override
       public void run() {
@@ -94,7 +143,7 @@ public class AndroidLogcatUtil {
       }
     });
     PipedWriter logWriter = new PipedWriter();
-    final AndroidLogcatReceiver receiver = new AndroidLogcatReceiver(device, logWriter);
+    final AndroidLogcatReceiver receiver = new AndroidLogcatReceiver(device, logWriter, buffer);
     final PipedReader logReader;
     try {
       logReader = new PipedReader(logWriter) {
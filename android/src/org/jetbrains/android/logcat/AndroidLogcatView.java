@@ -78,6 +78,7 @@ public abstract class AndroidLogcatView implements Disposable {
   private final Object myLock = new Object();
   private final LogConsoleBase myLogConsole;
   private final AndroidLogFilterModel myLogFilterModel;
+  private final LogcatBuffer myLogcatBuffer = new LogcatBuffer();
 
   private volatile Reader myCurrentReader;
   private volatile Writer myCurrentWriter;
@@ -197,6 +198,12 @@ public abstract class AndroidLogcatView implements Disposable {
           }
           return myConfiguredFilter;
         }
+
+        @Nullable
+        @Override
+        protected LogcatBuffer getLogcatBuffer() {
+          return myLogcatBuffer;
+        }
       };
     myLogConsole = new AndroidLogConsole(project, myLogFilterModel);
     myLogConsole.addListener(new LogConsoleListener() {
@@ -365,7 +372,8 @@ public abstract class AndroidLogcatView implements Disposable {
           if (console != null) {
             console.clear();
           }
-          final Pair<Reader, Writer> pair = AndroidLogcatUtil.startLoggingThread(myProject, device, false, myLogConsole);
+          myLogcatBuffer.clear();
+          final Pair<Reader, Writer> pair = AndroidLogcatUtil.startLoggingThread(myProject, device, false, myLogConsole, myLogcatBuffer);
           if (pair != null) {
             myCurrentReader = pair.first;
             myCurrentWriter = pair.second;
@@ -1,6 +1,7 @@
 package org.jetbrains.android.logcat;
 
 import com.android.ddmlib.Log;
+import com.google.common.primitives.Ints;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.annotations.NotNull;
@@ -19,7 +20,8 @@ class ConfiguredFilter {
   private final Pattern myMessagePattern;
   private final Pattern myTagPattern;
   private final Pattern myPkgNamePattern;
-  private final String myPid;
+  /** The pid to match, or null if any pid matches; -1 if the pid isn't a number and therefore never matches */
+  private final Integer myPidValue;
   private final Log.LogLevel myLogLevel;
 
   private ConfiguredFilter(@NotNull String name,
@@ -32,33 +34,68 @@ class ConfiguredFilter {
     myMessagePattern = messagePattern;
     myTagPattern = tagPattern;
     myPkgNamePattern = pkgNamePattern;
-    myPid = pid;
+    if (pid == null || pid.isEmpty()) {
+      myPidValue = null;
+    }
+    else {
+      Integer value = Ints.tryParse(pid);
+      myPidValue = value != null ? value : -1;
+    }
     myLogLevel = logLevel;
   }
   
-  public boolean isApplicable(String message, String tag, String pkg,
-                              String pid, Log.LogLevel logLevel) {
-    if (myMessagePattern != null && (message == null || !myMessagePattern.matcher(message).find())) {
-      return false;
-    }
+  /**
+   * Returns whether a message matches this filter.
+   *
+   * @param pid the pid of the process which logged the message, or 0 if it isn't known
+   */
+  public boolean isApplicable(CharSequence message, String tag, String pkg,
+                              int pid, Log.LogLevel logLevel) {
+    return matchesMessage(message) && matchesTag(tag) && matchesPackage(pkg) && matchesPid(pid) && matchesLogLevel(logLevel);
+  }
 
-    if (myTagPattern != null && (tag == null || !myTagPattern.matcher(tag).find())) {
-      return false;
-    }
+  boolean matchesMessage(@Nullable CharSequence message) {
+    return myMessagePattern == null || (message != null && myMessagePattern.matcher(message).find());
+  }
 
-    if (myPkgNamePattern != null && (pkg == null || !myPkgNamePattern.matcher(pkg).matches())) {
-      return false;
-    }
+  boolean matchesTag(@Nullable String tag) {
+    return myTagPattern == null || (tag != null && myTagPattern.matcher(tag).find());
+  }
 
-    if (myPid != null && myPid.length() > 0 && !myPid.equals(pid)) {
-      return false;
-    }
+  boolean matchesPackage(@Nullable String pkg) {
+    return myPkgNamePattern == null || (pkg != null && myPkgNamePattern.matcher(pkg).matches());
+  }
 
-    if (myLogLevel != null && (logLevel == null || logLevel.getPriority() < myLogLevel.getPriority())) {
-      return false;
-    }
-    
-    return true;
+  boolean matchesPid(int pid) {
+    return myPidValue == null || myPidValue == pid;
+  }
+
+  boolean matchesLogLevel(@Nullable Log.LogLevel logLevel) {
+    return myLogLevel == null || (logLevel != null && logLevel.getPriority() >= myLogLevel.getPriority());
+  }
+
+  boolean hasMessagePattern() {
+    return myMessagePattern != null;
+  }
+
+  boolean hasTagPattern() {
+    return myTagPattern != null;
+  }
+
+  boolean hasPackagePattern() {
+    return myPkgNamePattern != null;
+  }
+
+  /** Returns the pid to match, or null if messages of any process match */
+  @Nullable
+  Integer getPid() {
+    return myPidValue;
+  }
+
+  /** Returns the minimum level of the messages to match, or null if messages of any level match */
+  @Nullable
+  Log.LogLevel getLogLevel() {
+    return myLogLevel;
   }
 
   @NotNull
@@ -0,0 +1,605 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.android.logcat;
+
+import com.android.annotations.VisibleForTesting;
+import com.android.ddmlib.Log;
+import gnu.trove.*;
+import org.jetbrains.android.logcat.AndroidLogcatReceiver.LogMessageHeader;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The logcat messages received from a device, parsed once into columns of primitive arrays.
+ * <p/>
+ * The log console only keeps the formatted text of the messages, which it passes through the {@link AndroidLogFilterModel}
+ * again whenever a filter changes. Rather than parsing that text again, the filter model looks up the fields of each
+ * message here, by its formatted line. The buffer is a ring: once it is full, the oldest messages are dropped, and lines
+ * which can no longer be found have to be parsed as before.
+ * <p/>
+ * The lines themselves are not kept, since the console already holds them: messages are looked up by the hash code of
+ * their line, and told apart by a second, 64 bit hash. Tags and package names are interned, and stored as indices into
+ * a table of strings which only holds the strings of the messages in the buffer.
+ * <p/>
+ * The messages are also indexed by pid, tag, package and level, in bit sets of the slots of the ring. This allows
+ * {@link #select selecting} the messages matching a {@link ConfiguredFilter} by intersecting bit sets, and evaluating the
+ * tag and package patterns of the filter once per distinct tag and package rather than once per message. Only the
+ * message pattern, if any, is matched against the text of the remaining messages one by one, as the caller passes it.
+ * <p/>
+ * The bit sets of pids, tags and packages no longer in the buffer are dropped, and the others are trimmed once per turn
+ * of the ring.
+ */
+public class LogcatBuffer {
+  /** Default number of messages to keep */
+  private static final int DEFAULT_CAPACITY = Integer.getInteger("android.logcat.buffer.size", 65536);
+
+  private static final Log.LogLevel[] LOG_LEVELS = Log.LogLevel.values();
+
+  private final int myCapacity;
+  private final long[] myTimes;
+  private final int[] myPids;
+  private final int[] myTids;
+  private final int[] myTags;
+  private final int[] myPackages;
+  private final byte[] myLevels;
+  private final int[] myMessageOffsets;
+  /** Sequence number of the message in each slot, to recognize messages which were overwritten since */
+  private final long[] mySequences;
+  /** {@link String#hashCode() Hash codes} of the formatted lines */
+  private final int[] myLineHashCodes;
+  /** Second hashes of the formatted lines, see {@link #hashLine} */
+  private final long[] myLineHashes;
+  /**
+   * For each slot, the slot of the next older message with the same line hash code, or -1; the newest such slot is
+   * in {@link #myLineIndex}
+   */
+  private final int[] myOlderSlots;
+  private final TIntIntHashMap myLineIndex;
+  /** The interned strings by id; ids of strings no longer used are null, and reused */
+  private final List<String> myStrings = new ArrayList<String>();
+  private final TObjectIntHashMap<String> myStringIds = new TObjectIntHashMap<String>();
+  /** The number of uses of each string id, by the tag and package of messages in the buffer */
+  private final TIntArrayList myStringCounts = new TIntArrayList();
+  private final TIntArrayList myFreeStringIds = new TIntArrayList();
+  /** Slot of the next message */
+  private int myNext;
+  private int mySize;
+  private long myNextSequence;
+
+  private final TIntObjectHashMap<BitSet> myPidIndex = new TIntObjectHashMap<BitSet>();
+  private final TIntObjectHashMap<BitSet> myTagIndex = new TIntObjectHashMap<BitSet>();
+  private final TIntObjectHashMap<BitSet> myPackageIndex = new TIntObjectHashMap<BitSet>();
+  private final BitSet[] myLevelIndex = new BitSet[LOG_LEVELS.length];
+  /**
+   * Slots of the messages which lack a level, tag or pid; for those, filters use the values of the previous message,
+   * which the indices know nothing about
+   */
+  private final BitSet myIncomplete = new BitSet();
+  @Nullable private Selection mySelection;
+
+  public LogcatBuffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public LogcatBuffer(int capacity) {
+    myCapacity = capacity;
+    myTimes = new long[capacity];
+    myPids = new int[capacity];
+    myTids = new int[capacity];
+    myTags = new int[capacity];
+    myPackages = new int[capacity];
+    myLevels = new byte[capacity];
+    myMessageOffsets = new int[capacity];
+    mySequences = new long[capacity];
+    myLineHashCodes = new int[capacity];
+    myLineHashes = new long[capacity];
+    myOlderSlots = new int[capacity];
+    myLineIndex = new TIntIntHashMap(Math.min(capacity, 1024));
+    for (int i = 0; i < myLevelIndex.length; i++) {
+      myLevelIndex[i] = new BitSet();
+    }
+  }
+
+  /**
+   * Adds a message.
+   *
+   * @param line          the message as formatted by {@link AndroidLogcatFormatter#formatMessage}
+   * @param header        the parsed header of the message
+   * @param messageOffset the offset of the message text in the line
+   */
+  public synchronized void add(@NotNull String line, @NotNull LogMessageHeader header, int messageOffset) {
+    int slot = myNext;
+    if (mySize == myCapacity) {
+      unlink(slot);
+      unindex(slot);
+      release(myTags[slot]);
+      release(myPackages[slot]);
+    }
+    else {
+      mySize++;
+    }
+
+    myTimes[slot] = parseTime(header.myTime);
+    myPids[slot] = header.myPid;
+    myTids[slot] = parseTid(header.myTid);
+    myTags[slot] = intern(header.myTag);
+    // Formatted lines show a missing package as "?", which is also what parsing the line returns
+    myPackages[slot] = intern(header.myAppPackage.isEmpty() ? "?" : header.myAppPackage);
+    myLevels[slot] = (byte)(header.myLogLevel != null ? header.myLogLevel.ordinal() : -1);
+    myMessageOffsets[slot] = messageOffset;
+    mySequences[slot] = myNextSequence++;
+    link(slot, line);
+    index(slot);
+
+    myNext = (slot + 1) % myCapacity;
+    if (myNext == 0) {
+      trimIndices();
+    }
+  }
+
+  /** Returns the fields of the message with the given formatted line, or null if it isn't (or no longer) in the buffer */
+  @Nullable
+  public Entry find(@NotNull String line) {
+    int hashCode = line.hashCode();
+    long hash = hashLine(line);
+    synchronized (this) {
+      int i = myLineIndex.containsKey(hashCode) ? myLineIndex.get(hashCode) : -1;
+      while (i >= 0 && myLineHashes[i] != hash) {
+        i = myOlderSlots[i];
+      }
+      if (i < 0 || myMessageOffsets[i] > line.length()) {
+        return null;
+      }
+      byte level = myLevels[i];
+      return new Entry(myTimes[i], myPids[i], myTids[i], level >= 0 ? LOG_LEVELS[level] : null, myStrings.get(myTags[i]),
+                       myStrings.get(myPackages[i]), myMessageOffsets[i], i, mySequences[i]);
+    }
+  }
+
+  /** Makes the message in the given slot the newest one with its line hash code */
+  private void link(int slot, @NotNull String line) {
+    int hashCode = line.hashCode();
+    myLineHashCodes[slot] = hashCode;
+    myLineHashes[slot] = hashLine(line);
+    myOlderSlots[slot] = myLineIndex.containsKey(hashCode) ? myLineIndex.get(hashCode) : -1;
+    myLineIndex.put(hashCode, slot);
+  }
+
+  /** Removes the message in the given slot, which is the oldest message in the buffer, from the line lookup */
+  private void unlink(int slot) {
+    int hashCode = myLineHashCodes[slot];
+    int newer = myLineIndex.get(hashCode);
+    if (newer == slot) {
+      myLineIndex.remove(hashCode);
+      return;
+    }
+    // Being the oldest message, the slot is the last one of its chain
+    while (myOlderSlots[newer] != slot) {
+      newer = myOlderSlots[newer];
+    }
+    myOlderSlots[newer] = -1;
+  }
+
+  /**
+   * Returns a 64 bit hash of the given line, which tells lines with the same {@link String#hashCode() hash code} apart;
+   * this is a 64 bit FNV-1a hash of the characters, mixed with the length
+   */
+  static long hashLine(@NotNull String line) {
+    long hash = 0xcbf29ce484222325L ^ line.length();
+    for (int i = 0; i < line.length(); i++) {
+      hash = (hash ^ line.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private void index(int slot) {
+    getBits(myPidIndex, myPids[slot]).set(slot);
+    getBits(myTagIndex, myTags[slot]).set(slot);
+    getBits(myPackageIndex, myPackages[slot]).set(slot);
+    if (myLevels[slot] >= 0) {
+      myLevelIndex[myLevels[slot]].set(slot);
+    }
+    if (myLevels[slot] < 0 || myPids[slot] == 0 || myStrings.get(myTags[slot]).isEmpty()) {
+      myIncomplete.set(slot);
+    }
+    if (mySelection != null) {
+      mySelection.myEvaluated.clear(slot);
+    }
+  }
+
+  private void unindex(int slot) {
+    clearBit(myPidIndex, myPids[slot], slot);
+    clearBit(myTagIndex, myTags[slot], slot);
+    clearBit(myPackageIndex, myPackages[slot], slot);
+    if (myLevels[slot] >= 0) {
+      myLevelIndex[myLevels[slot]].clear(slot);
+    }
+    myIncomplete.clear(slot);
+  }
+
+  /** Clears the bit of the given slot, and drops the bit set of the key once no message has the key */
+  private static void clearBit(@NotNull TIntObjectHashMap<BitSet> index, int key, int slot) {
+    BitSet bits = index.get(key);
+    if (bits != null) {
+      bits.clear(slot);
+      if (bits.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Replaces the bit sets of the indices by trimmed copies. A bit set never shrinks, so without this every pid, tag
+   * and package which was ever seen near the end of the ring would hold a bit set covering most of the ring; this is
+   * done once per turn of the ring.
+   */
+  private void trimIndices() {
+    TObjectFunction<BitSet, BitSet> trim = new TObjectFunction<BitSet, BitSet>() {
+      @Override
+      public BitSet execute(BitSet bits) {
+        return trim(bits);
+      }
+    };
+    myPidIndex.transformValues(trim);
+    myTagIndex.transformValues(trim);
+    myPackageIndex.transformValues(trim);
+  }
+
+  /** Returns a copy of the given bit set which is only as large as its highest set bit requires */
+  @NotNull
+  static BitSet trim(@NotNull BitSet bits) {
+    BitSet copy = new BitSet(bits.length());
+    copy.or(bits);
+    return copy;
+  }
+
+  @NotNull
+  private static BitSet getBits(@NotNull TIntObjectHashMap<BitSet> index, int key) {
+    BitSet bits = index.get(key);
+    if (bits == null) {
+      bits = new BitSet();
+      index.put(key, bits);
+    }
+    return bits;
+  }
+
+  /**
+   * Returns the messages in the buffer which match the given filter. The selection is computed from the indices, and
+   * kept up to date as messages are added to the buffer. Only the selection of the most recently selected filter is
+   * kept up to date.
+   */
+  @NotNull
+  synchronized Selection select(@NotNull ConfiguredFilter filter) {
+    if (mySelection != null && mySelection.myFilter == filter) {
+      return mySelection;
+    }
+    Selection selection = new Selection(filter);
+    mySelection = selection;
+    return selection;
+  }
+
+  /** The messages of a {@link LogcatBuffer} which match a {@link ConfiguredFilter} */
+  public class Selection {
+    @NotNull private final ConfiguredFilter myFilter;
+    /** Slots of the messages matching the filter, except for its message pattern; only valid for the evaluated slots */
+    private final BitSet mySelected;
+    /** Slots for which {@link #mySelected} is valid; cleared whenever a slot is overwritten */
+    private final BitSet myEvaluated = new BitSet();
+
+    private Selection(@NotNull ConfiguredFilter filter) {
+      myFilter = filter;
+      assert Thread.holdsLock(LogcatBuffer.this);
+
+      BitSet selected = new BitSet();
+      selected.set(0, mySize);
+      selected.andNot(myIncomplete);
+
+      Integer pid = filter.getPid();
+      if (pid != null) {
+        BitSet bits = myPidIndex.get(pid);
+        if (bits != null) {
+          selected.and(bits);
+        }
+        else {
+          selected.clear();
+        }
+      }
+
+      Log.LogLevel minLevel = filter.getLogLevel();
+      if (minLevel != null) {
+        BitSet levels = new BitSet();
+        for (int i = 0; i < LOG_LEVELS.length; i++) {
+          if (filter.matchesLogLevel(LOG_LEVELS[i])) {
+            levels.or(myLevelIndex[i]);
+          }
+        }
+        selected.and(levels);
+      }
+
+      if (filter.hasTagPattern()) {
+        selected.and(selectStrings(myTagIndex, true));
+      }
+      if (filter.hasPackagePattern()) {
+        selected.and(selectStrings(myPackageIndex, false));
+      }
+
+      mySelected = selected;
+      myEvaluated.set(0, mySize);
+      myEvaluated.andNot(myIncomplete);
+    }
+
+    /** Returns the union of the slots of the tags (or packages) matching the filter, evaluating the pattern once per string */
+    @NotNull
+    private BitSet selectStrings(@NotNull TIntObjectHashMap<BitSet> index, final boolean tags) {
+      final BitSet result = new BitSet();
+      index.forEachEntry(new TIntObjectProcedure<BitSet>() {
+        @Override
+        public boolean execute(int id, BitSet bits) {
+          String s = myStrings.get(id);
+          if (tags ? myFilter.matchesTag(s) : myFilter.matchesPackage(s)) {
+            result.or(bits);
+          }
+          return true;
+        }
+      });
+      return result;
+    }
+
+    /**
+     * Returns whether the given message matches the filter, or null if that depends on the previous messages or the
+     * message is no longer in the buffer, in which case the caller has to apply the filter itself
+     *
+     * @param message the text of the message, see {@link Entry#getMessageOffset}
+     */
+    @Nullable
+    public Boolean isSelected(@NotNull Entry entry, @NotNull CharSequence message) {
+      synchronized (LogcatBuffer.this) {
+        int slot = entry.mySlot;
+        if (slot < 0 || mySequences[slot] != entry.mySequence || myIncomplete.get(slot)) {
+          return null;
+        }
+        if (!myEvaluated.get(slot)) {
+          // Added after the selection was computed
+          boolean selected = myFilter.matchesPid(myPids[slot]) &&
+                             myFilter.matchesLogLevel(LOG_LEVELS[myLevels[slot]]) &&
+                             myFilter.matchesTag(myStrings.get(myTags[slot])) &&
+                             myFilter.matchesPackage(myStrings.get(myPackages[slot]));
+          mySelected.set(slot, selected);
+          myEvaluated.set(slot);
+        }
+        if (!mySelected.get(slot)) {
+          return false;
+        }
+      }
+      return myFilter.matchesMessage(message);
+    }
+
+    /** Returns the number of messages in the buffer which are known to match the filter, except for its message pattern */
+    public int getSelectedCount() {
+      synchronized (LogcatBuffer.this) {
+        BitSet selected = (BitSet)mySelected.clone();
+        selected.and(myEvaluated);
+        return selected.cardinality();
+      }
+    }
+  }
+
+  /** Returns the number of messages in the buffer */
+  public synchronized int size() {
+    return mySize;
+  }
+
+  /** Removes all the messages */
+  public synchronized void clear() {
+    myLineIndex.clear();
+    myStrings.clear();
+    myStringIds.clear();
+    myStringCounts.clear();
+    myFreeStringIds.clear();
+    myPidIndex.clear();
+    myTagIndex.clear();
+    myPackageIndex.clear();
+    for (BitSet bits : myLevelIndex) {
+      bits.clear();
+    }
+    myIncomplete.clear();
+    mySelection = null;
+    myNext = 0;
+    mySize = 0;
+  }
+
+  private int intern(@NotNull String s) {
+    if (myStringIds.containsKey(s)) {
+      int id = myStringIds.get(s);
+      myStringCounts.set(id, myStringCounts.get(id) + 1);
+      return id;
+    }
+    int id;
+    if (myFreeStringIds.isEmpty()) {
+      id = myStrings.size();
+      myStrings.add(s);
+      myStringCounts.add(1);
+    }
+    else {
+      id = myFreeStringIds.remove(myFreeStringIds.size() - 1);
+      myStrings.set(id, s);
+      myStringCounts.set(id, 1);
+    }
+    myStringIds.put(s, id);
+    return id;
+  }
+
+  /** Drops a use of the string with the given id, and the string itself once it is no longer used */
+  private void release(int id) {
+    int count = myStringCounts.get(id) - 1;
+    myStringCounts.set(id, count);
+    if (count == 0) {
+      myStringIds.remove(myStrings.get(id));
+      myStrings.set(id, null);
+      myFreeStringIds.add(id);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getStringCount() {
+    return myStringIds.size();
+  }
+
+  /** Returns the number of distinct pids, tags and packages in the index */
+  @VisibleForTesting
+  synchronized int getIndexSize() {
+    return myPidIndex.size() + myTagIndex.size() + myPackageIndex.size();
+  }
+
+  /** Returns the number of bits the bit sets of the index take up, in bits */
+  @VisibleForTesting
+  synchronized long getIndexBits() {
+    final long[] bits = new long[1];
+    TObjectProcedure<BitSet> procedure = new TObjectProcedure<BitSet>() {
+      @Override
+      public boolean execute(BitSet set) {
+        bits[0] += set.size();
+        return true;
+      }
+    };
+    myPidIndex.forEachValue(procedure);
+    myTagIndex.forEachValue(procedure);
+    myPackageIndex.forEachValue(procedure);
+    return bits[0];
+  }
+
+  private static int parseTid(@Nullable String tid) {
+    if (tid == null) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(tid);
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Converts a logcat time stamp of the form {@code MM-dd HH:mm:ss.SSS} to a number of milliseconds which orders the
+   * messages of a year; the year itself is not part of the time stamp. Returns 0 if the time stamp cannot be parsed.
+   */
+  static long parseTime(@Nullable String time) {
+    if (time == null || time.length() < 18 || time.charAt(2) != '-' || time.charAt(5) != ' ' || time.charAt(14) != '.') {
+      return 0;
+    }
+    int month = parseDigits(time, 0, 2);
+    int day = parseDigits(time, 3, 5);
+    int hours = parseDigits(time, 6, 8);
+    int minutes = parseDigits(time, 9, 11);
+    int seconds = parseDigits(time, 12, 14);
+    int millis = parseDigits(time, 15, 18);
+    if (month < 0 || day < 0 || hours < 0 || minutes < 0 || seconds < 0 || millis < 0) {
+      return 0;
+    }
+    return ((((month * 31L + day) * 24 + hours) * 60 + minutes) * 60 + seconds) * 1000 + millis;
+  }
+
+  private static int parseDigits(@NotNull String s, int start, int end) {
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /** The parsed fields of a message */
+  public static class Entry {
+    private final long myTime;
+    private final int myPid;
+    private final int myTid;
+    @Nullable private final Log.LogLevel myLogLevel;
+    @NotNull private final String myTag;
+    @NotNull private final String myPackage;
+    private final int myMessageOffset;
+    /** The slot of the message in the buffer, or -1 if it was parsed from a line not found in the buffer */
+    private final int mySlot;
+    private final long mySequence;
+
+    Entry(long time,
+          int pid,
+          int tid,
+          @Nullable Log.LogLevel logLevel,
+          @NotNull String tag,
+          @NotNull String pkg,
+          int messageOffset,
+          int slot,
+          long sequence) {
+      myTime = time;
+      myPid = pid;
+      myTid = tid;
+      myLogLevel = logLevel;
+      myTag = tag;
+      myPackage = pkg;
+      myMessageOffset = messageOffset;
+      mySlot = slot;
+      mySequence = sequence;
+    }
+
+    /** Creates an entry from a header parsed by {@link AndroidLogcatFormatter#parseMessage} */
+    @NotNull
+    static Entry create(@NotNull LogMessageHeader header, int messageOffset) {
+      return new Entry(parseTime(header.myTime), header.myPid, parseTid(header.myTid), header.myLogLevel, header.myTag,
+                       header.myAppPackage, messageOffset, -1, -1);
+    }
+
+    /** Returns the time stamp, as returned by {@link LogcatBuffer#parseTime} */
+    public long getTime() {
+      return myTime;
+    }
+
+    public int getPid() {
+      return myPid;
+    }
+
+    public int getTid() {
+      return myTid;
+    }
+
+    @Nullable
+    public Log.LogLevel getLogLevel() {
+      return myLogLevel;
+    }
+
+    @NotNull
+    public String getTag() {
+      return myTag;
+    }
+
+    @NotNull
+    public String getPackage() {
+      return myPackage;
+    }
+
+    /** Returns the offset of the message text in the formatted line */
+    public int getMessageOffset() {
+      return myMessageOffset;
+    }
+  }
+}
@@ -48,6 +48,9 @@ import org.jetbrains.annotations.Nullable;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -63,6 +66,9 @@ public class AndroidTargetData {
   private volatile AttributeDefinitionsImpl myAttrDefs;
   private volatile LayoutLibrary myLayoutLibrary;
 
+  /** Additional layout library instances used for concurrent rendering, loaded on demand by {@link #getLayoutLibraries} */
+  private final List<LayoutLibrary> myExtraLayoutLibraries = new ArrayList<LayoutLibrary>();
+
   private final Object myPublicResourceCacheLock = new Object();
   private volatile Map<String, Set<String>> myPublicResourceCache;
 
@@ -168,10 +174,51 @@ public class AndroidTargetData {
     return myLayoutLibrary;
   }
 
-  public void clearLayoutBitmapCache(Module module) {
+  /**
+   * Returns up to {@code count} layout library instances for this target, the first of which is the one returned by
+   * {@link #getLayoutLibrary}. Each additional instance is loaded in its own class loader, so renders using different
+   * instances can run concurrently (see {@link com.android.tools.idea.rendering.RenderScheduler}). Instances which
+   * fail to load are skipped.
+   */
+  @NotNull
+  public synchronized List<LayoutLibrary> getLayoutLibraries(@NotNull Project project, int count) throws RenderingException, IOException {
+    LayoutLibrary primary = getLayoutLibrary(project);
+    if (primary == null) {
+      return Collections.emptyList();
+    }
+    if (count <= 1) {
+      return Collections.singletonList(primary);
+    }
+    if (myTarget instanceof CompatibilityRenderTarget) {
+      IAndroidTarget target = ((CompatibilityRenderTarget)myTarget).getRenderTarget();
+      AndroidTargetData targetData = mySdkData.getTargetData(target);
+      if (targetData != this) {
+        return targetData.getLayoutLibraries(project, count);
+      }
+    }
+
+    while (myExtraLayoutLibraries.size() < count - 1) {
+      final AttributeDefinitionsImpl attrDefs = getAllAttrDefs(project);
+      LayoutLibrary library = attrDefs != null ? LayoutLibraryLoader.load(myTarget, attrDefs.getEnumMap()) : null;
+      if (library == null) {
+        break;
+      }
+      myExtraLayoutLibraries.add(library);
+    }
+
+    List<LayoutLibrary> libraries = new ArrayList<LayoutLibrary>(myExtraLayoutLibraries.size() + 1);
+    libraries.add(primary);
+    libraries.addAll(myExtraLayoutLibraries.subList(0, Math.min(count - 1, myExtraLayoutLibraries.size())));
+    return libraries;
+  }
+
+  public synchronized void clearLayoutBitmapCache(Module module) {
     if (myLayoutLibrary != null) {
       myLayoutLibrary.clearCaches(module);
     }
+    for (LayoutLibrary library : myExtraLayoutLibraries) {
+      library.clearCaches(module);
+    }
   }
 
   @NotNull
@@ -641,6 +641,7 @@ public class AndroidLayoutPreviewToolWindowManager implements ProjectComponent {
       final RenderTask task = renderService.createTask(psiFile, configuration, logger, toolWindowForm);
       if (task != null) {
         task.useDesignMode(psiFile);
+        task.setUseResultCache(true);
         result = task.render();
         task.dispose();
       }
@@ -11,6 +11,8 @@ import com.android.tools.idea.gradle.compiler.PostProjectBuildTasksExecutor;
 import com.android.tools.idea.gradle.util.GradleUtil;
 import com.android.tools.idea.rendering.AarResourceClassRegistry;
 import com.android.tools.idea.rendering.AppResourceRepository;
+import com.android.tools.idea.rendering.ClassConverterCache;
+import com.android.tools.idea.rendering.ClassPathIndex;
 import com.android.tools.idea.rendering.RenderClassLoader;
 import com.android.utils.SdkUtils;
 import com.google.common.collect.Maps;
@@ -43,6 +45,7 @@ import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -354,18 +357,25 @@ public final class ModuleClassLoader extends RenderClassLoader {
 
   /**
    * Returns a project class loader to use for rendering. May cache instances across render sessions.
+   * A separate loader is kept per layout library instance, since renders on different instances
+   * (see {@link com.android.tools.idea.rendering.RenderScheduler}) may run concurrently.
    */
   @NotNull
   public static ModuleClassLoader get(@NotNull LayoutLibrary library, @NotNull Module module) {
-    ModuleClassLoader loader = ourCache.get(module);
-    if (loader != null) {
-      if (library != loader.myLibrary) {
-        if (DEBUG_CLASS_LOADING) {
-          //noinspection UseOfSystemOutOrSystemErr
-          System.out.println("Discarding loader because the layout library has changed");
-        }
-        loader = null;
-      } else if (!loader.isUpToDate()) {
+    synchronized (ourCache) {
+      Map<LayoutLibrary, ModuleClassLoader> loaders = ourCache.get(module);
+      if (loaders == null) {
+        // The loaders reference their layout library, so bound the number of (possibly stale) libraries kept alive
+        loaders = new LinkedHashMap<LayoutLibrary, ModuleClassLoader>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<LayoutLibrary, ModuleClassLoader> eldest) {
+            return size() > MAX_CACHED_LIBRARIES;
+          }
+        };
+        ourCache.put(module, loaders);
+      }
+      ModuleClassLoader loader = loaders.get(library);
+      if (loader != null && !loader.isUpToDate()) {
         if (DEBUG_CLASS_LOADING) {
           //noinspection UseOfSystemOutOrSystemErr
           System.out.println("Discarding loader because some files have changed");
@@ -382,25 +392,36 @@ public final class ModuleClassLoader extends RenderClassLoader {
       // dependencies when the loader was created, and compare it to the current one. However,
       // that's a pretty unusual scenario so we won't worry about it until the loader situation
       // is solved more generally (e.g. separating out .jar loading from .class loading etc).
-    }
 
-    if (loader == null) {
-      loader = new ModuleClassLoader(library, module);
-      ourCache.put(module, loader);
-    } else if (DEBUG_CLASS_LOADING) {
-        //noinspection UseOfSystemOutOrSystemErr
-        System.out.println("Reused class loader for rendering");
-    }
+      if (loader == null) {
+        loader = new ModuleClassLoader(library, module);
+        loaders.put(library, loader);
+      } else if (DEBUG_CLASS_LOADING) {
+          //noinspection UseOfSystemOutOrSystemErr
+          System.out.println("Reused class loader for rendering");
+      }
 
-    return loader;
+      return loader;
+    }
   }
 
   /** Flush any cached class loaders */
   public static void clearCache() {
-    ourCache.clear();
+    synchronized (ourCache) {
+      ourCache.clear();
+    }
+    ClassPathIndex.invalidateAll();
+    // Converted classes are cached by content, so the new class loaders only need to convert the classes that changed
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(ClassConverterCache.getInstance().toString());
+    }
   }
 
+  /** Maximum number of layout libraries to keep class loaders for, per module */
+  private static final int MAX_CACHED_LIBRARIES = 8;
+
   /** Temporary hack: Store this in a weak hash map cached by modules. In the next version we should move this
    * into a proper persistent render service. */
-  private static WeakHashMap<Module,ModuleClassLoader> ourCache = new WeakHashMap<Module, ModuleClassLoader>();
+  private static final WeakHashMap<Module, Map<LayoutLibrary, ModuleClassLoader>> ourCache =
+    new WeakHashMap<Module, Map<LayoutLibrary, ModuleClassLoader>>();
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.android.util;
+
+import com.google.common.io.Files;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A directory of files keyed by strings, bounded by the total size of the files. When the budget is exceeded, the least
+ * recently used files are deleted; files are ordered by time stamp, such that this also covers the files stored in
+ * earlier sessions or by other IDE instances.
+ * <p/>
+ * Files are written to a temporary file first and renamed, such that other IDE instances never see a partially written
+ * file. Temporary files left behind by an IDE which stopped while writing one are deleted once they are old enough.
+ * Since the cache is only an optimization, I/O errors are logged and otherwise ignored.
+ */
+public class BoundedDiskCache {
+  private static final Logger LOG = Logger.getInstance(BoundedDiskCache.class);
+
+  private static final String DOT_TMP = ".tmp";
+
+  /**
+   * Age after which a temporary file is assumed to be left behind by an IDE which stopped while writing it, rather than
+   * being written by another IDE instance right now
+   */
+  private static final long STALE_TEMP_FILE_AGE_MS = 60 * 60 * 1000L;
+
+  @NotNull private final File myDirectory;
+  @NotNull private final String myExtension;
+  private final long myMaxSize;
+  private final boolean mySpreadOverFolders;
+  /** Sizes of the files on disk, in least recently used order; read from disk on first use */
+  private LinkedHashMap<String, Long> myFiles;
+  private long mySize;
+
+  /**
+   * Creates a cache storing the file of each key as {@code <key><extension>} in the given directory, or, if
+   * {@code spreadOverFolders} is set, in the sub folder named by the first two characters of the key, which keeps
+   * directories small when there are many files
+   */
+  public BoundedDiskCache(@NotNull File directory, @NotNull String extension, long maxSize, boolean spreadOverFolders) {
+    myDirectory = directory;
+    myExtension = extension;
+    myMaxSize = maxSize;
+    mySpreadOverFolders = spreadOverFolders;
+  }
+
+  @NotNull
+  private File getFile(@NotNull String key) {
+    return new File(mySpreadOverFolders ? new File(myDirectory, getFolderName(key)) : myDirectory, key + myExtension);
+  }
+
+  @NotNull
+  private static String getFolderName(@NotNull String key) {
+    return key.substring(0, 2);
+  }
+
+  /** Returns the contents stored for the given key, or null if there are none, and marks them as recently used */
+  @Nullable
+  public byte[] read(@NotNull String key) {
+    File file = getFile(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    byte[] data;
+    try {
+      data = Files.toByteArray(file);
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+      return null;
+    }
+    synchronized (this) {
+      Map<String, Long> files = getFiles();
+      if (files.get(key) == null) {
+        // Stored by another IDE instance
+        files.put(key, file.length());
+        mySize += file.length();
+      }
+      // Marks the file as recently used, also for the next session, which orders the files by timestamp
+      //noinspection ResultOfMethodCallIgnored
+      file.setLastModified(System.currentTimeMillis());
+    }
+    return data;
+  }
+
+  /** Stores the given contents for the given key, unless they are larger than the whole budget */
+  public void write(@NotNull String key, @NotNull byte[] data) {
+    if (data.length > myMaxSize) {
+      return;
+    }
+    File file = getFile(key);
+    try {
+      File parent = file.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        return;
+      }
+      // The prefix of a temporary file must be at least three characters long
+      File temp = File.createTempFile(key + "-tmp", DOT_TMP, parent);
+      Files.write(data, temp);
+      if (!temp.renameTo(file)) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+        return;
+      }
+    }
+    catch (IOException e) {
+      LOG.debug(e);
+      return;
+    }
+
+    synchronized (this) {
+      Map<String, Long> files = getFiles();
+      Long previous = files.put(key, (long)data.length);
+      if (previous != null) {
+        mySize -= previous;
+      }
+      mySize += data.length;
+      trim();
+    }
+  }
+
+  /** Deletes the least recently used files until the cache fits its budget */
+  private void trim() {
+    assert Thread.holdsLock(this);
+    Iterator<Map.Entry<String, Long>> iterator = getFiles().entrySet().iterator();
+    while (mySize > myMaxSize && iterator.hasNext()) {
+      Map.Entry<String, Long> next = iterator.next();
+      //noinspection ResultOfMethodCallIgnored
+      getFile(next.getKey()).delete();
+      mySize -= next.getValue();
+      iterator.remove();
+    }
+  }
+
+  @NotNull
+  private Map<String, Long> getFiles() {
+    assert Thread.holdsLock(this);
+    if (myFiles == null) {
+      myFiles = new LinkedHashMap<String, Long>(64, 0.75f, true);
+      List<File> files = new ArrayList<File>();
+      if (mySpreadOverFolders) {
+        File[] folders = myDirectory.listFiles();
+        if (folders != null) {
+          for (File folder : folders) {
+            File[] children = folder.listFiles();
+            if (children != null) {
+              Collections.addAll(files, children);
+            }
+          }
+        }
+      }
+      else {
+        File[] children = myDirectory.listFiles();
+        if (children != null) {
+          Collections.addAll(files, children);
+        }
+      }
+      Collections.sort(files, new Comparator<File>() {
+        @Override
+        public int compare(File file1, File file2) {
+          long delta = file1.lastModified() - file2.lastModified();
+          return delta < 0 ? -1 : delta > 0 ? 1 : 0;
+        }
+      });
+      long staleTime = System.currentTimeMillis() - STALE_TEMP_FILE_AGE_MS;
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(myExtension)) {
+          String key = name.substring(0, name.length() - myExtension.length());
+          // Only files where their key would put them are ever looked up, and thus evicted
+          if ((!mySpreadOverFolders || key.length() > 2) && file.equals(getFile(key))) {
+            myFiles.put(key, file.length());
+            mySize += file.length();
+          }
+        }
+        else if (name.endsWith(DOT_TMP) && file.lastModified() < staleTime) {
+          // Not accounted for by the budget, so these would otherwise take up space forever
+          //noinspection ResultOfMethodCallIgnored
+          file.delete();
+        }
+      }
+      // The budget may have been lowered since the files were stored
+      trim();
+    }
+    return myFiles;
+  }
+}
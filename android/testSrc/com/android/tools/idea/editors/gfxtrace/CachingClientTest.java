@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace;
+
+import com.android.tools.idea.editors.gfxtrace.rpc.Binary;
+import com.android.tools.idea.editors.gfxtrace.rpc.BinaryId;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.mockito.Mockito.*;
+
+public class CachingClientTest extends TestCase {
+  private static final BinaryId ID = new BinaryId(new byte[]{1});
+
+  private ListenableClient myClient;
+  private ResolveCache myCache;
+  private CachingClient myCachingClient;
+  private SettableFuture<Binary> myFirstRequest;
+  private SettableFuture<Binary> mySecondRequest;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myClient = mock(ListenableClient.class);
+    myFirstRequest = SettableFuture.create();
+    mySecondRequest = SettableFuture.create();
+    when(myClient.ResolveBinary(ID)).thenReturn(myFirstRequest, mySecondRequest);
+    myCache = new ResolveCache(1024 * 1024, 0, null);
+    myCachingClient = new CachingClient(myClient, MoreExecutors.sameThreadExecutor(), myCache);
+  }
+
+  public void testConcurrentRequestsAreShared() throws Exception {
+    ListenableFuture<Binary> first = myCachingClient.ResolveBinary(ID);
+    ListenableFuture<Binary> second = myCachingClient.ResolveBinary(ID);
+    verify(myClient, times(1)).ResolveBinary(ID);
+    assertEquals(1, myCache.getMissCount());
+
+    Binary binary = new Binary();
+    myFirstRequest.set(binary);
+    assertSame(binary, first.get());
+    assertSame(binary, second.get());
+
+    // Now held in memory
+    assertSame(binary, myCachingClient.ResolveBinary(ID).get());
+    verify(myClient, times(1)).ResolveBinary(ID);
+    assertEquals(1, myCache.getHitCount());
+  }
+
+  public void testCancellingOneCaller() throws Exception {
+    ListenableFuture<Binary> first = myCachingClient.ResolveBinary(ID);
+    ListenableFuture<Binary> second = myCachingClient.ResolveBinary(ID);
+    assertTrue(first.cancel(false));
+    assertFalse(myFirstRequest.isCancelled());
+
+    // Later callers still join the request
+    ListenableFuture<Binary> third = myCachingClient.ResolveBinary(ID);
+    verify(myClient, times(1)).ResolveBinary(ID);
+
+    Binary binary = new Binary();
+    myFirstRequest.set(binary);
+    assertSame(binary, second.get());
+    assertSame(binary, third.get());
+  }
+
+  public void testCancellingAllCallers() throws Exception {
+    ListenableFuture<Binary> first = myCachingClient.ResolveBinary(ID);
+    ListenableFuture<Binary> second = myCachingClient.ResolveBinary(ID);
+    first.cancel(false);
+    second.cancel(false);
+    assertTrue(myFirstRequest.isCancelled());
+
+    // The next caller starts over
+    ListenableFuture<Binary> third = myCachingClient.ResolveBinary(ID);
+    verify(myClient, times(2)).ResolveBinary(ID);
+    Binary binary = new Binary();
+    mySecondRequest.set(binary);
+    assertSame(binary, third.get());
+  }
+
+  public void testFailure() throws Exception {
+    ListenableFuture<Binary> first = myCachingClient.ResolveBinary(ID);
+    ListenableFuture<Binary> second = myCachingClient.ResolveBinary(ID);
+    IOException failure = new IOException("connection closed");
+    myFirstRequest.setException(failure);
+    assertFailedWith(failure, first);
+    assertFailedWith(failure, second);
+
+    // Failures are not cached
+    myCachingClient.ResolveBinary(ID);
+    verify(myClient, times(2)).ResolveBinary(ID);
+  }
+
+  private static void assertFailedWith(Throwable expected, ListenableFuture<?> future) throws InterruptedException {
+    try {
+      future.get();
+      fail();
+    }
+    catch (ExecutionException e) {
+      assertSame(expected, e.getCause());
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace;
+
+import com.android.tools.idea.editors.gfxtrace.rpc.Binary;
+import com.android.tools.idea.editors.gfxtrace.rpc.BinaryId;
+import com.android.tools.idea.editors.gfxtrace.rpc.Client;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import junit.framework.TestCase;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+import static org.mockito.Mockito.*;
+
+public class PooledClientTest extends TestCase {
+  private static final BinaryId FIRST_ID = new BinaryId(new byte[]{1});
+  private static final BinaryId SECOND_ID = new BinaryId(new byte[]{2});
+
+  private Client myClient;
+  private ListeningExecutorService myExecutorService;
+  private PooledClient myPooledClient;
+  private SettableFuture<Binary> myFirstCall;
+  private CountDownLatch myFirstCallStarted;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myClient = mock(Client.class);
+    myFirstCall = SettableFuture.create();
+    myFirstCallStarted = new CountDownLatch(1);
+    when(myClient.ResolveBinary(FIRST_ID)).thenAnswer(new Answer<Future<Binary>>() {
+      @Override
+      public Future<Binary> answer(InvocationOnMock invocation) {
+        myFirstCallStarted.countDown();
+        return myFirstCall;
+      }
+    });
+    // A single call in flight at a time
+    myExecutorService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    myPooledClient = new PooledClient(myClient, myExecutorService);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myExecutorService.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testCancelledQueuedCallIsNotSent() throws Exception {
+    ListenableFuture<Binary> first = myPooledClient.ResolveBinary(FIRST_ID);
+    ListenableFuture<Binary> second = myPooledClient.ResolveBinary(SECOND_ID);
+    second.cancel(false);
+
+    Binary binary = new Binary();
+    myFirstCall.set(binary);
+    assertSame(binary, first.get(10, TimeUnit.SECONDS));
+
+    myExecutorService.shutdown();
+    assertTrue(myExecutorService.awaitTermination(10, TimeUnit.SECONDS));
+    verify(myClient, never()).ResolveBinary(SECOND_ID);
+  }
+
+  public void testCancelWhileWaitingCancelsCall() throws Exception {
+    ListenableFuture<Binary> first = myPooledClient.ResolveBinary(FIRST_ID);
+    assertTrue(myFirstCallStarted.await(10, TimeUnit.SECONDS));
+    first.cancel(true);
+
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    myFirstCall.addListener(new Runnable() {
+      @Override
+      public void run() {
+        cancelled.countDown();
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+    assertTrue(myFirstCall.isCancelled());
+  }
+
+  public void testFailure() throws Exception {
+    IOException exception = new IOException();
+    myFirstCall.setException(exception);
+    try {
+      myPooledClient.ResolveBinary(FIRST_ID).get(10, TimeUnit.SECONDS);
+      fail();
+    }
+    catch (ExecutionException e) {
+      assertSame(exception, e.getCause());
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace;
+
+import com.android.tools.idea.editors.gfxtrace.rpc.BinaryId;
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import com.android.tools.rpclib.binary.ObjectTypeID;
+import com.google.common.base.Strings;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ResolveCacheTest extends TestCase {
+  private static final ObjectTypeID TYPE = new ObjectTypeID(new byte[20]);
+
+  /** An object whose encoded form is about as many bytes as its value has characters */
+  private static class TestObject implements BinaryObject {
+    private String myValue;
+
+    TestObject(@NotNull String value) {
+      myValue = value;
+    }
+
+    @Override
+    public void encode(@NotNull Encoder e) throws IOException {
+      e.string(myValue);
+    }
+
+    @Override
+    public void decode(@NotNull Decoder d) throws IOException {
+      myValue = d.string();
+    }
+
+    @NotNull
+    @Override
+    public ObjectTypeID type() {
+      return TYPE;
+    }
+  }
+
+  private static final ResolveCache.ObjectDecoder<TestObject> DECODER = new ResolveCache.ObjectDecoder<TestObject>() {
+    @NotNull
+    @Override
+    public TestObject decode(@NotNull Decoder d) throws IOException {
+      TestObject object = new TestObject("");
+      object.decode(d);
+      return object;
+    }
+  };
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("gfxtrace", "cache");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  private static String key(int id) throws IOException {
+    return ResolveCache.getKey("test", new BinaryId(new byte[]{(byte)id}));
+  }
+
+  private static TestObject object(char c) {
+    return new TestObject(Strings.repeat(String.valueOf(c), 100));
+  }
+
+  private static String valueOf(BinaryObject object) {
+    return object != null ? ((TestObject)object).myValue.substring(0, 1) : null;
+  }
+
+  public void testKeys() throws Exception {
+    assertEquals(key(1), key(1));
+    assertFalse(key(1).equals(key(2)));
+    assertFalse(ResolveCache.getKey("a", new BinaryId(new byte[]{1})).equals(ResolveCache.getKey("b", new BinaryId(new byte[]{1}))));
+  }
+
+  public void testMemoryEviction() throws Exception {
+    // Room for two objects
+    ResolveCache cache = new ResolveCache(250, 0, null);
+    cache.put(key(1), object('a'));
+    cache.put(key(2), object('b'));
+    assertEquals("a", valueOf(cache.getIfPresent(key(1))));
+
+    // b is the least recently used one now
+    cache.put(key(3), object('c'));
+    assertNull(cache.getIfPresent(key(2)));
+    assertEquals("a", valueOf(cache.getIfPresent(key(1))));
+    assertEquals("c", valueOf(cache.getIfPresent(key(3))));
+    assertEquals(3, cache.getHitCount());
+
+    // Too large to be held at all
+    cache.put(key(4), new TestObject(Strings.repeat("d", 300)));
+    assertNull(cache.getIfPresent(key(4)));
+    assertEquals("a", valueOf(cache.getIfPresent(key(1))));
+  }
+
+  public void testCounters() throws Exception {
+    ResolveCache cache = new ResolveCache(1000, 1000, myDir);
+    assertNull(cache.getIfPresent(key(1)));
+    assertNull(cache.load(key(1), DECODER));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(0, cache.getDiskHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    cache.store(key(1), cache.put(key(1), object('a')));
+    assertEquals("a", valueOf(cache.getIfPresent(key(1))));
+    cache.clear();
+    assertNull(cache.getIfPresent(key(1)));
+    assertEquals("a", valueOf(cache.load(key(1), DECODER)));
+    // Loading from disk puts the object back in memory
+    assertEquals("a", valueOf(cache.getIfPresent(key(1))));
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getDiskHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testDiskEviction() throws Exception {
+    // Room for two objects on disk
+    ResolveCache cache = new ResolveCache(1000, 250, myDir);
+    cache.store(key(1), cache.put(key(1), object('a')));
+    cache.store(key(2), cache.put(key(2), object('b')));
+    cache.clear();
+    assertEquals("a", valueOf(cache.load(key(1), DECODER)));
+    cache.store(key(3), cache.put(key(3), object('c')));
+    assertEquals(2, myDir.listFiles().length);
+
+    // Also seen by the next session
+    cache = new ResolveCache(1000, 250, myDir);
+    assertEquals("a", valueOf(cache.load(key(1), DECODER)));
+    assertNull(cache.load(key(2), DECODER));
+    assertEquals("c", valueOf(cache.load(key(3), DECODER)));
+  }
+
+  public void testLoweredBudget() throws Exception {
+    ResolveCache cache = new ResolveCache(1000, 1000, myDir);
+    for (int i = 1; i <= 3; i++) {
+      cache.store(key(i), cache.put(key(i), object((char)('a' + i - 1))));
+      assertTrue(new File(myDir, key(i) + ".bin").setLastModified(System.currentTimeMillis() - 10000 + i * 1000));
+    }
+
+    // Only the most recently used one fits
+    cache = new ResolveCache(1000, 150, myDir);
+    assertEquals("c", valueOf(cache.load(key(3), DECODER)));
+    assertEquals(1, myDir.listFiles().length);
+  }
+
+  public void testStaleTempFiles() throws Exception {
+    File stale = new File(myDir, key(1) + "123.tmp");
+    FileUtil.writeToFile(stale, "partial");
+    assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L));
+    // Possibly being written by another IDE
+    File recent = new File(myDir, key(2) + "456.tmp");
+    FileUtil.writeToFile(recent, "partial");
+
+    ResolveCache cache = new ResolveCache(1000, 1000, myDir);
+    assertNull(cache.load(key(1), DECODER));
+    cache.store(key(3), cache.put(key(3), object('c')));
+    assertFalse(stale.exists());
+    assertTrue(recent.exists());
+  }
+}
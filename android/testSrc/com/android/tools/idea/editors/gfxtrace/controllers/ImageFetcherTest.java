@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace.controllers;
+
+import com.android.tools.idea.editors.gfxtrace.ListenableClient;
+import com.android.tools.idea.editors.gfxtrace.rpc.*;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.intellij.testFramework.LightIdeaTestCase;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.mockito.Mockito.*;
+
+public class ImageFetcherTest extends LightIdeaTestCase {
+  private static final ImageInfoId COLOR_INFO_ID = new ImageInfoId(new byte[]{1});
+  private static final ImageInfoId DEPTH_INFO_ID = new ImageInfoId(new byte[]{2});
+  private static final BinaryId COLOR_DATA_ID = new BinaryId(new byte[]{3});
+  private static final BinaryId DEPTH_DATA_ID = new BinaryId(new byte[]{4});
+
+  private ListenableClient myClient;
+  private ImageFetcher myFetcher;
+  private SettableFuture<ImageInfoId> myColorInfoId;
+  private SettableFuture<ImageInfo> myColorInfo;
+  private SettableFuture<Binary> myColorData;
+  private SettableFuture<ImageInfoId> myDepthInfoId;
+  private SettableFuture<ImageInfo> myDepthInfo;
+  private SettableFuture<Binary> myDepthData;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myColorInfoId = SettableFuture.create();
+    myColorInfo = SettableFuture.create();
+    myColorData = SettableFuture.create();
+    myDepthInfoId = SettableFuture.create();
+    myDepthInfo = SettableFuture.create();
+    myDepthData = SettableFuture.create();
+
+    myClient = mock(ListenableClient.class);
+    when(myClient.GetFramebufferColor(any(DeviceId.class), any(CaptureId.class), anyInt(), anyLong(), any(RenderSettings.class)))
+      .thenReturn(myColorInfoId);
+    when(myClient.GetFramebufferDepth(any(DeviceId.class), any(CaptureId.class), anyInt(), anyLong())).thenReturn(myDepthInfoId);
+    when(myClient.ResolveImageInfo(COLOR_INFO_ID)).thenReturn(myColorInfo);
+    when(myClient.ResolveImageInfo(DEPTH_INFO_ID)).thenReturn(myDepthInfo);
+    when(myClient.ResolveBinary(COLOR_DATA_ID)).thenReturn(myColorData);
+    when(myClient.ResolveBinary(DEPTH_DATA_ID)).thenReturn(myDepthData);
+
+    myFetcher = new ImageFetcher(myClient);
+    myFetcher.prepareFetch(new DeviceId(new byte[]{5}), new CaptureId(new byte[]{6}), 0);
+  }
+
+  private static ImageInfo createImageInfo(BinaryId data) {
+    ImageInfo info = new ImageInfo();
+    info.setData(data);
+    return info;
+  }
+
+  public void testRequestsAreChained() throws Exception {
+    ListenableFuture<FetchedImage> image = myFetcher.fetchColorImage(10, new RenderSettings());
+    verify(myClient, never()).ResolveImageInfo(any(ImageInfoId.class));
+
+    myColorInfoId.set(COLOR_INFO_ID);
+    verify(myClient).ResolveImageInfo(COLOR_INFO_ID);
+    verify(myClient, never()).ResolveBinary(any(BinaryId.class));
+
+    myColorInfo.set(createImageInfo(COLOR_DATA_ID));
+    verify(myClient).ResolveBinary(COLOR_DATA_ID);
+    assertFalse(image.isDone());
+
+    myColorData.set(new Binary());
+    assertNotNull(image.get());
+  }
+
+  public void testImagesCompleteIndependently() throws Exception {
+    ListenableFuture<FetchedImage> color = myFetcher.fetchColorImage(10, new RenderSettings());
+    ListenableFuture<FetchedImage> depth = myFetcher.fetchDepthImage(10);
+
+    // The depth image arrives first, while the color image still waits for its image info
+    myColorInfoId.set(COLOR_INFO_ID);
+    myDepthInfoId.set(DEPTH_INFO_ID);
+    myDepthInfo.set(createImageInfo(DEPTH_DATA_ID));
+    myDepthData.set(new Binary());
+    assertTrue(depth.isDone());
+    assertFalse(color.isDone());
+
+    myColorInfo.set(createImageInfo(COLOR_DATA_ID));
+    myColorData.set(new Binary());
+    assertNotNull(color.get());
+    assertNotNull(depth.get());
+  }
+
+  public void testCancelBeforeFirstResult() throws Exception {
+    ListenableFuture<FetchedImage> image = myFetcher.fetchColorImage(10, new RenderSettings());
+    assertTrue(image.cancel(false));
+
+    // The pending request is cancelled, and the later ones are never sent
+    assertTrue(myColorInfoId.isCancelled());
+    myColorInfoId.set(COLOR_INFO_ID);
+    verify(myClient, never()).ResolveImageInfo(any(ImageInfoId.class));
+    verify(myClient, never()).ResolveBinary(any(BinaryId.class));
+  }
+
+  public void testCancelWhileResolvingImageInfo() throws Exception {
+    ListenableFuture<FetchedImage> image = myFetcher.fetchColorImage(10, new RenderSettings());
+    myColorInfoId.set(COLOR_INFO_ID);
+    assertTrue(image.cancel(false));
+
+    assertTrue(myColorInfo.isCancelled());
+    verify(myClient, never()).ResolveBinary(any(BinaryId.class));
+  }
+
+  public void testFailureIsPropagated() throws Exception {
+    ListenableFuture<FetchedImage> image = myFetcher.fetchColorImage(10, new RenderSettings());
+    IOException failure = new IOException("connection closed");
+    myColorInfoId.set(COLOR_INFO_ID);
+    myColorInfo.setException(failure);
+
+    try {
+      image.get();
+      fail();
+    }
+    catch (ExecutionException e) {
+      assertSame(failure, e.getCause());
+    }
+    verify(myClient, never()).ResolveBinary(any(BinaryId.class));
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.gfxtrace.renderers;
+
+import com.android.tools.idea.editors.gfxtrace.controllers.modeldata.ScrubberLabelData;
+import com.android.tools.idea.editors.gfxtrace.rpc.AtomGroup;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.intellij.testFramework.LightIdeaTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+
+public class ThumbnailCacheTest extends LightIdeaTestCase {
+  /** Each thumbnail takes 4 * 10 * 10 bytes, so the cache holds two of them */
+  private static final int SIZE = 10;
+  private static final long MAX_SIZE = 1000;
+
+  private ImageIcon myPlaceholder;
+  private ThumbnailCache myCache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myPlaceholder = new ImageIcon(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB));
+    // Spills on the calling thread, such that the thumbnails are on disk as soon as they are evicted
+    myCache = new ThumbnailCache(myPlaceholder, MAX_SIZE, MoreExecutors.sameThreadExecutor());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myCache.clear();
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  @NotNull
+  private static ImageIcon createIcon() {
+    return new ImageIcon(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB));
+  }
+
+  @NotNull
+  private ScrubberLabelData put(int index, @NotNull ImageIcon icon) {
+    ScrubberLabelData labelData = new ScrubberLabelData(index, new AtomGroup(), "Frame " + index, myPlaceholder);
+    myCache.put(index, icon, labelData);
+    return labelData;
+  }
+
+  public void testHits() throws Exception {
+    ImageIcon first = createIcon();
+    ImageIcon second = createIcon();
+    ScrubberLabelData firstData = put(0, first);
+    put(1, second);
+    assertSame(first, firstData.getIcon());
+    assertSame(first, myCache.get(0));
+    assertSame(second, myCache.get(1));
+    assertTrue(myCache.contains(1));
+    assertFalse(myCache.contains(2));
+    assertNull(myCache.get(2));
+    assertEquals(800, myCache.getSize());
+
+    // Replacing a thumbnail doesn't count it twice
+    ImageIcon replacement = createIcon();
+    put(0, replacement);
+    assertSame(replacement, myCache.get(0));
+    assertEquals(800, myCache.getSize());
+  }
+
+  public void testEviction() throws Exception {
+    ScrubberLabelData first = put(0, createIcon());
+    ScrubberLabelData second = put(1, createIcon());
+    // Painting the first frame makes the second one the least recently used
+    assertNotNull(myCache.get(0));
+
+    ImageIcon third = createIcon();
+    put(2, third);
+    assertTrue(myCache.contains(0));
+    assertFalse(myCache.contains(1));
+    assertTrue(myCache.contains(2));
+    assertEquals(800, myCache.getSize());
+    // The evicted image is released by its label
+    assertSame(myPlaceholder, second.getIcon());
+    assertNotSame(myPlaceholder, first.getIcon());
+  }
+
+  public void testProtectedRange() throws Exception {
+    myCache.setProtectedRange(0, 1);
+    put(0, createIcon());
+    put(1, createIcon());
+    put(2, createIcon());
+    assertTrue(myCache.contains(0));
+    assertTrue(myCache.contains(1));
+    assertFalse(myCache.contains(2));
+
+    // Over budget while everything is protected, trimmed once the range moves on
+    myCache.setProtectedRange(0, 3);
+    put(2, createIcon());
+    put(3, createIcon());
+    assertEquals(1600, myCache.getSize());
+    myCache.setProtectedRange(2, 3);
+    assertEquals(800, myCache.getSize());
+    assertFalse(myCache.contains(0));
+    assertFalse(myCache.contains(1));
+    assertTrue(myCache.contains(2));
+    assertTrue(myCache.contains(3));
+  }
+
+  public void testSpill() throws Exception {
+    assertNull(myCache.loadSpilled(0));
+    put(0, createIcon());
+    put(1, createIcon());
+    put(2, createIcon());
+    assertFalse(myCache.contains(0));
+
+    ImageIcon spilled = myCache.loadSpilled(0);
+    assertNotNull(spilled);
+    assertEquals(SIZE, spilled.getIconWidth());
+    assertEquals(SIZE, spilled.getIconHeight());
+    assertNull(myCache.loadSpilled(1));
+
+    myCache.clear();
+    assertNull(myCache.loadSpilled(0));
+    assertFalse(myCache.contains(1));
+    assertEquals(0, myCache.getSize());
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.editors.hprof;
+
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.base.Function;
+import com.google.common.collect.Maps;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.*;
+
+public class HprofIndexTest extends TestCase {
+  private File myDir;
+  private File myHprofFile;
+  private File myIndexFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("hprof", "index");
+    myHprofFile = new File(myDir, "dump.hprof");
+    FileUtil.writeToFile(myHprofFile, "not really a heap dump");
+    myIndexFile = new File(myDir, "dump.idx");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  /** Returns instances with the given ids, with no dominators or retained sizes */
+  private static List<Instance> createInstances(long... ids) {
+    Instance[] instances = new Instance[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      instances[i] = mock(Instance.class);
+      when(instances[i].getId()).thenReturn(ids[i]);
+    }
+    return Arrays.asList(instances);
+  }
+
+  private static Function<Long, Instance> lookup(List<Instance> instances) {
+    final Map<Long, Instance> byId = Maps.newHashMap();
+    for (Instance instance : instances) {
+      byId.put(instance.getId(), instance);
+    }
+    return new Function<Long, Instance>() {
+      @Override
+      public Instance apply(Long id) {
+        return byId.get(id);
+      }
+    };
+  }
+
+  /** Saves an index where 1 is dominated by the root and retains 100 bytes in heap 0 and 10 in heap 1, and 1 dominates 2 */
+  private void saveIndex(List<Instance> computed) {
+    Instance root = computed.get(0);
+    when(root.getImmediateDominator()).thenReturn(Snapshot.SENTINEL_ROOT);
+    when(root.getRetainedSize(0)).thenReturn(100L);
+    when(root.getRetainedSize(1)).thenReturn(10L);
+    Instance child = computed.get(1);
+    when(child.getImmediateDominator()).thenReturn(root);
+    when(child.getRetainedSize(1)).thenReturn(10L);
+    HprofIndex.save(computed, 2, myIndexFile, myHprofFile);
+    assertTrue(myIndexFile.isFile());
+  }
+
+  private boolean load(List<Instance> instances) {
+    return HprofIndex.load(instances, lookup(instances), 2, myIndexFile, myHprofFile, new EmptyProgressIndicator());
+  }
+
+  private static void assertUntouched(List<Instance> instances) {
+    for (Instance instance : instances) {
+      verify(instance, never()).setImmediateDominator(any(Instance.class));
+      verify(instance, never()).addRetainedSize(anyInt(), anyLong());
+    }
+  }
+
+  public void testRoundTrip() throws Exception {
+    saveIndex(createInstances(1, 2, 3));
+
+    List<Instance> loaded = createInstances(1, 2, 3);
+    assertTrue(load(loaded));
+    verify(loaded.get(0)).setImmediateDominator(Snapshot.SENTINEL_ROOT);
+    verify(loaded.get(0)).addRetainedSize(0, 100L);
+    verify(loaded.get(0)).addRetainedSize(1, 10L);
+    verify(loaded.get(1)).setImmediateDominator(loaded.get(0));
+    verify(loaded.get(1)).addRetainedSize(1, 10L);
+    verify(loaded.get(1), never()).addRetainedSize(eq(0), anyLong());
+    // Unreachable instances have no dominator
+    verify(loaded.get(2), never()).setImmediateDominator(any(Instance.class));
+    verify(loaded.get(2), never()).addRetainedSize(anyInt(), anyLong());
+  }
+
+  public void testMissingDominatorLeavesInstancesUntouched() throws Exception {
+    saveIndex(createInstances(1, 2, 3));
+
+    // The dominator of 2 is only found after 1 could have been restored
+    List<Instance> loaded = createInstances(1, 2, 3);
+    Function<Long, Instance> nothing = new Function<Long, Instance>() {
+      @Override
+      public Instance apply(Long id) {
+        return null;
+      }
+    };
+    assertFalse(HprofIndex.load(loaded, nothing, 2, myIndexFile, myHprofFile, new EmptyProgressIndicator()));
+    assertUntouched(loaded);
+  }
+
+  public void testTruncatedIndexLeavesInstancesUntouched() throws Exception {
+    saveIndex(createInstances(1, 2, 3));
+    RandomAccessFile file = new RandomAccessFile(myIndexFile, "rw");
+    try {
+      file.setLength(file.length() - 4);
+    }
+    finally {
+      file.close();
+    }
+
+    List<Instance> loaded = createInstances(1, 2, 3);
+    assertFalse(load(loaded));
+    assertUntouched(loaded);
+  }
+
+  public void testTrim() throws Exception {
+    File indexDir = new File(myDir, "hprof-index");
+    File oldest = createIndex(indexDir, "oldest.idx", 300, 1000);
+    File old = createIndex(indexDir, "old.idx", 300, 2000);
+    File recent = createIndex(indexDir, "recent.idx", 300, 3000);
+    // Just written, but older than the others according to the file system
+    File saved = createIndex(indexDir, "saved.idx", 300, 0);
+
+    HprofIndex.trim(indexDir, saved, 1000);
+    assertFalse(oldest.exists());
+    assertTrue(old.exists());
+    assertTrue(recent.exists());
+    assertTrue(saved.exists());
+
+    HprofIndex.trim(indexDir, saved, 500);
+    assertFalse(old.exists());
+    assertFalse(recent.exists());
+    assertTrue(saved.exists());
+  }
+
+  private static File createIndex(File dir, String name, int length, long lastModified) throws Exception {
+    File file = new File(dir, name);
+    FileUtil.writeToFile(file, new byte[length]);
+    assertTrue(file.setLastModified(lastModified));
+    return file;
+  }
+
+  public void testStaleIndex() throws Exception {
+    saveIndex(createInstances(1, 2, 3));
+
+    // Different instances
+    List<Instance> loaded = createInstances(1, 2, 4);
+    assertFalse(load(loaded));
+    assertUntouched(loaded);
+
+    // A modified dump
+    assertTrue(myHprofFile.setLastModified(myHprofFile.lastModified() - 10000));
+    loaded = createInstances(1, 2, 3);
+    assertFalse(load(loaded));
+    assertUntouched(loaded);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+import static com.android.tools.idea.monitor.SamplingScheduler.*;
+
+public class SamplingSchedulerTest extends TestCase {
+  private static ShellMetric createMetric(final int intervalMs, @Nullable final String command) {
+    return new ShellMetric() {
+      @Override
+      public int getIntervalMs() {
+        return intervalMs;
+      }
+
+      @Nullable
+      @Override
+      public String getCommand() {
+        return command;
+      }
+
+      @Override
+      public void processSample(long time, @NotNull List<String> output) {
+      }
+
+      @Override
+      public void processError(long time, @NotNull Exception e) {
+      }
+    };
+  }
+
+  private final ShellMetric myFast = createMetric(500, "cat /proc/stat");
+  private final ShellMetric mySlow = createMetric(1000, null);
+  private final Map<Integer, ShellMetric> myMetrics = ImmutableMap.of(3, myFast, 7, mySlow);
+
+  public void testInterval() throws Exception {
+    assertEquals(500, getInterval(myMetrics.values()));
+    assertEquals(1, getInterval(Collections.singletonList(createMetric(0, null))));
+  }
+
+  public void testStreamingScript() throws Exception {
+    assertEquals("i=0; while read up idle < /proc/uptime; do echo \"@tick $up\"; " +
+                 "echo @m3; cat /proc/stat; " +
+                 "if [ $((i % 2)) -eq 0 ]; then echo @m7; fi; " +
+                 "echo @end; i=$((i + 1)); sleep 0.500; done",
+                 buildStreamingScript(myMetrics, 500));
+    assertEquals("i=0; while read up idle < /proc/uptime; do echo \"@tick $up\"; echo @m7; echo @end; i=$((i + 1)); sleep 1.000; done",
+                 buildStreamingScript(ImmutableMap.of(7, mySlow), 1000));
+  }
+
+  public void testPollingScript() throws Exception {
+    List<ShellMetric> due = Lists.newArrayList();
+    assertEquals("read up idle < /proc/uptime; echo \"@tick $up\"; echo @m3; cat /proc/stat; echo @m7; echo @end",
+                 buildPollingScript(myMetrics, 500, 0, due));
+    assertEquals(Arrays.asList(myFast, mySlow), due);
+
+    // The slow metric is only due every other tick
+    due.clear();
+    assertEquals("read up idle < /proc/uptime; echo \"@tick $up\"; echo @m3; cat /proc/stat; echo @end",
+                 buildPollingScript(myMetrics, 500, 1, due));
+    assertEquals(Collections.singletonList(myFast), due);
+  }
+
+  /** Records the passes received */
+  private static class RecordingReceiver extends ScriptReceiver {
+    private final List<Long> myUptimes = Lists.newArrayList();
+    private final List<Map<Integer, List<String>>> myOutputs = Lists.newArrayList();
+
+    @Override
+    protected void processPass(long uptimeMs, @NotNull Map<Integer, List<String>> output) {
+      myUptimes.add(uptimeMs);
+      myOutputs.add(output);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+  }
+
+  public void testReceiverSplitsOutputByTick() throws Exception {
+    RecordingReceiver receiver = new RecordingReceiver();
+    receiver.processNewLines(new String[]{"shell noise", TICK + "12.50", METRIC + "3", "cpu 1 2 3", "cpu0 1 2 3"});
+    // The lines of a pass may arrive in several chunks
+    receiver.processNewLines(new String[]{METRIC + "7", END, TICK + "13.00", METRIC + "3", "cpu 4 5 6"});
+    assertEquals(1, receiver.getPasses());
+    receiver.processNewLines(new String[]{TICK + "13.50", METRIC + "7", "", END});
+
+    assertEquals(2, receiver.getPasses());
+    assertEquals(Arrays.asList(12500L, 13500L), receiver.myUptimes);
+    // The pass at 13.00 was interrupted by the next tick, so its output is dropped
+    Map<Integer, List<String>> first = receiver.myOutputs.get(0);
+    assertEquals(Arrays.asList(3, 7), Lists.newArrayList(first.keySet()));
+    assertEquals(Arrays.asList("cpu 1 2 3", "cpu0 1 2 3"), first.get(3));
+    assertEquals(Collections.<String>emptyList(), first.get(7));
+    assertEquals(ImmutableMap.of(7, Collections.singletonList("")), receiver.myOutputs.get(1));
+  }
+
+  public void testReceiverDropsPassesWithoutValidTick() throws Exception {
+    RecordingReceiver receiver = new RecordingReceiver();
+    receiver.processNewLines(new String[]{METRIC + "3", "before any tick", END});
+    receiver.processNewLines(new String[]{TICK + "unknown", METRIC + "3", "1", END});
+    receiver.processNewLines(new String[]{TICK + "1", METRIC + "x", "ignored", METRIC + "3", "2", END});
+
+    assertEquals(1, receiver.getPasses());
+    assertEquals(Collections.singletonList(1000L), receiver.myUptimes);
+    assertEquals(ImmutableMap.of(3, Collections.singletonList("2")), receiver.myOutputs.get(0));
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+
+public class TimelineHistoryTest extends TestCase {
+  private static TimelineHistory createHistory() {
+    // 10 raw samples, 10 buckets of 100ms and 10 of 1s
+    return new TimelineHistory(10, new long[]{100, 1000}, new int[]{10, 10}, "a", "b");
+  }
+
+  public void testRollups() {
+    TimelineHistory history = createHistory();
+    assertTrue(history.isEmpty());
+    for (int i = 0; i < 40; i++) {
+      history.add(i * 25, i, -i);
+    }
+    assertFalse(history.isEmpty());
+    assertEquals(0, history.getStartTime());
+    assertEquals(975, history.getEndTime());
+
+    // The raw samples cover the last 250ms only
+    TimelineHistory.Series series = history.getSeries(750, 975, 100);
+    assertEquals(0, series.getResolution());
+    assertEquals(10, series.size());
+    assertEquals(750, series.getTime(0));
+    assertEquals(30.0f, series.getMin(0, 0));
+
+    // Too many raw samples for the number of points
+    series = history.getSeries(750, 975, 5);
+    assertEquals(100, series.getResolution());
+    assertEquals(3, series.size());
+    assertEquals(700, series.getTime(0));
+    assertEquals(28.0f, series.getMin(0, 0));
+    assertEquals(31.0f, series.getMax(0, 0));
+    assertEquals(29.5f, series.getAverage(0, 0));
+    assertEquals(-31.0f, series.getMin(1, 0));
+
+    // Older than the raw samples
+    series = history.getSeries(0, 975, 100);
+    assertEquals(100, series.getResolution());
+    assertEquals(10, series.size());
+    series = history.getSeries(0, 975, 1);
+    assertEquals(1000, series.getResolution());
+    assertEquals(1, series.size());
+    assertEquals(19.5f, series.getAverage(0, 0));
+
+    history.clear();
+    assertTrue(history.isEmpty());
+    assertEquals(0, history.getSeries(0, 975, 100).size());
+  }
+
+  public void testExport() throws Exception {
+    TimelineHistory history = createHistory();
+    for (int i = 0; i < 120; i++) {
+      history.add(i * 25, i, 0);
+    }
+    StringWriter writer = new StringWriter();
+    history.export(writer);
+    String[] lines = writer.toString().split("\n");
+    assertEquals("time,resolution_ms,a min,a max,a avg,b min,b max,b avg", lines[0]);
+    // Two buckets of a second before the 100ms buckets, which precede the last 10 samples
+    assertEquals("0,1000,0.0,39.0,19.5,0.0,0.0,0.0", lines[1]);
+    assertEquals("1000,1000,40.0,79.0,59.5,0.0,0.0,0.0", lines[2]);
+    assertEquals("2000,100,80.0,83.0,81.5,0.0,0.0,0.0", lines[3]);
+    assertEquals("2750,0,110.0,110.0,110.0,0.0,0.0,0.0", lines[lines.length - 10]);
+    assertEquals(1 + 2 + 8 + 10, lines.length);
+  }
+}
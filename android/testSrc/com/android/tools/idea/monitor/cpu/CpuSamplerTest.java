@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.monitor.cpu;
+
+import com.android.ddmlib.Client;
+import com.android.ddmlib.ClientData;
+import com.android.tools.chartlib.TimelineData;
+import com.android.tools.idea.monitor.DeviceSampler;
+import com.android.tools.idea.monitor.ShellMetric;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CpuSamplerTest extends TestCase {
+  private static final int PID = 1234;
+
+  private static String processStat(String name, long userTicks, long kernelTicks) {
+    return PID + " (" + name + ") S 1 100 0 0 -1 4194624 9000 0 0 0 " + userTicks + " " + kernelTicks +
+           " 0 0 20 0 40 0 21000 1000000000 20000";
+  }
+
+  private static String systemStat(long user, long system, long idle) {
+    return "cpu  " + user + " 10 " + system + " " + idle + " 5 0 1 0 0 0";
+  }
+
+  public void testParseProcessStat() throws Exception {
+    assertTrue(Arrays.equals(new long[]{150, 30}, CpuSampler.parseProcessStat(processStat("com.example", 150, 30), PID)));
+    // Process names may contain spaces and parentheses
+    assertTrue(Arrays.equals(new long[]{7, 8}, CpuSampler.parseProcessStat(processStat("Binder (thread) #1", 7, 8), PID)));
+
+    assertNull(CpuSampler.parseProcessStat(processStat("com.example", 150, 30), PID + 1));
+    assertNull(CpuSampler.parseProcessStat(PID + " (com.example) S 1 100", PID));
+    assertNull(CpuSampler.parseProcessStat("", PID));
+  }
+
+  public void testParseTotalUptime() throws Exception {
+    assertEquals(Long.valueOf(100 + 10 + 20 + 300 + 5 + 1), CpuSampler.parseTotalUptime(systemStat(100, 20, 300)));
+    assertNull(CpuSampler.parseTotalUptime("cpu0 100 10 20 300 5 0 1 0 0 0"));
+    assertNull(CpuSampler.parseTotalUptime("cpu  100 10 20"));
+  }
+
+  public void testSamples() throws Exception {
+    TimelineData data = new TimelineData(2, 10);
+    CpuSampler sampler = new CpuSampler(data, 500);
+    Client client = mock(Client.class);
+    ClientData clientData = mock(ClientData.class);
+    when(client.getClientData()).thenReturn(clientData);
+    when(clientData.getPid()).thenReturn(PID);
+
+    ShellMetric metric = sampler.createMetric(client);
+    assertEquals(500, metric.getIntervalMs());
+    String command = metric.getCommand();
+    assertNotNull(command);
+    assertTrue(command.contains("/proc/" + PID + "/stat"));
+    assertTrue(command.contains("/proc/stat"));
+
+    // The first pass only provides the base line
+    metric.processSample(1000, Arrays.asList(processStat("com.example", 100, 50), systemStat(1000, 200, 3000)));
+    assertEquals(0, data.size());
+
+    // 400 ticks passed, 100 of which in the process: 80 in user space and 20 in the kernel
+    metric.processSample(1500, Arrays.asList(processStat("com.example", 180, 70), systemStat(1200, 300, 3100)));
+    assertEquals(1, data.size());
+    TimelineData.Sample sample = data.get(0);
+    assertEquals(1500, sample.time);
+    assertEquals(DeviceSampler.TYPE_DATA, sample.type);
+    assertEquals(5.0f, sample.values[0], 0.001f);
+    assertEquals(20.0f, sample.values[1], 0.001f);
+
+    // The process is gone; the last values are repeated
+    metric.processSample(2000, Collections.singletonList(systemStat(1400, 400, 3200)));
+    assertEquals(2, data.size());
+    sample = data.get(1);
+    assertEquals(CpuSampler.TYPE_NOT_FOUND, sample.type);
+    assertEquals(5.0f, sample.values[0], 0.001f);
+    assertEquals(20.0f, sample.values[1], 0.001f);
+  }
+}
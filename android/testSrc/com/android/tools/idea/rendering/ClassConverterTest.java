@@ -16,14 +16,47 @@
 package com.android.tools.idea.rendering;
 
 import com.google.common.collect.Lists;
+import com.intellij.openapi.util.io.FileUtil;
 import junit.framework.TestCase;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.net.URL;
+import java.util.Arrays;
 
 import static com.android.tools.idea.rendering.ClassConverter.*;
 
 public class ClassConverterTest extends TestCase {
+  // Compile
+  //     public class Test { public static int test() { return 42; } }
+  // then compile with javac Test.java and take the binary contents of Test.class
+  private static final byte[] TEST_CLASS = new byte[] {
+    (byte)202, (byte)254, (byte)186, (byte)190, (byte)0, (byte)0, (byte)0, (byte)50, (byte)0, (byte)15,
+    (byte)10, (byte)0, (byte)3, (byte)0, (byte)12, (byte)7, (byte)0, (byte)13, (byte)7, (byte)0,
+    (byte)14, (byte)1, (byte)0, (byte)6, (byte)60, (byte)105, (byte)110, (byte)105, (byte)116, (byte)62,
+    (byte)1, (byte)0, (byte)3, (byte)40, (byte)41, (byte)86, (byte)1, (byte)0, (byte)4, (byte)67,
+    (byte)111, (byte)100, (byte)101, (byte)1, (byte)0, (byte)15, (byte)76, (byte)105, (byte)110, (byte)101,
+    (byte)78, (byte)117, (byte)109, (byte)98, (byte)101, (byte)114, (byte)84, (byte)97, (byte)98, (byte)108,
+    (byte)101, (byte)1, (byte)0, (byte)4, (byte)116, (byte)101, (byte)115, (byte)116, (byte)1, (byte)0,
+    (byte)3, (byte)40, (byte)41, (byte)73, (byte)1, (byte)0, (byte)10, (byte)83, (byte)111, (byte)117,
+    (byte)114, (byte)99, (byte)101, (byte)70, (byte)105, (byte)108, (byte)101, (byte)1, (byte)0, (byte)9,
+    (byte)84, (byte)101, (byte)115, (byte)116, (byte)46, (byte)106, (byte)97, (byte)118, (byte)97, (byte)12,
+    (byte)0, (byte)4, (byte)0, (byte)5, (byte)1, (byte)0, (byte)4, (byte)84, (byte)101, (byte)115,
+    (byte)116, (byte)1, (byte)0, (byte)16, (byte)106, (byte)97, (byte)118, (byte)97, (byte)47, (byte)108,
+    (byte)97, (byte)110, (byte)103, (byte)47, (byte)79, (byte)98, (byte)106, (byte)101, (byte)99, (byte)116,
+    (byte)0, (byte)33, (byte)0, (byte)2, (byte)0, (byte)3, (byte)0, (byte)0, (byte)0, (byte)0,
+    (byte)0, (byte)2, (byte)0, (byte)1, (byte)0, (byte)4, (byte)0, (byte)5, (byte)0, (byte)1,
+    (byte)0, (byte)6, (byte)0, (byte)0, (byte)0, (byte)29, (byte)0, (byte)1, (byte)0, (byte)1,
+    (byte)0, (byte)0, (byte)0, (byte)5, (byte)42, (byte)183, (byte)0, (byte)1, (byte)177, (byte)0,
+    (byte)0, (byte)0, (byte)1, (byte)0, (byte)7, (byte)0, (byte)0, (byte)0, (byte)6, (byte)0,
+    (byte)1, (byte)0, (byte)0, (byte)0, (byte)1, (byte)0, (byte)9, (byte)0, (byte)8, (byte)0,
+    (byte)9, (byte)0, (byte)1, (byte)0, (byte)6, (byte)0, (byte)0, (byte)0, (byte)27, (byte)0,
+    (byte)1, (byte)0, (byte)0, (byte)0, (byte)0, (byte)0, (byte)3, (byte)16, (byte)42, (byte)172,
+    (byte)0, (byte)0, (byte)0, (byte)1, (byte)0, (byte)7, (byte)0, (byte)0, (byte)0, (byte)6,
+    (byte)0, (byte)1, (byte)0, (byte)0, (byte)0, (byte)1, (byte)0, (byte)1, (byte)0, (byte)10,
+    (byte)0, (byte)0, (byte)0, (byte)2, (byte)0, (byte)11
+  };
+
   public void testClassVersionToJdk() {
     assertEquals("1.5", classVersionToJdk(49));
     assertEquals("1.6", classVersionToJdk(50));
@@ -63,35 +96,7 @@ public class ClassConverterTest extends TestCase {
   }
 
   public void testMangling() throws Exception {
-    // Compile
-    //     public class Test { public static int test() { return 42; } }
-    // then compile with javac Test.java and take the binary contents of Test.class
-    byte[] data = new byte[] {
-      (byte)202, (byte)254, (byte)186, (byte)190, (byte)0, (byte)0, (byte)0, (byte)50, (byte)0, (byte)15,
-      (byte)10, (byte)0, (byte)3, (byte)0, (byte)12, (byte)7, (byte)0, (byte)13, (byte)7, (byte)0,
-      (byte)14, (byte)1, (byte)0, (byte)6, (byte)60, (byte)105, (byte)110, (byte)105, (byte)116, (byte)62,
-      (byte)1, (byte)0, (byte)3, (byte)40, (byte)41, (byte)86, (byte)1, (byte)0, (byte)4, (byte)67,
-      (byte)111, (byte)100, (byte)101, (byte)1, (byte)0, (byte)15, (byte)76, (byte)105, (byte)110, (byte)101,
-      (byte)78, (byte)117, (byte)109, (byte)98, (byte)101, (byte)114, (byte)84, (byte)97, (byte)98, (byte)108,
-      (byte)101, (byte)1, (byte)0, (byte)4, (byte)116, (byte)101, (byte)115, (byte)116, (byte)1, (byte)0,
-      (byte)3, (byte)40, (byte)41, (byte)73, (byte)1, (byte)0, (byte)10, (byte)83, (byte)111, (byte)117,
-      (byte)114, (byte)99, (byte)101, (byte)70, (byte)105, (byte)108, (byte)101, (byte)1, (byte)0, (byte)9,
-      (byte)84, (byte)101, (byte)115, (byte)116, (byte)46, (byte)106, (byte)97, (byte)118, (byte)97, (byte)12,
-      (byte)0, (byte)4, (byte)0, (byte)5, (byte)1, (byte)0, (byte)4, (byte)84, (byte)101, (byte)115,
-      (byte)116, (byte)1, (byte)0, (byte)16, (byte)106, (byte)97, (byte)118, (byte)97, (byte)47, (byte)108,
-      (byte)97, (byte)110, (byte)103, (byte)47, (byte)79, (byte)98, (byte)106, (byte)101, (byte)99, (byte)116,
-      (byte)0, (byte)33, (byte)0, (byte)2, (byte)0, (byte)3, (byte)0, (byte)0, (byte)0, (byte)0,
-      (byte)0, (byte)2, (byte)0, (byte)1, (byte)0, (byte)4, (byte)0, (byte)5, (byte)0, (byte)1,
-      (byte)0, (byte)6, (byte)0, (byte)0, (byte)0, (byte)29, (byte)0, (byte)1, (byte)0, (byte)1,
-      (byte)0, (byte)0, (byte)0, (byte)5, (byte)42, (byte)183, (byte)0, (byte)1, (byte)177, (byte)0,
-      (byte)0, (byte)0, (byte)1, (byte)0, (byte)7, (byte)0, (byte)0, (byte)0, (byte)6, (byte)0,
-      (byte)1, (byte)0, (byte)0, (byte)0, (byte)1, (byte)0, (byte)9, (byte)0, (byte)8, (byte)0,
-      (byte)9, (byte)0, (byte)1, (byte)0, (byte)6, (byte)0, (byte)0, (byte)0, (byte)27, (byte)0,
-      (byte)1, (byte)0, (byte)0, (byte)0, (byte)0, (byte)0, (byte)3, (byte)16, (byte)42, (byte)172,
-      (byte)0, (byte)0, (byte)0, (byte)1, (byte)0, (byte)7, (byte)0, (byte)0, (byte)0, (byte)6,
-      (byte)0, (byte)1, (byte)0, (byte)0, (byte)0, (byte)1, (byte)0, (byte)1, (byte)0, (byte)10,
-      (byte)0, (byte)0, (byte)0, (byte)2, (byte)0, (byte)11
-    };
+    byte[] data = TEST_CLASS;
 
     assertTrue(ClassConverter.isValidClassFile(data));
     assertFalse(ClassConverter.isValidClassFile(new byte[100]));
@@ -143,6 +148,100 @@ public class ClassConverterTest extends TestCase {
     }
   }
 
+  public void testCache() throws Exception {
+    File directory = FileUtil.createTempDirectory("converted", null);
+    try {
+      // Classes the current JDK can load are not converted
+      ClassConverterCache cache = new ClassConverterCache(1024 * 1024, 1024 * 1024, directory);
+      assertSame(TEST_CLASS, cache.rewriteClass(TEST_CLASS));
+      assertEquals(0, cache.getMissCount());
+
+      int current = ClassConverter.getCurrentClassVersion();
+      byte[] future = ClassConverter.rewriteClass(TEST_CLASS, Integer.MAX_VALUE, current + 1);
+      byte[] converted = cache.rewriteClass(future);
+      assertEquals(current, ClassConverter.getMajorVersion(converted));
+      assertEquals(1, cache.getMissCount());
+      assertSame(converted, cache.rewriteClass(future.clone()));
+      assertEquals(1, cache.getHitCount());
+      assertEquals(1, cache.size());
+
+      // A new cache (e.g. after a restart) finds the conversion on disk
+      cache = new ClassConverterCache(1024 * 1024, 1024 * 1024, directory);
+      assertTrue(Arrays.equals(converted, cache.rewriteClass(future)));
+      assertEquals(1, cache.getDiskHitCount());
+      assertEquals(0, cache.getMissCount());
+
+      // Entries larger than the cache are not kept in memory
+      cache = new ClassConverterCache(16, 0, null);
+      cache.rewriteClass(future);
+      assertEquals(0, cache.size());
+    }
+    finally {
+      FileUtil.delete(directory);
+    }
+  }
+
+  public void testCacheDiskEviction() throws Exception {
+    File directory = FileUtil.createTempDirectory("converted", null);
+    try {
+      // Classes with distinct versions, which all convert to the same class
+      int current = ClassConverter.getCurrentClassVersion();
+      byte[][] classes = new byte[3][];
+      for (int i = 0; i < classes.length; i++) {
+        classes[i] = ClassConverter.rewriteClass(TEST_CLASS, Integer.MAX_VALUE, current + 1 + i);
+      }
+      int size = new ClassConverterCache(1024 * 1024, 0, null).rewriteClass(classes[0]).length;
+
+      // Room for two classes on disk
+      ClassConverterCache cache = new ClassConverterCache(1024 * 1024, 2 * size + size / 2, directory);
+      cache.rewriteClass(classes[0]);
+      cache.rewriteClass(classes[1]);
+      cache.clear();
+      cache.rewriteClass(classes[0]);
+      assertEquals(1, cache.getDiskHitCount());
+      // The second class is the least recently used one now
+      cache.rewriteClass(classes[2]);
+      assertEquals(2, countClassFiles(directory));
+
+      cache = new ClassConverterCache(1024 * 1024, 2 * size + size / 2, directory);
+      cache.rewriteClass(classes[0]);
+      cache.rewriteClass(classes[2]);
+      assertEquals(2, cache.getDiskHitCount());
+      cache.rewriteClass(classes[1]);
+      assertEquals(1, cache.getMissCount());
+      assertEquals(2, countClassFiles(directory));
+
+      // A lowered budget is applied to the files stored by earlier sessions, and interrupted writes are cleaned up
+      File stale = new File(new File(directory, "ab"), "ab12345.tmp");
+      FileUtil.writeToFile(stale, "partial");
+      assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L));
+      cache = new ClassConverterCache(1024 * 1024, size + size / 2, directory);
+      cache.rewriteClass(classes[1]);
+      assertEquals(1, cache.getDiskHitCount());
+      assertEquals(1, countClassFiles(directory));
+      assertFalse(stale.exists());
+    }
+    finally {
+      FileUtil.delete(directory);
+    }
+  }
+
+  private static int countClassFiles(@NotNull File directory) {
+    int count = 0;
+    File[] folders = directory.listFiles();
+    assertNotNull(folders);
+    for (File folder : folders) {
+      File[] files = folder.listFiles();
+      assertNotNull(files);
+      for (File file : files) {
+        if (file.getName().endsWith(".class")) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
   private static class TestClassLoader extends RenderClassLoader {
     final byte[] myData;
     public TestClassLoader(byte[] data) {
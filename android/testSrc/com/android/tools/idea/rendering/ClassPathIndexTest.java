@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClassPathIndexTest extends TestCase {
+  private File myTempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("classpath", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ClassPathIndex.invalidateAll();
+    FileUtil.delete(myTempDir);
+    super.tearDown();
+  }
+
+  private static byte[] createData(int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte)(i % 7);
+    }
+    return data;
+  }
+
+  public void testJar() throws Exception {
+    byte[] deflated = createData(5000);
+    byte[] stored = createData(300);
+
+    File jar = new File(myTempDir, "classes.jar");
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+      zip.write(new byte[10]);
+      zip.closeEntry();
+
+      zip.putNextEntry(new ZipEntry("com/example/Deflated.class"));
+      zip.write(deflated);
+      zip.closeEntry();
+
+      ZipEntry entry = new ZipEntry("com/example/Stored.class");
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(stored.length);
+      CRC32 crc = new CRC32();
+      crc.update(stored);
+      entry.setCrc(crc.getValue());
+      entry.setExtra(new byte[8]);
+      zip.putNextEntry(entry);
+      zip.write(stored);
+      zip.closeEntry();
+      zip.setComment("Comment");
+    }
+    finally {
+      zip.close();
+    }
+
+    ClassPathIndex index = ClassPathIndex.get(jar);
+    assertTrue(index instanceof ClassPathIndex.JarIndex);
+    assertSame(index, ClassPathIndex.get(jar));
+    assertTrue(index.contains("com/example/Deflated.class"));
+    assertTrue(index.contains("com/example/Stored.class"));
+    assertFalse(index.contains("META-INF/MANIFEST.MF"));
+    assertFalse(index.contains("com/example/Missing.class"));
+    assertTrue(Arrays.equals(deflated, index.read("com/example/Deflated.class")));
+    assertTrue(Arrays.equals(stored, index.read("com/example/Stored.class")));
+    assertNull(index.read("com/example/Missing.class"));
+    assertEquals("com/example/Stored.class", index.findClass("com.example.Stored"));
+
+    ClassPathIndex.invalidate(jar.getPath());
+    assertFalse(index.isValid());
+    assertNotSame(index, ClassPathIndex.get(jar));
+
+    assertNull(ClassPathIndex.get(new File(myTempDir, "missing.jar")));
+  }
+
+  /** Writes a jar with the given entries, after the given prefix, like a self-extracting archive */
+  private File createJar(String name, byte[] prefix, String entryName, byte[] data) throws IOException {
+    File jar = new File(myTempDir, name);
+    OutputStream out = new FileOutputStream(jar);
+    try {
+      out.write(prefix);
+      ZipOutputStream zip = new ZipOutputStream(out);
+      zip.putNextEntry(new ZipEntry(entryName));
+      zip.write(data);
+      zip.closeEntry();
+      zip.finish();
+    }
+    finally {
+      out.close();
+    }
+    return jar;
+  }
+
+  public void testClassPathOrder() throws Exception {
+    String name = Sample.class.getName();
+    String path = name.replace('.', '/') + ".class";
+    InputStream stream = Sample.class.getClassLoader().getResourceAsStream(path);
+    byte[] sample = ByteStreams.toByteArray(stream);
+    stream.close();
+
+    // The offsets in the central directory of a jar with a prefix don't match the file, so it isn't indexed
+    File unindexed = createJar("unindexed.jar", "#!/bin/sh\n".getBytes("UTF-8"), path, sample);
+    assertNull(ClassPathIndex.get(unindexed));
+    // The same class, but broken, in an indexed jar later in the class path
+    File indexed = createJar("indexed.jar", new byte[0], path, createData(100));
+    assertNotNull(ClassPathIndex.get(indexed));
+
+    final URL[] jars = {unindexed.toURI().toURL(), indexed.toURI().toURL()};
+    RenderClassLoader loader = new RenderClassLoader(null) {
+      @Override
+      protected URL[] getExternalJars() {
+        return jars;
+      }
+    };
+    Class<?> loaded = loader.loadClass(name);
+    assertSame(loader, loaded.getClassLoader());
+    assertEquals(name, loaded.getName());
+  }
+
+  private static class Sample {
+  }
+
+  public void testDirectory() throws Exception {
+    File classes = new File(myTempDir, "classes");
+    File file = new File(classes, "com/example/Outer$Inner.class".replace('/', File.separatorChar));
+    FileUtil.createParentDirs(file);
+    byte[] data = createData(100);
+    Files.write(data, file);
+
+    ClassPathIndex index = ClassPathIndex.get(classes);
+    assertTrue(index instanceof ClassPathIndex.DirectoryIndex);
+    assertEquals("com/example/Outer$Inner.class", index.findClass("com.example.Outer$Inner"));
+    assertEquals("com/example/Outer$Inner.class", index.findClass("com.example.Outer.Inner"));
+    assertNull(index.findClass("com.example.Outer"));
+    assertEquals(file, ((ClassPathIndex.DirectoryIndex)index).getFile("com/example/Outer$Inner.class"));
+    assertTrue(Arrays.equals(data, index.read("com/example/Outer$Inner.class")));
+    assertTrue(index.isUpToDate());
+
+    // Adding a class in a new package changes the timestamp of the parent folder
+    File added = new File(classes, "com/example/sub/Added.class".replace('/', File.separatorChar));
+    FileUtil.createParentDirs(added);
+    Files.write(data, added);
+    //noinspection ResultOfMethodCallIgnored
+    added.getParentFile().getParentFile().setLastModified(System.currentTimeMillis() + 5000);
+    assertFalse(index.isUpToDate());
+    ClassPathIndex updated = ClassPathIndex.get(classes);
+    assertNotNull(updated);
+    assertNotSame(index, updated);
+    assertFalse(index.isValid());
+    assertEquals("com/example/sub/Added.class", updated.findClass("com.example.sub.Added"));
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.res2.ResourceFile;
+import com.android.ide.common.res2.ResourceItem;
+import com.android.resources.ResourceType;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class MultiResourceRepositoryTest extends TestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    MultiResourceRepository.ourIncrementalMerge = true;
+    super.tearDown();
+  }
+
+  public void testMergePriority() {
+    TestRepository base = new TestRepository("base");
+    TestRepository flavor = new TestRepository("flavor");
+    base.add(ResourceType.STRING, "app_name", "");
+    base.add(ResourceType.STRING, "app_name", "no");
+    base.add(ResourceType.STRING, "title", "");
+    flavor.add(ResourceType.STRING, "app_name", "");
+    flavor.add(ResourceType.ID, "button", "");
+    base.add(ResourceType.ID, "button", "");
+    MultiResourceRepository repository = createRepository(base, flavor);
+
+    // Later children mask items with the same qualifiers in earlier children
+    List<ResourceItem> items = repository.getResourceItem(ResourceType.STRING, "app_name");
+    assertNotNull(items);
+    assertEquals(2, items.size());
+    assertSame(flavor.get(ResourceType.STRING, "app_name", 0), items.get(0));
+    assertSame(base.get(ResourceType.STRING, "app_name", 1), items.get(1));
+
+    // ..except for ids
+    items = repository.getResourceItem(ResourceType.ID, "button");
+    assertNotNull(items);
+    assertEquals(2, items.size());
+
+    // Incremental update
+    flavor.add(ResourceType.STRING, "title", "");
+    flavor.add(ResourceType.STRING, "unique", "");
+    flavor.changed(ResourceType.STRING);
+    items = repository.getResourceItem(ResourceType.STRING, "title");
+    assertNotNull(items);
+    assertEquals(1, items.size());
+    assertSame(flavor.get(ResourceType.STRING, "title", 0), items.get(0));
+    assertTrue(repository.hasResourceItem(ResourceType.STRING, "unique"));
+    assertEquals(2, repository.getResourceItem(ResourceType.STRING, "app_name").size());
+
+    flavor.remove(ResourceType.STRING, "title");
+    flavor.changed(ResourceType.STRING);
+    items = repository.getResourceItem(ResourceType.STRING, "title");
+    assertNotNull(items);
+    assertSame(base.get(ResourceType.STRING, "title", 0), items.get(0));
+  }
+
+  public void testIncrementalMatchesFullMerge() {
+    Random random = new Random(42);
+    TestRepository[] children = new TestRepository[4];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = new TestRepository("child" + i);
+      for (int j = 0; j < 500; j++) {
+        children[i].add(ResourceType.STRING, "string" + random.nextInt(600), random.nextBoolean() ? "" : "no");
+      }
+    }
+    MultiResourceRepository repository = createRepository(children);
+    repository.getItems();
+
+    for (int round = 0; round < 100; round++) {
+      TestRepository child = children[random.nextInt(children.length)];
+      for (int j = random.nextInt(5); j >= 0; j--) {
+        String name = "string" + random.nextInt(600);
+        if (random.nextBoolean()) {
+          child.add(ResourceType.STRING, name, random.nextBoolean() ? "" : "no");
+        } else {
+          child.remove(ResourceType.STRING, name);
+        }
+      }
+      child.changed(ResourceType.STRING);
+
+      ListMultimap<String, ResourceItem> incremental = repository.getMap(ResourceType.STRING, false);
+      MultiResourceRepository.ourIncrementalMerge = false;
+      MultiResourceRepository fresh = createRepository(children);
+      ListMultimap<String, ResourceItem> full = fresh.getMap(ResourceType.STRING, false);
+      MultiResourceRepository.ourIncrementalMerge = true;
+      assertNotNull(incremental);
+      assertNotNull(full);
+      assertEquals(full.keySet(), incremental.keySet());
+      for (String key : full.keySet()) {
+        assertEquals(key, full.get(key), incremental.get(key));
+      }
+      fresh.dispose();
+    }
+  }
+
+  public void testInvalidateDuringMerge() {
+    TestRepository base = new TestRepository("base");
+    base.add(ResourceType.ANIM, "fade", "");
+    final TestRepository flavor = new TestRepository("flavor") {
+      private int myCalls;
+
+      @NonNull
+      @Override
+      protected Map<ResourceType, ListMultimap<String, ResourceItem>> getMap() {
+        // The types are merged in order: by the second call the anim items have been merged already
+        if (++myCalls == 2) {
+          add(ResourceType.ANIM, "late", "");
+          changed(ResourceType.ANIM);
+        }
+        return super.getMap();
+      }
+    };
+    MultiResourceRepository repository = createRepository(base, flavor);
+
+    // The map merged while the flavor changed misses the new item, and must not be kept
+    assertFalse(repository.getItems().get(ResourceType.ANIM).containsKey("late"));
+    ListMultimap<String, ResourceItem> anims = repository.getItems().get(ResourceType.ANIM);
+    assertTrue(anims.containsKey("fade"));
+    assertTrue(anims.containsKey("late"));
+  }
+
+  /** Runs many lookups, and many "edit a string, then look it up" cycles with and without incremental merging */
+  public void testManyEdits() {
+    TestRepository[] children = new TestRepository[8];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = new TestRepository("child" + i);
+      for (int j = 0; j < 5000; j++) {
+        children[i].add(ResourceType.STRING, "string" + (i * 2500 + j), "");
+      }
+    }
+    MultiResourceRepository repository = createRepository(children);
+
+    for (int i = 0; i < 200000; i++) {
+      assertNotNull(repository.getResourceItem(ResourceType.STRING, "string" + (i % 20000)));
+    }
+
+    for (int mode = 0; mode < 2; mode++) {
+      MultiResourceRepository.ourIncrementalMerge = mode == 0;
+      for (int i = 0; i < 200; i++) {
+        TestRepository child = children[i % children.length];
+        String name = "edited" + mode + "_" + i;
+        child.add(ResourceType.STRING, name, "");
+        child.changed(ResourceType.STRING);
+        assertNotNull(repository.getResourceItem(ResourceType.STRING, name));
+      }
+    }
+    // The children overlap, so there are 7 * 2500 + 5000 distinct original strings
+    assertEquals(22500 + 2 * 200, repository.getItemsOfType(ResourceType.STRING).size());
+  }
+
+  private static MultiResourceRepository createRepository(TestRepository... children) {
+    return new MultiResourceRepository("test", Arrays.asList(children)) {
+    };
+  }
+
+  private static class TestRepository extends LocalResourceRepository {
+    private final Map<ResourceType, ListMultimap<String, ResourceItem>> myItems = Maps.newEnumMap(ResourceType.class);
+
+    TestRepository(String name) {
+      super(name);
+    }
+
+    void add(ResourceType type, String name, String qualifiers) {
+      ResourceItem item = new ResourceItem(name, type, null);
+      new ResourceFile(new File(qualifiers.isEmpty() ? "values" : "values-" + qualifiers, "values.xml"), item, qualifiers);
+      //noinspection ConstantConditions
+      getMap(type, true).put(name, item);
+    }
+
+    void remove(ResourceType type, String name) {
+      ListMultimap<String, ResourceItem> map = myItems.get(type);
+      if (map != null) {
+        map.removeAll(name);
+      }
+    }
+
+    ResourceItem get(ResourceType type, String name, int index) {
+      return myItems.get(type).get(name).get(index);
+    }
+
+    void changed(ResourceType type) {
+      myGeneration++;
+      invalidateItemCaches(type);
+    }
+
+    @NonNull
+    @Override
+    protected Map<ResourceType, ListMultimap<String, ResourceItem>> getMap() {
+      return myItems;
+    }
+
+    @Nullable
+    @Override
+    protected ListMultimap<String, ResourceItem> getMap(ResourceType type, boolean create) {
+      ListMultimap<String, ResourceItem> map = myItems.get(type);
+      if (map == null && create) {
+        map = ArrayListMultimap.create();
+        myItems.put(type, map);
+      }
+      return map;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.tools.idea.configurations.Configuration;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import org.jetbrains.android.facet.AndroidFacet;
+import org.jetbrains.android.uipreview.ModuleClassLoader;
+
+import java.awt.image.BufferedImage;
+
+public class RenderResultCacheTest extends RenderTestBase {
+  private RenderResultCache getCache() {
+    AndroidFacet facet = AndroidFacet.getInstance(myModule);
+    assertNotNull(facet);
+    return RenderService.get(facet).getResultCache();
+  }
+
+  public void testCachedRender() throws Exception {
+    VirtualFile file = myFixture.copyFileToProject("resourceRepository/layout.xml", "res/layout/layout1.xml");
+    RenderResultCache cache = getCache();
+    cache.clear();
+
+    RenderResult first = renderOnSeparateThread(createRenderTask(file).setUseResultCache(true));
+    assertNotNull(first);
+    assertNotNull(first.getImage());
+    assertEquals(1, cache.size());
+
+    int hits = cache.getHitCount();
+    RenderResult second = renderOnSeparateThread(createRenderTask(file).setUseResultCache(true));
+    assertSame(first, second);
+    assertEquals(hits + 1, cache.getHitCount());
+
+    // Tasks which don't opt in always render
+    RenderResult uncached = renderOnSeparateThread(createRenderTask(file));
+    assertNotNull(uncached);
+    assertNotSame(first, uncached);
+
+    // A different configuration is a different entry
+    Configuration configuration = getConfiguration(file, DEFAULT_DEVICE_ID, "@android:style/Theme.Holo.Light");
+    RenderResult light = renderOnSeparateThread(createRenderTask(file, configuration).setUseResultCache(true));
+    assertNotNull(light);
+    assertNotSame(first, light);
+    assertEquals(2, cache.size());
+
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+  public void testEdit() throws Exception {
+    VirtualFile file = myFixture.copyFileToProject("resourceRepository/layout.xml", "res/layout/layout1.xml");
+    RenderResult first = renderOnSeparateThread(createRenderTask(file).setUseResultCache(true));
+    assertNotNull(first);
+
+    myFixture.openFileInEditor(file);
+    myFixture.type(' ');
+    PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+    RenderResult second = renderOnSeparateThread(createRenderTask(file).setUseResultCache(true));
+    assertNotNull(second);
+    assertNotSame(first, second);
+  }
+
+  public void testDisposedTask() throws Exception {
+    VirtualFile file = myFixture.copyFileToProject("resourceRepository/layout.xml", "res/layout/layout1.xml");
+    RenderResultCache cache = getCache();
+    cache.clear();
+    RenderTask task = createRenderTask(file).setUseResultCache(true);
+    RenderResult first = renderOnSeparateThread(task);
+    assertNotNull(first);
+    assertEquals(1, cache.size());
+
+    // The result references its task, so it can't be handed out once the task is gone
+    task.dispose();
+    assertEquals(0, cache.size());
+    cache.put("key", first);
+    assertEquals(0, cache.size());
+    RenderResult second = renderOnSeparateThread(createRenderTask(file).setUseResultCache(true));
+    assertNotNull(second);
+    assertNotSame(first, second);
+  }
+
+  public void testClassLoaderFlush() throws Exception {
+    VirtualFile file = myFixture.copyFileToProject("resourceRepository/layout.xml", "res/layout/layout1.xml");
+    RenderResult first = renderOnSeparateThread(createRenderTask(file).setUseResultCache(true));
+    assertNotNull(first);
+
+    // Custom views may have been recompiled
+    ModuleClassLoader.clearCache();
+    RenderResult second = renderOnSeparateThread(createRenderTask(file).setUseResultCache(true));
+    assertNotNull(second);
+    assertNotSame(first, second);
+  }
+
+  public void testWeight() throws Exception {
+    VirtualFile file = myFixture.copyFileToProject("resourceRepository/layout.xml", "res/layout/layout1.xml");
+    RenderResult result = renderOnSeparateThread(createRenderTask(file));
+    assertNotNull(result);
+    assertNotNull(result.getSession());
+    assertNotNull(result.getImage());
+    BufferedImage image = result.getImage().getOriginalImage();
+    assertNotNull(image);
+    long imageSize = 4L * image.getWidth() * image.getHeight();
+
+    // The session holds on to the inflated views, on top of the image
+    long weight = RenderResultCache.getWeight(result);
+    assertTrue(weight > imageSize + 256 * 1024);
+
+    // Room for the image, but not for the session
+    RenderResultCache cache = new RenderResultCache(imageSize + 64 * 1024);
+    cache.put("key", result);
+    assertNull(cache.get("key"));
+    assertEquals(0, cache.size());
+
+    cache = new RenderResultCache(weight);
+    cache.put("key", result);
+    assertSame(result, cache.get("key"));
+  }
+}
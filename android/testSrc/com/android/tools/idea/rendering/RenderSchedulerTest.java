@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.sdklib.devices.Device;
+import com.android.tools.idea.configurations.Configuration;
+import com.android.tools.idea.configurations.ConfigurationManager;
+import com.google.common.collect.Lists;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.facet.AndroidFacet;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RenderSchedulerTest extends RenderTestBase {
+  public void testExclusiveResources() throws Exception {
+    final Object shared = new Object();
+    final AtomicInteger inside = new AtomicInteger();
+    final AtomicInteger maxInside = new AtomicInteger();
+    int threads = 4;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 20; j++) {
+            RenderScheduler.Ticket ticket = RenderScheduler.acquire(false, shared);
+            try {
+              maxInside.set(Math.max(maxInside.get(), inside.incrementAndGet()));
+              Thread.yield();
+              inside.decrementAndGet();
+            }
+            finally {
+              ticket.release();
+            }
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(1, maxInside.get());
+
+    // Nested acquisition on the same thread must not deadlock
+    RenderScheduler.Ticket outer = RenderScheduler.acquire(true, shared);
+    RenderScheduler.Ticket inner = RenderScheduler.acquire(true, shared);
+    inner.release();
+    outer.release();
+  }
+
+  public void testSharedSecurityManager() throws Exception {
+    final SecurityManager original = System.getSecurityManager();
+    final Object credential = new Object();
+    RenderSecurityManagers.activate(myModule, null, credential);
+    final SecurityManager active = System.getSecurityManager();
+    assertNotSame(original, active);
+
+    // A concurrent render shares the active manager, and releasing it doesn't tear it down under the first render
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        RenderSecurityManagers.activate(myModule, null, new Object());
+        RenderSecurityManagers.release();
+      }
+    };
+    other.start();
+    other.join(TimeUnit.SECONDS.toMillis(30));
+    assertFalse(other.isAlive());
+    assertSame(active, System.getSecurityManager());
+
+    RenderSecurityManagers.release();
+    assertSame(original, System.getSecurityManager());
+  }
+
+  /**
+   * Renders a layout for every Nexus device, like the "all screen sizes" preview mode does, first one at a time
+   * and then through the render threads. Run with -Dandroid.render.layoutlib.instances=N to render with N
+   * layout library instances.
+   */
+  public void testAllScreens() throws Exception {
+    final VirtualFile file = myFixture.copyFileToProject("resourceRepository/layout.xml", "res/layout/layout1.xml");
+    AndroidFacet facet = AndroidFacet.getInstance(myModule);
+    assertNotNull(facet);
+    ConfigurationManager manager = facet.getConfigurationManager();
+    final List<Configuration> configurations = Lists.newArrayList();
+    for (Device device : manager.getDevices()) {
+      if (device.getId().startsWith("Nexus")) {
+        configurations.add(getConfiguration(file, device.getId()).clone());
+      }
+    }
+    assertFalse(configurations.isEmpty());
+
+    // Warm up class loading, fonts etc
+    assertNotNull(renderOnSeparateThread(createRenderTask(file, configurations.get(0))));
+
+    for (Configuration configuration : configurations) {
+      RenderResult result = renderOnSeparateThread(createRenderTask(file, configuration).setForeground(false));
+      assertNotNull(result);
+      assertNotNull(result.getImage());
+    }
+
+    RenderScheduler.ourPeakConcurrency = 0;
+    final AtomicInteger rendered = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch done = new CountDownLatch(configurations.size());
+    for (final Configuration configuration : configurations) {
+      RenderScheduler.getExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            RenderResult result = createRenderTask(file, configuration).setForeground(false).render();
+            if (result != null && result.getImage() != null) {
+              rendered.incrementAndGet();
+            }
+          }
+          catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+          finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.MINUTES));
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(configurations.size(), rendered.get());
+    assertTrue(RenderScheduler.ourPeakConcurrency <= RenderScheduler.MAX_CONCURRENT_RENDERS);
+  }
+}
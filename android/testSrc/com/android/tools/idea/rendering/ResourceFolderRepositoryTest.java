@@ -158,6 +158,41 @@ public class ResourceFolderRepositoryTest extends AndroidTestCase {
     assertNotNull(resources.getResourceItem(ResourceType.LAYOUT, "layout2"));
   }
 
+  public void testConcurrentScan() throws Exception {
+    myFixture.copyFileToProject(LAYOUT1, "res/layout/layout1.xml");
+    myFixture.copyFileToProject(LAYOUT2, "res/layout-land/layout1.xml");
+    myFixture.copyFileToProject(VALUES1, "res/values/myvalues.xml");
+    myFixture.copyFileToProject(STRINGS, "res/values-no/strings.xml");
+    myFixture.copyFileToProject(DRAWABLE, "res/drawable/logo.png");
+    VirtualFile dir = myFacet.getAllResourceDirectories().get(0);
+
+    ResourceFolderRepository sequential;
+    try {
+      ResourceScanner.ourConcurrent = false;
+      sequential = ResourceFolderRepository.create(myFacet, dir);
+    }
+    finally {
+      ResourceScanner.ourConcurrent = true;
+    }
+    ResourceFolderRepository concurrent = ResourceFolderRepository.create(myFacet, dir);
+
+    for (ResourceType type : ResourceType.values()) {
+      for (String name : sequential.getItemsOfType(type)) {
+        List<ResourceItem> expected = sequential.getResourceItem(type, name);
+        List<ResourceItem> actual = concurrent.getResourceItem(type, name);
+        assertNotNull(expected);
+        assertNotNull(actual);
+        assertEquals(type + " " + name, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.get(i).getQualifiers(), actual.get(i).getQualifiers());
+        }
+      }
+      assertEquals(sequential.getItemsOfType(type), concurrent.getItemsOfType(type));
+    }
+    assertTrue(concurrent.hasResourceItem(ResourceType.DRAWABLE, "logo"));
+    assertTrue(concurrent.hasResourceItem(ResourceType.ID, "noteArea"));
+  }
+
   public void testAddFile() throws Exception {
     myFixture.copyFileToProject(LAYOUT1, "res/layout/layout1.xml");
     myFixture.copyFileToProject(LAYOUT1, "res/layout/layout2.xml");
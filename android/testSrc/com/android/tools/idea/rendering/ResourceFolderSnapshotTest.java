@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering;
+
+import com.android.ide.common.res2.ResourceItem;
+import com.android.resources.ResourceType;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.android.AndroidTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.android.tools.idea.rendering.ResourceFolderRepository.ourSnapshotHits;
+
+public class ResourceFolderSnapshotTest extends AndroidTestCase {
+  private static final String LAYOUT1 = "resourceRepository/layout.xml";
+  private static final String VALUES1 = "resourceRepository/values.xml";
+
+  /** Size of the generated fixture used by {@link #testSnapshotLoadPerformance}: layouts times ids per layout */
+  private static final int LAYOUT_COUNT = 200;
+  private static final int IDS_PER_LAYOUT = 100;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    ResourceFolderRegistry.reset();
+    ResourceFolderRepository.ourSnapshotsEnabled = true;
+    ourSnapshotHits = 0;
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    try {
+      FileUtil.delete(ResourceFolderSnapshot.getSnapshotFile(getResourceDir()));
+      ResourceFolderRepository.ourSnapshotsEnabled = false;
+      ResourceFolderRegistry.reset();
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  private VirtualFile getResourceDir() {
+    List<VirtualFile> resourceDirectories = myFacet.getAllResourceDirectories();
+    assertSize(1, resourceDirectories);
+    return resourceDirectories.get(0);
+  }
+
+  public void testReadWrite() throws Exception {
+    VirtualFile layout = myFixture.copyFileToProject(LAYOUT1, "res/layout/layout1.xml");
+    ResourceFolderRepository resources = ResourceFolderRepository.create(myFacet, getResourceDir());
+    List<ResourceItem> items = resources.getResourceItem(ResourceType.LAYOUT, "layout1");
+    assertNotNull(items);
+
+    ResourceFolderSnapshot snapshot = new ResourceFolderSnapshot(getResourceDir().getPath());
+    snapshot.add(layout, items);
+    File file = FileUtil.createTempFile("resources", ".snapshot");
+    snapshot.write(file);
+
+    assertNull(ResourceFolderSnapshot.read(file, "/some/other/res"));
+    ResourceFolderSnapshot read = ResourceFolderSnapshot.read(file, getResourceDir().getPath());
+    assertNotNull(read);
+    assertEquals(1, read.size());
+    ResourceFolderSnapshot.Entry entry = read.get(layout);
+    assertNotNull(entry);
+    assertEquals(1, entry.names.length);
+    assertEquals("layout1", entry.names[0]);
+    assertEquals(ResourceType.LAYOUT, entry.types[0]);
+    FileUtil.delete(file);
+  }
+
+  public void testConcurrentWrites() throws Exception {
+    VirtualFile layout = myFixture.copyFileToProject(LAYOUT1, "res/layout/layout1.xml");
+    ResourceFolderRepository resources = ResourceFolderRepository.create(myFacet, getResourceDir());
+    List<ResourceItem> items = resources.getResourceItem(ResourceType.LAYOUT, "layout1");
+    assertNotNull(items);
+    final ResourceFolderSnapshot snapshot = new ResourceFolderSnapshot(getResourceDir().getPath());
+    snapshot.add(layout, items);
+    File dir = FileUtil.createTempDirectory("resources", "snapshots");
+    final File file = new File(dir, "resources.snapshot");
+
+    // Each writer uses its own temporary file, so the snapshot is always complete
+    Thread[] writers = new Thread[4];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 20; j++) {
+            snapshot.write(file);
+          }
+        }
+      };
+      writers[i].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    ResourceFolderSnapshot read = ResourceFolderSnapshot.read(file, getResourceDir().getPath());
+    assertNotNull(read);
+    assertEquals(1, read.size());
+    String[] files = dir.list();
+    assertNotNull(files);
+    assertEquals(Arrays.asList(files).toString(), 1, files.length);
+    FileUtil.delete(dir);
+  }
+
+  public void testRestoreFromSnapshot() throws Exception {
+    myFixture.copyFileToProject(LAYOUT1, "res/layout/layout1.xml");
+    myFixture.copyFileToProject(LAYOUT1, "res/layout-land/layout1.xml");
+    myFixture.copyFileToProject(VALUES1, "res/values/myvalues.xml");
+
+    ResourceFolderRepository scanned = ResourceFolderRepository.create(myFacet, getResourceDir());
+    assertEquals(0, ourSnapshotHits);
+    assertTrue(ResourceFolderSnapshot.getSnapshotFile(getResourceDir()).isFile());
+
+    ResourceFolderRepository restored = ResourceFolderRepository.create(myFacet, getResourceDir());
+    assertEquals(2, ourSnapshotHits); // Value files are always scanned
+    for (ResourceType type : ResourceType.values()) {
+      assertEquals(type.getName(), scanned.getItemsOfType(type), restored.getItemsOfType(type));
+    }
+    List<ResourceItem> layouts = restored.getResourceItem(ResourceType.LAYOUT, "layout1");
+    assertNotNull(layouts);
+    assertEquals(2, layouts.size());
+    assertTrue(restored.hasResourceItem(ResourceType.ID, "noteArea"));
+    assertNotNull(restored.getResourceItem(ResourceType.STRING, "title_template_step"));
+  }
+
+  public void testStaleSnapshotEntry() throws Exception {
+    myFixture.copyFileToProject(LAYOUT1, "res/layout/layout1.xml");
+    ResourceFolderRepository.create(myFacet, getResourceDir());
+
+    // Rewrite the file with different contents; the snapshot entry no longer applies
+    myFixture.copyFileToProject("resourceRepository/layout2.xml", "res/layout/layout1.xml");
+    ResourceFolderRepository resources = ResourceFolderRepository.create(myFacet, getResourceDir());
+    assertEquals(0, ourSnapshotHits);
+    assertFalse(resources.hasResourceItem(ResourceType.ID, "text"));
+  }
+
+  /** Restores a generated folder with {@code LAYOUT_COUNT * IDS_PER_LAYOUT} ids from its snapshot */
+  public void testLargeSnapshot() throws Exception {
+    for (int i = 0; i < LAYOUT_COUNT; i++) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\"\n" +
+                "    android:layout_width=\"match_parent\" android:layout_height=\"match_parent\">\n");
+      for (int j = 0; j < IDS_PER_LAYOUT; j++) {
+        sb.append("  <TextView android:id=\"@+id/text_").append(i).append('_').append(j).append("\"\n")
+          .append("      android:layout_width=\"wrap_content\" android:layout_height=\"wrap_content\"/>\n");
+      }
+      sb.append("</LinearLayout>\n");
+      myFixture.addFileToProject("res/layout/generated_" + i + ".xml", sb.toString());
+    }
+
+    FileUtil.delete(ResourceFolderSnapshot.getSnapshotFile(getResourceDir()));
+    ResourceFolderRepository scanned = ResourceFolderRepository.create(myFacet, getResourceDir());
+    assertEquals(0, ourSnapshotHits);
+
+    ResourceFolderRepository restored = ResourceFolderRepository.create(myFacet, getResourceDir());
+    assertEquals(LAYOUT_COUNT, ourSnapshotHits);
+
+    assertEquals(LAYOUT_COUNT * IDS_PER_LAYOUT, scanned.getItemsOfType(ResourceType.ID).size());
+    assertEquals(scanned.getItemsOfType(ResourceType.ID), restored.getItemsOfType(ResourceType.ID));
+  }
+}
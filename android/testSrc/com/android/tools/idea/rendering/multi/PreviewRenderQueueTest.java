@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.idea.rendering.multi;
+
+import com.google.common.collect.Lists;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.testFramework.LightIdeaTestCase;
+import org.jetbrains.annotations.NotNull;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import static com.android.tools.idea.rendering.multi.PreviewRenderQueue.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class PreviewRenderQueueTest extends LightIdeaTestCase {
+  private RenderPreviewManager myManager;
+  private PreviewRenderQueue myQueue;
+  /** Renders which were started, but not run yet */
+  private final BlockingDeque<Runnable> myStarted = new LinkedBlockingDeque<Runnable>();
+  /** Previews in the order they were rendered */
+  private final List<RenderPreview> myRendered = Lists.newArrayList();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myManager = mock(RenderPreviewManager.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        myRendered.add((RenderPreview)invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(myManager).renderPreview(any(RenderPreview.class));
+    myQueue = new PreviewRenderQueue(myManager, new Executor() {
+      @Override
+      public void execute(@NotNull Runnable command) {
+        myStarted.add(command);
+      }
+    }, 1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      Disposer.dispose(myQueue);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  private RenderPreview createPreview(int priority) {
+    RenderPreview preview = mock(RenderPreview.class);
+    when(preview.isVisible()).thenReturn(true);
+    when(myManager.getRenderPriority(preview)).thenReturn(priority);
+    return preview;
+  }
+
+  /** Runs the renders started so far, and the ones they start in turn */
+  private void runStarted() {
+    while (!myStarted.isEmpty()) {
+      myStarted.removeFirst().run();
+    }
+  }
+
+  public void testCoalescing() throws Exception {
+    RenderPreview first = createPreview(PRIORITY_VISIBLE);
+    RenderPreview second = createPreview(PRIORITY_VISIBLE);
+
+    myQueue.schedule(first, 0);
+    assertEquals(1, myStarted.size());
+    for (int i = 0; i < 3; i++) {
+      myQueue.schedule(second, 0);
+    }
+    // Scheduled again while being rendered, so it is rendered again afterwards
+    myQueue.schedule(first, 0);
+    assertEquals(1, myStarted.size());
+    assertEquals(2, myQueue.getPendingCount());
+    assertEquals(2, myQueue.getDroppedCount());
+
+    runStarted();
+    assertEquals(Arrays.asList(first, second, first), myRendered);
+    assertEquals(5, myQueue.getQueuedCount());
+    assertEquals(3, myQueue.getCompletedCount());
+    assertEquals(0, myQueue.getPendingCount());
+  }
+
+  public void testPriority() throws Exception {
+    RenderPreview busy = createPreview(PRIORITY_VISIBLE);
+    RenderPreview offscreen = createPreview(PRIORITY_OFFSCREEN);
+    RenderPreview visible = createPreview(PRIORITY_VISIBLE);
+    RenderPreview zoomed = createPreview(PRIORITY_ZOOMED);
+    RenderPreview later = createPreview(PRIORITY_VISIBLE);
+
+    myQueue.schedule(busy, 0);
+    myQueue.schedule(offscreen, 0);
+    myQueue.schedule(visible, 0);
+    myQueue.schedule(later, 0);
+    myQueue.schedule(zoomed, 0);
+
+    // Priorities are evaluated when a render slot frees up: scrolling brings the offscreen preview into view,
+    // ahead of the visible one scheduled later
+    when(myManager.getRenderPriority(offscreen)).thenReturn(PRIORITY_VISIBLE);
+    runStarted();
+    assertEquals(Arrays.asList(busy, zoomed, offscreen, visible, later), myRendered);
+  }
+
+  public void testCancel() throws Exception {
+    RenderPreview busy = createPreview(PRIORITY_VISIBLE);
+    RenderPreview canceled = createPreview(PRIORITY_VISIBLE);
+    RenderPreview hidden = createPreview(PRIORITY_VISIBLE);
+    when(hidden.isVisible()).thenReturn(false);
+
+    myQueue.schedule(busy, 0);
+    myQueue.schedule(canceled, 0);
+    myQueue.schedule(hidden, 0);
+    myQueue.cancel(canceled);
+    runStarted();
+    // The hidden preview is dropped when its turn comes
+    assertEquals(Arrays.asList(busy), myRendered);
+    assertEquals(2, myQueue.getDroppedCount());
+    assertEquals(1, myQueue.getCompletedCount());
+
+    myQueue.schedule(busy, 0);
+    myQueue.schedule(canceled, 0);
+    myQueue.cancelAll();
+    runStarted();
+    assertEquals(Arrays.asList(busy, busy), myRendered);
+    assertEquals(0, myQueue.getPendingCount());
+  }
+
+  public void testDelay() throws Exception {
+    RenderPreview preview = createPreview(PRIORITY_VISIBLE);
+    myQueue.schedule(preview, 50);
+    assertTrue(myStarted.isEmpty());
+    assertEquals(1, myQueue.getPendingCount());
+
+    // Started by the alarm once due
+    Runnable render = myStarted.poll(10, TimeUnit.SECONDS);
+    assertNotNull(render);
+    assertEquals(0, myQueue.getPendingCount());
+    render.run();
+    assertEquals(Arrays.asList(preview), myRendered);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.android.logcat;
+
+import com.android.ddmlib.Log;
+import com.google.common.base.Charsets;
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class AndroidLogcatBinaryReceiverTest extends TestCase {
+  public void testDecode() {
+    LogcatBuffer buffer = new LogcatBuffer(10);
+    StringWriter writer = new StringWriter();
+    AndroidLogcatBinaryReceiver receiver = new AndroidLogcatBinaryReceiver(null, new AndroidLogcatReceiver(null, writer, buffer));
+
+    byte[] first = createEntry(0, 17945, 495, Log.LogLevel.WARN, "GAV2", "Connection to service failed 1");
+    byte[] second = createEntry(24, 100, 101, Log.LogLevel.ERROR, "tag", "first line\nsecond line");
+    byte[] data = new byte[first.length + second.length];
+    System.arraycopy(first, 0, data, 0, first.length);
+    System.arraycopy(second, 0, data, first.length, second.length);
+
+    // Entries split across calls are decoded once they are complete
+    receiver.addOutput(data, 0, 10);
+    assertEquals("", writer.toString());
+    receiver.addOutput(data, 10, first.length + 5);
+    receiver.addOutput(data, first.length + 15, data.length - first.length - 15);
+    assertFalse(receiver.isCorrupted());
+
+    String[] lines = writer.toString().split("\n");
+    String separator = AndroidLogcatFormatter.TAG_SEPARATOR;
+    assertEquals(3, lines.length);
+    assertTrue(lines[0], lines[0].endsWith("17945-495/? W/GAV2" + separator + " Connection to service failed 1"));
+    assertTrue(lines[1], lines[1].endsWith("100-101/? E/tag" + separator + " first line"));
+    // Like in the text output, the following lines of a message are continuation lines
+    assertEquals(AndroidLogcatReceiver.CONTINUATION_LINE_PREFIX + "second line", lines[2]);
+
+    LogcatBuffer.Entry entry = buffer.find(lines[1]);
+    assertNotNull(entry);
+    assertEquals(100, entry.getPid());
+    assertEquals(Log.LogLevel.ERROR, entry.getLogLevel());
+    assertEquals("first line", lines[1].substring(entry.getMessageOffset()));
+  }
+
+  public void testCorrupted() {
+    StringWriter writer = new StringWriter();
+    AndroidLogcatBinaryReceiver receiver = new AndroidLogcatBinaryReceiver(null, new AndroidLogcatReceiver(null, writer, null));
+    byte[] data = "--------- beginning of main\n".getBytes(Charsets.UTF_8);
+    receiver.addOutput(data, 0, data.length);
+    assertTrue(receiver.isCorrupted());
+    assertTrue(receiver.isCancelled());
+    assertEquals("", writer.toString());
+  }
+
+  public void testResetSkipsReceivedEntries() {
+    StringWriter writer = new StringWriter();
+    AndroidLogcatBinaryReceiver receiver = new AndroidLogcatBinaryReceiver(null, new AndroidLogcatReceiver(null, writer, null));
+    assertFalse(receiver.hasReceivedEntries());
+    assertNull(receiver.getLastTime());
+
+    byte[] earlier = createEntry(24, 1, 1, Log.LogLevel.INFO, "tag", "earlier", 1423669269, 0);
+    byte[] other = createEntry(24, 2, 2, Log.LogLevel.INFO, "tag", "other", 1423669270, 1000);
+    byte[] first = createEntry(24, 1, 1, Log.LogLevel.INFO, "tag", "first", 1423669270, 1000);
+    byte[] sibling = createEntry(24, 3, 3, Log.LogLevel.INFO, "tag", "sibling", 1423669270, 1000);
+    byte[] second = createEntry(24, 1, 1, Log.LogLevel.INFO, "tag", "second", 1423669270, 2000);
+    byte[] third = createEntry(24, 1, 1, Log.LogLevel.INFO, "tag", "third", 1423669271, 0);
+    receiver.addOutput(earlier, 0, earlier.length);
+    receiver.addOutput(other, 0, other.length);
+    receiver.addOutput(first, 0, first.length);
+    // The connection is lost in the middle of the next entry
+    receiver.addOutput(sibling, 0, 10);
+    assertTrue(receiver.hasReceivedEntries());
+    String lastTime = receiver.getLastTime();
+    assertNotNull(lastTime);
+    assertTrue(lastTime, lastTime.matches("\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.000"));
+
+    // The new command resumes from the time of the last entry, in milliseconds, so it outputs the entries of that time again
+    receiver.reset();
+    receiver.addOutput(other, 0, other.length);
+    receiver.addOutput(first, 0, first.length);
+    receiver.addOutput(sibling, 0, sibling.length);
+    receiver.addOutput(second, 0, second.length);
+    receiver.addOutput(third, 0, third.length);
+    assertFalse(receiver.isCorrupted());
+
+    String[] lines = writer.toString().split("\n");
+    assertEquals(6, lines.length);
+    assertTrue(lines[0], lines[0].endsWith(" earlier"));
+    assertTrue(lines[1], lines[1].endsWith(" other"));
+    assertTrue(lines[2], lines[2].endsWith(" first"));
+    assertTrue(lines[3], lines[3].endsWith(" sibling"));
+    assertTrue(lines[4], lines[4].endsWith(" second"));
+    assertTrue(lines[5], lines[5].endsWith(" third"));
+
+    // Entries of the same time stamp are only skipped right after a reset
+    receiver.addOutput(third, 0, third.length);
+    assertEquals(7, writer.toString().split("\n").length);
+  }
+
+  private static byte[] createEntry(int headerSize, int pid, int tid, Log.LogLevel level, String tag, String message) {
+    return createEntry(headerSize, pid, tid, level, tag, message, 1423669270, 621000000);
+  }
+
+  private static byte[] createEntry(int headerSize, int pid, int tid, Log.LogLevel level, String tag, String message,
+                                    int seconds, int nanos) {
+    byte[] tagBytes = tag.getBytes(Charsets.UTF_8);
+    byte[] messageBytes = message.getBytes(Charsets.UTF_8);
+    int payloadSize = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+    int size = headerSize == 0 ? 20 : headerSize;
+    ByteBuffer buffer = ByteBuffer.allocate(size + payloadSize).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putShort((short)payloadSize);
+    buffer.putShort((short)headerSize);
+    buffer.putInt(pid);
+    buffer.putInt(tid);
+    buffer.putInt(seconds);
+    buffer.putInt(nanos);
+    buffer.position(size);
+    buffer.put((byte)level.getPriority());
+    buffer.put(tagBytes).put((byte)0);
+    buffer.put(messageBytes).put((byte)0);
+    return buffer.array();
+  }
+}
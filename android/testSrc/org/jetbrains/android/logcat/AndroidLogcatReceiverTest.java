@@ -40,6 +40,45 @@ public class AndroidLogcatReceiverTest extends TestCase {
       myWriter.getBuffer().toString());
   }
 
+  public void testInvalidateDropsIncompleteMessage() {
+    // the connection is lost after a header, and the new output starts with another one
+    myReceiver.processNewLine("[ 02-11 16:41:10.621 17945:17995 W/GAV2     ]");
+    myReceiver.invalidate();
+    myReceiver.processNewLine("[ 02-11 16:41:11.621 17945:17995 I/GAV2     ]");
+    myReceiver.processNewLine("Connected");
+
+    assertEquals(insertTagSeparator("02-11 16:41:11.621  17945-17995/? I/GAV2", "Connected\n"), myWriter.getBuffer().toString());
+  }
+
+  public void testSkipReceived() {
+    myReceiver.processNewLine("[ 02-11 16:41:10.621 17945:17995 W/GAV2     ]");
+    myReceiver.processNewLine("first");
+    myReceiver.processNewLine("[ 02-11 16:41:10.621 17945:17996 W/GAV2     ]");
+    myReceiver.processNewLine("second");
+    assertEquals("02-11 16:41:10.621", myReceiver.getLastTime());
+
+    // logcat -T outputs the entries of the last millisecond again
+    myReceiver.invalidate();
+    myReceiver.skipReceived();
+    myReceiver.processNewLine("[ 02-11 16:41:10.621 17945:17995 W/GAV2     ]");
+    myReceiver.processNewLine("first");
+    myReceiver.processNewLine("");
+    myReceiver.processNewLine("[ 02-11 16:41:10.621 17945:17996 W/GAV2     ]");
+    myReceiver.processNewLine("second");
+    myReceiver.processNewLine("");
+    myReceiver.processNewLine("[ 02-11 16:41:10.621 17945:17997 W/GAV2     ]");
+    myReceiver.processNewLine("third");
+    myReceiver.processNewLine("[ 02-11 16:41:11.621 17945:17995 W/GAV2     ]");
+    myReceiver.processNewLine("fourth");
+
+    assertEquals(insertTagSeparator("02-11 16:41:10.621  17945-17995/? W/GAV2", "first\n") +
+                 insertTagSeparator("02-11 16:41:10.621  17945-17996/? W/GAV2", "second\n") +
+                 insertTagSeparator("02-11 16:41:10.621  17945-17997/? W/GAV2", "third\n") +
+                 insertTagSeparator("02-11 16:41:11.621  17945-17995/? W/GAV2", "fourth\n"),
+                 myWriter.getBuffer().toString());
+    assertEquals("02-11 16:41:11.621", myReceiver.getLastTime());
+  }
+
   public void testParseException() {
     String line1 = "FATAL EXCEPTION: main";
     String line2 = "java.lang.RuntimeException: Unable to <snip>: j.l.Exception";
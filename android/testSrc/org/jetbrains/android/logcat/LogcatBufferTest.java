@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.android.logcat;
+
+import com.android.ddmlib.Log;
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+
+public class LogcatBufferTest extends TestCase {
+  public void testReceiver() {
+    LogcatBuffer buffer = new LogcatBuffer(10);
+    StringWriter writer = new StringWriter();
+    AndroidLogcatReceiver receiver = new AndroidLogcatReceiver(null, writer, buffer);
+    receiver.processNewLine("[ 02-11 16:41:10.621 17945:0x1ef W/GAV2     ]");
+    receiver.processNewLine("Thread[Service Reconnect,5,main]: Connection to service failed 1");
+    receiver.processNewLine("at android..performLaunchActivity(ActivityThread.java:2180)");
+
+    String[] lines = writer.getBuffer().toString().split("\n");
+    assertEquals(2, lines.length);
+    assertEquals(1, buffer.size());
+    assertNull(buffer.find(lines[1]));
+
+    LogcatBuffer.Entry entry = buffer.find(lines[0]);
+    assertNotNull(entry);
+    assertEquals(17945, entry.getPid());
+    assertEquals(0x1ef, entry.getTid());
+    assertEquals(Log.LogLevel.WARN, entry.getLogLevel());
+    assertEquals("GAV2", entry.getTag());
+    assertEquals("?", entry.getPackage());
+    assertEquals("Thread[Service Reconnect,5,main]: Connection to service failed 1", lines[0].substring(entry.getMessageOffset()));
+    assertEquals(LogcatBuffer.parseTime("02-11 16:41:10.621"), entry.getTime());
+  }
+
+  public void testEviction() {
+    LogcatBuffer buffer = new LogcatBuffer(3);
+    for (int i = 0; i < 5; i++) {
+      AndroidLogcatReceiver.LogMessageHeader header = createHeader(100 + i, "02-11 16:41:10.62" + i);
+      String message = "message " + i;
+      String line = AndroidLogcatFormatter.formatMessage(message, header);
+      buffer.add(line, header, line.length() - message.length());
+    }
+    assertEquals(3, buffer.size());
+    assertNull(buffer.find(AndroidLogcatFormatter.formatMessage("message 0", createHeader(100, "02-11 16:41:10.620"))));
+    LogcatBuffer.Entry entry = buffer.find(AndroidLogcatFormatter.formatMessage("message 4", createHeader(104, "02-11 16:41:10.624")));
+    assertNotNull(entry);
+    assertEquals(104, entry.getPid());
+    assertEquals("com.example", entry.getPackage());
+
+    buffer.clear();
+    assertEquals(0, buffer.size());
+    assertNull(buffer.find(AndroidLogcatFormatter.formatMessage("message 4", createHeader(104, "02-11 16:41:10.624"))));
+  }
+
+  public void testSelect() {
+    LogcatBuffer buffer = new LogcatBuffer(4);
+    LogcatBuffer.Entry info = add(buffer, 100, "alpha", Log.LogLevel.INFO, "hello");
+    LogcatBuffer.Entry debug = add(buffer, 100, "alpha", Log.LogLevel.DEBUG, "hello");
+    LogcatBuffer.Entry otherTag = add(buffer, 100, "beta", Log.LogLevel.ERROR, "hello");
+    LogcatBuffer.Entry otherMessage = add(buffer, 100, "alpha", Log.LogLevel.WARN, "goodbye");
+
+    AndroidConfiguredLogFilters.MyFilterEntry filterEntry = new AndroidConfiguredLogFilters.MyFilterEntry();
+    filterEntry.setLogTagPattern("^al");
+    filterEntry.setLogLevel(Log.LogLevel.INFO.getStringValue());
+    filterEntry.setLogMessagePattern("hel+o");
+    ConfiguredFilter filter = ConfiguredFilter.compile(filterEntry, "test");
+    assertNotNull(filter);
+
+    LogcatBuffer.Selection selection = buffer.select(filter);
+    assertSame(selection, buffer.select(filter));
+    assertEquals(Boolean.TRUE, selection.isSelected(info, "hello"));
+    assertEquals(Boolean.FALSE, selection.isSelected(debug, "hello"));
+    assertEquals(Boolean.FALSE, selection.isSelected(otherTag, "hello"));
+    assertEquals(Boolean.FALSE, selection.isSelected(otherMessage, "goodbye"));
+    // The message pattern is only matched against the text passed in
+    assertEquals(2, selection.getSelectedCount());
+
+    // Overwrites the first message, and is evaluated when asked for
+    LogcatBuffer.Entry added = add(buffer, 101, "alpine", Log.LogLevel.ASSERT, "hello world");
+    assertNull(selection.isSelected(info, "hello"));
+    assertEquals(Boolean.TRUE, selection.isSelected(added, "hello world"));
+
+    filterEntry.setPid("100");
+    ConfiguredFilter pidFilter = ConfiguredFilter.compile(filterEntry, "pid");
+    assertNotNull(pidFilter);
+    assertEquals(Boolean.FALSE, buffer.select(pidFilter).isSelected(added, "hello world"));
+  }
+
+  public void testLinesWithSameHashCode() {
+    // "Aa" and "BB" have the same hash code, and so do lines which only differ by them
+    String[] messages = {"AaAa", "AaBB", "BBAa"};
+    LogcatBuffer buffer = new LogcatBuffer(4);
+    AndroidLogcatReceiver.LogMessageHeader header = createHeader(100, "02-11 16:41:10.620");
+    String[] lines = new String[messages.length];
+    for (int i = 0; i < messages.length; i++) {
+      lines[i] = AndroidLogcatFormatter.formatMessage(messages[i], header);
+      assertEquals(lines[0].hashCode(), lines[i].hashCode());
+      buffer.add(lines[i], header, lines[i].length() - messages[i].length());
+    }
+    for (String line : lines) {
+      assertNotNull(buffer.find(line));
+    }
+    assertNull(buffer.find(AndroidLogcatFormatter.formatMessage("BBBB", header)));
+
+    // The same line again, which is still found once the first one is evicted
+    buffer.add(lines[0], header, lines[0].length() - messages[0].length());
+    header.myPid = 101;
+    String other = AndroidLogcatFormatter.formatMessage("other", header);
+    buffer.add(other, header, other.length() - "other".length());
+    assertEquals(4, buffer.size());
+    for (String line : lines) {
+      assertNotNull(buffer.find(line));
+    }
+    assertNotNull(buffer.find(other));
+
+    buffer.add(other, header, other.length() - "other".length());
+    assertNull(buffer.find(lines[1]));
+    assertNotNull(buffer.find(lines[0]));
+    assertNotNull(buffer.find(lines[2]));
+  }
+
+  public void testStringsAreReleased() {
+    LogcatBuffer buffer = new LogcatBuffer(2);
+    for (int i = 0; i < 10; i++) {
+      add(buffer, 100, "tag" + i, Log.LogLevel.INFO, "message");
+    }
+    // The tags of the last two messages, and the package
+    assertEquals(3, buffer.getStringCount());
+    LogcatBuffer.Entry entry = add(buffer, 100, "tag10", Log.LogLevel.INFO, "message");
+    assertEquals("tag10", entry.getTag());
+    assertEquals("com.example", entry.getPackage());
+    assertEquals(3, buffer.getStringCount());
+
+    buffer.clear();
+    assertEquals(0, buffer.getStringCount());
+  }
+
+  private static LogcatBuffer.Entry add(LogcatBuffer buffer, int pid, String tag, Log.LogLevel level, String message) {
+    AndroidLogcatReceiver.LogMessageHeader header = createHeader(pid, "02-11 16:41:10.620");
+    header.myTag = tag;
+    header.myLogLevel = level;
+    String line = AndroidLogcatFormatter.formatMessage(message, header);
+    buffer.add(line, header, line.length() - message.length());
+    LogcatBuffer.Entry entry = buffer.find(line);
+    assertNotNull(entry);
+    return entry;
+  }
+
+  public void testIndexIsPrunedAndTrimmed() {
+    LogcatBuffer buffer = new LogcatBuffer(1024);
+    for (int i = 0; i < 1024; i++) {
+      add(buffer, 100 + i, "tag", Log.LogLevel.INFO, "message");
+    }
+    // One pid per message, and the tag and package
+    assertEquals(1026, buffer.getIndexSize());
+
+    for (int i = 0; i < 1024; i++) {
+      add(buffer, 1, "tag", Log.LogLevel.INFO, "message");
+    }
+    assertEquals(3, buffer.getIndexSize());
+
+    for (int i = 0; i < 1024; i++) {
+      add(buffer, i < 10 ? 1 : 2, "tag", Log.LogLevel.INFO, "message");
+    }
+    assertEquals(4, buffer.getIndexSize());
+    // Trimmed at the end of the ring: pid 1 is only left in the first word, the others cover the whole ring
+    assertEquals(64 + 3 * 1024, buffer.getIndexBits());
+  }
+
+  public void testParseTime() {
+    assertTrue(LogcatBuffer.parseTime("02-11 16:41:10.621") < LogcatBuffer.parseTime("02-11 16:41:10.622"));
+    assertTrue(LogcatBuffer.parseTime("02-11 23:59:59.999") < LogcatBuffer.parseTime("02-12 00:00:00.000"));
+    assertEquals(LogcatBuffer.parseTime("08-11 21:15:35.752"), LogcatBuffer.parseTime("08-11 21:15:35.7524"));
+    assertEquals(0, LogcatBuffer.parseTime("garbage"));
+  }
+
+  private static AndroidLogcatReceiver.LogMessageHeader createHeader(int pid, String time) {
+    AndroidLogcatReceiver.LogMessageHeader header = new AndroidLogcatReceiver.LogMessageHeader();
+    header.myTime = time;
+    header.myLogLevel = Log.LogLevel.DEBUG;
+    header.myPid = pid;
+    header.myTid = "1";
+    header.myAppPackage = "com.example";
+    header.myTag = "tag";
+    return header;
+  }
+}
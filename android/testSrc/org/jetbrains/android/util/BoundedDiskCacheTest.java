@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.android.util;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class BoundedDiskCacheTest extends TestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("bounded", "cache");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testReadWrite() throws Exception {
+    BoundedDiskCache cache = new BoundedDiskCache(myDir, ".bin", 1000, false);
+    assertNull(cache.read("a1"));
+    cache.write("a1", new byte[]{1, 2, 3});
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3}, cache.read("a1")));
+    assertTrue(new File(myDir, "a1.bin").isFile());
+
+    // Too large for the whole budget
+    cache.write("b1", new byte[1001]);
+    assertNull(cache.read("b1"));
+  }
+
+  public void testSpreadOverFolders() throws Exception {
+    BoundedDiskCache cache = new BoundedDiskCache(myDir, ".class", 250, true);
+    cache.write("ab1", new byte[100]);
+    cache.write("cd1", new byte[100]);
+    assertTrue(new File(new File(myDir, "ab"), "ab1.class").isFile());
+    assertTrue(new File(new File(myDir, "cd"), "cd1.class").isFile());
+
+    // Reading ab1 makes cd1 the least recently used file
+    assertNotNull(cache.read("ab1"));
+    cache.write("ef1", new byte[100]);
+    assertNotNull(cache.read("ab1"));
+    assertNull(cache.read("cd1"));
+    assertNotNull(cache.read("ef1"));
+  }
+
+  public void testSharedDirectory() throws Exception {
+    // Two IDE instances, each with a budget for two files
+    BoundedDiskCache first = new BoundedDiskCache(myDir, ".bin", 250, false);
+    BoundedDiskCache second = new BoundedDiskCache(myDir, ".bin", 250, false);
+    first.write("a1", new byte[100]);
+    assertNotNull(second.read("a1"));
+    second.write("b1", new byte[100]);
+    second.write("c1", new byte[100]);
+
+    // The second instance counts the file it read, so it evicted it
+    assertNull(first.read("a1"));
+    assertNotNull(first.read("c1"));
+    assertEquals(2, myDir.listFiles().length);
+  }
+}